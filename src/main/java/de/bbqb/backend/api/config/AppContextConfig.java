@@ -1,14 +1,12 @@
 package de.bbqb.backend.api.config;
 
+import de.bbqb.backend.stripe.StripeWebhookAllowlist;
+import io.micrometer.core.instrument.MeterRegistry;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.web.servlet.FilterRegistrationBean;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
-
-import java.io.*;
-import java.net.URL;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Scanner;
+import org.springframework.core.Ordered;
 
 /**
  * Spring Context Configuration Class to provide additional beans ect. to
@@ -19,34 +17,17 @@ import java.util.Scanner;
 @Configuration
 public class AppContextConfig {
 
-    // URL to stripe server returning its webhook IPs
-    @Value("${bbq.backend.stripe.webhook-ips-url}")
-    String stripeWebhookIPsURL;
-
     /**
      * To receive Webhook requests from Stripe we need to whitelist their servers ip addresses
-     * @return A List with accepted ip addresses
+     * @return The filter rejecting webhook requests from other addresses, registered ahead of all other filters
      */
     @Bean
-    public List<String> validStripeIps() {
-        List<String> validStripeIps = new ArrayList<>();
-        FileInputStream inputStream = null;
-        try {
-            Scanner scanner = new Scanner(new URL(stripeWebhookIPsURL).openStream());
-            validStripeIps.add(scanner.nextLine());
-        } catch (IOException e) {
-            e.printStackTrace();
-        } finally {
-            if (inputStream != null) {
-                try {
-                    inputStream.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
-        }
-        // Add localhost
-        validStripeIps.add("127.0.0.1");
-        return validStripeIps;
+    public FilterRegistrationBean<StripeWebhookIpFilter> stripeWebhookIpFilter(StripeWebhookAllowlist allowlist,
+                                                                               @Value("${bbq.backend.stripe.webhook-client-ip-header}") String clientIpHeader,
+                                                                               MeterRegistry meterRegistry) {
+        FilterRegistrationBean<StripeWebhookIpFilter> registration = new FilterRegistrationBean<>(new StripeWebhookIpFilter(allowlist, clientIpHeader, meterRegistry));
+        registration.addUrlPatterns("/stripe/webhook");
+        registration.setOrder(Ordered.HIGHEST_PRECEDENCE);
+        return registration;
     }
 }
@@ -22,9 +22,12 @@ public class AppSecurityConfig extends WebSecurityConfigurerAdapter {
                 .authorizeRequests()
                 .mvcMatchers(HttpMethod.GET,"/").permitAll()
                 .mvcMatchers(HttpMethod.GET, "/users").hasRole("admin")
+                .mvcMatchers("/admin/**").hasRole("admin")
                 .mvcMatchers(HttpMethod.OPTIONS,"**/*").permitAll()
                 .mvcMatchers(HttpMethod.GET, "/devices").permitAll()
                 .mvcMatchers(HttpMethod.GET, "/devices/*").permitAll()
+                .mvcMatchers(HttpMethod.GET, "/devices/*/events").permitAll()
+                .mvcMatchers(HttpMethod.GET, "/devices/*/availability").permitAll()
                 .mvcMatchers(HttpMethod.POST, "/stripe/webhook").permitAll() // Permit all so that stripe servers can call this endpoint
                 .mvcMatchers(HttpMethod.GET, "/_ah/start").permitAll() // Required by GAE to start up an instance
                 .anyRequest().authenticated()
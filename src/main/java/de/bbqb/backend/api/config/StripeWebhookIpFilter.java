@@ -0,0 +1,77 @@
+package de.bbqb.backend.api.config;
+
+import de.bbqb.backend.stripe.StripeWebhookAllowlist;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpStatus;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+/**
+ * Rejects requests to the Stripe webhook which do not come from a Stripe IP
+ * before the security filters run and the body is read.
+ * Behind a proxy like the App Engine front end the client address is taken from a header the proxy sets,
+ * because the remote address of the request is the one of the proxy.
+ *
+ * @author Marius Degen
+ */
+public class StripeWebhookIpFilter implements Filter {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(StripeWebhookIpFilter.class);
+
+    private final StripeWebhookAllowlist allowlist;
+    private final String clientIpHeader;
+    private final Counter rejectedCounter;
+    private final Counter unavailableCounter;
+
+    /**
+     * @param clientIpHeader Header holding the client address set by a proxy or an empty string to use the remote address
+     */
+    public StripeWebhookIpFilter(StripeWebhookAllowlist allowlist, String clientIpHeader, MeterRegistry meterRegistry) {
+        this.allowlist = allowlist;
+        this.clientIpHeader = clientIpHeader;
+        this.rejectedCounter = counter(meterRegistry, "rejected");
+        this.unavailableCounter = counter(meterRegistry, "unavailable");
+    }
+
+    @Override
+    public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain) throws IOException, ServletException {
+        String address = clientAddress((HttpServletRequest) request);
+        if (allowlist.isAllowed(address)) {
+            chain.doFilter(request, response);
+            return;
+        }
+        HttpServletResponse httpResponse = (HttpServletResponse) response;
+        if (!allowlist.isLoaded()) {
+            // Stripe sends the event again later
+            unavailableCounter.increment();
+            httpResponse.setStatus(HttpStatus.SERVICE_UNAVAILABLE.value());
+            return;
+        }
+        rejectedCounter.increment();
+        LOGGER.debug("Request came from an unknown IP " + address);
+        httpResponse.setStatus(HttpStatus.FORBIDDEN.value());
+    }
+
+    private String clientAddress(HttpServletRequest request) {
+        String address = clientIpHeader.isEmpty() ? null : request.getHeader(clientIpHeader);
+        // Without the header, e.g. when running locally, the client connected directly
+        return address != null && !address.trim().isEmpty() ? address.trim() : request.getRemoteAddr();
+    }
+
+    private static Counter counter(MeterRegistry meterRegistry, String result) {
+        return Counter.builder("bbqb.stripe.webhook.allowlist.requests")
+                .description("Number of Stripe webhook requests which were not let through by result")
+                .tag("result", result)
+                .register(meterRegistry);
+    }
+}
@@ -0,0 +1,79 @@
+package de.bbqb.backend.api.controller;
+
+import de.bbqb.backend.api.model.entity.BookingStatistic;
+import de.bbqb.backend.api.model.service.BookingStatisticService;
+import org.springframework.format.annotation.DateTimeFormat;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+import reactor.core.publisher.Mono;
+
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.time.temporal.ChronoUnit;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * REST Controller with endpoints for operators of the BBQBs. All endpoints require the role admin.
+ *
+ * @author Marius Degen
+ */
+@CrossOrigin(origins = "*") // CORS configuration to allow all for the endpoints in this controller
+@RestController
+public class AdminController {
+
+    private static final long MAX_STATISTIC_DAYS = 366;
+    private static final long DEFAULT_STATISTIC_DAYS = 30;
+
+    private BookingStatisticService bookingStatisticService;
+
+    public AdminController(BookingStatisticService bookingStatisticService) {
+        super();
+        this.bookingStatisticService = bookingStatisticService;
+    }
+
+    /**
+     * Retrieve the payed, failed and expired bookings with revenue and utilization per device or city.
+     *
+     * @param groupBy Either "device" or "city".
+     * @param from    First UTC day (yyyy-MM-dd) of the range. Defaults to 30 days before to.
+     * @param to      Last UTC day (yyyy-MM-dd) of the range, inclusive. Defaults to today.
+     * @return An Array of statistics, one per device or city with bookings within the range.
+     */
+    @GetMapping("/admin/stats")
+    public Mono<ResponseEntity<List<BookingStatistic>>> getBookingStatistics(@RequestParam(value = "groupBy", defaultValue = BookingStatisticService.GROUP_BY_DEVICE) String groupBy,
+                                                                             @RequestParam(value = "from", required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate from,
+                                                                             @RequestParam(value = "to", required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate to) {
+        if (!BookingStatisticService.GROUP_BY_DEVICE.equals(groupBy) && !BookingStatisticService.GROUP_BY_CITY.equals(groupBy)) {
+            return Mono.just(ResponseEntity.badRequest().build());
+        }
+        LocalDate lastDay = to != null ? to : LocalDate.now(ZoneOffset.UTC);
+        LocalDate firstDay = from != null ? from : lastDay.minusDays(DEFAULT_STATISTIC_DAYS - 1);
+        if (!isValidRange(firstDay, lastDay)) {
+            return Mono.just(ResponseEntity.badRequest().build());
+        }
+        return bookingStatisticService.readBookingStatistics(groupBy, firstDay, lastDay)
+                .map(ResponseEntity::ok);
+    }
+
+    /**
+     * Recompute the booking statistics of a range of days from the bookings.
+     *
+     * @param from First UTC day (yyyy-MM-dd) of the range.
+     * @param to   Last UTC day (yyyy-MM-dd) of the range, inclusive.
+     * @return The number of counted bookings.
+     */
+    @PostMapping("/admin/stats:rebuild")
+    public Mono<ResponseEntity<Map<String, Long>>> postBookingStatisticsRebuild(@RequestParam("from") @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate from,
+                                                                                @RequestParam("to") @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate to) {
+        if (!isValidRange(from, to)) {
+            return Mono.just(ResponseEntity.badRequest().build());
+        }
+        return bookingStatisticService.rebuildBookingStatistics(from, to)
+                .map(counted -> ResponseEntity.ok(Map.of("countedBookings", counted)));
+    }
+
+    private static boolean isValidRange(LocalDate from, LocalDate to) {
+        return !from.isAfter(to) && ChronoUnit.DAYS.between(from, to) < MAX_STATISTIC_DAYS;
+    }
+}
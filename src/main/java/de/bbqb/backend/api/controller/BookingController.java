@@ -1,12 +1,17 @@
 package de.bbqb.backend.api.controller;
 
+import com.stripe.exception.ApiConnectionException;
+import com.stripe.exception.IdempotencyException;
+import com.stripe.exception.RateLimitException;
 import de.bbqb.backend.api.model.entity.*;
 import de.bbqb.backend.api.model.service.BookingService;
 import de.bbqb.backend.api.model.service.DeviceService;
+import de.bbqb.backend.api.model.service.IdempotencyService;
 import de.bbqb.backend.api.model.service.UserService;
 import de.bbqb.backend.stripe.StripeService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.security.core.Authentication;
 import org.springframework.security.core.annotation.AuthenticationPrincipal;
@@ -14,6 +19,12 @@ import org.springframework.web.bind.annotation.*;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
+import java.util.Date;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Function;
+
 /**
  * REST Controller with endpoints to manage booking resources
  *
@@ -27,24 +38,34 @@ public class BookingController {
     private UserService userService;
     private StripeService stripeService;
     private BookingService bookingService;
+    private IdempotencyService idempotencyService;
     private static final Logger LOGGER = LoggerFactory.getLogger(BookingController.class);
+    private static final long MAX_ADVANCE_BOOKING_MILLIS = TimeUnit.DAYS.toMillis(30);
+    private static final int MAX_PAGE_SIZE = 100;
 
-    public BookingController(DeviceService deviceService, UserService userService, StripeService stripeService, BookingService bookingService) {
+    public BookingController(DeviceService deviceService, UserService userService, StripeService stripeService, BookingService bookingService, IdempotencyService idempotencyService) {
         super();
         this.deviceService = deviceService;
         this.userService = userService;
         this.stripeService = stripeService;
         this.bookingService = bookingService;
+        this.idempotencyService = idempotencyService;
     }
 
     /**
 	 * Create a booking for a BBQB device and lock the device.
+     * A booking with a sessionStart reserves the device for a later session instead and does not lock it.
+     * A request retried with the same Idempotency-Key returns the booking of the first request instead of creating another one.
      *
-     * @param request: A BookingRequest
+     * @param idempotencyKey: Optional key unique to this booking attempt, e.g. a UUID
+     * @param request:        A BookingRequest
      * @return The pending Booking object including the payment information with paymentIntentId and client secret.
+     * 422 if the booking is not possible and 503 if Stripe or the database are not available, which the client may retry.
      */
     @PostMapping("/bookings")
-    public Mono<ResponseEntity<Booking>> postBookings(@AuthenticationPrincipal Authentication sub, @RequestBody BookingRequest request) {
+    public Mono<ResponseEntity<Booking>> postBookings(@AuthenticationPrincipal Authentication sub,
+                                                      @RequestHeader(value = IdempotencyService.HEADER, required = false) String idempotencyKey,
+                                                      @RequestBody BookingRequest request) {
         // TODO: Update test for this method because most of the code in here was moved to the service level
         Timeslot timeslot;
         try {
@@ -53,10 +74,32 @@ public class BookingController {
         } catch (IllegalArgumentException e) {
             return Mono.just(ResponseEntity.badRequest().build());
         }
+        Date sessionStart = null;
+        if (request.getSessionStart() != null) {
+            long now = System.currentTimeMillis();
+            if (request.getSessionStart() < now || request.getSessionStart() > now + MAX_ADVANCE_BOOKING_MILLIS) {
+                return Mono.just(ResponseEntity.badRequest().build());
+            }
+            sessionStart = new Date(request.getSessionStart());
+        }
         if (request.getDeviceId() != null) {
-            return bookingService.createBooking(request.getPaymentMethodId(), request.getDeviceId(), sub.getName(), timeslot)
-                    .map(ResponseEntity::ok)
-                    .onErrorReturn(ResponseEntity.unprocessableEntity().build());
+            Date start = sessionStart;
+            Function<String, Mono<ResponseEntity<Booking>>> createBooking = stripeIdempotencyKey ->
+                    bookingService.createBooking(request.getPaymentMethodId(), request.getDeviceId(), sub.getName(), timeslot, start, stripeIdempotencyKey)
+                            .map(ResponseEntity::ok)
+                            // A 5xx response is not stored for the idempotency key, so the client can retry a booking which failed temporarily
+                            .onErrorResume(e -> {
+                                if (isTransient(e)) {
+                                    LOGGER.warn("Unable to create a booking because of a temporary error", e);
+                                    return Mono.just(ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).build());
+                                }
+                                return Mono.just(ResponseEntity.unprocessableEntity().build());
+                            });
+            if (idempotencyKey == null) {
+                return createBooking.apply(null);
+            }
+            String fingerprint = request.getDeviceId() + "|" + request.getTimeslot() + "|" + request.getPaymentMethodId() + "|" + request.getSessionStart();
+            return idempotencyService.execute("POST /bookings " + sub.getName(), idempotencyKey, fingerprint, Booking.class, createBooking);
         } else {
             return Mono.just(ResponseEntity.unprocessableEntity().build());
         }
@@ -74,6 +117,30 @@ public class BookingController {
     }
 
 
+    /**
+     * Endpoint to retrieve one page of the bookings of the current user, the latest first
+     *
+     * @param sub
+     * @param pageSize  Maximum number of bookings on the page.
+     * @param pageToken Token of the page as returned in nextPageToken of the previous page. Omit for the first page.
+     * @return A page of booking objects with a token for the next page.
+     */
+    @GetMapping(value = "/bookings", params = "pageSize")
+    public Mono<ResponseEntity<Page<Booking>>> getBookingPage(@AuthenticationPrincipal Authentication sub,
+                                                              @RequestParam("pageSize") int pageSize,
+                                                              @RequestParam(value = "pageToken", required = false) String pageToken) {
+        if (pageSize <= 0 || pageSize > MAX_PAGE_SIZE) {
+            return Mono.just(ResponseEntity.badRequest().build());
+        }
+        try {
+            return bookingService.findBookingsByUserId(sub.getName(), pageSize, pageToken)
+                    .map(ResponseEntity::ok);
+        } catch (IllegalArgumentException e) {
+            // Malformed page token
+            return Mono.just(ResponseEntity.badRequest().build());
+        }
+    }
+
     /**
      * Endpoint to retrieve a specific booking
      *
@@ -87,4 +154,24 @@ public class BookingController {
                 .map(booking -> ResponseEntity.ok().header("Link", "</devices/" + booking.getDeviceId() + ">; rel=\"device\"").body(booking))
                 .defaultIfEmpty(ResponseEntity.notFound().build());
     }
+
+    /**
+     * @return true if the error was caused by an unavailable Stripe API or database or by a booking calendar
+     * which is not synchronized yet rather than the booking request
+     */
+    private static boolean isTransient(Throwable error) {
+        for (Throwable cause = error; cause != null; cause = cause.getCause()) {
+            if (cause instanceof RejectedExecutionException
+                    || cause instanceof IllegalStateException
+                    || cause instanceof TimeoutException
+                    || cause instanceof ApiConnectionException
+                    || cause instanceof RateLimitException
+                    || cause instanceof IdempotencyException
+                    || cause instanceof com.stripe.exception.ApiException
+                    || cause instanceof com.google.api.gax.rpc.ApiException) {
+                return true;
+            }
+        }
+        return false;
+    }
 }
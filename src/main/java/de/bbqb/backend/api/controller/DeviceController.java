@@ -1,17 +1,37 @@
 package de.bbqb.backend.api.controller;
 
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import de.bbqb.backend.api.model.entity.*;
+import de.bbqb.backend.api.model.service.BookingService;
 import de.bbqb.backend.api.model.service.DeviceService;
+import de.bbqb.backend.geo.GeoClusterIndex;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
+import org.springframework.http.codec.ServerSentEvent;
 import org.springframework.security.core.Authentication;
 import org.springframework.security.core.annotation.AuthenticationPrincipal;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.ResponseBodyEmitter;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 import org.springframework.web.servlet.support.ServletUriComponentsBuilder;
+import reactor.core.Disposable;
+import reactor.core.Exceptions;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
 
+import javax.servlet.http.HttpServletRequest;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.net.URI;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * REST Controller with endpoints to manage device resources like
@@ -23,11 +43,34 @@ import java.net.URI;
 @RestController
 public class DeviceController {
 
+    private static final double MAX_RADIUS_KM = 500;
+    private static final int MAX_LIMIT = 100;
+    // A map view spans only a few tiles, so larger requests are most likely a wrong zoom level
+    private static final long MAX_CLUSTER_TILES = 64;
+
+    private static final int MAX_PAGE_SIZE = 100;
+    private static final String APPLICATION_NDJSON_VALUE = "application/x-ndjson";
+    private static final int NDJSON_PREFETCH = 32;
+    private static final int BATCH_RESULT_PREFETCH = 500;
+
+    private static final long MAX_TELEMETRY_BUCKETS = 1000;
+    private static final long DEFAULT_TELEMETRY_RANGE_MILLIS = 60 * 60 * 1000;
+
+    private static final long MAX_AVAILABILITY_RANGE_MILLIS = TimeUnit.DAYS.toMillis(31);
+    private static final long DEFAULT_AVAILABILITY_RANGE_MILLIS = TimeUnit.DAYS.toMillis(1);
+
     private DeviceService deviceService;
+    private BookingService bookingService;
+    private ObjectMapper objectMapper;
+    private Duration heartbeatInterval;
 
-    public DeviceController(DeviceService deviceService) {
+    public DeviceController(DeviceService deviceService, BookingService bookingService, ObjectMapper objectMapper,
+                            @Value("${bbq.backend.device-events.heartbeat-interval}") long heartbeatIntervalMillis) {
         super();
         this.deviceService = deviceService;
+        this.bookingService = bookingService;
+        this.objectMapper = objectMapper;
+        this.heartbeatInterval = Duration.ofMillis(heartbeatIntervalMillis);
     }
 
     /**
@@ -40,6 +83,177 @@ public class DeviceController {
         return deviceService.readAllDevices();
     }
 
+    /**
+     * Retrieve one page of devices.
+     *
+     * @param pageSize  Maximum number of devices on the page.
+     * @param pageToken Token of the page as returned in nextPageToken of the previous page. Omit for the first page.
+     * @return A page of device objects with a token for the next page.
+     */
+    @GetMapping(value = "/devices", params = "pageSize")
+    public Mono<ResponseEntity<Page<Device>>> getDevicePage(@RequestParam("pageSize") int pageSize,
+                                                            @RequestParam(value = "pageToken", required = false) String pageToken) {
+        if (pageSize <= 0 || pageSize > MAX_PAGE_SIZE) {
+            return Mono.just(ResponseEntity.badRequest().build());
+        }
+        return deviceService.readDevices(pageSize, pageToken)
+                .map(ResponseEntity::ok)
+                // Malformed page token
+                .onErrorReturn(IllegalArgumentException.class, ResponseEntity.badRequest().build());
+    }
+
+    /**
+     * Stream all devices as server-sent events or as newline delimited JSON while they are read from the database.
+     * Devices are read only as fast as the client receives them.
+     *
+     * @return A stream of device objects.
+     */
+    @GetMapping(value = "/devices", produces = {MediaType.TEXT_EVENT_STREAM_VALUE, MediaType.APPLICATION_STREAM_JSON_VALUE})
+    public Flux<Device> streamDevices() {
+        return deviceService.readAllDevices();
+    }
+
+    /**
+     * Stream all devices as newline delimited JSON (one device object per line) while they are read from the database.
+     * Spring MVC does not stream this media type for reactive return values, so the devices are written manually.
+     * Devices are written on a worker thread as they arrive, so no thread waits for the database.
+     *
+     * @return A stream of device objects.
+     */
+    @GetMapping(value = "/devices", produces = APPLICATION_NDJSON_VALUE)
+    public ResponseEntity<ResponseBodyEmitter> streamDevicesAsNdjson() {
+        ResponseBodyEmitter emitter = new ResponseBodyEmitter();
+        MediaType mediaType = MediaType.parseMediaType(APPLICATION_NDJSON_VALUE);
+        // Request devices in small batches so that only a few of them are held in memory at once
+        Disposable writing = deviceService.readAllDevices()
+                .publishOn(Schedulers.boundedElastic(), NDJSON_PREFETCH)
+                .subscribe(device -> {
+                    try {
+                        emitter.send(toLine(device), mediaType);
+                    } catch (IOException e) {
+                        // The client went away, which cancels reading the devices
+                        throw Exceptions.propagate(e);
+                    }
+                }, emitter::completeWithError, emitter::complete);
+        emitter.onTimeout(writing::dispose);
+        emitter.onError(e -> writing.dispose());
+        return ResponseEntity.ok().contentType(mediaType).body(emitter);
+    }
+
+    private byte[] toLine(Object value) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        objectMapper.writeValue(line, value);
+        line.write('\n');
+        return line.toByteArray();
+    }
+
+    /**
+     * Stream changes of all devices as server-sent events.
+     * Each event contains the new state of a device, a "deleted" event contains the id of a deleted device.
+     * Clients which do not keep up miss intermediate changes.
+     *
+     * @return A stream of device objects or 503 if changes are not streamed by this instance.
+     */
+    @GetMapping(value = "/devices/events", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public ResponseEntity<Flux<ServerSentEvent<Object>>> getDeviceEvents() {
+        if (!deviceService.isDeviceChangesEnabled()) {
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).build();
+        }
+        return ResponseEntity.ok(toServerSentEvents(deviceService.readDeviceChanges()));
+    }
+
+    /**
+     * Stream changes of a device as server-sent events, for example to see when a booked device was unlocked.
+     * The first event contains the current state of the device. The stream ends with a "deleted" event when the device is deleted.
+     *
+     * @param deviceId The ID of the device.
+     * @return A stream of device objects, 404 if the device does not exist or 503 if changes are not streamed by this instance.
+     */
+    @GetMapping(value = "/devices/{id}/events", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public Mono<ResponseEntity<Flux<ServerSentEvent<Object>>>> getDeviceEvents(@PathVariable("id") String deviceId) {
+        if (!deviceService.isDeviceChangesEnabled()) {
+            return Mono.just(ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).build());
+        }
+        return deviceService.readDevice(deviceId)
+                .map(device -> ResponseEntity.ok(toServerSentEvents(deviceService.readDeviceChanges(deviceId))))
+                .defaultIfEmpty(ResponseEntity.notFound().build());
+    }
+
+    // Comments are sent while no device changes, so that proxies do not close the connection as idle
+    private Flux<ServerSentEvent<Object>> toServerSentEvents(Flux<DeviceEvent> events) {
+        return events.publish(shared -> Flux.merge(
+                shared.map(this::toServerSentEvent),
+                Flux.interval(heartbeatInterval)
+                        .map(tick -> ServerSentEvent.builder().comment("heartbeat").build())
+                        .takeUntilOther(shared.then())));
+    }
+
+    // Changes are sent as unnamed events with the device, so that clients receive them as messages
+    private ServerSentEvent<Object> toServerSentEvent(DeviceEvent event) {
+        if (DeviceEvent.DELETED.equals(event.getType())) {
+            return ServerSentEvent.builder()
+                    .event(DeviceEvent.DELETED)
+                    .data((Object) Collections.singletonMap("id", event.getId()))
+                    .build();
+        }
+        return ServerSentEvent.builder((Object) event.getDevice()).build();
+    }
+
+    /**
+     * Retrieve the available devices closest to a location.
+     *
+     * @param lat      Latitude of the location in degrees.
+     * @param lng      Longitude of the location in degrees.
+     * @param radiusKm Maximum distance of a device to the location in km.
+     * @param limit    Maximum number of devices to return.
+     * @return An Array of device objects sorted by distance.
+     */
+    @GetMapping(value = "/devices", params = {"lat", "lng"})
+    public Mono<ResponseEntity<List<Device>>> getDevicesNear(@RequestParam("lat") double lat,
+                                                             @RequestParam("lng") double lng,
+                                                             @RequestParam(value = "radiusKm", defaultValue = "10") double radiusKm,
+                                                             @RequestParam(value = "limit", defaultValue = "20") int limit) {
+        if (Math.abs(lat) > 90 || Math.abs(lng) > 180 || radiusKm <= 0 || radiusKm > MAX_RADIUS_KM || limit <= 0 || limit > MAX_LIMIT) {
+            return Mono.just(ResponseEntity.badRequest().build());
+        }
+        return deviceService.readDevicesNear(new Location(lat, lng), radiusKm, limit)
+                .collectList()
+                .map(ResponseEntity::ok);
+    }
+
+    /**
+     * Retrieve clusters of devices to be shown as map markers.
+     *
+     * @param bbox Bounding box of the visible map area as "minLng,minLat,maxLng,maxLat".
+     * @param zoom Zoom level of the map between 0 and 18.
+     * @return An Array of device clusters.
+     */
+    @GetMapping("/devices/clusters")
+    public Mono<ResponseEntity<List<DeviceCluster>>> getDeviceClusters(@RequestParam("bbox") String bbox, @RequestParam("zoom") int zoom) {
+        String[] edges = bbox.split(",");
+        if (edges.length != 4 || zoom < 0 || zoom > GeoClusterIndex.MAX_ZOOM) {
+            return Mono.just(ResponseEntity.badRequest().build());
+        }
+        double minLng;
+        double minLat;
+        double maxLng;
+        double maxLat;
+        try {
+            minLng = Double.parseDouble(edges[0]);
+            minLat = Double.parseDouble(edges[1]);
+            maxLng = Double.parseDouble(edges[2]);
+            maxLat = Double.parseDouble(edges[3]);
+        } catch (NumberFormatException e) {
+            return Mono.just(ResponseEntity.badRequest().build());
+        }
+        if (Math.abs(minLat) > 90 || Math.abs(maxLat) > 90 || minLat > maxLat || Math.abs(minLng) > 180 || Math.abs(maxLng) > 180
+                || GeoClusterIndex.tileCount(minLat, minLng, maxLat, maxLng, zoom) > MAX_CLUSTER_TILES) {
+            return Mono.just(ResponseEntity.badRequest().build());
+        }
+        return deviceService.readDeviceClusters(minLat, minLng, maxLat, maxLng, zoom)
+                .map(ResponseEntity::ok);
+    }
+
     /**
      * Retrieve a device by its ID.
      *
@@ -53,6 +267,70 @@ public class DeviceController {
                 .defaultIfEmpty(ResponseEntity.notFound().build());
     }
 
+    /**
+     * Retrieve the plate temperatures of a device aggregated into time buckets.
+     *
+     * @param deviceId   The ID of the device.
+     * @param from       Start of the time range in milliseconds since epoch. Defaults to one hour before to.
+     * @param to         End of the time range in milliseconds since epoch. Defaults to now.
+     * @param resolution Length of a bucket in milliseconds.
+     * @return An Array of buckets with min/max/avg temperatures. Buckets without messages are omitted.
+     */
+    @GetMapping("/devices/{id}/telemetry")
+    public Mono<ResponseEntity<List<DeviceTelemetryBucket>>> getDeviceTelemetry(@PathVariable("id") String deviceId,
+                                                                                @RequestParam(value = "from", required = false) Long from,
+                                                                                @RequestParam(value = "to", required = false) Long to,
+                                                                                @RequestParam(value = "resolution", defaultValue = "60000") long resolution) {
+        long end = to != null ? to : System.currentTimeMillis();
+        long range;
+        long start;
+        try {
+            start = from != null ? from : Math.subtractExact(end, DEFAULT_TELEMETRY_RANGE_MILLIS);
+            range = Math.subtractExact(end, start);
+        } catch (ArithmeticException e) {
+            // Bounds too far apart to be a time range
+            return Mono.just(ResponseEntity.badRequest().build());
+        }
+        if (resolution <= 0 || range <= 0 || range / resolution >= MAX_TELEMETRY_BUCKETS) {
+            return Mono.just(ResponseEntity.badRequest().build());
+        }
+        return deviceService.readDeviceTelemetry(deviceId, start, end, resolution)
+                .map(ResponseEntity.ok()::body)
+                .defaultIfEmpty(ResponseEntity.notFound().build());
+    }
+
+    /**
+     * Retrieve the booked and free times of a device.
+     *
+     * @param deviceId The ID of the device.
+     * @param from     Start of the time range in milliseconds since epoch. Defaults to now.
+     * @param to       End of the time range in milliseconds since epoch. Defaults to one day after from.
+     * @param timeslot Timeslot in minutes to find the next free session start for.
+     * @return The booked and free intervals within the range and the next free session start.
+     */
+    @GetMapping("/devices/{id}/availability")
+    public Mono<ResponseEntity<DeviceAvailability>> getDeviceAvailability(@PathVariable("id") String deviceId,
+                                                                          @RequestParam(value = "from", required = false) Long from,
+                                                                          @RequestParam(value = "to", required = false) Long to,
+                                                                          @RequestParam(value = "timeslot", defaultValue = "45") Integer timeslot) {
+        long start = from != null ? from : System.currentTimeMillis();
+        long end = to != null ? to : start + DEFAULT_AVAILABILITY_RANGE_MILLIS;
+        Timeslot sessionTimeslot;
+        try {
+            sessionTimeslot = Timeslot.getTimeslot(timeslot);
+        } catch (IllegalArgumentException e) {
+            return Mono.just(ResponseEntity.badRequest().build());
+        }
+        if (start >= end || end - start > MAX_AVAILABILITY_RANGE_MILLIS) {
+            return Mono.just(ResponseEntity.badRequest().build());
+        }
+        return bookingService.readAvailability(deviceId, start, end, sessionTimeslot)
+                .map(ResponseEntity.ok()::body)
+                .defaultIfEmpty(ResponseEntity.notFound().build())
+                // The calendar is rebuilding after its listener failed
+                .onErrorReturn(IllegalStateException.class, ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).build());
+    }
+
     /**
      * Create a new device.
      *
@@ -69,6 +347,55 @@ public class DeviceController {
         });
     }
 
+    /**
+     * Create and update many devices at once.
+     * The request body is either a JSON array of devices or newline delimited JSON with one device per line.
+     * Devices without id are created, devices with id are updated. The body is read while the devices are written,
+     * so large imports are never held in memory completely.
+     *
+     * @param request The request to read the devices from.
+     * @return A stream of newline delimited JSON with one result per device in request order,
+     * written as soon as the batch containing the device is committed.
+     * If the body cannot be read the devices before the error are still written
+     * and a last result without index describes the error.
+     */
+    @PostMapping(value = "/devices:batch", consumes = {MediaType.APPLICATION_JSON_VALUE, APPLICATION_NDJSON_VALUE})
+    public ResponseEntity<StreamingResponseBody> postDeviceBatch(HttpServletRequest request) {
+        StreamingResponseBody body = outputStream -> {
+            AtomicReference<Exception> readError = new AtomicReference<>();
+            try (MappingIterator<Device> devices = objectMapper.readerFor(Device.class).readValues(request.getInputStream())) {
+                // A malformed device ends the input, so the devices read before it are still written
+                Flux<Device> input = Flux.<Device>generate(sink -> {
+                    try {
+                        if (devices.hasNextValue()) {
+                            sink.next(devices.nextValue());
+                        } else {
+                            sink.complete();
+                        }
+                    } catch (IOException e) {
+                        readError.set(e);
+                        sink.complete();
+                    }
+                }).subscribeOn(Schedulers.boundedElastic()); // Blocking reads, more devices are requested when a batch is committed
+                for (DeviceBatchResult result : deviceService.writeDevices(input).toIterable(BATCH_RESULT_PREFETCH)) {
+                    outputStream.write(objectMapper.writeValueAsBytes(result));
+                    outputStream.write('\n');
+                    outputStream.flush();
+                }
+            } catch (IOException | RuntimeException e) {
+                readError.set(e);
+            }
+            if (readError.get() != null) {
+                // The status is already sent, so the error is reported in the stream
+                DeviceBatchResult error = new DeviceBatchResult(null, null, DeviceBatchResult.FAILED,
+                        "Unable to read devices: " + readError.get().getMessage());
+                outputStream.write(objectMapper.writeValueAsBytes(error));
+                outputStream.write('\n');
+            }
+        };
+        return ResponseEntity.ok().contentType(MediaType.parseMediaType(APPLICATION_NDJSON_VALUE)).body(body);
+    }
+
     /**
      * Update the information of a device.
      * TODO: Currently not idempotent! Because it does not use the id from the request but creates a new one
@@ -2,6 +2,7 @@ package de.bbqb.backend.api.controller;
 
 import de.bbqb.backend.api.model.entity.*;
 import de.bbqb.backend.api.model.service.BookingService;
+import de.bbqb.backend.api.model.service.IdempotencyService;
 import de.bbqb.backend.api.model.service.UserService;
 import de.bbqb.backend.stripe.StripeService;
 import org.springframework.http.HttpStatus;
@@ -13,7 +14,7 @@ import org.springframework.web.servlet.support.ServletUriComponentsBuilder;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
-import java.util.Comparator;
+import java.util.function.Function;
 
 /**
  * REST Controller with endpoints to manage user resources
@@ -27,12 +28,14 @@ public class UserController {
     private UserService userService;
     private StripeService stripeService;
     private BookingService bookingService;
+    private IdempotencyService idempotencyService;
 
-    public UserController(UserService userService, StripeService stripeService, BookingService bookingService) {
+    public UserController(UserService userService, StripeService stripeService, BookingService bookingService, IdempotencyService idempotencyService) {
         super();
         this.userService = userService;
         this.stripeService = stripeService;
         this.bookingService = bookingService;
+        this.idempotencyService = idempotencyService;
     }
 
     /**
@@ -56,11 +59,11 @@ public class UserController {
         if (sub.getName().equals(userId)) {
             // TODO: Extend bookingService to do user validation
             return userService.readUser(userId)
-                    .flatMap(user -> this.bookingService.findAllBookingsByUserId(user.getId()).sort(Comparator.comparing(Booking::getRequestTime, Comparator.reverseOrder())).next().map(booking -> new User(user.getId(), user.getStripeCustomerId(), booking.getId(), user.getFirstName(), user.getLastName(), user.getEmail())).defaultIfEmpty(user)) // TODO: Find last booking session
+                    .flatMap(user -> this.bookingService.findLatestBookingByUserId(user.getId()).map(booking -> new User(user.getId(), user.getStripeCustomerId(), booking.getId(), user.getFirstName(), user.getLastName(), user.getEmail())).defaultIfEmpty(user))
                     .map(user -> {
                         ResponseEntity.BodyBuilder response = ResponseEntity.ok();
                         if (user.getLastBookingId() != null) {
-                            response.header("Link", "</bookings/" + user.getId() + ">; rel=\"currentBooking\"");
+                            response.header("Link", "</bookings/" + user.getLastBookingId() + ">; rel=\"currentBooking\"");
                         }
                         return response.body(user);
                     })
@@ -72,22 +75,32 @@ public class UserController {
 
     /**
      * Create/register a user with our backend service/database
+     * A request retried with the same Idempotency-Key returns the user of the first request instead of failing because the user exists.
      *
-     * @param user: The user object to register
+     * @param idempotencyKey: Optional key unique to this registration attempt, e.g. a UUID
+     * @param user:           The user object to register
      * @return The user information that was stored in the database
      */
     @PostMapping("/users")
-    public Mono<ResponseEntity<Object>> postUser(@AuthenticationPrincipal Authentication sub, @RequestBody User user) {
+    public Mono<ResponseEntity<Object>> postUser(@AuthenticationPrincipal Authentication sub,
+                                                 @RequestHeader(value = IdempotencyService.HEADER, required = false) String idempotencyKey,
+                                                 @RequestBody User user) {
         if (sub.getName().equals(user.getId())) {
             ServletUriComponentsBuilder builder = ServletUriComponentsBuilder.fromCurrentRequest();
             // TODO: Move evaluation if user already exists to Service layer
-            return userService.readUser(user.getId())
-                    .flatMap(alreadyExistingUser -> Mono.just(ResponseEntity.status(HttpStatus.BAD_REQUEST).build())) // User already exists
-                    .switchIfEmpty(
-                            stripeService.createCustomer(user.getId())
-                                    // TODO: createUser overrides id attribute
-                                    .flatMap(customer -> userService.createUser(customer))
-                                    .map(ResponseEntity.created(builder.build().toUri())::body));
+            Function<String, Mono<ResponseEntity<Object>>> createUser = stripeIdempotencyKey ->
+                    userService.readUser(user.getId())
+                            .flatMap(alreadyExistingUser -> Mono.just(ResponseEntity.status(HttpStatus.BAD_REQUEST).build())) // User already exists
+                            .switchIfEmpty(
+                                    stripeService.createCustomer(user.getId(), stripeIdempotencyKey)
+                                            // TODO: createUser overrides id attribute
+                                            .flatMap(customer -> userService.createUser(customer))
+                                            .map(ResponseEntity.created(builder.build().toUri())::body));
+            if (idempotencyKey == null) {
+                return createUser.apply(null);
+            }
+            String fingerprint = user.getFirstName() + "|" + user.getLastName() + "|" + user.getEmail();
+            return idempotencyService.execute("POST /users " + user.getId(), idempotencyKey, fingerprint, User.class, createUser);
         } else {
             return Mono.just(ResponseEntity.status(HttpStatus.FORBIDDEN).build());
         }
@@ -98,17 +111,16 @@ public class UserController {
      * Update user information.
      *
      * @param id:   The ID of the user to be updated. Must be identical to the id field in the user object in the request body.
-     * @param user: The user object which will be used to update the user.
-     * @return The updated user object.
+     * @param user: The user object which will be used to update the user. Only the set fields are written.
+     * @return 204 without body once the fields are written. The user is not read back, use GET /users/{id} for its current state.
      */
     @PutMapping("/users/{id}")
     public Mono<ResponseEntity<User>> putUser(@AuthenticationPrincipal Authentication sub, @PathVariable("id") String id, @RequestBody User user) {
         if (sub.getName().equals(id)) {
-            ServletUriComponentsBuilder builder = ServletUriComponentsBuilder.fromCurrentRequest();
             if (user.getId() != null && user.getId().equals(id)) {
                 return userService
                         .updateUser(user)
-                        .map(ResponseEntity.created(builder.build().toUri())::body) // TODO: Think about returning 200/204 instead
+                        .map(updatedUser -> ResponseEntity.noContent().<User>build())
                         .onErrorReturn(ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).build());
             } else {
                 return Mono.just(ResponseEntity.unprocessableEntity().build()); // TODO: Create message "id is missing" or "not equal to deviceId"
@@ -9,4 +9,6 @@ public class BookingRequest {
     private final String deviceId;
     private final Integer timeslot;
     private final String paymentMethodId;
+    // Start of the session in milliseconds since January 1, 1970, 00:00:00 UTC. Null to use the device right away.
+    private final Long sessionStart;
 }
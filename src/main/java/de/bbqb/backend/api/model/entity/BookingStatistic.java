@@ -0,0 +1,26 @@
+package de.bbqb.backend.api.model.entity;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * BBQ-Butler business object to hold the aggregated bookings of a device or city within a range of days
+ *
+ * @author Marius Degen
+ */
+@Getter
+@AllArgsConstructor
+public class BookingStatistic {
+
+    // Document id of the device or name of the city, depending on the grouping
+    private final String group;
+    private final Long payedBookings;
+    private final Long failedBookings;
+    private final Long expiredBookings;
+    // Revenue of the payed bookings in Cent(€)
+    private final Long revenue;
+    // Minutes of the payed bookings
+    private final Long bookedMinutes;
+    // Booked minutes divided by the minutes of the range, summed over the devices of the group which had bookings
+    private final Double utilization;
+}
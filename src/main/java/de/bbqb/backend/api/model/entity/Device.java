@@ -29,8 +29,10 @@ public class Device {
     private Double setTemperaturePlate2;
     private Location location;
     private Address address;
+    // Whether the device published a state message recently. Not stored but derived on read.
+    private Boolean online;
 
     public Device(String id, Device device) {
-        this(id, device.getDeviceId(), device.getNumber(), device.getPublishTime(), device.getBlocked(), device.getLocked(), device.getClosed(), device.getWifiSignal(), device.getIsTemperaturePlate1(), device.getIsTemperaturePlate2(), device.getSetTemperaturePlate1(), device.getSetTemperaturePlate2(), device.getLocation(), device.getAddress());
+        this(id, device.getDeviceId(), device.getNumber(), device.getPublishTime(), device.getBlocked(), device.getLocked(), device.getClosed(), device.getWifiSignal(), device.getIsTemperaturePlate1(), device.getIsTemperaturePlate2(), device.getSetTemperaturePlate1(), device.getSetTemperaturePlate2(), device.getLocation(), device.getAddress(), device.getOnline());
     }
 }
\ No newline at end of file
@@ -0,0 +1,26 @@
+package de.bbqb.backend.api.model.entity;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.util.List;
+
+/**
+ * BBQ-Butler business object to hold the booked and free times of a device within a time range
+ *
+ * @author Marius Degen
+ */
+@Getter
+@AllArgsConstructor
+public class DeviceAvailability {
+
+    private final String deviceId;
+    // Range in milliseconds since January 1, 1970, 00:00:00 UTC
+    private final Long from;
+    private final Long to;
+    // Sorted, non-overlapping intervals within the range
+    private final List<TimeInterval> booked;
+    private final List<TimeInterval> free;
+    // Earliest start at or after from at which a session of the requested timeslot can be booked. May be after to.
+    private final Long nextFreeSessionStart;
+}
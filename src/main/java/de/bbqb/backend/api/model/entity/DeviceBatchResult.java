@@ -0,0 +1,28 @@
+package de.bbqb.backend.api.model.entity;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * BBQ-Butler business object to hold the outcome of writing one device of a batch
+ *
+ * @author Marius Degen
+ */
+@Getter
+@AllArgsConstructor
+public class DeviceBatchResult {
+
+    public static final String CREATED = "created";
+    public static final String UPDATED = "updated";
+    public static final String INVALID = "invalid";
+    public static final String FAILED = "failed";
+
+    // Position of the device in the request, starting at 0. Null if the request itself could not be read.
+    private final Long index;
+    // Id of the created or updated device
+    private final String id;
+    // One of created, updated, invalid or failed
+    private final String status;
+    // Reason if the device was not written
+    private final String error;
+}
@@ -0,0 +1,20 @@
+package de.bbqb.backend.api.model.entity;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * BBQ-Butler business object to hold a group of nearby devices shown as one map marker
+ *
+ * @author Marius Degen
+ */
+@Getter
+@AllArgsConstructor
+public class DeviceCluster {
+
+    // Centroid of the devices in this cluster
+    private final Location location;
+    private final Integer count;
+    // Number of devices which are not blocked
+    private final Integer availableCount;
+}
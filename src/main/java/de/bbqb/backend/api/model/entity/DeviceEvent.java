@@ -0,0 +1,24 @@
+package de.bbqb.backend.api.model.entity;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * BBQ-Butler business object to hold a change of a device pushed to clients
+ *
+ * @author Marius Degen
+ */
+@Getter
+@AllArgsConstructor
+public class DeviceEvent {
+
+    public static final String CHANGED = "changed";
+    public static final String DELETED = "deleted";
+
+    // One of changed or deleted
+    private final String type;
+    // Id of the changed device
+    private final String id;
+    // New state of the device. Null if it was deleted.
+    private final Device device;
+}
@@ -0,0 +1,28 @@
+package de.bbqb.backend.api.model.entity;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+
+/**
+ * BBQ-Butler business object to hold a state message published by a BBQB
+ *
+ * @author Marius Degen
+ */
+@Getter
+@AllArgsConstructor
+@NoArgsConstructor
+public class DeviceTelemetry {
+
+    // IoT id of the device which published the message
+    private String deviceId;
+    // Milliseconds since January 1, 1970, 00:00:00 UTC
+    private Long publishTime;
+    private Boolean locked;
+    private Boolean closed;
+    private Double wifiSignal;
+    private Double temperaturePlate1;
+    private Double temperaturePlate2;
+    // Correlation id of the last command the device executed, if the firmware echoes it
+    private String correlationId;
+}
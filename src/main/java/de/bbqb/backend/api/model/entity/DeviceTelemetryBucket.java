@@ -0,0 +1,26 @@
+package de.bbqb.backend.api.model.entity;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * BBQ-Butler business object to hold the aggregated plate temperatures of a device within a time interval
+ *
+ * @author Marius Degen
+ */
+@Getter
+@AllArgsConstructor
+public class DeviceTelemetryBucket {
+
+    // Start of the interval in milliseconds since January 1, 1970, 00:00:00 UTC
+    private final Long start;
+    // Number of received state messages within the interval
+    private final Integer count;
+    // Temperatures are null if no message within the interval contained a temperature for the plate
+    private final Double minTemperaturePlate1;
+    private final Double maxTemperaturePlate1;
+    private final Double avgTemperaturePlate1;
+    private final Double minTemperaturePlate2;
+    private final Double maxTemperaturePlate2;
+    private final Double avgTemperaturePlate2;
+}
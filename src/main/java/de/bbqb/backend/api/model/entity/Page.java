@@ -0,0 +1,20 @@
+package de.bbqb.backend.api.model.entity;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.util.List;
+
+/**
+ * One page of a cursor paginated list
+ *
+ * @author Marius Degen
+ */
+@Getter
+@AllArgsConstructor
+public class Page<T> {
+
+    private final List<T> items;
+    // Opaque token to request the next page or null if this is the last page
+    private final String nextPageToken;
+}
@@ -0,0 +1,19 @@
+package de.bbqb.backend.api.model.entity;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * BBQ-Butler business object to hold a time interval
+ *
+ * @author Marius Degen
+ */
+@Getter
+@AllArgsConstructor
+public class TimeInterval {
+
+    // Start in milliseconds since January 1, 1970, 00:00:00 UTC
+    private final Long start;
+    // End in milliseconds since January 1, 1970, 00:00:00 UTC, exclusive
+    private final Long end;
+}
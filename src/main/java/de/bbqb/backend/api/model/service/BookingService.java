@@ -1,15 +1,22 @@
 package de.bbqb.backend.api.model.service;
 
 import de.bbqb.backend.api.model.entity.Booking;
+import de.bbqb.backend.api.model.entity.DeviceAvailability;
+import de.bbqb.backend.api.model.entity.Page;
 import de.bbqb.backend.api.model.entity.Timeslot;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
+import java.util.Date;
+
 public interface BookingService {
-    Mono<Booking> createBooking(String paymentMethodId, String deviceId, String userId, Timeslot timeslot);
+    Mono<Booking> createBooking(String paymentMethodId, String deviceId, String userId, Timeslot timeslot, Date sessionStart, String idempotencyKey);
     Mono<Booking> findBooking(String bookingId, String userId);
     Flux<Booking> findAllBookingsByUserId(String userId);
+    Mono<Booking> findLatestBookingByUserId(String userId);
+    Mono<Page<Booking>> findBookingsByUserId(String userId, int pageSize, String pageToken);
     Flux<Booking> findAllBookingsByDeviceId(String deviceId);
     Mono<Booking> findBookingByPaymentIntentId(String deviceId);
     Mono<Booking> updateBooking(Booking booking);
+    Mono<DeviceAvailability> readAvailability(String deviceId, long from, long to, Timeslot timeslot);
 }
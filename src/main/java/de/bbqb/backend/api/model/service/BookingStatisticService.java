@@ -0,0 +1,20 @@
+package de.bbqb.backend.api.model.service;
+
+import de.bbqb.backend.api.model.entity.BookingStatistic;
+import reactor.core.publisher.Mono;
+
+import java.time.LocalDate;
+import java.util.List;
+
+/**
+ * Business logic to aggregate bookings
+ *
+ * @author Marius Degen
+ */
+public interface BookingStatisticService {
+    String GROUP_BY_DEVICE = "device";
+    String GROUP_BY_CITY = "city";
+
+    Mono<List<BookingStatistic>> readBookingStatistics(String groupBy, LocalDate from, LocalDate to);
+    Mono<Long> rebuildBookingStatistics(LocalDate from, LocalDate to);
+}
@@ -1,9 +1,17 @@
 package de.bbqb.backend.api.model.service;
 
 import de.bbqb.backend.api.model.entity.Device;
+import de.bbqb.backend.api.model.entity.DeviceBatchResult;
+import de.bbqb.backend.api.model.entity.DeviceCluster;
+import de.bbqb.backend.api.model.entity.DeviceEvent;
+import de.bbqb.backend.api.model.entity.DeviceTelemetryBucket;
+import de.bbqb.backend.api.model.entity.Location;
+import de.bbqb.backend.api.model.entity.Page;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
+import java.util.List;
+
 /**
  * Interface to handle business logic to interact with bbqb devices
  *
@@ -15,9 +23,31 @@ public interface DeviceService {
 
     public Mono<Device> updateDevice(Device device);
 
+    public Flux<DeviceBatchResult> writeDevices(Flux<Device> devices);
+
+    public Mono<Void> setDeviceBlocked(String deviceId, boolean blocked);
+
+    public Mono<Boolean> reserveDevice(String deviceId);
+
+    public Mono<Boolean> releaseDevice(String deviceId);
+
     public Mono<Device> readDevice(String deviceId);
 
     public Flux<Device> readAllDevices();
 
+    public boolean isDeviceChangesEnabled();
+
+    public Flux<DeviceEvent> readDeviceChanges();
+
+    public Flux<DeviceEvent> readDeviceChanges(String deviceId);
+
+    public Mono<Page<Device>> readDevices(int pageSize, String pageToken);
+
+    public Flux<Device> readDevicesNear(Location location, double radiusKm, int limit);
+
+    public Mono<List<DeviceCluster>> readDeviceClusters(double minLat, double minLng, double maxLat, double maxLng, int zoom);
+
+    public Mono<List<DeviceTelemetryBucket>> readDeviceTelemetry(String deviceId, long from, long to, long resolution);
+
     public Mono<Void> openDevice(String deviceId, Integer timeslot);
 }
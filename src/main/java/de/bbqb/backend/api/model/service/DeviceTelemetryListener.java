@@ -0,0 +1,17 @@
+package de.bbqb.backend.api.model.service;
+
+import de.bbqb.backend.api.model.entity.DeviceTelemetry;
+
+/**
+ * Listener to be notified about every state message received from a BBQB.
+ * Listeners are called on the message receiver threads and must return quickly.
+ *
+ * @author Marius Degen
+ */
+public interface DeviceTelemetryListener {
+
+    /**
+     * @param telemetry The received state message. Messages may arrive out of order.
+     */
+    void onTelemetry(DeviceTelemetry telemetry);
+}
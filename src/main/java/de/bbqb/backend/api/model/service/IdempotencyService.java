@@ -0,0 +1,38 @@
+package de.bbqb.backend.api.model.service;
+
+import org.springframework.http.ResponseEntity;
+import reactor.core.publisher.Mono;
+
+import java.util.function.Function;
+
+/**
+ * Business logic to make requests which create resources safe to retry.
+ * A request sent again with the same Idempotency-Key gets the response of the first request
+ * instead of creating the resource and charging the user a second time.
+ *
+ * @author Marius Degen
+ */
+public interface IdempotencyService {
+
+    String HEADER = "Idempotency-Key";
+
+    /**
+     * Execute a request once per key.
+     * Requests with a key which is being executed wait for that execution, later ones get its stored response.
+     * Responses with a server error are not stored, so the client can retry them with the same key.
+     *
+     * @param scope       Namespace of the key, e.g. the endpoint and the user, so that keys of different users never collide
+     * @param key         The Idempotency-Key sent by the client
+     * @param fingerprint Summary of the request parameters. A key reused for a request with other parameters is rejected.
+     * @param bodyType    Type of the response body, used to read a stored response
+     * @param request     Executes the request. Receives a key unique to scope and key which is passed on to downstream
+     *                    services to deduplicate their side effects, e.g. as Stripe idempotency key.
+     * @return Mono emitting the response of the first request with this key, 400 if the key is invalid,
+     * 409 if the first request is still executed by another instance or 422 if the key was used for other parameters
+     */
+    <T> Mono<ResponseEntity<T>> execute(String scope,
+                                        String key,
+                                        String fingerprint,
+                                        Class<? extends T> bodyType,
+                                        Function<String, Mono<ResponseEntity<T>>> request);
+}
@@ -0,0 +1,62 @@
+package de.bbqb.backend.api.model.service;
+
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+/**
+ * Log of the Stripe webhook events which were received.
+ * Stripe delivers an event at least once and not necessarily in the order the events were created,
+ * so an event is only applied if it was not received before and is not older than the last applied event of its object.
+ * An event to apply is recorded with its payload before the webhook is acknowledged and marked as applied afterwards,
+ * so an event which was acknowledged but never applied, e.g. because the instance stopped, can be applied later.
+ *
+ * @author Marius Degen
+ */
+public interface StripeEventLog {
+
+    enum Delivery {
+        // First delivery of the latest event of its object
+        APPLY,
+        // Event was received before
+        DUPLICATE,
+        // A later event of the same object was applied already
+        OUT_OF_ORDER
+    }
+
+    /**
+     * Record the delivery of an event
+     *
+     * @param eventId  Id of the event
+     * @param type     Type of the event, e.g. payment_intent.succeeded
+     * @param objectId Id of the object the event is about, e.g. a payment intent, or null
+     * @param created  Time the event was created in seconds since epoch
+     * @param payload  The event as sent by Stripe, kept until the event was applied
+     * @return Mono emitting whether the event has to be applied
+     */
+    Mono<Delivery> record(String eventId, String type, String objectId, long created, String payload);
+
+    /**
+     * Mark a recorded event as applied
+     *
+     * @param eventId Id of the event
+     * @return Mono completing when the event was marked
+     */
+    Mono<Void> applied(String eventId);
+
+    /**
+     * Forget an event which could not be applied, so that it is applied if Stripe sends it again
+     *
+     * @param eventId Id of the event
+     * @return Mono completing when the event was removed from the log
+     */
+    Mono<Void> forget(String eventId);
+
+    /**
+     * Claim the events which were recorded to be applied but were neither applied nor forgotten within the lease,
+     * e.g. because the instance applying them stopped. A claimed event is not claimed again before the lease passed.
+     *
+     * @param leaseMillis Time an instance has to apply an event it recorded or claimed
+     * @return Flux emitting the payloads of the claimed events
+     */
+    Flux<String> claimAbandoned(long leaseMillis);
+}
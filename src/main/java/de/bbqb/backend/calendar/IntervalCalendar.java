@@ -0,0 +1,216 @@
+package de.bbqb.backend.calendar;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Half-open time intervals [start, end) of one resource, kept in arrays of primitive longs sorted by start.
+ * Next to the ends the maximum end of all intervals up to each position is kept, which is monotone.
+ * So whether a range overlaps any interval is answered with one binary search: the range [s, e) is free
+ * if the maximum end of all intervals starting before e is not after s. This also holds if intervals overlap
+ * each other, which happens when two writers reserved the same time without knowing of each other.
+ * Adding and removing shift the arrays and are O(n), which is cheap for the few hundred intervals of a resource.
+ * Not thread-safe.
+ *
+ * @author Marius Degen
+ */
+public class IntervalCalendar {
+
+    private static final int INITIAL_CAPACITY = 8;
+
+    private long[] starts = new long[INITIAL_CAPACITY];
+    private long[] ends = new long[INITIAL_CAPACITY];
+    // maxEnds[i] is the maximum of ends[0..i]
+    private long[] maxEnds = new long[INITIAL_CAPACITY];
+    private int size = 0;
+
+    /**
+     * @return Number of intervals
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Add an interval even if it overlaps others
+     *
+     * @param start Start of the interval
+     * @param end   End of the interval, exclusive. Must be after start.
+     */
+    public void add(long start, long end) {
+        if (end <= start) {
+            throw new IllegalArgumentException("End must be after start");
+        }
+        if (size == starts.length) {
+            starts = Arrays.copyOf(starts, size * 2);
+            ends = Arrays.copyOf(ends, size * 2);
+            maxEnds = Arrays.copyOf(maxEnds, size * 2);
+        }
+        // Insert after intervals with the same start to keep insertion order
+        int index = upperBound(start);
+        System.arraycopy(starts, index, starts, index + 1, size - index);
+        System.arraycopy(ends, index, ends, index + 1, size - index);
+        starts[index] = start;
+        ends[index] = end;
+        size++;
+        updateMaxEnds(index);
+    }
+
+    /**
+     * Add an interval if it does not overlap any other
+     *
+     * @param start Start of the interval
+     * @param end   End of the interval, exclusive. Must be after start.
+     * @return true if the interval was added, false if it overlaps another one
+     */
+    public boolean addIfFree(long start, long end) {
+        if (overlaps(start, end)) {
+            return false;
+        }
+        add(start, end);
+        return true;
+    }
+
+    /**
+     * Remove one interval with exactly this start and end
+     *
+     * @return true if such an interval was removed
+     */
+    public boolean remove(long start, long end) {
+        for (int index = lowerBound(start); index < size && starts[index] == start; index++) {
+            if (ends[index] == end) {
+                System.arraycopy(starts, index + 1, starts, index, size - index - 1);
+                System.arraycopy(ends, index + 1, ends, index, size - index - 1);
+                size--;
+                updateMaxEnds(index);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Remove all intervals which ended at or before a time.
+     * Only a prefix of the intervals is removed, so an interval which ended is kept while an earlier one is still running.
+     *
+     * @param time The time before which intervals are not needed anymore
+     */
+    public void removeEndedBefore(long time) {
+        // maxEnds is monotone, so the intervals to remove are the ones before the first maximum end after time
+        int count = firstMaxEndAfter(time);
+        if (count > 0) {
+            System.arraycopy(starts, count, starts, 0, size - count);
+            System.arraycopy(ends, count, ends, 0, size - count);
+            System.arraycopy(maxEnds, count, maxEnds, 0, size - count);
+            size -= count;
+        }
+    }
+
+    /**
+     * @param start Start of the range
+     * @param end   End of the range, exclusive
+     * @return true if any interval overlaps the range
+     */
+    public boolean overlaps(long start, long end) {
+        // Last interval starting before the end of the range
+        int index = lowerBound(end) - 1;
+        return index >= 0 && maxEnds[index] > start;
+    }
+
+    /**
+     * Find the earliest free range of a length.
+     *
+     * @param from     Earliest start of the range
+     * @param duration Length of the range
+     * @return The start of the earliest range [start, start + duration) with start >= from which overlaps no interval
+     */
+    public long nextFree(long from, long duration) {
+        long start = from;
+        while (true) {
+            int index = lowerBound(start + duration) - 1;
+            if (index < 0 || maxEnds[index] <= start) {
+                return start;
+            }
+            // Every interval starting before the end of the range is over at maxEnds[index]
+            start = maxEnds[index];
+        }
+    }
+
+    /**
+     * @param from Start of the range
+     * @param to   End of the range, exclusive
+     * @return The times within the range covered by intervals as merged, sorted pairs of start and end clipped to the range
+     */
+    public List<long[]> busy(long from, long to) {
+        List<long[]> busy = new ArrayList<>();
+        long[] current = null;
+        for (int index = firstMaxEndAfter(from); index < size && starts[index] < to; index++) {
+            if (ends[index] <= from) {
+                continue;
+            }
+            long start = Math.max(starts[index], from);
+            long end = Math.min(ends[index], to);
+            if (current != null && start <= current[1]) {
+                current[1] = Math.max(current[1], end);
+            } else {
+                current = new long[]{start, end};
+                busy.add(current);
+            }
+        }
+        return busy;
+    }
+
+    private void updateMaxEnds(int from) {
+        long max = from > 0 ? maxEnds[from - 1] : Long.MIN_VALUE;
+        for (int index = from; index < size; index++) {
+            max = Math.max(max, ends[index]);
+            maxEnds[index] = max;
+        }
+    }
+
+    // First index whose start is not before value
+    private int lowerBound(long value) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (starts[mid] < value) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    // First index whose start is after value
+    private int upperBound(long value) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (starts[mid] <= value) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    // First index whose maximum end is after time
+    private int firstMaxEndAfter(long time) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (maxEnds[mid] <= time) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+}
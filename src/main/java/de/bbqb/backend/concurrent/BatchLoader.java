@@ -0,0 +1,109 @@
+package de.bbqb.backend.concurrent;
+
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoProcessor;
+import reactor.core.scheduler.Scheduler;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+
+/**
+ * Loads values by key in batches and shares loads of the same key.
+ * All loads of a key share one lookup as long as it is in flight, so concurrent loads of the same key cause a single read.
+ * Keys requested before the next dispatch on the scheduler are looked up together with one call of the batch function.
+ * There is no delay before a dispatch, so a single load is not slowed down and batches form under load.
+ * Values are not cached after the lookup completed, so a load never returns a value read before it was started
+ * by another completed lookup.
+ *
+ * @author Marius Degen
+ */
+public class BatchLoader<K, V> {
+
+    private final Function<List<K>, Mono<Map<K, V>>> batchFunction;
+    private final int maxBatchSize;
+    private final Scheduler scheduler;
+    private final Map<K, MonoProcessor<V>> inFlight = new ConcurrentHashMap<>();
+    private final ConcurrentLinkedQueue<K> queued = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean dispatchScheduled = new AtomicBoolean(false);
+
+    /**
+     * @param batchFunction Looks up the values of several keys. Keys without value are missing in the returned map.
+     * @param maxBatchSize  Maximum number of keys per call of the batch function
+     * @param scheduler     Scheduler to dispatch the batches on
+     */
+    public BatchLoader(Function<List<K>, Mono<Map<K, V>>> batchFunction, int maxBatchSize, Scheduler scheduler) {
+        this.batchFunction = batchFunction;
+        this.maxBatchSize = maxBatchSize;
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * @param key The key to look up
+     * @return Mono emitting the value of the key, Mono.empty if it has none or the error of the batch function
+     */
+    public Mono<V> load(K key) {
+        return Mono.defer(() -> {
+            boolean[] created = {false};
+            MonoProcessor<V> processor = inFlight.computeIfAbsent(key, k -> {
+                created[0] = true;
+                return MonoProcessor.create();
+            });
+            if (created[0]) {
+                queued.add(key);
+                if (dispatchScheduled.compareAndSet(false, true)) {
+                    scheduler.schedule(this::dispatch);
+                }
+            }
+            return processor;
+        });
+    }
+
+    /**
+     * @return Number of keys which are queued or being looked up
+     */
+    public int inFlight() {
+        return inFlight.size();
+    }
+
+    private void dispatch() {
+        // Reset first, keys added from now on are either taken below or dispatched again
+        dispatchScheduled.set(false);
+        List<K> batch = new ArrayList<>();
+        K key;
+        while ((key = queued.poll()) != null) {
+            batch.add(key);
+            if (batch.size() == maxBatchSize) {
+                lookUp(batch);
+                batch = new ArrayList<>();
+            }
+        }
+        if (!batch.isEmpty()) {
+            lookUp(batch);
+        }
+    }
+
+    private void lookUp(List<K> keys) {
+        Mono<Map<K, V>> values;
+        try {
+            values = batchFunction.apply(keys);
+        } catch (RuntimeException e) {
+            values = Mono.error(e);
+        }
+        values.defaultIfEmpty(Collections.emptyMap())
+                .subscribe(result -> keys.forEach(key -> {
+                    MonoProcessor<V> processor = inFlight.remove(key);
+                    V value = result.get(key);
+                    if (value != null) {
+                        processor.onNext(value);
+                    } else {
+                        processor.onComplete();
+                    }
+                }), error -> keys.forEach(key -> inFlight.remove(key).onError(error)));
+    }
+}
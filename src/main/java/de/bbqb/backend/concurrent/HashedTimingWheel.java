@@ -0,0 +1,160 @@
+package de.bbqb.backend.concurrent;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Timer for large numbers of timeouts with a resolution of one tick.
+ * Timeouts are hashed by their deadline tick into a fixed ring of buckets. Every tick only the bucket of
+ * that tick is visited, so the cost of a tick depends on the timeouts expiring in it and not on the
+ * total number of scheduled timeouts as long as the ring spans the longest delay (wheel size * tick).
+ * Longer delays stay in their bucket for several rotations.
+ * Scheduling and cancelling are O(1) and thread-safe. Expired tasks run on the ticking thread and must return quickly.
+ * Deadlines are absolute milliseconds of the same clock which is passed to {@link #expire(long)}.
+ *
+ * @author Marius Degen
+ */
+public class HashedTimingWheel {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(HashedTimingWheel.class);
+
+    private final String name;
+    private final long tickMillis;
+    private final List<List<Timeout>> buckets;
+    private final int mask;
+    private final ConcurrentLinkedQueue<Timeout> scheduled = new ConcurrentLinkedQueue<>();
+    private ScheduledExecutorService ticker;
+    // Last processed tick, only accessed by the ticking thread
+    private long currentTick = Long.MIN_VALUE;
+
+    /**
+     * @param name       Name of the ticking thread
+     * @param tickMillis Length of a tick in milliseconds
+     * @param wheelSize  Number of buckets, rounded up to a power of two
+     */
+    public HashedTimingWheel(String name, long tickMillis, int wheelSize) {
+        int size = Integer.highestOneBit(Math.max(1, wheelSize - 1)) << 1;
+        this.name = name;
+        this.tickMillis = tickMillis;
+        this.mask = size - 1;
+        this.buckets = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            buckets.add(new ArrayList<>());
+        }
+    }
+
+    /**
+     * Tick with the system clock on a daemon thread
+     */
+    public synchronized void start() {
+        if (ticker == null) {
+            ticker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, name);
+                thread.setDaemon(true);
+                return thread;
+            });
+            ticker.scheduleAtFixedRate(() -> expire(System.currentTimeMillis()), tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public synchronized void stop() {
+        if (ticker != null) {
+            ticker.shutdownNow();
+            ticker = null;
+        }
+    }
+
+    /**
+     * @param task           Task to run once the deadline has passed
+     * @param deadlineMillis Absolute deadline in milliseconds
+     * @return Handle to cancel the timeout
+     */
+    public Timeout schedule(Runnable task, long deadlineMillis) {
+        Timeout timeout = new Timeout(task, Math.floorDiv(deadlineMillis, tickMillis));
+        scheduled.add(timeout);
+        return timeout;
+    }
+
+    /**
+     * Run all tasks whose deadline tick is not after the tick of now.
+     * Called by the ticking thread or directly if the wheel is not started. Must not be called concurrently.
+     *
+     * @param nowMillis Current time in milliseconds
+     */
+    public void expire(long nowMillis) {
+        long targetTick = Math.floorDiv(nowMillis, tickMillis);
+        if (currentTick == Long.MIN_VALUE) {
+            currentTick = targetTick - 1;
+        }
+        if (targetTick <= currentTick) {
+            return;
+        }
+        transferScheduled();
+        // Visit every bucket at most once even if many ticks were missed
+        long fromTick = Math.max(currentTick + 1, targetTick - mask);
+        for (long tick = fromTick; tick <= targetTick; tick++) {
+            expireBucket(buckets.get((int) (tick & mask)), targetTick);
+        }
+        currentTick = targetTick;
+    }
+
+    private void transferScheduled() {
+        Timeout timeout;
+        while ((timeout = scheduled.poll()) != null) {
+            if (timeout.cancelled) {
+                continue;
+            }
+            // Deadlines which already passed expire with the next tick
+            timeout.tick = Math.max(timeout.tick, currentTick + 1);
+            buckets.get((int) (timeout.tick & mask)).add(timeout);
+        }
+    }
+
+    private void expireBucket(List<Timeout> bucket, long targetTick) {
+        int kept = 0;
+        for (int i = 0; i < bucket.size(); i++) {
+            Timeout timeout = bucket.get(i);
+            if (timeout.cancelled) {
+                continue;
+            }
+            if (timeout.tick <= targetTick) {
+                try {
+                    timeout.task.run();
+                } catch (RuntimeException e) {
+                    LOGGER.error("Timeout task failed", e);
+                }
+            } else {
+                bucket.set(kept++, timeout);
+            }
+        }
+        bucket.subList(kept, bucket.size()).clear();
+    }
+
+    /**
+     * Handle of a scheduled task
+     */
+    public static final class Timeout {
+        private final Runnable task;
+        private long tick;
+        private volatile boolean cancelled = false;
+
+        private Timeout(Runnable task, long tick) {
+            this.task = task;
+            this.tick = tick;
+        }
+
+        /**
+         * Prevent the task from running if it did not run yet
+         */
+        public void cancel() {
+            cancelled = true;
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package de.bbqb.backend.concurrent;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounded executor which runs tasks with the same key one after another in submission order
+ * while tasks with different keys run in parallel on a fixed pool of worker threads.
+ * Tasks are rejected with a {@link RejectedExecutionException} as soon as the number of
+ * queued and running tasks reaches the configured capacity.
+ *
+ * @author Marius Degen
+ */
+public class KeyedSerialExecutor {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(KeyedSerialExecutor.class);
+
+    private final String name;
+    private final int capacity;
+    private final ExecutorService workers;
+    private final AtomicInteger pending = new AtomicInteger();
+    // A key is mapped to a queue while one of its tasks is running. The running task is not part of the queue.
+    private final ConcurrentHashMap<String, ArrayDeque<Runnable>> queues = new ConcurrentHashMap<>();
+
+    /**
+     * @param name     Name used as prefix for the worker threads
+     * @param threads  Number of worker threads
+     * @param capacity Maximum number of queued and running tasks
+     */
+    public KeyedSerialExecutor(String name, int threads, int capacity) {
+        this.name = name;
+        this.capacity = capacity;
+        AtomicInteger threadCount = new AtomicInteger();
+        this.workers = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), runnable -> {
+            Thread thread = new Thread(runnable, name + "-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Queue a task behind all other tasks with the same key.
+     *
+     * @param key  The key to order tasks by. Must not be null.
+     * @param task The task to run
+     * @throws RejectedExecutionException in case the executor is saturated or shut down
+     */
+    public void execute(String key, Runnable task) {
+        if (workers.isShutdown()) {
+            throw new RejectedExecutionException(name + " is shut down");
+        }
+        if (pending.incrementAndGet() > capacity) {
+            pending.decrementAndGet();
+            throw new RejectedExecutionException(name + " is saturated with " + capacity + " pending tasks");
+        }
+        boolean[] idle = {false};
+        queues.compute(key, (k, queue) -> {
+            if (queue == null) {
+                idle[0] = true;
+                return new ArrayDeque<>();
+            }
+            queue.add(task);
+            return queue;
+        });
+        if (idle[0]) {
+            submit(key, task);
+        }
+    }
+
+    /**
+     * @return The number of queued and running tasks
+     */
+    public int pending() {
+        return pending.get();
+    }
+
+    /**
+     * @return The number of keys with queued or running tasks
+     */
+    public int activeKeys() {
+        return queues.size();
+    }
+
+    /**
+     * Stop accepting new tasks and wait for the queued tasks to finish.
+     *
+     * @param timeout Maximum time to wait
+     * @param unit    Unit of the timeout
+     * @return true if all tasks finished in time
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        // Tasks of a key are submitted to the workers one at a time, so wait for the queues to drain first
+        while (pending.get() > 0 && System.nanoTime() < deadline) {
+            TimeUnit.MILLISECONDS.sleep(10);
+        }
+        workers.shutdown();
+        return workers.awaitTermination(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS) && pending.get() == 0;
+    }
+
+    private void submit(String key, Runnable task) {
+        try {
+            workers.execute(() -> run(key, task));
+        } catch (RejectedExecutionException e) {
+            // Workers were shut down while tasks of this key were still queued
+            ArrayDeque<Runnable> dropped = queues.remove(key);
+            pending.addAndGet(-1 - (dropped != null ? dropped.size() : 0));
+            throw e;
+        }
+    }
+
+    private void run(String key, Runnable task) {
+        try {
+            task.run();
+        } catch (RuntimeException e) {
+            LOGGER.error("Task for key " + key + " failed", e);
+        } finally {
+            pending.decrementAndGet();
+            Runnable[] next = {null};
+            queues.computeIfPresent(key, (k, queue) -> {
+                next[0] = queue.poll();
+                return next[0] != null ? queue : null;
+            });
+            if (next[0] != null) {
+                submit(key, next[0]);
+            }
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package de.bbqb.backend.concurrent;
+
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Lock-free set of the most recently added keys.
+ * Once more keys than its capacity were added the oldest ones are evicted in insertion order,
+ * which is the least recently used order for keys which are only looked up, e.g. ids of events.
+ *
+ * @author Marius Degen
+ */
+public class RecentKeys {
+
+    private final int capacity;
+    private final Set<String> keys = ConcurrentHashMap.newKeySet();
+    // Insertion order of the keys, holds each key once
+    private final Queue<String> order = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger ordered = new AtomicInteger();
+
+    /**
+     * @param capacity Maximum number of keys
+     */
+    public RecentKeys(int capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * @param key The key to look up
+     * @return true if the key was added and not evicted or removed since
+     */
+    public boolean contains(String key) {
+        return keys.contains(key);
+    }
+
+    /**
+     * Add a key and evict the oldest keys if the capacity is exceeded
+     *
+     * @param key The key to add
+     * @return true if the key was not contained yet
+     */
+    public boolean add(String key) {
+        if (!keys.add(key)) {
+            return false;
+        }
+        order.add(key);
+        int size = ordered.incrementAndGet();
+        while (size > capacity) {
+            String eldest = order.poll();
+            if (eldest == null) {
+                // Polled by a concurrent add
+                break;
+            }
+            keys.remove(eldest);
+            size = ordered.decrementAndGet();
+        }
+        return true;
+    }
+
+    /**
+     * Remove a key so it no longer counts against the capacity.
+     * Takes linear time in the number of keys, it is meant for the rare case of undoing an add.
+     *
+     * @param key The key to remove
+     */
+    public void remove(String key) {
+        // Only the remove which takes the key out of the order releases its place, it may have been evicted concurrently
+        if (keys.remove(key) && order.remove(key)) {
+            ordered.decrementAndGet();
+        }
+    }
+
+    /**
+     * @return Number of keys
+     */
+    public int size() {
+        return keys.size();
+    }
+}
@@ -0,0 +1,110 @@
+package de.bbqb.backend.concurrent;
+
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoSink;
+import reactor.core.scheduler.Schedulers;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Supplier;
+
+/**
+ * Non-blocking mutual exclusion for reactive actions by key.
+ * Keys are hashed onto a fixed number of stripes, each stripe runs one action at a time
+ * and queues further actions in arrival order without blocking a thread.
+ * Different keys may share a stripe and then also exclude each other.
+ * Waiting actions are started on the parallel scheduler once the lock is handed over to them.
+ *
+ * @author Marius Degen
+ */
+public class StripedLock {
+
+    private final Stripe[] stripes;
+    private final int maxWaiters;
+
+    /**
+     * @param stripes    Number of stripes
+     * @param maxWaiters Maximum number of actions waiting per stripe
+     */
+    public StripedLock(int stripes, int maxWaiters) {
+        this.stripes = new Stripe[stripes];
+        for (int i = 0; i < stripes; i++) {
+            this.stripes[i] = new Stripe();
+        }
+        this.maxWaiters = maxWaiters;
+    }
+
+    /**
+     * Run an action while holding the lock of a key.
+     * The lock is released when the action terminates or the subscription is cancelled.
+     *
+     * @param key    The key to lock
+     * @param action Creates the action once the lock is acquired
+     * @return Mono emitting the result of the action or a {@link RejectedExecutionException}
+     * if too many actions are already waiting for the lock
+     */
+    public <T> Mono<T> withLock(String key, Supplier<Mono<T>> action) {
+        return Mono.defer(() -> {
+            Stripe stripe = stripes[Math.floorMod(key.hashCode(), stripes.length)];
+            Waiter waiter = new Waiter();
+            return Mono.<Void>create(sink -> stripe.acquire(waiter, sink))
+                    .then(Mono.defer(action))
+                    .doFinally(signal -> stripe.release(waiter));
+        });
+    }
+
+    /**
+     * @return Number of actions waiting for a lock
+     */
+    public int waiting() {
+        int waiting = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                waiting += stripe.waiters.size();
+            }
+        }
+        return waiting;
+    }
+
+    private static final class Waiter {
+        private MonoSink<Void> sink;
+    }
+
+    private final class Stripe {
+        private final ArrayDeque<Waiter> waiters = new ArrayDeque<>();
+        private Waiter owner;
+
+        private void acquire(Waiter waiter, MonoSink<Void> sink) {
+            waiter.sink = sink;
+            synchronized (this) {
+                if (owner != null) {
+                    if (waiters.size() >= maxWaiters) {
+                        sink.error(new RejectedExecutionException("Too many actions waiting for lock"));
+                        return;
+                    }
+                    waiters.add(waiter);
+                    return;
+                }
+                owner = waiter;
+            }
+            sink.success();
+        }
+
+        private void release(Waiter waiter) {
+            Waiter next;
+            synchronized (this) {
+                if (owner != waiter) {
+                    // Cancelled or rejected while waiting
+                    waiters.remove(waiter);
+                    return;
+                }
+                next = waiters.poll();
+                owner = next;
+            }
+            if (next != null) {
+                // Hand over on another thread so that a long queue of synchronous actions does not grow the stack
+                Schedulers.parallel().schedule(next.sink::success);
+            }
+        }
+    }
+}
@@ -0,0 +1,328 @@
+package de.bbqb.backend.gcp.firestore;
+
+import com.google.cloud.Timestamp;
+import com.google.cloud.firestore.DocumentChange;
+import com.google.cloud.firestore.Firestore;
+import com.google.cloud.firestore.FirestoreException;
+import com.google.cloud.firestore.ListenerRegistration;
+import com.google.cloud.firestore.QueryDocumentSnapshot;
+import com.google.cloud.firestore.QuerySnapshot;
+import de.bbqb.backend.calendar.IntervalCalendar;
+import de.bbqb.backend.gcp.firestore.document.BookingDoc;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Calendar of the reserved sessions of every device, keyed by device document id.
+ * Holds an {@link IntervalCalendar} per device with the sessions of all pending and payed bookings which did not end yet.
+ * Bookings of this instance are added right when they are created, bookings of other instances and status changes
+ * arrive through a Firestore snapshot listener on the bookings whose session did not end when it was subscribed.
+ * The listener is subscribed again every hour, so that bookings whose session ended are not watched anymore.
+ * The bookings received by the listener are passed on to the {@link BookingListener}s.
+ * The calendar only answers availability queries and rejects obvious conflicts early,
+ * the {@link SessionReservationStore} decides which booking gets a session.
+ *
+ * @author Marius Degen
+ */
+@Component
+public class BookingCalendar {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(BookingCalendar.class);
+    private static final String COLLECTION = "bookings";
+    private static final long RESUBSCRIBE_DELAY_SECONDS = 10;
+    private static final long RESUBSCRIBE_INTERVAL_MINUTES = 60;
+    private static final long PRUNE_INTERVAL_MILLIS = 60 * 1000;
+    // Bookings in other states do not reserve their session
+    static final Set<String> ACTIVE_STATUSES = Set.of("pending", "payed");
+
+    /**
+     * Notified about the bookings the calendar receives from Firestore, on the thread of the snapshot listener
+     */
+    public interface BookingListener {
+        /**
+         * @param bookingId  Id of the booking
+         * @param bookingDoc The booking as received, when subscribing or after it was created or changed
+         */
+        void onBookingChanged(String bookingId, BookingDoc bookingDoc);
+
+        /**
+         * @param bookingId Id of the booking which was deleted
+         */
+        void onBookingRemoved(String bookingId);
+    }
+
+    private final Firestore firestore;
+    private final List<BookingListener> listeners = new CopyOnWriteArrayList<>();
+    private final ScheduledExecutorService resubscriber;
+    private final Counter conflictCounter;
+    // Guarded by this
+    private final Map<String, IntervalCalendar> calendars = new HashMap<>();
+    private final Map<String, Reservation> reservations = new HashMap<>();
+    private long lastPruneMillis = 0;
+    private volatile boolean ready = false;
+    private Subscription subscription;
+
+    public BookingCalendar(Firestore firestore, MeterRegistry meterRegistry) {
+        this.firestore = firestore;
+        this.conflictCounter = Counter.builder("bbqb.booking.conflicts")
+                .description("Number of bookings rejected because the device is already booked at that time")
+                .register(meterRegistry);
+        Gauge.builder("bbqb.booking.calendar.reservations", this, BookingCalendar::reservations)
+                .description("Number of reserved sessions which did not end yet")
+                .register(meterRegistry);
+        this.resubscriber = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "booking-calendar-resubscriber");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @PostConstruct
+    public void start() {
+        resubscribe();
+        resubscriber.scheduleWithFixedDelay(this::resubscribe, RESUBSCRIBE_INTERVAL_MINUTES, RESUBSCRIBE_INTERVAL_MINUTES, TimeUnit.MINUTES);
+    }
+
+    @PreDestroy
+    public synchronized void stop() {
+        resubscriber.shutdownNow();
+        if (subscription != null) {
+            subscription.registration.remove();
+            subscription = null;
+        }
+    }
+
+    /**
+     * @param listener Notified about every booking received from now on
+     */
+    public void addListener(BookingListener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * @return true if the calendar received the bookings of all instances and the listener is healthy
+     */
+    public boolean isReady() {
+        return ready;
+    }
+
+    /**
+     * Reserve a session for a booking if the device is free for the whole session
+     *
+     * @param deviceId  Document id of the device
+     * @param bookingId Id of the booking
+     * @param start     Start of the session in milliseconds since epoch
+     * @param end       End of the session in milliseconds since epoch, exclusive
+     * @return true if the session was reserved, false if it overlaps another one
+     */
+    public synchronized boolean tryReserve(String deviceId, String bookingId, long start, long end) {
+        prune(System.currentTimeMillis());
+        if (!calendars.computeIfAbsent(deviceId, id -> new IntervalCalendar()).addIfFree(start, end)) {
+            conflictCounter.increment();
+            return false;
+        }
+        reservations.put(bookingId, new Reservation(deviceId, start, end, true));
+        return true;
+    }
+
+    /**
+     * Free the session of a booking
+     *
+     * @param bookingId Id of the booking
+     */
+    public synchronized void release(String bookingId) {
+        Reservation reservation = reservations.remove(bookingId);
+        if (reservation != null) {
+            IntervalCalendar calendar = calendars.get(reservation.deviceId);
+            calendar.remove(reservation.start, reservation.end);
+            if (calendar.size() == 0) {
+                calendars.remove(reservation.deviceId);
+            }
+        }
+    }
+
+    /**
+     * @param deviceId Document id of the device
+     * @param from     Start of the range in milliseconds since epoch
+     * @param to       End of the range in milliseconds since epoch, exclusive
+     * @return The reserved times of the device within the range as merged, sorted pairs of start and end
+     */
+    public synchronized List<long[]> busy(String deviceId, long from, long to) {
+        IntervalCalendar calendar = calendars.get(deviceId);
+        return calendar != null ? calendar.busy(from, to) : List.of();
+    }
+
+    /**
+     * @param deviceId Document id of the device
+     * @param from     Earliest start in milliseconds since epoch
+     * @param duration Length of the session in milliseconds
+     * @return The earliest start at or after from at which the device is free for the duration
+     */
+    public synchronized long nextFree(String deviceId, long from, long duration) {
+        IntervalCalendar calendar = calendars.get(deviceId);
+        return calendar != null ? calendar.nextFree(from, duration) : from;
+    }
+
+    /**
+     * @return Number of reserved sessions
+     */
+    public synchronized int reservations() {
+        return reservations.size();
+    }
+
+    /**
+     * Replace the listener by one with the current time as cutoff. The calendar stays ready with its current sessions
+     * until the first snapshot of the new listener replaces them.
+     */
+    synchronized void resubscribe() {
+        if (subscription != null) {
+            subscription.registration.remove();
+        }
+        Subscription newSubscription = new Subscription();
+        subscription = newSubscription;
+        // Bookings whose session ended cannot conflict anymore and are not loaded
+        newSubscription.registration = firestore.collection(COLLECTION)
+                .whereGreaterThan("sessionEnd", Timestamp.now())
+                .addSnapshotListener((value, error) -> onEvent(newSubscription, value, error));
+    }
+
+    private void onEvent(Subscription eventSubscription, QuerySnapshot value, FirestoreException error) {
+        Map<String, BookingDoc> changed = new LinkedHashMap<>();
+        List<String> removed = new ArrayList<>();
+        synchronized (this) {
+            if (eventSubscription != subscription) {
+                // Delivered by a listener which was already replaced
+                return;
+            }
+            if (error != null) {
+                LOGGER.warn("Booking calendar listener failed. Resubscribing in " + RESUBSCRIBE_DELAY_SECONDS + "s", error);
+                ready = false;
+                resubscriber.schedule(this::resubscribe, RESUBSCRIBE_DELAY_SECONDS, TimeUnit.SECONDS);
+                return;
+            }
+            if (!eventSubscription.synced) {
+                // First snapshot after (re-)subscribing contains all bookings, so bookings missed while the
+                // listener was down are dropped as well. Sessions this instance reserved for bookings which
+                // are not saved yet are kept.
+                Map<String, Reservation> unsaved = new HashMap<>();
+                reservations.forEach((bookingId, reservation) -> {
+                    if (reservation.unsaved) {
+                        unsaved.put(bookingId, reservation);
+                    }
+                });
+                calendars.clear();
+                reservations.clear();
+                value.getDocuments().forEach(document -> changed.put(document.getId(), apply(document)));
+                unsaved.forEach((bookingId, reservation) -> {
+                    if (!changed.containsKey(bookingId)) {
+                        calendars.computeIfAbsent(reservation.deviceId, id -> new IntervalCalendar()).add(reservation.start, reservation.end);
+                        reservations.put(bookingId, reservation);
+                    }
+                });
+                LOGGER.info("Booking calendar synchronized with " + reservations.size() + " sessions");
+                eventSubscription.synced = true;
+                ready = true;
+            } else {
+                for (DocumentChange change : value.getDocumentChanges()) {
+                    if (change.getType() == DocumentChange.Type.REMOVED) {
+                        release(change.getDocument().getId());
+                        removed.add(change.getDocument().getId());
+                    } else {
+                        changed.put(change.getDocument().getId(), apply(change.getDocument()));
+                    }
+                }
+            }
+        }
+        // Outside of the lock, so listeners do not hold up reservations
+        for (BookingListener listener : listeners) {
+            changed.forEach(listener::onBookingChanged);
+            removed.forEach(listener::onBookingRemoved);
+        }
+    }
+
+    // Called while holding the lock
+    private BookingDoc apply(QueryDocumentSnapshot document) {
+        BookingDoc bookingDoc = document.toObject(BookingDoc.class);
+        Reservation reservation = reservations.get(document.getId());
+        if (!ACTIVE_STATUSES.contains(bookingDoc.getStatus()) || bookingDoc.getSessionStart() == null
+                || bookingDoc.getSessionEnd() == null || bookingDoc.getDeviceId() == null) {
+            release(document.getId());
+            return bookingDoc;
+        }
+        long start = toMillis(bookingDoc.getSessionStart());
+        long end = toMillis(bookingDoc.getSessionEnd());
+        if (reservation != null && reservation.deviceId.equals(bookingDoc.getDeviceId())
+                && reservation.start == start && reservation.end == end) {
+            // Written by this instance
+            if (reservation.unsaved) {
+                reservations.put(document.getId(), new Reservation(reservation.deviceId, start, end, false));
+            }
+            return bookingDoc;
+        }
+        release(document.getId());
+        // Also added if it overlaps, both bookings are already written
+        calendars.computeIfAbsent(bookingDoc.getDeviceId(), id -> new IntervalCalendar()).add(start, end);
+        reservations.put(document.getId(), new Reservation(bookingDoc.getDeviceId(), start, end, false));
+        return bookingDoc;
+    }
+
+    // Called while holding the lock
+    private void prune(long now) {
+        if (now - lastPruneMillis < PRUNE_INTERVAL_MILLIS) {
+            return;
+        }
+        lastPruneMillis = now;
+        reservations.values().removeIf(reservation -> reservation.end <= now);
+        Iterator<IntervalCalendar> iterator = calendars.values().iterator();
+        while (iterator.hasNext()) {
+            IntervalCalendar calendar = iterator.next();
+            calendar.removeEndedBefore(now);
+            if (calendar.size() == 0) {
+                iterator.remove();
+            }
+        }
+    }
+
+    private static long toMillis(Timestamp timestamp) {
+        return timestamp.getSeconds() * 1000 + timestamp.getNanos() / 1_000_000;
+    }
+
+    private static final class Reservation {
+        private final String deviceId;
+        private final long start;
+        private final long end;
+        // Reserved by this instance for a booking which the listener did not deliver yet
+        private final boolean unsaved;
+
+        private Reservation(String deviceId, long start, long end, boolean unsaved) {
+            this.deviceId = deviceId;
+            this.start = start;
+            this.end = end;
+            this.unsaved = unsaved;
+        }
+    }
+
+    private static final class Subscription {
+        private ListenerRegistration registration;
+        // Guarded by the calendar, true once the first snapshot was applied
+        private boolean synced = false;
+    }
+}
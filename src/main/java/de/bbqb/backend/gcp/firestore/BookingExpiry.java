@@ -0,0 +1,210 @@
+package de.bbqb.backend.gcp.firestore;
+
+import de.bbqb.backend.concurrent.HashedTimingWheel;
+import de.bbqb.backend.gcp.firestore.document.BookingDoc;
+import de.bbqb.backend.stripe.StripeService;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import reactor.core.Disposable;
+import reactor.core.publisher.FluxSink;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.UnicastProcessor;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Expires bookings which are still pending a while after they were requested, e.g. because the Stripe webhook never arrived.
+ * Expiring a booking cancels its payment intent, so it cannot be charged anymore, frees its session and unblocks the
+ * device it blocked, so the device can be booked again. A booking whose payment succeeded or is still processing is
+ * checked again after another timeout and one which could not be expired is retried shortly after.
+ * The deadlines of all pending bookings are held in a {@link HashedTimingWheel} spanning the pending timeout,
+ * so one thread handles any number of deadlines. The deadlines are scheduled when a booking is created and
+ * rebuilt from the pending bookings on startup. Several instances may expire the same booking, the
+ * {@link BookingExpiryStore} only expires it once.
+ *
+ * @author Marius Degen
+ */
+@Component
+public class BookingExpiry {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(BookingExpiry.class);
+    private static final long TICK_MILLIS = 1000;
+    private static final int MAX_CONCURRENT_EXPIRATIONS = 16;
+    private static final long RETRY_MILLIS = 60 * 1000;
+
+    private final BookingRepo repo;
+    private final BookingExpiryStore store;
+    private final StripeService stripeService;
+    private final BookingCalendar bookingCalendar;
+    private final long pendingTimeoutMillis;
+    private final HashedTimingWheel wheel;
+    private final Map<String, HashedTimingWheel.Timeout> deadlines = new ConcurrentHashMap<>();
+    // Expired deadlines are handed off to Firestore and Stripe calls so that the ticking thread is not blocked
+    private final UnicastProcessor<String> due = UnicastProcessor.create();
+    private final FluxSink<String> dueSink = due.sink();
+    private final Counter expiredCounter;
+    private final Counter payedCounter;
+    private final Counter processingCounter;
+    private final Counter resolvedCounter;
+    private final Counter failedCounter;
+    private Disposable expiration;
+
+    public BookingExpiry(BookingRepo repo,
+                         BookingExpiryStore store,
+                         StripeService stripeService,
+                         BookingCalendar bookingCalendar,
+                         @Value("${bbq.backend.booking.pending-timeout}") long pendingTimeoutSeconds,
+                         MeterRegistry meterRegistry) {
+        this.repo = repo;
+        this.store = store;
+        this.stripeService = stripeService;
+        this.bookingCalendar = bookingCalendar;
+        this.pendingTimeoutMillis = pendingTimeoutSeconds * 1000;
+        this.wheel = new HashedTimingWheel("booking-expiry", TICK_MILLIS, (int) (pendingTimeoutMillis / TICK_MILLIS) + 1);
+        this.expiredCounter = counter(meterRegistry, "expired");
+        this.payedCounter = counter(meterRegistry, "payed");
+        this.processingCounter = counter(meterRegistry, "processing");
+        this.resolvedCounter = counter(meterRegistry, "resolved");
+        this.failedCounter = counter(meterRegistry, "failed");
+        Gauge.builder("bbqb.booking.expiry.scheduled", deadlines, Map::size)
+                .description("Number of pending bookings waiting for their expiry deadline")
+                .register(meterRegistry);
+    }
+
+    @PostConstruct
+    public void start() {
+        expiration = due.flatMap(this::expire, MAX_CONCURRENT_EXPIRATIONS).subscribe();
+        wheel.start();
+        // Deadlines of bookings created before this instance started. Bookings which are overdue expire with the next tick.
+        repo.findAllByStatus("pending")
+                .filter(bookingDoc -> bookingDoc.getRequestTime() != null)
+                .doOnNext(bookingDoc -> schedule(bookingDoc.getId(), bookingDoc.getRequestTime().toDate().getTime()))
+                .count()
+                .subscribe(count -> LOGGER.info("Scheduled expiry of " + count + " pending bookings"),
+                        e -> LOGGER.error("Unable to read pending bookings. They will not expire until a restart.", e));
+    }
+
+    @PreDestroy
+    public void stop() {
+        wheel.stop();
+        if (expiration != null) {
+            expiration.dispose();
+        }
+    }
+
+    /**
+     * Expire a booking after the pending timeout unless it is not pending anymore by then
+     *
+     * @param bookingId   Id of the booking
+     * @param requestTime Time the booking was requested in milliseconds since epoch
+     */
+    public void schedule(String bookingId, long requestTime) {
+        scheduleAt(bookingId, requestTime + pendingTimeoutMillis);
+    }
+
+    private void scheduleAt(String bookingId, long deadline) {
+        HashedTimingWheel.Timeout timeout = wheel.schedule(() -> {
+            deadlines.remove(bookingId);
+            dueSink.next(bookingId);
+        }, deadline);
+        HashedTimingWheel.Timeout previous = deadlines.put(bookingId, timeout);
+        if (previous != null) {
+            previous.cancel();
+        }
+    }
+
+    /**
+     * Stop waiting for the expiry of a booking which is not pending anymore
+     *
+     * @param bookingId Id of the booking
+     */
+    public void cancel(String bookingId) {
+        HashedTimingWheel.Timeout timeout = deadlines.remove(bookingId);
+        if (timeout != null) {
+            timeout.cancel();
+        }
+    }
+
+    /**
+     * @return Number of scheduled deadlines
+     */
+    public int scheduled() {
+        return deadlines.size();
+    }
+
+    /**
+     * Expire a booking if it is still pending and its payment did not complete
+     *
+     * @param bookingId Id of the booking
+     * @return Mono completing when the booking was handled. Errors are logged, counted and the booking is checked again later.
+     */
+    Mono<Void> expire(String bookingId) {
+        return repo.findById(bookingId)
+                .filter(bookingDoc -> "pending".equals(bookingDoc.getStatus()))
+                // Canceled first, so the payment cannot succeed after the booking expired
+                .flatMap(this::cancelPayment)
+                .flatMap(status -> {
+                    switch (status) {
+                        case "succeeded":
+                            // Only the webhook is missing, which stripe retries. Expiring would unblock a payed device.
+                            // Checked again in case the webhook does not arrive at all.
+                            LOGGER.warn("Payment of pending booking " + bookingId + " succeeded, so it does not expire");
+                            payedCounter.increment();
+                            schedule(bookingId, System.currentTimeMillis());
+                            return Mono.empty();
+                        case "processing":
+                            // The payment may still complete, so wait another timeout
+                            processingCounter.increment();
+                            schedule(bookingId, System.currentTimeMillis());
+                            return Mono.empty();
+                        default:
+                            return store.expireIfPending(bookingId);
+                    }
+                })
+                .doOnNext(expired -> {
+                    if (expired) {
+                        LOGGER.info("Expired pending booking " + bookingId);
+                        expiredCounter.increment();
+                        bookingCalendar.release(bookingId);
+                    } else {
+                        // Payed or failed while its payment status was read
+                        resolvedCounter.increment();
+                    }
+                })
+                .doOnError(e -> {
+                    // The deadline was removed when it passed, so without a retry the booking would stay pending
+                    LOGGER.error("Unable to expire booking " + bookingId + ". Retrying in " + retryMillis() / 1000 + "s", e);
+                    failedCounter.increment();
+                    scheduleAt(bookingId, System.currentTimeMillis() + retryMillis());
+                })
+                .onErrorResume(e -> Mono.empty())
+                .then();
+    }
+
+    private Mono<String> cancelPayment(BookingDoc bookingDoc) {
+        if (bookingDoc.getPaymentIntentId() == null) {
+            return Mono.just("none");
+        }
+        return stripeService.cancelPaymentIntent(bookingDoc.getPaymentIntentId());
+    }
+
+    private long retryMillis() {
+        // The wheel only spans the pending timeout
+        return Math.min(RETRY_MILLIS, pendingTimeoutMillis);
+    }
+
+    private static Counter counter(MeterRegistry meterRegistry, String result) {
+        return Counter.builder("bbqb.booking.expirations")
+                .description("Number of pending bookings whose expiry deadline passed by result")
+                .tag("result", result)
+                .register(meterRegistry);
+    }
+}
@@ -0,0 +1,21 @@
+package de.bbqb.backend.gcp.firestore;
+
+import reactor.core.publisher.Mono;
+
+/**
+ * Atomic expiry of pending bookings
+ *
+ * @author Marius Degen
+ */
+public interface BookingExpiryStore {
+
+    /**
+     * Atomically set the status of a booking to expired if it is still pending.
+     * A booking for right away also blocked its device, which is unblocked within the same write.
+     *
+     * @param bookingId The id of the booking
+     * @return Mono emitting true if the booking was expired, false if it is not pending anymore
+     * or Mono.empty if the booking does not exist
+     */
+    Mono<Boolean> expireIfPending(String bookingId);
+}
@@ -18,4 +18,5 @@ public interface BookingRepo extends FirestoreReactiveRepository<BookingDoc> {
     Flux<BookingDoc> findAllByUserId(String userId);
     Flux<BookingDoc> findAllByDeviceId(String deviceId);
     Mono<BookingDoc> findByPaymentIntentId(String paymentIntentId);
+    Flux<BookingDoc> findAllByStatus(String status);
 }
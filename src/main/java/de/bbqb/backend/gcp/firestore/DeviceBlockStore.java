@@ -0,0 +1,23 @@
+package de.bbqb.backend.gcp.firestore;
+
+import reactor.core.publisher.Mono;
+
+/**
+ * Atomic access to the blocked flag of devices
+ *
+ * @author Marius Degen
+ */
+public interface DeviceBlockStore {
+
+    /**
+     * Atomically set the blocked flag of a device if it currently has the expected value.
+     * A missing blocked flag counts as false.
+     *
+     * @param deviceId The document id of the device
+     * @param expected The value the flag must have
+     * @param blocked  The new value of the flag
+     * @return Mono emitting true if the flag was set, false if it did not have the expected value
+     * or Mono.empty if the device does not exist
+     */
+    Mono<Boolean> compareAndSetBlocked(String deviceId, boolean expected, boolean blocked);
+}
@@ -0,0 +1,357 @@
+package de.bbqb.backend.gcp.firestore;
+
+import com.google.cloud.Timestamp;
+import com.google.cloud.firestore.DocumentChange;
+import com.google.cloud.firestore.Firestore;
+import com.google.cloud.firestore.FirestoreException;
+import com.google.cloud.firestore.ListenerRegistration;
+import com.google.cloud.firestore.QuerySnapshot;
+import de.bbqb.backend.gcp.firestore.document.DeviceDoc;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.UnaryOperator;
+import java.util.stream.Collectors;
+
+/**
+ * In-memory copy of the devices collection which is kept up to date by a Firestore snapshot listener.
+ * Reads never lock: the devices are held in concurrent maps which are updated in place for every change,
+ * so a change costs O(log n) and iterating reads see a weakly consistent view.
+ * Every cached device remembers the update time of its document, so that a change which is delivered late
+ * by the listener or written by this instance does not overwrite a newer state of the device.
+ * The hit and miss counters cover the lookups of single devices.
+ * The cache can be disabled with {@code bbq.backend.gcp.firestore.device-cache.enabled=false}
+ * in which case {@link #isReady()} always returns false and callers read from Firestore directly.
+ *
+ * @author Marius Degen
+ */
+@Component
+public class DeviceCache {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(DeviceCache.class);
+    private static final String COLLECTION = "devices";
+    private static final long RESUBSCRIBE_DELAY_SECONDS = 10;
+
+    private final Firestore firestore;
+    private final boolean enabled;
+    private final Counter hitCounter;
+    private final Counter missCounter;
+    private final List<DeviceCacheListener> listeners = new CopyOnWriteArrayList<>();
+    private final ScheduledExecutorService resubscriber;
+
+    // Sorted by document id like Firestore orders documents by default. Written while holding the lock.
+    private final ConcurrentNavigableMap<String, DeviceDoc> snapshot = new ConcurrentSkipListMap<>();
+    // IoT device id to document id. Written while holding the lock.
+    private final Map<String, String> deviceIds = new ConcurrentHashMap<>();
+    // Document id to the update time of the cached document if it is known. Guarded by this.
+    private final Map<String, Timestamp> updateTimes = new HashMap<>();
+    private volatile boolean ready = false;
+    private volatile long lastSyncMillis = System.currentTimeMillis();
+    private ListenerRegistration registration;
+
+    public DeviceCache(Firestore firestore,
+                       @Value("${bbq.backend.gcp.firestore.device-cache.enabled}") boolean enabled,
+                       MeterRegistry meterRegistry) {
+        this.firestore = firestore;
+        this.enabled = enabled;
+        this.hitCounter = Counter.builder("bbqb.device.cache.requests").tag("result", "hit").register(meterRegistry);
+        this.missCounter = Counter.builder("bbqb.device.cache.requests").tag("result", "miss").register(meterRegistry);
+        Gauge.builder("bbqb.device.cache.size", this, cache -> cache.snapshot.size())
+                .description("Number of cached devices")
+                .register(meterRegistry);
+        Gauge.builder("bbqb.device.cache.age", this, cache -> (System.currentTimeMillis() - cache.lastSyncMillis) / 1000.0)
+                .description("Seconds since the cache was last synchronized with Firestore")
+                .baseUnit("seconds")
+                .register(meterRegistry);
+        this.resubscriber = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "device-cache-resubscriber");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @PostConstruct
+    public void start() {
+        if (enabled) {
+            subscribe();
+        } else {
+            LOGGER.info("Device cache is disabled. Devices are read from Firestore directly.");
+        }
+    }
+
+    @PreDestroy
+    public synchronized void stop() {
+        resubscriber.shutdownNow();
+        if (registration != null) {
+            registration.remove();
+            registration = null;
+        }
+    }
+
+    /**
+     * @return true if the cache is kept up to date, false if it is disabled
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return true if the cache received its initial snapshot and the listener is healthy
+     */
+    public boolean isReady() {
+        return ready;
+    }
+
+    /**
+     * Look up a device by its document id.
+     * The returned document is shared and must not be modified.
+     *
+     * @param id The document id of the device
+     * @return The cached device document or Optional.empty if it is not cached
+     */
+    public Optional<DeviceDoc> find(String id) {
+        DeviceDoc deviceDoc = snapshot.get(id);
+        if (deviceDoc != null) {
+            hitCounter.increment();
+        } else {
+            missCounter.increment();
+        }
+        return Optional.ofNullable(deviceDoc);
+    }
+
+    /**
+     * Look up a device by its document id without counting it as a cache request,
+     * e.g. to check many devices for an internal decision.
+     * The returned document is shared and must not be modified.
+     *
+     * @param id The document id of the device
+     * @return The cached device document or Optional.empty if it is not cached
+     */
+    public Optional<DeviceDoc> peek(String id) {
+        return Optional.ofNullable(snapshot.get(id));
+    }
+
+    /**
+     * Look up a device by its IoT device id.
+     * The returned document is shared and must not be modified.
+     *
+     * @param deviceId The id of the device in the IoT registry
+     * @return The cached device document or Optional.empty if it is not cached
+     */
+    public Optional<DeviceDoc> findByDeviceId(String deviceId) {
+        String id = deviceIds.get(deviceId);
+        if (id == null) {
+            missCounter.increment();
+            return Optional.empty();
+        }
+        return find(id);
+    }
+
+    /**
+     * The returned documents are shared and must not be modified.
+     *
+     * @return All cached device documents
+     */
+    public Collection<DeviceDoc> findAll() {
+        return Collections.unmodifiableCollection(snapshot.values());
+    }
+
+    /**
+     * The returned documents are shared and must not be modified.
+     *
+     * @param afterId Document id of the last device of the previous page or null for the first page
+     * @param limit   Maximum number of devices to return
+     * @return The cached device documents following afterId in document id order
+     */
+    public List<DeviceDoc> findPage(String afterId, int limit) {
+        NavigableMap<String, DeviceDoc> devices = afterId != null ? snapshot.tailMap(afterId, false) : snapshot;
+        return devices.values().stream().limit(limit).collect(Collectors.toList());
+    }
+
+    /**
+     * Put a device which was just written by this instance into the cache
+     * so that it can be read before the listener delivers the change.
+     * The device is not put if the cache already holds a newer state of it.
+     *
+     * @param deviceDoc  The saved device document. Must not be modified afterwards.
+     * @param updateTime The update time of the written document or null if it is unknown,
+     *                   in which case the device is only put if it is not cached yet
+     */
+    public synchronized void put(DeviceDoc deviceDoc, Timestamp updateTime) {
+        if (!enabled) {
+            return;
+        }
+        String id = deviceDoc.getId();
+        if (updateTime == null ? snapshot.containsKey(id) : isNewer(updateTimes.get(id), updateTime)) {
+            return;
+        }
+        apply(Collections.singletonMap(id, deviceDoc), Collections.singletonMap(id, updateTime), Collections.emptyList());
+    }
+
+    /**
+     * Apply a write of this instance to the cached device, so that it can be read before the listener delivers the change.
+     * The update is applied to the current state of the cached device while holding the lock,
+     * so that changes delivered by the listener in the meantime are kept.
+     *
+     * @param id         The document id of the device
+     * @param updateTime The update time of the written document or null if it is unknown,
+     *                   in which case the cached device keeps its update time
+     * @param update     Function returning a modified copy of the cached document. Must not modify its argument.
+     * @return The updated document, the cached document if it is newer than the write
+     * or Optional.empty if the device is not cached
+     */
+    public synchronized Optional<DeviceDoc> update(String id, Timestamp updateTime, UnaryOperator<DeviceDoc> update) {
+        DeviceDoc cachedDeviceDoc = snapshot.get(id);
+        if (!enabled || cachedDeviceDoc == null) {
+            return Optional.empty();
+        }
+        Timestamp cachedUpdateTime = updateTimes.get(id);
+        if (updateTime != null && isNewer(cachedUpdateTime, updateTime)) {
+            // The listener already delivered a state which includes the write
+            return Optional.of(cachedDeviceDoc);
+        }
+        DeviceDoc updatedDeviceDoc = update.apply(cachedDeviceDoc);
+        apply(Collections.singletonMap(id, updatedDeviceDoc),
+                Collections.singletonMap(id, updateTime != null ? updateTime : cachedUpdateTime), Collections.emptyList());
+        return Optional.of(updatedDeviceDoc);
+    }
+
+    /**
+     * Register a listener which is notified about every change of the cached devices.
+     * The listener is immediately notified about all devices which are already cached.
+     *
+     * @param listener The listener to add
+     */
+    public synchronized void addListener(DeviceCacheListener listener) {
+        listeners.add(listener);
+        snapshot.values().forEach(listener::onDeviceChanged);
+    }
+
+    private synchronized void subscribe() {
+        registration = firestore.collection(COLLECTION).addSnapshotListener(this::onEvent);
+    }
+
+    private void onEvent(QuerySnapshot value, FirestoreException error) {
+        if (error != null) {
+            // The listener is terminated after an error, so fall back to direct reads and subscribe again
+            LOGGER.warn("Device cache listener failed. Resubscribing in " + RESUBSCRIBE_DELAY_SECONDS + "s", error);
+            ready = false;
+            resubscriber.schedule(this::subscribe, RESUBSCRIBE_DELAY_SECONDS, TimeUnit.SECONDS);
+            return;
+        }
+        if (!ready) {
+            // First snapshot after (re-)subscribing contains all documents. Replace the cache
+            // completely so that devices deleted while the listener was down are dropped as well.
+            Map<String, DeviceDoc> all = new HashMap<>();
+            Map<String, Timestamp> allUpdateTimes = new HashMap<>();
+            value.getDocuments().forEach(document -> {
+                all.put(document.getId(), document.toObject(DeviceDoc.class));
+                allUpdateTimes.put(document.getId(), document.getUpdateTime());
+            });
+            replace(all, allUpdateTimes);
+            lastSyncMillis = System.currentTimeMillis();
+            ready = true;
+            LOGGER.info("Device cache synchronized with " + all.size() + " devices");
+            return;
+        }
+        Map<String, DeviceDoc> changed = new HashMap<>();
+        Map<String, Timestamp> changedUpdateTimes = new HashMap<>();
+        List<String> removed = new ArrayList<>();
+        for (DocumentChange change : value.getDocumentChanges()) {
+            if (change.getType() == DocumentChange.Type.REMOVED) {
+                removed.add(change.getDocument().getId());
+            } else {
+                changed.put(change.getDocument().getId(), change.getDocument().toObject(DeviceDoc.class));
+                changedUpdateTimes.put(change.getDocument().getId(), change.getDocument().getUpdateTime());
+            }
+        }
+        applyChanges(changed, changedUpdateTimes, removed);
+        lastSyncMillis = System.currentTimeMillis();
+    }
+
+    private synchronized void replace(Map<String, DeviceDoc> all, Map<String, Timestamp> allUpdateTimes) {
+        List<String> removed = new ArrayList<>(snapshot.keySet());
+        removed.removeAll(all.keySet());
+        updateTimes.clear();
+        apply(all, allUpdateTimes, removed);
+    }
+
+    // Skips the changes which are older than the cached devices, e.g. because this instance put a newer state already
+    private synchronized void applyChanges(Map<String, DeviceDoc> changed, Map<String, Timestamp> changedUpdateTimes, List<String> removed) {
+        Map<String, DeviceDoc> newer = new HashMap<>(changed);
+        newer.keySet().removeIf(id -> isNewer(updateTimes.get(id), changedUpdateTimes.get(id)));
+        if (!newer.isEmpty() || !removed.isEmpty()) {
+            apply(newer, changedUpdateTimes, removed);
+        }
+    }
+
+    private synchronized void apply(Map<String, DeviceDoc> changed, Map<String, Timestamp> changedUpdateTimes, List<String> removed) {
+        changed.forEach((id, deviceDoc) -> {
+            unindexDeviceId(snapshot.put(id, deviceDoc));
+            if (deviceDoc.getDeviceId() != null) {
+                deviceIds.put(deviceDoc.getDeviceId(), id);
+            }
+            putUpdateTime(id, changedUpdateTimes.get(id));
+        });
+        removed.forEach(id -> {
+            unindexDeviceId(snapshot.remove(id));
+            updateTimes.remove(id);
+        });
+        notifyListeners(changed.values(), removed);
+    }
+
+    // Called while holding the lock. Another document may have taken over the IoT device id in the meantime.
+    private void unindexDeviceId(DeviceDoc previous) {
+        if (previous != null && previous.getDeviceId() != null) {
+            deviceIds.remove(previous.getDeviceId(), previous.getId());
+        }
+    }
+
+    // Called while holding the lock
+    private void putUpdateTime(String id, Timestamp updateTime) {
+        if (updateTime != null) {
+            updateTimes.put(id, updateTime);
+        } else {
+            updateTimes.remove(id);
+        }
+    }
+
+    // Unknown update times are never newer
+    private static boolean isNewer(Timestamp updateTime, Timestamp than) {
+        return updateTime != null && than != null && updateTime.compareTo(than) > 0;
+    }
+
+    // Called while holding the lock so that listeners see the changes in the same order as the snapshot
+    private void notifyListeners(Collection<DeviceDoc> changed, List<String> removed) {
+        for (DeviceCacheListener listener : listeners) {
+            try {
+                changed.forEach(listener::onDeviceChanged);
+                removed.forEach(listener::onDeviceRemoved);
+            } catch (RuntimeException e) {
+                LOGGER.error("Device cache listener " + listener.getClass().getSimpleName() + " failed", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package de.bbqb.backend.gcp.firestore;
+
+import de.bbqb.backend.gcp.firestore.document.DeviceDoc;
+
+/**
+ * Listener to be notified about changes of the devices held by the {@link DeviceCache}.
+ * Listeners are called while the cache is updated and must return quickly.
+ *
+ * @author Marius Degen
+ */
+public interface DeviceCacheListener {
+
+    /**
+     * Called when a device was added or changed
+     *
+     * @param deviceDoc The new state of the device. Must not be modified.
+     */
+    void onDeviceChanged(DeviceDoc deviceDoc);
+
+    /**
+     * Called when a device was deleted
+     *
+     * @param id The document id of the deleted device
+     */
+    void onDeviceRemoved(String id);
+}
@@ -0,0 +1,55 @@
+package de.bbqb.backend.gcp.firestore;
+
+import de.bbqb.backend.gcp.firestore.document.DeviceDoc;
+import de.bbqb.backend.geo.GeoClusterIndex;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.List;
+
+/**
+ * Map clusters over the locations of all cached devices.
+ * The index is updated incrementally by the {@link DeviceCache} whenever a device is
+ * created, moved, blocked/unblocked or deleted.
+ *
+ * @author Marius Degen
+ */
+@Component
+public class DeviceClusterIndex implements DeviceCacheListener {
+
+    private final DeviceCache deviceCache;
+    private final GeoClusterIndex index = new GeoClusterIndex();
+
+    public DeviceClusterIndex(DeviceCache deviceCache) {
+        this.deviceCache = deviceCache;
+    }
+
+    @PostConstruct
+    public void init() {
+        deviceCache.addListener(this);
+    }
+
+    @Override
+    public void onDeviceChanged(DeviceDoc deviceDoc) {
+        if (deviceDoc.getLocation() != null) {
+            index.put(deviceDoc.getId(), deviceDoc.getLocation().getLatitude(), deviceDoc.getLocation().getLongitude(),
+                    !Boolean.TRUE.equals(deviceDoc.getBlocked()));
+        } else {
+            index.remove(deviceDoc.getId());
+        }
+    }
+
+    @Override
+    public void onDeviceRemoved(String id) {
+        index.remove(id);
+    }
+
+    /**
+     * Only returns meaningful results if the device cache is ready.
+     *
+     * @see GeoClusterIndex#clusters(double, double, double, double, int)
+     */
+    public List<GeoClusterIndex.Cluster> clusters(double minLat, double minLng, double maxLat, double maxLng, int zoom) {
+        return index.clusters(minLat, minLng, maxLat, maxLng, zoom);
+    }
+}
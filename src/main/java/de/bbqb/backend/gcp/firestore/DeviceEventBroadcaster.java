@@ -0,0 +1,205 @@
+package de.bbqb.backend.gcp.firestore;
+
+import de.bbqb.backend.gcp.firestore.document.DeviceDoc;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.BufferOverflowStrategy;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.FluxSink;
+
+import javax.annotation.PostConstruct;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pushes changes of devices to many subscribers.
+ * All subscribers share the snapshot listener of the {@link DeviceCache}, so subscribers cause no reads on Firestore.
+ * Every subscriber has its own buffer of {@code bbq.backend.device-events.buffer-size} changes.
+ * If a subscriber does not keep up its oldest changes are dropped, since only the latest state of a device matters.
+ * Slow subscribers never delay the cache or other subscribers.
+ * Subscribers receive no changes if the device cache is disabled, see {@link #isEnabled()}.
+ *
+ * @author Marius Degen
+ */
+@Component
+public class DeviceEventBroadcaster implements DeviceCacheListener {
+
+    private final DeviceCache deviceCache;
+    private final int bufferSize;
+    // Subscribers of all devices and subscribers by document id of their device, guarded by this
+    private final Set<EventSubscriber> allSubscribers = new HashSet<>();
+    private final Map<String, Set<EventSubscriber>> deviceSubscribers = new HashMap<>();
+    private int subscriberCount = 0;
+    private final Timer fanOutTimer;
+    private final Counter droppedCounter;
+
+    public DeviceEventBroadcaster(DeviceCache deviceCache,
+                                  @Value("${bbq.backend.device-events.buffer-size}") int bufferSize,
+                                  MeterRegistry meterRegistry) {
+        this.deviceCache = deviceCache;
+        this.bufferSize = bufferSize;
+        Gauge.builder("bbqb.device.events.subscribers", this, DeviceEventBroadcaster::subscribers)
+                .description("Number of subscribers of device changes")
+                .register(meterRegistry);
+        this.fanOutTimer = Timer.builder("bbqb.device.events.fanout")
+                .description("Time from a device change until a subscriber receives it")
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+        this.droppedCounter = Counter.builder("bbqb.device.events.dropped")
+                .description("Number of device changes dropped for slow subscribers")
+                .register(meterRegistry);
+    }
+
+    @PostConstruct
+    public void init() {
+        deviceCache.addListener(this);
+    }
+
+    /**
+     * @return true if changes are pushed, false if the device cache is disabled
+     */
+    public boolean isEnabled() {
+        return deviceCache.isEnabled();
+    }
+
+    /**
+     * Subscribe to the changes of one or all devices.
+     * A subscriber of one device first receives the cached state of the device
+     * and completes after the deletion of the device. It completes right away if the device is unknown.
+     *
+     * @param id Document id of the device or null for all devices
+     * @return Flux emitting a change whenever a device was changed or deleted
+     */
+    public Flux<Change> subscribe(String id) {
+        return Flux.<Change>create(sink -> {
+            EventSubscriber subscriber = new EventSubscriber(id, sink);
+            synchronized (this) {
+                if (id == null) {
+                    allSubscribers.add(subscriber);
+                } else {
+                    Optional<DeviceDoc> deviceDoc = deviceCache.find(id);
+                    if (!deviceDoc.isPresent() && deviceCache.isReady()) {
+                        sink.complete();
+                        return;
+                    }
+                    deviceSubscribers.computeIfAbsent(id, key -> new HashSet<>()).add(subscriber);
+                    // Emitted while holding the lock, so no change can be emitted before the initial state
+                    deviceDoc.ifPresent(subscriber::emit);
+                }
+                subscriberCount++;
+            }
+            sink.onDispose(() -> unsubscribe(subscriber));
+        })
+                .onBackpressureBuffer(bufferSize, dropped -> droppedCounter.increment(), BufferOverflowStrategy.DROP_OLDEST)
+                .doOnNext(change -> fanOutTimer.record(System.nanoTime() - change.changedAt, TimeUnit.NANOSECONDS));
+    }
+
+    /**
+     * @return Number of active subscribers
+     */
+    public synchronized int subscribers() {
+        return subscriberCount;
+    }
+
+    @Override
+    public void onDeviceChanged(DeviceDoc deviceDoc) {
+        Change change = new Change(deviceDoc.getId(), deviceDoc, System.nanoTime());
+        synchronized (this) {
+            for (EventSubscriber subscriber : allSubscribers) {
+                subscriber.sink.next(change);
+            }
+            Set<EventSubscriber> subscribers = deviceSubscribers.get(deviceDoc.getId());
+            if (subscribers != null) {
+                for (EventSubscriber subscriber : subscribers) {
+                    subscriber.sink.next(change);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void onDeviceRemoved(String id) {
+        Change change = new Change(id, null, System.nanoTime());
+        Set<EventSubscriber> subscribers;
+        synchronized (this) {
+            for (EventSubscriber subscriber : allSubscribers) {
+                subscriber.sink.next(change);
+            }
+            subscribers = deviceSubscribers.get(id);
+            if (subscribers == null) {
+                return;
+            }
+            subscribers = new HashSet<>(subscribers);
+            subscribers.forEach(subscriber -> subscriber.sink.next(change));
+        }
+        // Completing unsubscribes, so it must not happen while iterating the subscribers
+        subscribers.forEach(subscriber -> subscriber.sink.complete());
+    }
+
+    private synchronized void unsubscribe(EventSubscriber subscriber) {
+        boolean removed;
+        if (subscriber.id == null) {
+            removed = allSubscribers.remove(subscriber);
+        } else {
+            Set<EventSubscriber> subscribers = deviceSubscribers.get(subscriber.id);
+            removed = subscribers != null && subscribers.remove(subscriber);
+            if (subscribers != null && subscribers.isEmpty()) {
+                deviceSubscribers.remove(subscriber.id);
+            }
+        }
+        if (removed) {
+            subscriberCount--;
+        }
+    }
+
+    /**
+     * Change or deletion of a device
+     */
+    public static final class Change {
+        private final String id;
+        private final DeviceDoc deviceDoc;
+        private final long changedAt;
+
+        private Change(String id, DeviceDoc deviceDoc, long changedAt) {
+            this.id = id;
+            this.deviceDoc = deviceDoc;
+            this.changedAt = changedAt;
+        }
+
+        /**
+         * @return Document id of the device
+         */
+        public String getId() {
+            return id;
+        }
+
+        /**
+         * @return New state of the device or null if it was deleted. Must not be modified.
+         */
+        public DeviceDoc getDeviceDoc() {
+            return deviceDoc;
+        }
+    }
+
+    private static final class EventSubscriber {
+        private final String id;
+        private final FluxSink<Change> sink;
+
+        private EventSubscriber(String id, FluxSink<Change> sink) {
+            this.id = id;
+            this.sink = sink;
+        }
+
+        private void emit(DeviceDoc deviceDoc) {
+            sink.next(new Change(deviceDoc.getId(), deviceDoc, System.nanoTime()));
+        }
+    }
+}
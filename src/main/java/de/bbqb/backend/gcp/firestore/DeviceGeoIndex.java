@@ -0,0 +1,63 @@
+package de.bbqb.backend.gcp.firestore;
+
+import de.bbqb.backend.gcp.firestore.document.DeviceDoc;
+import de.bbqb.backend.geo.GeoGridIndex;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.List;
+import java.util.function.Predicate;
+
+/**
+ * Spatial index over the locations of all cached devices.
+ * The index is updated incrementally by the {@link DeviceCache} whenever a device is
+ * created, moved or deleted, no matter if the change was made by this instance or another one.
+ *
+ * @author Marius Degen
+ */
+@Component
+public class DeviceGeoIndex implements DeviceCacheListener {
+
+    private final DeviceCache deviceCache;
+    private final GeoGridIndex index;
+
+    public DeviceGeoIndex(DeviceCache deviceCache, @Value("${bbq.backend.geo.cell-size-degrees}") double cellDegrees) {
+        this.deviceCache = deviceCache;
+        this.index = new GeoGridIndex(cellDegrees);
+    }
+
+    @PostConstruct
+    public void init() {
+        deviceCache.addListener(this);
+    }
+
+    @Override
+    public void onDeviceChanged(DeviceDoc deviceDoc) {
+        if (deviceDoc.getLocation() != null) {
+            index.put(deviceDoc.getId(), deviceDoc.getLocation().getLatitude(), deviceDoc.getLocation().getLongitude());
+        } else {
+            index.remove(deviceDoc.getId());
+        }
+    }
+
+    @Override
+    public void onDeviceRemoved(String id) {
+        index.remove(id);
+    }
+
+    /**
+     * Find the devices closest to a position.
+     * Only returns meaningful results if the device cache is ready.
+     *
+     * @param lat      Latitude of the position in degrees
+     * @param lng      Longitude of the position in degrees
+     * @param radiusKm Maximum distance of a device to the position
+     * @param limit    Maximum number of devices to return
+     * @param filter   Only devices whose document id matches the filter are returned
+     * @return Document ids and distances of the matching devices sorted by distance
+     */
+    public List<GeoGridIndex.Neighbor> nearest(double lat, double lng, double radiusKm, int limit, Predicate<String> filter) {
+        return index.nearest(lat, lng, radiusKm, limit, filter);
+    }
+}
@@ -0,0 +1,112 @@
+package de.bbqb.backend.gcp.firestore;
+
+import com.google.cloud.Timestamp;
+import de.bbqb.backend.api.model.entity.DeviceTelemetry;
+import de.bbqb.backend.api.model.service.DeviceTelemetryListener;
+import de.bbqb.backend.concurrent.HashedTimingWheel;
+import de.bbqb.backend.gcp.firestore.document.DeviceDoc;
+import de.bbqb.backend.telemetry.LivenessTracker;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Knows which devices are online, keyed by IoT device id.
+ * A device counts as seen when this instance receives a state message from it or when the
+ * publishTime of its document changes, so state messages received by other instances count as well.
+ * Devices which did not publish for {@code bbq.backend.liveness.offline-after} seconds are offline.
+ * Without the device cache and Pub/Sub no device is seen, then the publishTime of the document read decides.
+ *
+ * @author Marius Degen
+ */
+@Component
+public class DeviceLiveness implements DeviceTelemetryListener, DeviceCacheListener {
+
+    private static final long TICK_MILLIS = 1000;
+
+    private final DeviceCache deviceCache;
+    private final long silenceMillis;
+    private final HashedTimingWheel wheel;
+    private final LivenessTracker tracker;
+    // Document id to IoT device id, to stop tracking deleted devices
+    private final Map<String, String> deviceIds = new ConcurrentHashMap<>();
+
+    public DeviceLiveness(DeviceCache deviceCache,
+                          @Value("${bbq.backend.liveness.offline-after}") long offlineAfterSeconds,
+                          MeterRegistry meterRegistry) {
+        this.deviceCache = deviceCache;
+        this.silenceMillis = offlineAfterSeconds * 1000;
+        // The wheel spans the silence period, so every tick only visits the devices going offline in it
+        this.wheel = new HashedTimingWheel("device-liveness", TICK_MILLIS, (int) (silenceMillis / TICK_MILLIS) + 1);
+        this.tracker = new LivenessTracker(wheel, silenceMillis, System::currentTimeMillis);
+        Gauge.builder("bbqb.device.online", tracker, LivenessTracker::onlineCount)
+                .description("Number of devices which published within the offline period")
+                .register(meterRegistry);
+        FunctionCounter.builder("bbqb.device.offline", tracker, LivenessTracker::offlineTransitions)
+                .description("Number of times a device went offline")
+                .register(meterRegistry);
+    }
+
+    @PostConstruct
+    public void init() {
+        wheel.start();
+        deviceCache.addListener(this);
+    }
+
+    @PreDestroy
+    public void stop() {
+        wheel.stop();
+    }
+
+    /**
+     * @param deviceId    IoT id of the device
+     * @param publishTime publishTime of the device document as read or null if it has none
+     * @return true if the device published within the offline period
+     */
+    public boolean isOnline(String deviceId, Timestamp publishTime) {
+        if (deviceId != null && tracker.isOnline(deviceId)) {
+            return true;
+        }
+        return publishTime != null && System.currentTimeMillis() - toMillis(publishTime) < silenceMillis;
+    }
+
+    @Override
+    public void onTelemetry(DeviceTelemetry telemetry) {
+        // The time of receipt does not depend on the clock of the device
+        tracker.heartbeat(telemetry.getDeviceId(), System.currentTimeMillis());
+    }
+
+    @Override
+    public void onDeviceChanged(DeviceDoc deviceDoc) {
+        if (deviceDoc.getDeviceId() == null) {
+            return;
+        }
+        String previous = deviceIds.put(deviceDoc.getId(), deviceDoc.getDeviceId());
+        if (previous != null && !previous.equals(deviceDoc.getDeviceId())) {
+            tracker.remove(previous);
+        }
+        Timestamp publishTime = deviceDoc.getPublishTime();
+        if (publishTime != null) {
+            tracker.heartbeat(deviceDoc.getDeviceId(), toMillis(publishTime));
+        }
+    }
+
+    @Override
+    public void onDeviceRemoved(String id) {
+        String deviceId = deviceIds.remove(id);
+        if (deviceId != null) {
+            tracker.remove(deviceId);
+        }
+    }
+
+    private static long toMillis(Timestamp timestamp) {
+        return timestamp.getSeconds() * 1000 + timestamp.getNanos() / 1_000_000;
+    }
+}
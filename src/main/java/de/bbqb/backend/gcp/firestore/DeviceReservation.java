@@ -0,0 +1,62 @@
+package de.bbqb.backend.gcp.firestore;
+
+import de.bbqb.backend.concurrent.StripedLock;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+
+/**
+ * Reserves devices by atomically switching their blocked flag.
+ * The check-and-set runs in a {@link DeviceBlockStore} transaction which guards against other instances.
+ * Requests for the same device on this instance are queued behind a striped lock first,
+ * so that they do not make each other's transactions fail and retry.
+ *
+ * @author Marius Degen
+ */
+@Component
+public class DeviceReservation {
+
+    private final DeviceBlockStore store;
+    private final StripedLock lock;
+    private final Counter reservedCounter;
+    private final Counter conflictCounter;
+
+    public DeviceReservation(DeviceBlockStore store,
+                             @Value("${bbq.backend.reservation.lock-stripes}") int stripes,
+                             @Value("${bbq.backend.reservation.max-waiters}") int maxWaiters,
+                             MeterRegistry meterRegistry) {
+        this.store = store;
+        this.lock = new StripedLock(stripes, maxWaiters);
+        this.reservedCounter = Counter.builder("bbqb.device.reservations").tag("result", "reserved").register(meterRegistry);
+        this.conflictCounter = Counter.builder("bbqb.device.reservations").tag("result", "blocked").register(meterRegistry);
+        Gauge.builder("bbqb.device.reservations.waiting", lock, StripedLock::waiting)
+                .description("Number of reservation requests waiting for the local lock of their device")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Block a device if it is not blocked yet
+     *
+     * @param deviceId The document id of the device
+     * @return Mono emitting true if the device was reserved by this call, false if it is already blocked
+     * or Mono.empty if the device does not exist
+     */
+    public Mono<Boolean> reserve(String deviceId) {
+        return lock.withLock(deviceId, () -> store.compareAndSetBlocked(deviceId, false, true))
+                .doOnNext(reserved -> (reserved ? reservedCounter : conflictCounter).increment());
+    }
+
+    /**
+     * Unblock a device which is blocked
+     *
+     * @param deviceId The document id of the device
+     * @return Mono emitting true if the device was released by this call, false if it was not blocked
+     * or Mono.empty if the device does not exist
+     */
+    public Mono<Boolean> release(String deviceId) {
+        return lock.withLock(deviceId, () -> store.compareAndSetBlocked(deviceId, true, false));
+    }
+}
@@ -0,0 +1,107 @@
+package de.bbqb.backend.gcp.firestore;
+
+import com.google.cloud.Timestamp;
+import de.bbqb.backend.api.model.entity.DeviceTelemetry;
+import de.bbqb.backend.api.model.service.DeviceTelemetryListener;
+import de.bbqb.backend.gcp.firestore.document.DeviceDoc;
+import de.bbqb.backend.telemetry.TelemetryRingBuffer;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * In-memory history of the plate temperatures of every device, keyed by IoT device id.
+ * Samples come from the state messages received by this instance and from the device documents
+ * written by other instances. Every device gets a {@link TelemetryRingBuffer} with
+ * {@code bbq.backend.telemetry.history.capacity} samples, so the history takes
+ * capacity * {@link TelemetryRingBuffer#BYTES_PER_SAMPLE} bytes per device
+ * (64 KiB for the default of 4096 samples, about 68 minutes at one message per second).
+ *
+ * @author Marius Degen
+ */
+@Component
+public class DeviceTelemetryHistory implements DeviceTelemetryListener, DeviceCacheListener {
+
+    private final DeviceCache deviceCache;
+    private final int capacity;
+    private final Map<String, TelemetryRingBuffer> buffers = new ConcurrentHashMap<>();
+    // Document id to IoT device id, to drop the history of deleted devices
+    private final Map<String, String> deviceIds = new ConcurrentHashMap<>();
+
+    public DeviceTelemetryHistory(DeviceCache deviceCache,
+                                  @Value("${bbq.backend.telemetry.history.capacity}") int capacity,
+                                  MeterRegistry meterRegistry) {
+        this.deviceCache = deviceCache;
+        this.capacity = capacity;
+        Gauge.builder("bbqb.telemetry.history.bytes", buffers, map -> (double) map.size() * capacity * TelemetryRingBuffer.BYTES_PER_SAMPLE)
+                .description("Memory allocated for the telemetry history")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+    }
+
+    @PostConstruct
+    public void init() {
+        deviceCache.addListener(this);
+    }
+
+    @Override
+    public void onTelemetry(DeviceTelemetry telemetry) {
+        append(telemetry.getDeviceId(), telemetry.getPublishTime(), telemetry.getTemperaturePlate1(), telemetry.getTemperaturePlate2());
+    }
+
+    @Override
+    public void onDeviceChanged(DeviceDoc deviceDoc) {
+        if (deviceDoc.getDeviceId() != null) {
+            String previous = deviceIds.put(deviceDoc.getId(), deviceDoc.getDeviceId());
+            if (previous != null && !previous.equals(deviceDoc.getDeviceId())) {
+                buffers.remove(previous);
+            }
+        }
+        Timestamp publishTime = deviceDoc.getPublishTime();
+        if (publishTime != null) {
+            long millis = publishTime.getSeconds() * 1000 + publishTime.getNanos() / 1_000_000;
+            append(deviceDoc.getDeviceId(), millis, deviceDoc.getIsTemperaturePlate1(), deviceDoc.getIsTemperaturePlate2());
+        }
+    }
+
+    @Override
+    public void onDeviceRemoved(String id) {
+        String deviceId = deviceIds.remove(id);
+        if (deviceId != null) {
+            buffers.remove(deviceId);
+        }
+    }
+
+    /**
+     * Aggregate the temperature history of a device
+     *
+     * @param deviceId   IoT id of the device
+     * @param from       Start of the range in milliseconds (inclusive)
+     * @param to         End of the range in milliseconds (exclusive)
+     * @param resolution Length of a bucket in milliseconds
+     * @return The buckets containing at least one sample ordered by time
+     */
+    public List<TelemetryRingBuffer.Bucket> downsample(String deviceId, long from, long to, long resolution) {
+        TelemetryRingBuffer buffer = buffers.get(deviceId);
+        return buffer != null ? buffer.downsample(from, to, resolution) : Collections.emptyList();
+    }
+
+    private void append(String deviceId, Long timestamp, Double plate1, Double plate2) {
+        if (deviceId == null || timestamp == null || (plate1 == null && plate2 == null)) {
+            return;
+        }
+        buffers.computeIfAbsent(deviceId, id -> new TelemetryRingBuffer(capacity))
+                .append(timestamp, toFloat(plate1), toFloat(plate2));
+    }
+
+    private static float toFloat(Double value) {
+        return value != null ? value.floatValue() : Float.NaN;
+    }
+}
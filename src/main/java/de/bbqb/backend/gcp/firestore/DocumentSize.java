@@ -0,0 +1,116 @@
+package de.bbqb.backend.gcp.firestore;
+
+import com.google.cloud.Timestamp;
+import com.google.cloud.firestore.GeoPoint;
+import com.google.cloud.firestore.annotation.DocumentId;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Estimates the number of bytes Firestore stores for written fields.
+ * Follows the storage size rules of Firestore: strings take their UTF-8 length plus one byte,
+ * numbers and timestamps 8 bytes, geo points 16 bytes, booleans and null 1 byte,
+ * and every field additionally the length of its name plus one byte.
+ *
+ * @author Marius Degen
+ */
+public final class DocumentSize {
+
+    // Additional bytes Firestore stores per document
+    private static final int DOCUMENT_OVERHEAD = 32;
+
+    private DocumentSize() {
+    }
+
+    /**
+     * @param path   Path of the document like "devices/abc"
+     * @param fields Written fields by field name
+     * @return Estimated size of the written document or fields
+     */
+    public static long ofFields(String path, Map<String, ?> fields) {
+        long size = DOCUMENT_OVERHEAD;
+        for (String segment : path.split("/")) {
+            size += utf8Length(segment) + 1;
+        }
+        return size + valueSize(fields);
+    }
+
+    /**
+     * @param path     Path of the document like "devices/abc"
+     * @param document A document bean. Fields annotated with {@link DocumentId} are not counted.
+     * @return Estimated size of the written document
+     */
+    public static long ofDocument(String path, Object document) {
+        long size = DOCUMENT_OVERHEAD;
+        for (String segment : path.split("/")) {
+            size += utf8Length(segment) + 1;
+        }
+        for (Field field : document.getClass().getDeclaredFields()) {
+            if (Modifier.isStatic(field.getModifiers()) || field.isAnnotationPresent(DocumentId.class)) {
+                continue;
+            }
+            try {
+                field.setAccessible(true);
+                size += utf8Length(field.getName()) + 1 + valueSize(field.get(document));
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException("Unable to read field " + field.getName(), e);
+            }
+        }
+        return size;
+    }
+
+    /**
+     * @param meterRegistry Registry to register the summary with
+     * @param collection    Collection the documents are written to
+     * @param mode          "full" for writes of whole documents, "partial" for updates of single fields
+     * @return Summary of the estimated bytes per write
+     */
+    public static DistributionSummary summary(MeterRegistry meterRegistry, String collection, String mode) {
+        return DistributionSummary.builder("bbqb.firestore.write.bytes")
+                .description("Estimated size of the document data written per write")
+                .baseUnit("bytes")
+                .tag("collection", collection)
+                .tag("mode", mode)
+                .register(meterRegistry);
+    }
+
+    private static long valueSize(Object value) {
+        if (value == null || value instanceof Boolean) {
+            return 1;
+        }
+        if (value instanceof Number || value instanceof Timestamp || value instanceof java.util.Date) {
+            return 8;
+        }
+        if (value instanceof GeoPoint) {
+            return 16;
+        }
+        if (value instanceof String) {
+            return utf8Length((String) value) + 1;
+        }
+        if (value instanceof Map) {
+            long size = 0;
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                size += utf8Length(entry.getKey().toString()) + 1 + valueSize(entry.getValue());
+            }
+            return size;
+        }
+        if (value instanceof Collection) {
+            long size = 0;
+            for (Object element : (Collection<?>) value) {
+                size += valueSize(element);
+            }
+            return size;
+        }
+        return utf8Length(value.toString()) + 1;
+    }
+
+    private static int utf8Length(String value) {
+        return value.getBytes(StandardCharsets.UTF_8).length;
+    }
+}
@@ -0,0 +1,78 @@
+package de.bbqb.backend.gcp.firestore;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * Maps the set (not null) values of an entity to the fields of a document.
+ * The same mapping is used to fill a document object and to build the field map of a partial update,
+ * so both always write the same fields.
+ *
+ * @param <E> Type of the entity
+ * @param <D> Type of the document bean
+ * @author Marius Degen
+ */
+final class FieldMapping<E, D> {
+
+    private final List<Field<E, D, ?>> fields = new ArrayList<>();
+
+    /**
+     * @param name   Name of the document field like the field of the document bean
+     * @param getter Returns the value of the field or null if it is not set in the entity
+     * @param setter Sets the value on the document bean
+     * @return This mapping
+     */
+    <V> FieldMapping<E, D> field(String name, Function<E, V> getter, BiConsumer<D, V> setter) {
+        fields.add(new Field<>(name, getter, setter));
+        return this;
+    }
+
+    /**
+     * @return The set values of the entity by document field name
+     */
+    Map<String, Object> toFields(E entity) {
+        Map<String, Object> values = new HashMap<>();
+        for (Field<E, D, ?> field : fields) {
+            Object value = field.getter.apply(entity);
+            if (value != null) {
+                values.put(field.name, value);
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Set the set values of the entity on the document. Fields which are not set in the entity are kept.
+     *
+     * @return The given document
+     */
+    D apply(E entity, D document) {
+        for (Field<E, D, ?> field : fields) {
+            field.apply(entity, document);
+        }
+        return document;
+    }
+
+    private static class Field<E, D, V> {
+        private final String name;
+        private final Function<E, V> getter;
+        private final BiConsumer<D, V> setter;
+
+        private Field(String name, Function<E, V> getter, BiConsumer<D, V> setter) {
+            this.name = name;
+            this.getter = getter;
+            this.setter = setter;
+        }
+
+        private void apply(E entity, D document) {
+            V value = getter.apply(entity);
+            if (value != null) {
+                setter.accept(document, value);
+            }
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package de.bbqb.backend.gcp.firestore;
+
+import com.google.cloud.Timestamp;
+import com.google.cloud.firestore.DocumentReference;
+import com.google.cloud.firestore.DocumentSnapshot;
+import com.google.cloud.firestore.Firestore;
+import de.bbqb.backend.gcp.firestore.document.BookingDoc;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+
+/**
+ * Expires a booking, unblocks its device and counts it in the booking statistics within one Firestore transaction,
+ * so that a payment which completes at the same time either keeps the booking or finds it expired.
+ *
+ * @author Marius Degen
+ */
+@Component
+public class FirestoreBookingExpiryStore implements BookingExpiryStore {
+
+    private static final String BOOKINGS = "bookings";
+    private static final String DEVICES = "devices";
+
+    private final Firestore firestore;
+    private final FirestoreBookingStatisticService bookingStatisticService;
+
+    public FirestoreBookingExpiryStore(Firestore firestore, FirestoreBookingStatisticService bookingStatisticService) {
+        this.firestore = firestore;
+        this.bookingStatisticService = bookingStatisticService;
+    }
+
+    @Override
+    public Mono<Boolean> expireIfPending(String bookingId) {
+        DocumentReference bookingReference = firestore.collection(BOOKINGS).document(bookingId);
+        // The transaction is retried by the client if a document changed before the commit.
+        // A null result completes the Mono empty.
+        return FutureMono.from(() -> firestore.runTransaction(transaction -> {
+            DocumentSnapshot booking = transaction.get(bookingReference).get();
+            if (!booking.exists()) {
+                return null;
+            }
+            if (!"pending".equals(booking.getString("status"))) {
+                return false;
+            }
+            // All reads of a transaction have to happen before its writes
+            DocumentReference deviceReference = null;
+            DocumentSnapshot device = null;
+            if (booking.getString("deviceId") != null) {
+                deviceReference = firestore.collection(DEVICES).document(booking.getString("deviceId"));
+                device = transaction.get(deviceReference).get();
+            }
+            transaction.update(bookingReference, "status", "expired");
+            if (blocksDevice(booking) && device != null && device.exists() && Boolean.TRUE.equals(device.getBoolean("blocked"))) {
+                transaction.update(deviceReference, "blocked", false);
+            }
+            BookingDoc expiredBookingDoc = booking.toObject(BookingDoc.class);
+            expiredBookingDoc.setStatus("expired");
+            bookingStatisticService.record(transaction, expiredBookingDoc, device != null && device.exists() ? device.getString("city") : null);
+            return true;
+        }));
+    }
+
+    // Bookings for right away start their session when they are requested and block the device,
+    // bookings in advance do not. Bookings without session start were all created for right away.
+    private static boolean blocksDevice(DocumentSnapshot booking) {
+        Timestamp sessionStart = booking.getTimestamp("sessionStart");
+        Timestamp requestTime = booking.getTimestamp("requestTime");
+        return sessionStart == null || requestTime == null || sessionStart.compareTo(requestTime) <= 0;
+    }
+}
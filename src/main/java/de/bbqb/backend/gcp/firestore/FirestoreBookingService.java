@@ -1,9 +1,17 @@
 package de.bbqb.backend.gcp.firestore;
 
 import com.google.cloud.Timestamp;
+import com.google.cloud.firestore.DocumentReference;
+import com.google.cloud.firestore.DocumentSnapshot;
+import com.google.cloud.firestore.FieldPath;
 import com.google.cloud.firestore.Firestore;
+import com.google.cloud.firestore.Query;
+import com.google.cloud.firestore.QuerySnapshot;
+import de.bbqb.backend.api.model.entity.Address;
 import de.bbqb.backend.api.model.entity.Booking;
-import de.bbqb.backend.api.model.entity.Device;
+import de.bbqb.backend.api.model.entity.DeviceAvailability;
+import de.bbqb.backend.api.model.entity.Page;
+import de.bbqb.backend.api.model.entity.TimeInterval;
 import de.bbqb.backend.api.model.entity.Timeslot;
 import de.bbqb.backend.api.model.service.BookingService;
 import de.bbqb.backend.api.model.service.DeviceService;
@@ -17,6 +25,13 @@ import org.springframework.util.Assert;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
 /**
  * Service to manage booking resources
  *
@@ -25,17 +40,27 @@ import reactor.core.publisher.Mono;
 @Service
 public class FirestoreBookingService implements BookingService {
     private static final Logger LOGGER = LoggerFactory.getLogger(FirestoreBookingService.class);
+    private static final String COLLECTION = "bookings";
     private BookingRepo repo;
     private Firestore firestore;
     private DeviceService deviceService;
     private UserService userService;
     private StripeService stripeService;
+    private BookingCalendar bookingCalendar;
+    private SessionReservationStore sessionReservationStore;
+    private BookingExpiry bookingExpiry;
+    private FirestoreBookingStatisticService bookingStatisticService;
 
-    public FirestoreBookingService(BookingRepo repo, Firestore firestore, DeviceService deviceService, UserService userService, StripeService stripeService) {
+    public FirestoreBookingService(BookingRepo repo, Firestore firestore, DeviceService deviceService, UserService userService, StripeService stripeService, BookingCalendar bookingCalendar, SessionReservationStore sessionReservationStore, BookingExpiry bookingExpiry, FirestoreBookingStatisticService bookingStatisticService) {
         this.repo = repo;
         this.firestore = firestore;
         this.deviceService = deviceService;
         this.userService = userService;
+        this.stripeService = stripeService;
+        this.bookingCalendar = bookingCalendar;
+        this.sessionReservationStore = sessionReservationStore;
+        this.bookingExpiry = bookingExpiry;
+        this.bookingStatisticService = bookingStatisticService;
     }
 
     /**
@@ -64,6 +89,70 @@ public class FirestoreBookingService implements BookingService {
         return this.repo.findAllByUserId(userId).map(this::fromBookingDocToBooking);
     }
 
+    /**
+     * Find the booking a user created last.
+     * Reads a single document ordered by requestTime.
+     *
+     * @param userId must not be null
+     * @return A Mono emitting the latest booking of the user or Mono.empty if the user has none
+     */
+    public Mono<Booking> findLatestBookingByUserId(String userId) {
+        Assert.notNull(userId, "Parameter userId must not be null");
+        return FutureMono.from(() -> bookingsByUserId(userId).limit(1).get())
+                .flatMapIterable(QuerySnapshot::getDocuments)
+                .next()
+                .map(document -> document.toObject(BookingDoc.class))
+                .map(this::fromBookingDocToBooking);
+    }
+
+    /**
+     * Read one page of the bookings of a user, the latest first.
+     * Pages are continued after the requestTime and id of the last booking, so bookings created while paging do not shift pages.
+     *
+     * @param userId    must not be null
+     * @param pageSize  Maximum number of bookings on the page
+     * @param pageToken Token of the page to read as returned with the previous page or null for the first page
+     * @return Mono emitting the page with a token for the next page or a null token if it is the last page
+     * @throws IllegalArgumentException in case the userId is null or the page token is malformed
+     */
+    public Mono<Page<Booking>> findBookingsByUserId(String userId, int pageSize, String pageToken) {
+        Assert.notNull(userId, "Parameter userId must not be null");
+        Query query = bookingsByUserId(userId).limit(pageSize + 1);
+        if (pageToken != null) {
+            String[] after = PageToken.decode(pageToken, 3);
+            try {
+                query = query.startAfter(Timestamp.ofTimeSecondsAndNanos(Long.parseLong(after[0]), Integer.parseInt(after[1])), after[2]);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid page token", e);
+            }
+        }
+        Query page = query;
+        // Read one more booking to find out if there is a next page
+        return FutureMono.from(page::get)
+                .map(snapshot -> {
+                    List<BookingDoc> docs = snapshot.toObjects(BookingDoc.class);
+                    boolean hasNext = docs.size() > pageSize;
+                    List<BookingDoc> pageDocs = hasNext ? docs.subList(0, pageSize) : docs;
+                    String nextPageToken = null;
+                    if (hasNext) {
+                        BookingDoc last = pageDocs.get(pageSize - 1);
+                        nextPageToken = PageToken.encode(String.valueOf(last.getRequestTime().getSeconds()),
+                                String.valueOf(last.getRequestTime().getNanos()),
+                                last.getId());
+                    }
+                    return new Page<>(pageDocs.stream().map(this::fromBookingDocToBooking).collect(Collectors.toList()), nextPageToken);
+                });
+    }
+
+    // Needs the composite index on userId and requestTime from firestore.indexes.json
+    private Query bookingsByUserId(String userId) {
+        return firestore.collection(COLLECTION)
+                .whereEqualTo("userId", userId)
+                .orderBy("requestTime", Query.Direction.DESCENDING)
+                // Bookings of the same time are ordered by id so that the cursor is unique
+                .orderBy(FieldPath.documentId(), Query.Direction.DESCENDING);
+    }
+
     /**
      * Find all bookings that where created for a particular device(BBQB)
      *
@@ -88,109 +177,231 @@ public class FirestoreBookingService implements BookingService {
 
     /**
      * Create a new booking with the provided values.
-     * Also blocks the device and creates a stripe payment intent.
+     * Reserves the session in the {@link SessionReservationStore} and creates a stripe payment intent.
+     * The booking calendar rejects sessions which overlap a known booking before the store is asked.
+     * A booking for right away also blocks the device, which has to be online.
+     * The booking expires if it is still pending after the pending timeout.
      *
      * @param paymentMethodId id of the stripe payment method to use for the payment
      * @param deviceId        id of the BBQB to create a booking for
      * @param userId          id of the user who wants to create a booking
      * @param timeslot        time the BBQB will be reserved
+     * @param sessionStart    start of the session or null to use the device right away
+     * @param idempotencyKey  key passed to stripe so that a retried request does not create a second payment or null
      * @return Mono emitting the created booking
-     * @throws RuntimeException in case the device with id deviceId is already blocked by another user or the device or user could not be found
+     * @throws RuntimeException in case the device with id deviceId is offline, already blocked by another user or booked at that time or the device or user could not be found
+     * @throws IllegalStateException in case the booking calendar is not synchronized with the database
      */
     public Mono<Booking> createBooking(String paymentMethodId,
                                        String deviceId,
                                        String userId,
-                                       Timeslot timeslot) {
+                                       Timeslot timeslot,
+                                       Date sessionStart,
+                                       String idempotencyKey) {
         // TODO: Update test for this method
-        // TODO: Check if database integrity stays consistent. Think about creating a transaction for these database requests or update database schema
-        return deviceService.readDevice(deviceId)
-                .switchIfEmpty(Mono.error(new RuntimeException("No device with id " + deviceId + " was found")))
-                .flatMap(device -> {
-                    if (device.getBlocked()) {
-                        return Mono.error(new RuntimeException("Device " + deviceId + " is already blocked"));
-                    } else {
-                        return Mono.just(device);
-                    }
-                })
-                .flatMap(device ->
-                        deviceService.updateDevice(
-                                new Device(
-                                        device.getId(),
-                                        device.getDeviceId(),
-                                        device.getNumber(),
-                                        device.getPublishTime(),
-                                        true,
-                                        device.getLocked(),
-                                        device.getClosed(),
-                                        device.getWifiSignal(),
-                                        device.getIsTemperaturePlate1(),
-                                        device.getIsTemperaturePlate2(),
-                                        device.getSetTemperaturePlate1(),
-                                        device.getSetTemperaturePlate2(),
-                                        device.getLocation(),
-                                        device.getAddress())))
-                .flatMap(device -> userService.readUser(userId)
-                        .switchIfEmpty(Mono.error(new RuntimeException("No user found with id " + userId)))
-                        .flatMap(user ->
-                                stripeService.createCardPaymentIntent(
-                                        userId, //  TODO: Think about pasing a user object so that stripe service does not has to read user again
-                                        timeslot.getCost(),// TODO: Check how to retrieve the price. Currently stored as part of the Timeslot enum
-                                        paymentMethodId))
-                        .flatMap(payment ->
-                                repo.save(
-                                        new BookingDoc(
-                                                firestore.collection("bookings").document().getId(),
-                                                payment.getId(),
-                                                deviceId,
-                                                userId,
-                                                "pending",
-                                                Timestamp.now(),
-                                                timeslot.getTime(),
-                                                null))
-                                        .map(this::fromBookingDocToBooking))
-                        .doOnError(e -> {
-                                    LOGGER.warn("Error occurred while creating a booking so device will be unblocked.");
-                                    deviceService
-                                            .readDevice(deviceId)
-                                            .flatMap(blockedDevice ->
-                                                    deviceService.updateDevice(
-                                                            new Device(
-                                                                    blockedDevice.getId(),
-                                                                    blockedDevice.getDeviceId(),
-                                                                    blockedDevice.getNumber(),
-                                                                    blockedDevice.getPublishTime(),
-                                                                    false,
-                                                                    blockedDevice.getLocked(),
-                                                                    blockedDevice.getClosed(),
-                                                                    blockedDevice.getWifiSignal(),
-                                                                    blockedDevice.getIsTemperaturePlate1(),
-                                                                    blockedDevice.getIsTemperaturePlate2(),
-                                                                    blockedDevice.getSetTemperaturePlate1(),
-                                                                    blockedDevice.getSetTemperaturePlate2(),
-                                                                    blockedDevice.getLocation(),
-                                                                    blockedDevice.getAddress())))
-                                            .subscribe();
+        boolean immediate = sessionStart == null;
+        return Mono.defer(() -> {
+            if (!bookingCalendar.isReady()) {
+                return Mono.error(new IllegalStateException("Booking calendar is not synchronized"));
+            }
+            String bookingId = firestore.collection(COLLECTION).document().getId();
+            // A booking for right away starts its session when it is requested, which marks it as blocking its device
+            Date requestTime = new Date();
+            if (!immediate && !sessionStart.after(requestTime)) {
+                return Mono.error(new RuntimeException("Session start " + sessionStart + " is not in the future"));
+            }
+            Date start = immediate ? requestTime : sessionStart;
+            Date end = new Date(start.getTime() + TimeUnit.MINUTES.toMillis(timeslot.getTime()));
+            return deviceService.readDevice(deviceId)
+                    .flatMap(device -> {
+                        // Liveness is tracked in memory, so an offline device is rejected before anything is written.
+                        // A device booked in advance only has to be online when the session starts.
+                        if (immediate && !Boolean.TRUE.equals(device.getOnline())) {
+                            return Mono.error(new RuntimeException("Device " + deviceId + " is offline"));
+                        }
+                        if (!bookingCalendar.tryReserve(deviceId, bookingId, start.getTime(), end.getTime())) {
+                            return Mono.error(new RuntimeException("Device " + deviceId + " is already booked at " + start));
+                        }
+                        // The calendar may miss bookings of other instances which were just created, the store decides
+                        return sessionReservationStore.reserve(deviceId, bookingId, start.getTime(), end.getTime())
+                                .onErrorResume(e -> releaseSession(deviceId, bookingId).then(Mono.error(e)))
+                                .flatMap(sessionReserved -> {
+                                    if (!sessionReserved) {
+                                        bookingCalendar.release(bookingId);
+                                        return Mono.error(new RuntimeException("Device " + deviceId + " is already booked at " + start));
+                                    }
+                                    if (!immediate) {
+                                        return Mono.just(true);
+                                    }
+                                    return deviceService.reserveDevice(deviceId)
+                                            .flatMap(reserved -> reserved
+                                                    ? Mono.just(true)
+                                                    : releaseSession(deviceId, bookingId).thenReturn(false))
+                                            .onErrorResume(e -> releaseSession(deviceId, bookingId).then(Mono.error(e)));
+                                });
+                    })
+                    .switchIfEmpty(Mono.error(new RuntimeException("No device with id " + deviceId + " was found")))
+                    .flatMap(reserved -> {
+                        if (reserved) {
+                            return Mono.just(true);
+                        } else {
+                            return Mono.error(new RuntimeException("Device " + deviceId + " is already blocked"));
+                        }
+                    })
+                    .flatMap(reserved -> userService.readUser(userId)
+                            .switchIfEmpty(Mono.error(new RuntimeException("No user found with id " + userId)))
+                            .flatMap(user ->
+                                    // Pass the user on so that it is read only once per booking
+                                    stripeService.createCardPaymentIntent(
+                                            user,
+                                            timeslot.getCost(),// TODO: Check how to retrieve the price. Currently stored as part of the Timeslot enum
+                                            paymentMethodId,
+                                            idempotencyKey))
+                            .flatMap(payment -> repo.findByPaymentIntentId(payment.getId())
+                                    // A retried request gets the payment intent of its first attempt from stripe. If that attempt already
+                                    // created the booking, e.g. on an instance which was slower than the idempotency lease, it is returned.
+                                    .flatMap(existingBookingDoc -> {
+                                        LOGGER.info("Booking " + existingBookingDoc.getId() + " already exists for payment intent " + payment.getId());
+                                        return releaseSession(deviceId, bookingId).thenReturn(fromBookingDocToBooking(existingBookingDoc));
+                                    })
+                                    .switchIfEmpty(Mono.defer(() -> repo.save(
+                                            new BookingDoc(
+                                                    bookingId,
+                                                    payment.getId(),
+                                                    deviceId,
+                                                    userId,
+                                                    "pending",
+                                                    Timestamp.of(requestTime),
+                                                    timeslot.getTime(),
+                                                    Timestamp.of(start),
+                                                    Timestamp.of(end)))
+                                            // Release the device and session if the payment is not confirmed in time
+                                            .doOnNext(bookingDoc -> bookingExpiry.schedule(bookingDoc.getId(), requestTime.getTime()))
+                                            .map(this::fromBookingDocToBooking))))
+                            .onErrorResume(e -> {
+                                LOGGER.warn("Error occurred while creating a booking so its session is released.");
+                                if (!immediate) {
+                                    return releaseSession(deviceId, bookingId).then(Mono.error(e));
                                 }
-                        )
-                );
+                                // Release the device before the error is passed on, so that a retry of the client can reserve it again
+                                return releaseSession(deviceId, bookingId).then(deviceService.releaseDevice(deviceId))
+                                        .doOnError(releaseError -> LOGGER.error("Unable to unblock device " + deviceId, releaseError))
+                                        .onErrorResume(releaseError -> Mono.empty())
+                                        .then(Mono.error(e));
+                            })
+                    );
+        });
+    }
+
+    // Frees the session of a booking which was not created. Errors are only logged,
+    // the reservation does not block the device anymore after the pending timeout.
+    private Mono<Void> releaseSession(String deviceId, String bookingId) {
+        return Mono.defer(() -> {
+            bookingCalendar.release(bookingId);
+            return sessionReservationStore.release(deviceId, bookingId)
+                    .doOnError(e -> LOGGER.warn("Unable to release the session of booking " + bookingId, e))
+                    .onErrorResume(e -> Mono.empty());
+        });
     }
 
     /**
      * Update a booking with the provided booking values.
      * The booking to update is identified by booking.getId()
      * If the provided booking does not exists no write operation is performed.
+     * A booking which ended (is neither pending nor payed) keeps its status, so a late update cannot revive it.
      *
      * @param booking The new values for the booking identified by its id
-     * @return Mono emitting the updated booking object or Mono.empty() if no booking was found
+     * @return Mono emitting the updated booking object, the unchanged booking if it ended already
+     * or Mono.empty() if no booking was found
      * @throws IllegalArgumentException in case the given id is null
      */
     public Mono<Booking> updateBooking(Booking booking) {
-        return this.repo.findById(booking.getId())
-                // TODO: Complete this implementation
-                .flatMap(bookingDoc -> this.repo.save(fromBookingToBookingDoc(booking)))
+        Assert.notNull(booking.getId(), "Parameter booking must have an id");
+        BookingDoc updatedBookingDoc = fromBookingToBookingDoc(booking);
+        DocumentReference reference = firestore.collection(COLLECTION).document(booking.getId());
+        return readDeviceCity(updatedBookingDoc.getDeviceId())
+                // The status change and the booking statistics are written in one transaction. A null result completes the Mono empty.
+                .flatMap(city -> FutureMono.from(() -> firestore.runTransaction(transaction -> {
+                    DocumentSnapshot currentBookingDoc = transaction.get(reference).get();
+                    if (!currentBookingDoc.exists()) {
+                        return null;
+                    }
+                    String currentStatus = currentBookingDoc.getString("status");
+                    if (!isUpdatable(currentStatus, updatedBookingDoc.getStatus())) {
+                        // e.g. the booking expired while its payment was processed, the caller sees the current status
+                        BookingDoc unchangedBookingDoc = currentBookingDoc.toObject(BookingDoc.class);
+                        unchangedBookingDoc.setId(currentBookingDoc.getId());
+                        return unchangedBookingDoc;
+                    }
+                    // Count a booking only when it leaves the pending status, so a webhook delivered twice is counted once
+                    if ("pending".equals(currentStatus)) {
+                        bookingStatisticService.record(transaction, updatedBookingDoc, city.orElse(null));
+                    }
+                    transaction.set(reference, updatedBookingDoc);
+                    return updatedBookingDoc;
+                })))
+                .doOnNext(bookingDoc -> {
+                    if (!"pending".equals(bookingDoc.getStatus())) {
+                        bookingExpiry.cancel(bookingDoc.getId());
+                    }
+                    // Free the session right away instead of waiting for the snapshot listener
+                    if (!BookingCalendar.ACTIVE_STATUSES.contains(bookingDoc.getStatus())) {
+                        bookingCalendar.release(bookingDoc.getId());
+                    }
+                })
                 .map(this::fromBookingDocToBooking);
     }
 
+    /**
+     * @return false if a booking which ended would get another status
+     */
+    static boolean isUpdatable(String currentStatus, String status) {
+        return currentStatus == null || BookingCalendar.ACTIVE_STATUSES.contains(currentStatus) || currentStatus.equals(status);
+    }
+
+    private Mono<Optional<String>> readDeviceCity(String deviceId) {
+        if (deviceId == null) {
+            return Mono.just(Optional.empty());
+        }
+        return deviceService.readDevice(deviceId)
+                .map(device -> Optional.ofNullable(device.getAddress()).map(Address::getCity))
+                .defaultIfEmpty(Optional.empty());
+    }
+
+    /**
+     * Read the booked and free times of a device from the booking calendar
+     *
+     * @param deviceId id of the BBQB
+     * @param from     start of the range in milliseconds since epoch
+     * @param to       end of the range in milliseconds since epoch, exclusive
+     * @param timeslot timeslot to find the next free session start for
+     * @return Mono emitting the availability of the device or Mono.empty if no device with such an id is found
+     * @throws IllegalStateException in case the booking calendar is not synchronized with the database
+     */
+    public Mono<DeviceAvailability> readAvailability(String deviceId, long from, long to, Timeslot timeslot) {
+        if (!bookingCalendar.isReady()) {
+            return Mono.error(new IllegalStateException("Booking calendar is not synchronized"));
+        }
+        return deviceService.readDevice(deviceId)
+                .map(device -> {
+                    List<TimeInterval> booked = new ArrayList<>();
+                    List<TimeInterval> free = new ArrayList<>();
+                    long freeStart = from;
+                    for (long[] interval : bookingCalendar.busy(deviceId, from, to)) {
+                        if (interval[0] > freeStart) {
+                            free.add(new TimeInterval(freeStart, interval[0]));
+                        }
+                        booked.add(new TimeInterval(interval[0], interval[1]));
+                        freeStart = interval[1];
+                    }
+                    if (freeStart < to) {
+                        free.add(new TimeInterval(freeStart, to));
+                    }
+                    long nextFree = bookingCalendar.nextFree(deviceId, from, TimeUnit.MINUTES.toMillis(timeslot.getTime()));
+                    return new DeviceAvailability(deviceId, from, to, booked, free, nextFree);
+                });
+    }
+
     private BookingDoc fromBookingToBookingDoc(Booking booking) {
         return new BookingDoc(
                 booking.getId(),
@@ -200,7 +411,10 @@ public class FirestoreBookingService implements BookingService {
                 booking.getStatus(),
                 booking.getRequestTime() != null ? Timestamp.of(booking.getRequestTime()) : null,
                 booking.getTimeslot(),
-                booking.getSessionStart() != null ? Timestamp.of(booking.getSessionStart()) : null);
+                booking.getSessionStart() != null ? Timestamp.of(booking.getSessionStart()) : null,
+                booking.getSessionStart() != null && booking.getTimeslot() != null
+                        ? Timestamp.of(new Date(booking.getSessionStart().getTime() + TimeUnit.MINUTES.toMillis(booking.getTimeslot())))
+                        : null);
     }
 
     private Booking fromBookingDocToBooking(BookingDoc bookingDoc) {
@@ -0,0 +1,304 @@
+package de.bbqb.backend.gcp.firestore;
+
+import com.google.cloud.Timestamp;
+import com.google.cloud.firestore.DocumentReference;
+import com.google.cloud.firestore.DocumentSnapshot;
+import com.google.cloud.firestore.FieldValue;
+import com.google.cloud.firestore.Firestore;
+import com.google.cloud.firestore.Query;
+import com.google.cloud.firestore.QueryDocumentSnapshot;
+import com.google.cloud.firestore.SetOptions;
+import com.google.cloud.firestore.Transaction;
+import com.google.cloud.firestore.WriteBatch;
+import de.bbqb.backend.api.model.entity.BookingStatistic;
+import de.bbqb.backend.api.model.entity.Timeslot;
+import de.bbqb.backend.api.model.service.BookingStatisticService;
+import de.bbqb.backend.api.model.service.DeviceService;
+import de.bbqb.backend.gcp.firestore.document.BookingDoc;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+/**
+ * Service to aggregate bookings per device and day.
+ * The aggregates are counters which are incremented in the transaction which ends a pending booking,
+ * so they are never read from the raw bookings. The counters of a device and day are split over several shard
+ * documents and every increment goes to a random shard, since a single document only sustains about one write per second.
+ * Statistics sum up the shards of a range of days with one collection group query.
+ * Days are UTC days of the request time of the bookings.
+ *
+ * @author Marius Degen
+ */
+@Service
+public class FirestoreBookingStatisticService implements BookingStatisticService {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(FirestoreBookingStatisticService.class);
+    private static final String COLLECTION = "booking_statistics";
+    // Collection group of the shard documents. Needs the collection group index on day from firestore.indexes.json
+    private static final String SHARDS = "booking_statistic_shards";
+    private static final String BOOKINGS = "bookings";
+    private static final ZoneId ZONE = ZoneOffset.UTC;
+    private static final String UNKNOWN_CITY = "unknown";
+    private static final int MAX_BATCH_WRITES = 500;
+    private static final int REBUILD_PARALLELISM = 4;
+    private static final long MINUTES_PER_DAY = 24 * 60;
+
+    private final Firestore firestore;
+    private final DeviceService deviceService;
+    private final int shards;
+
+    public FirestoreBookingStatisticService(Firestore firestore,
+                                            DeviceService deviceService,
+                                            @Value("${bbq.backend.statistics.shards}") int shards) {
+        this.firestore = firestore;
+        this.deviceService = deviceService;
+        this.shards = shards;
+    }
+
+    /**
+     * Count a booking which left the pending status within the transaction which changed its status.
+     * Only payed, failed and expired bookings are counted.
+     * Must be called after all reads of the transaction.
+     *
+     * @param transaction The transaction which writes the new status
+     * @param bookingDoc  The booking with its new status
+     * @param city        The city of the device of the booking or null if unknown
+     */
+    public void record(Transaction transaction, BookingDoc bookingDoc, String city) {
+        Map<String, Object> increments = increments(bookingDoc, city);
+        if (increments != null) {
+            int shard = ThreadLocalRandom.current().nextInt(shards);
+            transaction.set(shard((String) increments.get("day"), bookingDoc.getDeviceId(), shard), increments, SetOptions.merge());
+        }
+    }
+
+    // Fields to merge into a shard for a booking or null if the booking is not counted
+    Map<String, Object> increments(BookingDoc bookingDoc, String city) {
+        String counter = counter(bookingDoc.getStatus());
+        if (counter == null || bookingDoc.getDeviceId() == null || bookingDoc.getRequestTime() == null) {
+            return null;
+        }
+        Map<String, Object> values = keyFields(day(bookingDoc.getRequestTime()), bookingDoc.getDeviceId(), city);
+        values.put(counter, FieldValue.increment(1));
+        if ("payed".equals(counter)) {
+            values.put("revenue", FieldValue.increment(cost(bookingDoc.getTimeslot())));
+            values.put("minutes", FieldValue.increment(bookingDoc.getTimeslot() != null ? bookingDoc.getTimeslot() : 0));
+        }
+        return values;
+    }
+
+    /**
+     * Sum up the booking counters of a range of days
+     *
+     * @param groupBy {@link #GROUP_BY_DEVICE} or {@link #GROUP_BY_CITY}
+     * @param from    First day of the range
+     * @param to      Last day of the range, inclusive
+     * @return Mono emitting one statistic per device or city with bookings within the range, ordered by group
+     */
+    @Override
+    public Mono<List<BookingStatistic>> readBookingStatistics(String groupBy, LocalDate from, LocalDate to) {
+        boolean byCity = GROUP_BY_CITY.equals(groupBy);
+        long rangeMinutes = (ChronoUnit.DAYS.between(from, to) + 1) * MINUTES_PER_DAY;
+        Query query = firestore.collectionGroup(SHARDS)
+                .whereGreaterThanOrEqualTo("day", from.toString())
+                .whereLessThanOrEqualTo("day", to.toString());
+        return FutureMono.from(query::get).map(snapshot -> {
+            Map<String, Aggregate> groups = new TreeMap<>();
+            for (QueryDocumentSnapshot shard : snapshot.getDocuments()) {
+                String city = shard.getString("city");
+                String group = byCity ? (city != null ? city : UNKNOWN_CITY) : shard.getString("deviceId");
+                groups.computeIfAbsent(group, key -> new Aggregate()).add(shard);
+            }
+            return groups.entrySet().stream()
+                    .map(entry -> entry.getValue().toStatistic(entry.getKey(), rangeMinutes))
+                    .collect(Collectors.toList());
+        });
+    }
+
+    /**
+     * Recompute the booking counters of a range of days from the bookings.
+     * Days are rebuilt in parallel, each one from a single query of its bookings.
+     * The counters of a day are replaced with the recomputed ones, so increments of bookings which are payed
+     * while their day is rebuilt may be lost. Rebuild past days.
+     *
+     * @param from First day of the range
+     * @param to   Last day of the range, inclusive
+     * @return Mono emitting the number of counted bookings
+     */
+    @Override
+    public Mono<Long> rebuildBookingStatistics(LocalDate from, LocalDate to) {
+        return Flux.fromStream(from.datesUntil(to.plusDays(1)))
+                .flatMap(this::rebuildDay, REBUILD_PARALLELISM)
+                .reduce(0L, Long::sum);
+    }
+
+    private Mono<Long> rebuildDay(LocalDate day) {
+        Timestamp start = Timestamp.ofTimeSecondsAndNanos(day.atStartOfDay(ZONE).toEpochSecond(), 0);
+        Timestamp end = Timestamp.ofTimeSecondsAndNanos(day.plusDays(1).atStartOfDay(ZONE).toEpochSecond(), 0);
+        Query bookings = firestore.collection(BOOKINGS)
+                .whereGreaterThanOrEqualTo("requestTime", start)
+                .whereLessThan("requestTime", end);
+        Query existingShards = firestore.collectionGroup(SHARDS).whereEqualTo("day", day.toString());
+        return Mono.zip(FutureMono.from(bookings::get), FutureMono.from(existingShards::get))
+                .flatMap(snapshots -> {
+                    Map<String, Aggregate> devices = new HashMap<>();
+                    long counted = 0;
+                    for (BookingDoc bookingDoc : snapshots.getT1().toObjects(BookingDoc.class)) {
+                        String counter = counter(bookingDoc.getStatus());
+                        if (counter != null && bookingDoc.getDeviceId() != null) {
+                            devices.computeIfAbsent(bookingDoc.getDeviceId(), key -> new Aggregate()).add(counter, bookingDoc.getTimeslot());
+                            counted++;
+                        }
+                    }
+                    long countedBookings = counted;
+                    return Flux.fromIterable(devices.keySet())
+                            .flatMap(deviceId -> deviceService.readDevice(deviceId)
+                                    .filter(device -> device.getAddress() != null && device.getAddress().getCity() != null)
+                                    .map(device -> device.getAddress().getCity())
+                                    .defaultIfEmpty(UNKNOWN_CITY)
+                                    .map(city -> Map.entry(deviceId, city)))
+                            .collectMap(Map.Entry::getKey, Map.Entry::getValue)
+                            .flatMap(cities -> writeDay(day, devices, cities, snapshots.getT2().getDocuments()))
+                            .doOnSuccess(written -> LOGGER.info("Rebuilt booking statistics of " + day + " from " + countedBookings + " bookings"))
+                            .thenReturn(countedBookings);
+                });
+    }
+
+    // Replace the shards of a day with one shard per device holding the recomputed counters
+    private Mono<Void> writeDay(LocalDate day, Map<String, Aggregate> devices, Map<String, String> cities, List<QueryDocumentSnapshot> existingShards) {
+        List<Consumer<WriteBatch>> writes = new ArrayList<>();
+        Set<String> rewritten = new HashSet<>();
+        devices.forEach((deviceId, aggregate) -> {
+            DocumentReference shard = shard(day.toString(), deviceId, 0);
+            rewritten.add(shard.getPath());
+            String city = UNKNOWN_CITY.equals(cities.get(deviceId)) ? null : cities.get(deviceId);
+            Map<String, Object> values = keyFields(day.toString(), deviceId, city);
+            values.putAll(aggregate.toFields());
+            writes.add(batch -> batch.set(shard, values));
+        });
+        existingShards.stream()
+                .map(DocumentSnapshot::getReference)
+                .filter(shard -> !rewritten.contains(shard.getPath()))
+                .forEach(shard -> writes.add(batch -> batch.delete(shard)));
+        return Flux.fromIterable(writes)
+                .buffer(MAX_BATCH_WRITES)
+                .concatMap(chunk -> {
+                    WriteBatch batch = firestore.batch();
+                    chunk.forEach(write -> write.accept(batch));
+                    return FutureMono.from(batch::commit);
+                })
+                .then();
+    }
+
+    private DocumentReference shard(String day, String deviceId, int shard) {
+        return firestore.collection(COLLECTION).document(day + "_" + deviceId)
+                .collection(SHARDS).document(String.valueOf(shard));
+    }
+
+    private static Map<String, Object> keyFields(String day, String deviceId, String city) {
+        Map<String, Object> values = new HashMap<>();
+        values.put("day", day);
+        values.put("deviceId", deviceId);
+        values.put("city", city);
+        return values;
+    }
+
+    private static String day(Timestamp timestamp) {
+        return LocalDate.ofInstant(timestamp.toDate().toInstant(), ZONE).toString();
+    }
+
+    // Name of the counter of a final booking status or null if bookings in the status are not counted
+    private static String counter(String status) {
+        if (status == null) {
+            return null;
+        }
+        switch (status) {
+            case "payed":
+                return "payed";
+            case "payment_failed":
+                return "failed";
+            case "expired":
+                return "expired";
+            default:
+                return null;
+        }
+    }
+
+    private static long cost(Integer timeslot) {
+        try {
+            return Timeslot.getTimeslot(timeslot).getCost();
+        } catch (IllegalArgumentException | NullPointerException e) {
+            return 0;
+        }
+    }
+
+    private static long value(DocumentSnapshot shard, String field) {
+        Long value = shard.getLong(field);
+        return value != null ? value : 0;
+    }
+
+    private static final class Aggregate {
+        private long payed;
+        private long failed;
+        private long expired;
+        private long revenue;
+        private long minutes;
+        private final Set<String> devices = new HashSet<>();
+
+        private void add(String counter, Integer timeslot) {
+            switch (counter) {
+                case "payed":
+                    payed++;
+                    revenue += cost(timeslot);
+                    minutes += timeslot != null ? timeslot : 0;
+                    break;
+                case "failed":
+                    failed++;
+                    break;
+                default:
+                    expired++;
+            }
+        }
+
+        private void add(DocumentSnapshot shard) {
+            payed += value(shard, "payed");
+            failed += value(shard, "failed");
+            expired += value(shard, "expired");
+            revenue += value(shard, "revenue");
+            minutes += value(shard, "minutes");
+            devices.add(shard.getString("deviceId"));
+        }
+
+        private Map<String, Object> toFields() {
+            Map<String, Object> fields = new HashMap<>();
+            fields.put("payed", payed);
+            fields.put("failed", failed);
+            fields.put("expired", expired);
+            fields.put("revenue", revenue);
+            fields.put("minutes", minutes);
+            return fields;
+        }
+
+        private BookingStatistic toStatistic(String group, long rangeMinutes) {
+            return new BookingStatistic(group, payed, failed, expired, revenue, minutes, (double) minutes / (rangeMinutes * devices.size()));
+        }
+    }
+}
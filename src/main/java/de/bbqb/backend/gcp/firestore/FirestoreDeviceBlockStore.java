@@ -0,0 +1,50 @@
+package de.bbqb.backend.gcp.firestore;
+
+import com.google.cloud.firestore.DocumentReference;
+import com.google.cloud.firestore.DocumentSnapshot;
+import com.google.cloud.firestore.Firestore;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+
+/**
+ * Sets the blocked flag of a device document within a Firestore transaction,
+ * so that the check and the write cannot be interleaved with a write from another instance.
+ *
+ * @author Marius Degen
+ */
+@Component
+public class FirestoreDeviceBlockStore implements DeviceBlockStore {
+
+    private static final String COLLECTION = "devices";
+
+    private final Firestore firestore;
+
+    public FirestoreDeviceBlockStore(Firestore firestore) {
+        this.firestore = firestore;
+    }
+
+    @Override
+    public Mono<Boolean> compareAndSetBlocked(String deviceId, boolean expected, boolean blocked) {
+        DocumentReference reference = firestore.collection(COLLECTION).document(deviceId);
+        // The transaction is retried by the client if the document changed before the commit.
+        // A null result completes the Mono empty.
+        return FutureMono.from(() -> firestore.runTransaction(transaction -> {
+            Boolean set = compareAndSet(transaction.get(reference).get(), expected);
+            if (Boolean.TRUE.equals(set)) {
+                transaction.update(reference, "blocked", blocked);
+            }
+            return set;
+        }));
+    }
+
+    /**
+     * @return null if the device does not exist, false if its blocked flag differs from the expected one
+     * and true if the flag is to be set
+     */
+    static Boolean compareAndSet(DocumentSnapshot snapshot, boolean expected) {
+        if (!snapshot.exists()) {
+            return null;
+        }
+        return Boolean.TRUE.equals(snapshot.getBoolean("blocked")) == expected;
+    }
+}
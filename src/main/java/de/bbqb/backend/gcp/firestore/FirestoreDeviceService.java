@@ -1,34 +1,56 @@
 package de.bbqb.backend.gcp.firestore;
 
-import com.google.api.client.googleapis.javanet.GoogleNetHttpTransport;
-import com.google.api.client.http.HttpRequestInitializer;
-import com.google.api.client.json.JsonFactory;
-import com.google.api.client.json.jackson2.JacksonFactory;
-import com.google.api.services.cloudiot.v1.CloudIot;
-import com.google.api.services.cloudiot.v1.CloudIotScopes;
-import com.google.api.services.cloudiot.v1.model.SendCommandToDeviceRequest;
 import com.google.api.services.cloudiot.v1.model.SendCommandToDeviceResponse;
-import com.google.auth.http.HttpCredentialsAdapter;
-import com.google.auth.oauth2.GoogleCredentials;
 import com.google.cloud.Timestamp;
+import com.google.cloud.firestore.DocumentReference;
+import com.google.cloud.firestore.DocumentSnapshot;
+import com.google.cloud.firestore.FieldPath;
 import com.google.cloud.firestore.Firestore;
 import com.google.cloud.firestore.GeoPoint;
+import com.google.cloud.firestore.Query;
+import com.google.cloud.firestore.QuerySnapshot;
+import com.google.cloud.firestore.WriteBatch;
 import de.bbqb.backend.api.model.entity.Address;
 import de.bbqb.backend.api.model.entity.Device;
+import de.bbqb.backend.api.model.entity.DeviceBatchResult;
+import de.bbqb.backend.api.model.entity.DeviceCluster;
+import de.bbqb.backend.api.model.entity.DeviceEvent;
+import de.bbqb.backend.api.model.entity.DeviceTelemetryBucket;
 import de.bbqb.backend.api.model.entity.Location;
+import de.bbqb.backend.api.model.entity.Page;
 import de.bbqb.backend.api.model.service.DeviceService;
 import de.bbqb.backend.gcp.firestore.document.DeviceDoc;
+import de.bbqb.backend.gcp.iot.CommandAckTracker;
+import de.bbqb.backend.gcp.iot.IotCommandDispatcher;
+import de.bbqb.backend.geo.GeoClusterIndex;
+import de.bbqb.backend.geo.GeoMath;
+import de.bbqb.backend.telemetry.TelemetryRingBuffer;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Value;
-import org.springframework.core.io.ClassPathResource;
 import org.springframework.stereotype.Service;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
+import reactor.retry.Retry;
+import reactor.retry.RetryExhaustedException;
+import reactor.util.function.Tuple2;
+import reactor.util.function.Tuples;
 
-import java.io.IOException;
 import java.nio.charset.StandardCharsets;
-import java.util.Base64;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.function.UnaryOperator;
+import java.util.stream.Collectors;
 
 // TODO: Implement business layer and separate business logic from external systems like REST and DB(firestore,pubsub,iot)
 // TODO: Move Documentation to Interface
@@ -43,68 +65,106 @@ public class FirestoreDeviceService implements DeviceService {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(FirestoreDeviceService.class);
 
+    private static final String COLLECTION = "devices";
+
+    private static final int SEND_RETRIES = 3;
+
+    // Backoff before the first retry of a command, doubled for every further retry
+    private static final Duration SEND_FIRST_BACKOFF = Duration.ofMillis(200);
+
+    private static final Duration SEND_MAX_BACKOFF = Duration.ofSeconds(2);
+
+    // Firestore accepts at most 500 writes per batch
+    private static final int MAX_BATCH_SIZE = 500;
+
+    // The fields which are written from a device, named like the fields of DeviceDoc
+    private static final FieldMapping<Device, DeviceDoc> DEVICE_FIELDS = new FieldMapping<Device, DeviceDoc>()
+            .field("deviceId", Device::getDeviceId, DeviceDoc::setDeviceId)
+            .field("number", Device::getNumber, DeviceDoc::setNumber)
+            .field("blocked", Device::getBlocked, DeviceDoc::setBlocked)
+            .field("addressName", address(Address::getName), DeviceDoc::setAddressName)
+            .field("country", address(Address::getCountry), DeviceDoc::setCountry)
+            .field("city", address(Address::getCity), DeviceDoc::setCity)
+            .field("postalCode", address(Address::getPostalcode), DeviceDoc::setPostalCode)
+            .field("street", address(Address::getStreet), DeviceDoc::setStreet)
+            .field("houseNumber", address(Address::getHouseNumber), DeviceDoc::setHouseNumber)
+            .field("location", device -> device.getLocation() != null
+                    ? new GeoPoint(device.getLocation().getLatitude(), device.getLocation().getLongitude()) : null, DeviceDoc::setLocation);
+
     private final DeviceRepo deviceRepo;
 
     private final Firestore firestore;
 
-    @Value("${spring.cloud.gcp.project-id}")
-    private String gcpProjectId;
+    private final IotCommandDispatcher iotCommandDispatcher;
+
+    private final CommandAckTracker commandAckTracker;
+
+    private final DeviceCache deviceCache;
+
+    private final DeviceGeoIndex deviceGeoIndex;
+
+    private final DeviceClusterIndex deviceClusterIndex;
 
-    @Value("${bbq.backend.gcp.cloud-region}")
-    private String cloudRegion;
+    private final DeviceTelemetryHistory deviceTelemetryHistory;
 
-    @Value("${bbq.backend.gcp.registry-name}")
-    private String registryName;
+    private final DeviceReservation deviceReservation;
+
+    private final DeviceLiveness deviceLiveness;
+
+    private final DeviceEventBroadcaster deviceEventBroadcaster;
+
+    private final DistributionSummary fullWriteSummary;
+
+    private final DistributionSummary partialWriteSummary;
 
     @Value("${bbq.backend.gcp.iot.message.open-device}")
     private String openDeviceMessage;
 
-    public FirestoreDeviceService(DeviceRepo deviceRepo, Firestore firestore) {
+    @Value("${bbq.backend.gcp.firestore.batch.parallelism}")
+    private int batchParallelism;
+
+    public FirestoreDeviceService(DeviceRepo deviceRepo, Firestore firestore, IotCommandDispatcher iotCommandDispatcher, CommandAckTracker commandAckTracker, DeviceCache deviceCache, DeviceGeoIndex deviceGeoIndex, DeviceClusterIndex deviceClusterIndex, DeviceTelemetryHistory deviceTelemetryHistory, DeviceReservation deviceReservation, DeviceLiveness deviceLiveness, DeviceEventBroadcaster deviceEventBroadcaster, MeterRegistry meterRegistry) {
         this.deviceRepo = deviceRepo;
         this.firestore = firestore;
+        this.iotCommandDispatcher = iotCommandDispatcher;
+        this.commandAckTracker = commandAckTracker;
+        this.deviceCache = deviceCache;
+        this.deviceGeoIndex = deviceGeoIndex;
+        this.deviceClusterIndex = deviceClusterIndex;
+        this.deviceTelemetryHistory = deviceTelemetryHistory;
+        this.deviceReservation = deviceReservation;
+        this.deviceLiveness = deviceLiveness;
+        this.deviceEventBroadcaster = deviceEventBroadcaster;
+        this.fullWriteSummary = DocumentSize.summary(meterRegistry, COLLECTION, "full");
+        this.partialWriteSummary = DocumentSize.summary(meterRegistry, COLLECTION, "partial");
     }
 
     // TODO: THink about movin this method to a separate Class
     /**
      * Send the open signal to a BBQB-IoT-Device {@code device} to unlock it.
      * After the BBQB receives that signal the device can be opened by a user within a certain time period.
+     * The signal is queued behind other commands for the same device and sent on a dedicated I/O thread.
+     * It carries a correlation id as last field which the device echoes in its next state message.
+     * Transient errors while sending are retried with the same correlation id and an exponential backoff.
      *
      * @param deviceId The device to send the signal to.
      *                 The IoT-Device is evaluated by its id.
-     * @throws if sending a signal to the device was not successful.
+     * @return Mono completing when the device confirmed the signal or emitting an error
+     * if sending a signal to the device was not successful, the command queue is full
+     * or the device did not confirm the signal in time.
      */
     @Override
     public Mono<Void> openDevice(String deviceId, Integer timeslot) {
-        return Mono.fromCallable(() -> {
-            final String devicePath = String.format("projects/%s/locations/%s/registries/%s/devices/%s", gcpProjectId,
-                    cloudRegion, registryName, deviceId);
-
-            GoogleCredentials credential;
-            try {
-                credential = GoogleCredentials.getApplicationDefault().createScoped(CloudIotScopes.all());
-            } catch (IOException e) {
-                // For development deploys
-                // Try to load GCP credentials file from classpath (resources folder)
-                credential = GoogleCredentials.fromStream(new ClassPathResource("bbqb-prd-a6d055683b57.json").getInputStream()).createScoped(CloudIotScopes.all());
-            }
-            JsonFactory jsonFactory = JacksonFactory.getDefaultInstance();
-            HttpRequestInitializer init = new HttpCredentialsAdapter(credential);
-            final CloudIot service = new CloudIot.Builder(GoogleNetHttpTransport.newTrustedTransport(), jsonFactory,
-                    init).setApplicationName(gcpProjectId).build();
-
-            SendCommandToDeviceRequest req = new SendCommandToDeviceRequest();
-            Base64.Encoder encoder = Base64.getEncoder();
-            String payload = this.openDeviceMessage + timeslot + ";";
-            String encPayload = encoder.encodeToString(payload.getBytes(StandardCharsets.UTF_8.name()));
-            req.setBinaryData(encPayload);
-            LOGGER.info("Sending command to " + devicePath);
-
-            // This may throw an exception if the http request is not successful
-            SendCommandToDeviceResponse response = service.projects().locations().registries().devices().sendCommandToDevice(devicePath, req).execute();
-            LOGGER.info("Command response: sent");
-            LOGGER.info("Response is :" + response.toString());
-            return null;
-        });
+        String correlationId = commandAckTracker.newCorrelationId();
+        String payload = this.openDeviceMessage + timeslot + ";" + correlationId + ";";
+        Mono<SendCommandToDeviceResponse> command = iotCommandDispatcher.dispatch(deviceId, payload.getBytes(StandardCharsets.UTF_8))
+                .retryWhen(Retry.<Object>onlyIf(context -> IotCommandDispatcher.isRetryable(context.exception()))
+                        .retryMax(SEND_RETRIES)
+                        .exponentialBackoff(SEND_FIRST_BACKOFF, SEND_MAX_BACKOFF))
+                .onErrorMap(RetryExhaustedException.class, Throwable::getCause)
+                .doOnNext(response -> LOGGER.info("Command response: sent " + correlationId + " " + response.toString()));
+        return commandAckTracker.send(deviceId, correlationId, command)
+                .doOnSuccess(ignored -> LOGGER.info("Device " + deviceId + " confirmed command " + correlationId));
     }
 
     /**
@@ -118,19 +178,17 @@ public class FirestoreDeviceService implements DeviceService {
     public Mono<Device> createDevice(Device device) {
         // Auto-generate an unique id for the new firestore device document
         // This makes sure that a new document is created and no existing one is overridden
-        String id = firestore.collection("devices").document().getId();
-        DeviceDoc deviceDoc = new DeviceDoc();
-        deviceDoc.setId(id);
-        deviceDoc.setLocked(true);
-        deviceDoc.setBlocked(false);
-        deviceDoc.setPublishTime(Timestamp.now());
-        // TODO: Set lockSTatus, drawerStatus, timestamp, temp, wifi defaults???
-        return deviceRepo.save(mapToDeviceDoc(device, deviceDoc)).map(this::mapFromDeviceDoc);
+        String id = firestore.collection(COLLECTION).document().getId();
+        return deviceRepo.save(mapToDeviceDoc(device, newDeviceDoc(id)))
+                .doOnNext(savedDeviceDoc -> fullWriteSummary.record(DocumentSize.ofDocument(COLLECTION + "/" + id, savedDeviceDoc)))
+                .doOnNext(savedDeviceDoc -> deviceCache.put(savedDeviceDoc, null))
+                .map(this::mapFromDeviceDoc);
     }
 
     /**
      * Updates an existing device document with the information
      * from device otherwise creates a new one.
+     * Only the fields which are set in device are written, without reading the document first.
      *
      * @param device update the device with its information. Must not be null.
      * @return Mono emitting the updated device
@@ -138,16 +196,241 @@ public class FirestoreDeviceService implements DeviceService {
      */
     @Override
     public Mono<Device> updateDevice(Device device) {
-        // TODO: Wrap read, update, save into a transaction
-        return deviceRepo.findById(device.getId())
-                .map(deviceDoc -> this.mapToDeviceDoc(device, deviceDoc))
-                .flatMap(deviceRepo::save) // if existing(not Empty) update deviceDocument
+        Map<String, Object> fields = toFields(device);
+        if (fields.isEmpty()) {
+            return readDevice(device.getId())
+                    .switchIfEmpty(this.createDevice(device));
+        }
+        DocumentReference reference = firestore.collection(COLLECTION).document(device.getId());
+        // update fails with NOT_FOUND if the document does not exist
+        return FutureMono.from(() -> reference.update(fields))
+                .doOnNext(writeResult -> partialWriteSummary.record(DocumentSize.ofFields(reference.getPath(), fields)))
+                .flatMap(writeResult -> readUpdatedDevice(device.getId(), writeResult.getUpdateTime(), cachedDeviceDoc -> mapToDeviceDoc(device, copy(cachedDeviceDoc))))
                 .map(this::mapFromDeviceDoc)
-                .switchIfEmpty(this.createDevice(device)); // otherwise create a new DeviceDoc
+                .onErrorResume(FirestoreErrors::isNotFound, e -> this.createDevice(device)); // otherwise create a new DeviceDoc
     }
 
     /**
-     * Read a single device specified by the device id
+     * Create and update many devices with few writes.
+     * Devices without id are created like in {@link #createDevice(Device)}, devices with id are updated
+     * like in {@link #updateDevice(Device)} or created with their id if they do not exist.
+     * Which devices exist is taken from the device cache, only devices missing in it are read before the batch is written.
+     * The devices are committed in batches of up to 500 writes, of which up to
+     * {@code bbq.backend.gcp.firestore.batch.parallelism} are committed at the same time.
+     * Devices are requested from the given Flux only as fast as the batches are committed.
+     *
+     * @param devices The devices to write
+     * @return Flux emitting one result per device in the order of the devices once its batch is committed.
+     * If a batch fails all its devices are reported as failed.
+     */
+    @Override
+    public Flux<DeviceBatchResult> writeDevices(Flux<Device> devices) {
+        return devices.index()
+                .buffer(MAX_BATCH_SIZE)
+                .flatMapSequential(this::commitBatch, batchParallelism, 1);
+    }
+
+    private Flux<DeviceBatchResult> commitBatch(List<Tuple2<Long, Device>> devices) {
+        List<String> errors = devices.stream().map(indexedDevice -> validate(indexedDevice.getT2())).collect(Collectors.toList());
+        return findExistingIds(devices, errors)
+                .flatMapMany(existingIds -> commitBatch(devices, errors, existingIds))
+                .onErrorResume(e -> {
+                    LOGGER.error("Unable to read the existing devices of a batch of " + devices.size() + " devices", e);
+                    List<DeviceBatchResult> results = new ArrayList<>(devices.size());
+                    for (int i = 0; i < devices.size(); i++) {
+                        Device device = devices.get(i).getT2();
+                        String id = device != null ? device.getId() : null;
+                        results.add(errors.get(i) != null
+                                ? new DeviceBatchResult(devices.get(i).getT1(), id, DeviceBatchResult.INVALID, errors.get(i))
+                                : new DeviceBatchResult(devices.get(i).getT1(), id, DeviceBatchResult.FAILED, e.getMessage()));
+                    }
+                    return Flux.fromIterable(results);
+                });
+    }
+
+    // Devices with id which are valid and exist
+    private Mono<Set<String>> findExistingIds(List<Tuple2<Long, Device>> devices, List<String> errors) {
+        Set<String> existingIds = new HashSet<>();
+        List<DocumentReference> uncached = new ArrayList<>();
+        boolean cacheReady = deviceCache.isReady();
+        for (int i = 0; i < devices.size(); i++) {
+            String id = devices.get(i).getT2() != null ? devices.get(i).getT2().getId() : null;
+            if (errors.get(i) != null || id == null) {
+                continue;
+            }
+            if (cacheReady && deviceCache.peek(id).isPresent()) {
+                existingIds.add(id);
+            } else {
+                uncached.add(firestore.collection(COLLECTION).document(id));
+            }
+        }
+        if (uncached.isEmpty()) {
+            return Mono.just(existingIds);
+        }
+        return FutureMono.from(() -> firestore.getAll(uncached.toArray(new DocumentReference[0])))
+                .map(snapshots -> {
+                    snapshots.stream()
+                            .filter(DocumentSnapshot::exists)
+                            .forEach(snapshot -> existingIds.add(snapshot.getId()));
+                    return existingIds;
+                });
+    }
+
+    private Flux<DeviceBatchResult> commitBatch(List<Tuple2<Long, Device>> devices, List<String> errors, Set<String> existingIds) {
+        WriteBatch batch = firestore.batch();
+        List<DeviceBatchResult> results = new ArrayList<>(devices.size());
+        List<DeviceDoc> createdDeviceDocs = new ArrayList<>();
+        List<Long> updateSizes = new ArrayList<>();
+        for (int i = 0; i < devices.size(); i++) {
+            Long index = devices.get(i).getT1();
+            Device device = devices.get(i).getT2();
+            String error = errors.get(i);
+            if (error != null) {
+                results.add(new DeviceBatchResult(index, device != null ? device.getId() : null, DeviceBatchResult.INVALID, error));
+            } else if (device.getId() != null && existingIds.contains(device.getId())) {
+                DocumentReference reference = firestore.collection(COLLECTION).document(device.getId());
+                Map<String, Object> fields = toFields(device);
+                // Fails the batch with NOT_FOUND if the device was deleted in the meantime
+                batch.update(reference, fields);
+                updateSizes.add(DocumentSize.ofFields(reference.getPath(), fields));
+                results.add(new DeviceBatchResult(index, device.getId(), DeviceBatchResult.UPDATED, null));
+            } else if (device.getId() != null && (device.getDeviceId() == null || device.getLocation() == null)) {
+                results.add(new DeviceBatchResult(index, device.getId(), DeviceBatchResult.INVALID,
+                        "No device with this id exists. New devices need a deviceId and a location"));
+            } else {
+                DocumentReference reference = device.getId() != null
+                        ? firestore.collection(COLLECTION).document(device.getId())
+                        : firestore.collection(COLLECTION).document();
+                DeviceDoc deviceDoc = mapToDeviceDoc(device, newDeviceDoc(reference.getId()));
+                batch.create(reference, deviceDoc);
+                // A later device of the batch with the same id updates the created document
+                existingIds.add(reference.getId());
+                createdDeviceDocs.add(deviceDoc);
+                results.add(new DeviceBatchResult(index, reference.getId(), DeviceBatchResult.CREATED, null));
+            }
+        }
+        if (createdDeviceDocs.isEmpty() && updateSizes.isEmpty()) {
+            return Flux.fromIterable(results);
+        }
+        return FutureMono.from(batch::commit)
+                .doOnNext(writeResults -> {
+                    for (DeviceDoc deviceDoc : createdDeviceDocs) {
+                        fullWriteSummary.record(DocumentSize.ofDocument(COLLECTION + "/" + deviceDoc.getId(), deviceDoc));
+                        deviceCache.put(deviceDoc, null);
+                    }
+                    updateSizes.forEach(partialWriteSummary::record);
+                })
+                .thenMany(Flux.fromIterable(results))
+                .onErrorResume(e -> {
+                    LOGGER.error("Unable to commit batch of " + devices.size() + " devices", e);
+                    return Flux.fromIterable(results)
+                            .map(result -> DeviceBatchResult.INVALID.equals(result.getStatus()) ? result
+                                    : new DeviceBatchResult(result.getIndex(), result.getId(), DeviceBatchResult.FAILED, e.getMessage()));
+                });
+    }
+
+    /**
+     * @return The reason why the device cannot be written or null if it is valid
+     */
+    private String validate(Device device) {
+        if (device == null) {
+            return "Device is null";
+        }
+        if (device.getId() != null && (device.getId().isEmpty() || device.getId().contains("/"))) {
+            return "Invalid id";
+        }
+        if (device.getLocation() != null && (device.getLocation().getLatitude() == null || device.getLocation().getLongitude() == null
+                || Math.abs(device.getLocation().getLatitude()) > 90 || Math.abs(device.getLocation().getLongitude()) > 180)) {
+            return "Invalid location";
+        }
+        if (device.getId() == null && (device.getDeviceId() == null || device.getLocation() == null)) {
+            return "New devices need a deviceId and a location";
+        }
+        if (device.getId() != null && toFields(device).isEmpty()) {
+            return "No fields to update";
+        }
+        return null;
+    }
+
+    /**
+     * Block or unblock a device with a single write of the blocked field.
+     *
+     * @param deviceId The id of the device. Must not be null.
+     * @param blocked  The new value of the blocked field
+     * @return Mono completing when the device was updated or emitting an error if it does not exist
+     */
+    @Override
+    public Mono<Void> setDeviceBlocked(String deviceId, boolean blocked) {
+        Map<String, Object> fields = new HashMap<>();
+        fields.put("blocked", blocked);
+        DocumentReference reference = firestore.collection(COLLECTION).document(deviceId);
+        return FutureMono.from(() -> reference.update(fields))
+                .doOnNext(writeResult -> {
+                    partialWriteSummary.record(DocumentSize.ofFields(reference.getPath(), fields));
+                    cacheBlocked(deviceId, blocked, writeResult.getUpdateTime());
+                })
+                .then();
+    }
+
+    /**
+     * Block a device if it is not blocked yet. The check and the write are atomic,
+     * so of several concurrent reservations for the same device at most one succeeds.
+     *
+     * @param deviceId The id of the device. Must not be null.
+     * @return Mono emitting true if the device was reserved, false if it is already blocked
+     * or Mono.empty if the device does not exist
+     */
+    @Override
+    public Mono<Boolean> reserveDevice(String deviceId) {
+        return deviceReservation.reserve(deviceId)
+                .doOnNext(reserved -> {
+                    if (reserved) {
+                        cacheBlocked(deviceId, true, null);
+                    }
+                });
+    }
+
+    /**
+     * Unblock a device which is blocked.
+     *
+     * @param deviceId The id of the device. Must not be null.
+     * @return Mono emitting true if the device was released, false if it was not blocked
+     * or Mono.empty if the device does not exist
+     */
+    @Override
+    public Mono<Boolean> releaseDevice(String deviceId) {
+        return deviceReservation.release(deviceId)
+                .doOnNext(released -> {
+                    if (released) {
+                        cacheBlocked(deviceId, false, null);
+                    }
+                });
+    }
+
+    // Update the cached copy right away so that this instance does not read a stale blocked flag.
+    // The update time of a transaction is unknown.
+    private void cacheBlocked(String deviceId, boolean blocked, Timestamp updateTime) {
+        deviceCache.update(deviceId, updateTime, cachedDeviceDoc -> {
+            DeviceDoc updatedDeviceDoc = copy(cachedDeviceDoc);
+            updatedDeviceDoc.setBlocked(blocked);
+            return updatedDeviceDoc;
+        });
+    }
+
+    // Apply an update to the cached document so that no read is needed, otherwise read the written document
+    private Mono<DeviceDoc> readUpdatedDevice(String deviceId, Timestamp updateTime, UnaryOperator<DeviceDoc> update) {
+        if (deviceCache.isReady()) {
+            Optional<DeviceDoc> updatedDeviceDoc = deviceCache.update(deviceId, updateTime, update);
+            if (updatedDeviceDoc.isPresent()) {
+                return Mono.just(updatedDeviceDoc.get());
+            }
+        }
+        return deviceRepo.findById(deviceId).doOnNext(deviceDoc -> deviceCache.put(deviceDoc, null));
+    }
+
+    /**
+     * Read a single device specified by the device id.
+     * The device is served from the device cache if possible.
      *
      * @param deviceId The id of the device to read. Must not be null.
      * @throws {@link IllegalArgumentException} in case the given id is null.
@@ -155,55 +438,226 @@ public class FirestoreDeviceService implements DeviceService {
      */
     @Override
     public Mono<Device> readDevice(String deviceId) {
-        return deviceRepo.findById(deviceId).map(this::mapFromDeviceDoc);
+        return Mono.defer(() -> {
+            if (deviceCache.isReady()) {
+                Optional<DeviceDoc> cachedDeviceDoc = deviceCache.find(deviceId);
+                if (cachedDeviceDoc.isPresent()) {
+                    return Mono.just(mapFromDeviceDoc(cachedDeviceDoc.get()));
+                }
+            }
+            // Cache is disabled, not yet synchronized or the device was created by another instance a moment ago
+            return deviceRepo.findById(deviceId).map(this::mapFromDeviceDoc);
+        });
     }
 
     /**
      * Read all existing devices.
+     * The devices are served from the device cache if possible.
      *
      * @return Flux emitting all devices or Flux.empty if none was found
      */
     @Override
     public Flux<Device> readAllDevices() {
-        return deviceRepo.findAll().map(this::mapFromDeviceDoc);
+        return Flux.defer(() -> {
+            if (deviceCache.isReady()) {
+                return Flux.fromIterable(deviceCache.findAll()).map(this::mapFromDeviceDoc);
+            }
+            return deviceRepo.findAll().map(this::mapFromDeviceDoc);
+        });
     }
 
-    private DeviceDoc mapToDeviceDoc(Device device, DeviceDoc deviceDoc) {
-        if (device.getDeviceId() != null) {
-            deviceDoc.setDeviceId(device.getDeviceId());
-        }
-        if (device.getNumber() != null) {
-            deviceDoc.setNumber(device.getNumber());
-        }
-        if (device.getBlocked() != null) {
-            deviceDoc.setBlocked(device.getBlocked());
-        }
-        if (device.getAddress() != null) {
-            if (device.getAddress().getName() != null) {
-                deviceDoc.setAddressName(device.getAddress().getName());
-            }
-            if (device.getAddress().getCountry() != null) {
-                deviceDoc.setCountry(device.getAddress().getCountry());
-            }
-            if (device.getAddress().getCity() != null) {
-                deviceDoc.setCity(device.getAddress().getCity());
-            }
-            if (device.getAddress().getPostalcode() != null) {
-                deviceDoc.setPostalCode(device.getAddress().getPostalcode());
-            }
-            if (device.getAddress().getStreet() != null) {
-                deviceDoc.setStreet(device.getAddress().getStreet());
-            }
-            if (device.getAddress().getHouseNumber() != null) {
-                deviceDoc.setHouseNumber(device.getAddress().getHouseNumber());
+    /**
+     * @return true if changes of devices are streamed, false if the device cache is disabled
+     */
+    @Override
+    public boolean isDeviceChangesEnabled() {
+        return deviceEventBroadcaster.isEnabled();
+    }
+
+    /**
+     * Stream the changes of all devices as they happen.
+     * The changes are pushed from the device cache and cause no reads on the database.
+     * Slow subscribers miss intermediate changes but always receive the latest ones.
+     *
+     * @return Flux emitting the new state of a device whenever it changed and its id when it was deleted. Never completes.
+     */
+    @Override
+    public Flux<DeviceEvent> readDeviceChanges() {
+        return deviceEventBroadcaster.subscribe(null).map(this::mapFromChange);
+    }
+
+    /**
+     * Stream the changes of a single device as they happen, starting with its current state.
+     * The changes are pushed from the device cache and cause no reads on the database.
+     *
+     * @param deviceId The id of the device. Must not be null.
+     * @return Flux emitting the current state of the device and its new state whenever it changed.
+     * Completes after emitting the deletion of the device or right away if the device is unknown.
+     */
+    @Override
+    public Flux<DeviceEvent> readDeviceChanges(String deviceId) {
+        return deviceEventBroadcaster.subscribe(deviceId).map(this::mapFromChange);
+    }
+
+    private DeviceEvent mapFromChange(DeviceEventBroadcaster.Change change) {
+        return change.getDeviceDoc() != null
+                ? new DeviceEvent(DeviceEvent.CHANGED, change.getId(), mapFromDeviceDoc(change.getDeviceDoc()))
+                : new DeviceEvent(DeviceEvent.DELETED, change.getId(), null);
+    }
+
+    /**
+     * Read one page of devices ordered by their document id.
+     * The page is served from the device cache if possible.
+     *
+     * @param pageSize  Maximum number of devices on the page
+     * @param pageToken Token of the page to read as returned with the previous page or null for the first page
+     * @return Mono emitting the page with a token for the next page or a null token if it is the last page
+     *         or an IllegalArgumentException in case the page token is malformed
+     */
+    @Override
+    public Mono<Page<Device>> readDevices(int pageSize, String pageToken) {
+        // Read one more device to find out if there is a next page
+        Flux<DeviceDoc> deviceDocs = Flux.defer(() -> {
+            String afterId = pageToken != null ? decodeDeviceId(pageToken) : null;
+            if (deviceCache.isReady()) {
+                return Flux.fromIterable(deviceCache.findPage(afterId, pageSize + 1));
             }
+            Query query = firestore.collection(COLLECTION).orderBy(FieldPath.documentId()).limit(pageSize + 1);
+            Query page = afterId != null ? query.startAfter(afterId) : query;
+            return FutureMono.from(page::get)
+                    .flatMapIterable(QuerySnapshot::getDocuments)
+                    .map(document -> document.toObject(DeviceDoc.class));
+        });
+        return deviceDocs.collectList().map(docs -> {
+            boolean hasNext = docs.size() > pageSize;
+            List<DeviceDoc> pageDocs = hasNext ? docs.subList(0, pageSize) : docs;
+            String nextPageToken = hasNext ? PageToken.encode(pageDocs.get(pageSize - 1).getId()) : null;
+            return new Page<>(pageDocs.stream().map(this::mapFromDeviceDoc).collect(Collectors.toList()), nextPageToken);
+        });
+    }
+
+    private static String decodeDeviceId(String pageToken) {
+        String id = PageToken.decode(pageToken, 1)[0];
+        if (id.isEmpty() || id.contains("/")) {
+            throw new IllegalArgumentException("Invalid page token");
         }
-        if (device.getLocation() != null) {
-            deviceDoc.setLocation(new GeoPoint(device.getLocation().getLatitude(), device.getLocation().getLongitude()));
+        return id;
+    }
+
+    /**
+     * Read the available (not blocked) devices closest to a location.
+     * The devices are served from the spatial device index if the device cache is ready,
+     * otherwise all devices are read from the database and filtered by distance.
+     *
+     * @param location The location to search from. Must not be null.
+     * @param radiusKm Maximum distance of a device to the location in km
+     * @param limit    Maximum number of devices to return
+     * @return Flux emitting the devices sorted by distance in ascending order
+     */
+    @Override
+    public Flux<Device> readDevicesNear(Location location, double radiusKm, int limit) {
+        double lat = location.getLatitude();
+        double lng = location.getLongitude();
+        return Flux.defer(() -> {
+            if (deviceCache.isReady()) {
+                return Flux.fromIterable(deviceGeoIndex.nearest(lat, lng, radiusKm, limit,
+                        id -> deviceCache.peek(id).filter(this::isAvailable).isPresent()))
+                        .concatMap(neighbor -> Mono.justOrEmpty(deviceCache.peek(neighbor.getId())))
+                        .map(this::mapFromDeviceDoc);
+            }
+            return deviceRepo.findAll()
+                    .filter(deviceDoc -> deviceDoc.getLocation() != null && isAvailable(deviceDoc))
+                    .map(deviceDoc -> Tuples.of(deviceDoc, GeoMath.distanceKm(lat, lng,
+                            deviceDoc.getLocation().getLatitude(), deviceDoc.getLocation().getLongitude())))
+                    .filter(deviceWithDistance -> deviceWithDistance.getT2() <= radiusKm)
+                    .sort(Comparator.comparing(Tuple2::getT2))
+                    .take(limit)
+                    .map(deviceWithDistance -> mapFromDeviceDoc(deviceWithDistance.getT1()));
+        });
+    }
+
+    /**
+     * Aggregate the devices in the map tiles covering a bounding box into clusters.
+     * Clusters are served from the incrementally maintained cluster index if the device cache is ready,
+     * otherwise a temporary index is built from all devices in the database.
+     *
+     * @param minLat Southern edge of the bounding box
+     * @param minLng Western edge of the bounding box
+     * @param maxLat Northern edge of the bounding box
+     * @param maxLng Eastern edge of the bounding box
+     * @param zoom   Map zoom level
+     * @return Mono emitting the clusters of all covering tiles
+     */
+    @Override
+    public Mono<List<DeviceCluster>> readDeviceClusters(double minLat, double minLng, double maxLat, double maxLng, int zoom) {
+        Mono<List<GeoClusterIndex.Cluster>> clusters;
+        if (deviceCache.isReady()) {
+            clusters = Mono.fromSupplier(() -> deviceClusterIndex.clusters(minLat, minLng, maxLat, maxLng, zoom));
+        } else {
+            clusters = deviceRepo.findAll()
+                    .filter(deviceDoc -> deviceDoc.getLocation() != null)
+                    .collect(GeoClusterIndex::new, (index, deviceDoc) -> index.put(deviceDoc.getId(),
+                            deviceDoc.getLocation().getLatitude(), deviceDoc.getLocation().getLongitude(), isAvailable(deviceDoc)))
+                    .map(index -> index.clusters(minLat, minLng, maxLat, maxLng, zoom));
         }
+        return clusters.map(list -> list.stream()
+                .map(cluster -> new DeviceCluster(new Location(cluster.getLat(), cluster.getLng()), cluster.getCount(), cluster.getAvailableCount()))
+                .collect(Collectors.toList()));
+    }
+
+    @Override
+    public Mono<List<DeviceTelemetryBucket>> readDeviceTelemetry(String deviceId, long from, long to, long resolution) {
+        return readDevice(deviceId)
+                .filter(device -> device.getDeviceId() != null)
+                .map(device -> deviceTelemetryHistory.downsample(device.getDeviceId(), from, to, resolution).stream()
+                        .map(this::mapFromBucket)
+                        .collect(Collectors.toList()));
+    }
+
+    private DeviceTelemetryBucket mapFromBucket(TelemetryRingBuffer.Bucket bucket) {
+        return new DeviceTelemetryBucket(bucket.getStart(), bucket.getCount(),
+                nullIfNaN(bucket.getMinPlate1()), nullIfNaN(bucket.getMaxPlate1()), nullIfNaN(bucket.getAvgPlate1()),
+                nullIfNaN(bucket.getMinPlate2()), nullIfNaN(bucket.getMaxPlate2()), nullIfNaN(bucket.getAvgPlate2()));
+    }
+
+    private static Double nullIfNaN(double value) {
+        return Double.isNaN(value) ? null : value;
+    }
+
+    private static DeviceDoc copy(DeviceDoc deviceDoc) {
+        return new DeviceDoc(deviceDoc.getId(), deviceDoc.getDeviceId(), deviceDoc.getNumber(), deviceDoc.getPublishTime(),
+                deviceDoc.getBlocked(), deviceDoc.getLocked(), deviceDoc.getClosed(), deviceDoc.getWifiSignal(),
+                deviceDoc.getIsTemperaturePlate1(), deviceDoc.getIsTemperaturePlate2(), deviceDoc.getSetTemperaturePlate1(),
+                deviceDoc.getSetTemperaturePlate2(), deviceDoc.getLocation(), deviceDoc.getAddressName(), deviceDoc.getStreet(),
+                deviceDoc.getHouseNumber(), deviceDoc.getCity(), deviceDoc.getPostalCode(), deviceDoc.getCountry());
+    }
+
+    private Map<String, Object> toFields(Device device) {
+        return DEVICE_FIELDS.toFields(device);
+    }
+
+    private boolean isAvailable(DeviceDoc deviceDoc) {
+        return !Boolean.TRUE.equals(deviceDoc.getBlocked());
+    }
+
+    private DeviceDoc newDeviceDoc(String id) {
+        DeviceDoc deviceDoc = new DeviceDoc();
+        deviceDoc.setId(id);
+        deviceDoc.setLocked(true);
+        deviceDoc.setBlocked(false);
+        deviceDoc.setPublishTime(Timestamp.now());
+        // TODO: Set lockSTatus, drawerStatus, timestamp, temp, wifi defaults???
         return deviceDoc;
     }
 
+    private DeviceDoc mapToDeviceDoc(Device device, DeviceDoc deviceDoc) {
+        return DEVICE_FIELDS.apply(device, deviceDoc);
+    }
+
+    private static <V> Function<Device, V> address(Function<Address, V> getter) {
+        return device -> device.getAddress() != null ? getter.apply(device.getAddress()) : null;
+    }
+
     private Device mapFromDeviceDoc(DeviceDoc deviceDoc) {
         Location location = new Location(deviceDoc.getLocation().getLatitude(),
                 deviceDoc.getLocation().getLongitude());
@@ -211,7 +665,8 @@ public class FirestoreDeviceService implements DeviceService {
                 deviceDoc.getStreet(), deviceDoc.getHouseNumber(), deviceDoc.getAddressName());
         return new Device(deviceDoc.getId(), deviceDoc.getDeviceId(), deviceDoc.getNumber(),
                 convertToMilliseconds(deviceDoc.getPublishTime().getSeconds(), (long) deviceDoc.getPublishTime().getNanos()),
-                deviceDoc.getBlocked(), deviceDoc.getLocked(), deviceDoc.getClosed(), deviceDoc.getWifiSignal(), deviceDoc.getIsTemperaturePlate1(), deviceDoc.getIsTemperaturePlate2(), deviceDoc.getSetTemperaturePlate1(), deviceDoc.getSetTemperaturePlate2(), location, address);
+                deviceDoc.getBlocked(), deviceDoc.getLocked(), deviceDoc.getClosed(), deviceDoc.getWifiSignal(), deviceDoc.getIsTemperaturePlate1(), deviceDoc.getIsTemperaturePlate2(), deviceDoc.getSetTemperaturePlate1(), deviceDoc.getSetTemperaturePlate2(), location, address,
+                deviceLiveness.isOnline(deviceDoc.getDeviceId(), deviceDoc.getPublishTime()));
     }
 
     /**
@@ -0,0 +1,32 @@
+package de.bbqb.backend.gcp.firestore;
+
+import com.google.api.gax.rpc.ApiException;
+import com.google.api.gax.rpc.StatusCode;
+
+/**
+ * Classification of errors returned by the Firestore client
+ *
+ * @author Marius Degen
+ */
+final class FirestoreErrors {
+
+    private FirestoreErrors() {
+    }
+
+    /**
+     * @param error An error emitted by a Firestore operation
+     * @return true if the operation failed because the document does not exist
+     */
+    static boolean isNotFound(Throwable error) {
+        return hasCode(error, StatusCode.Code.NOT_FOUND);
+    }
+
+    static boolean hasCode(Throwable error, StatusCode.Code code) {
+        for (Throwable cause = error; cause != null; cause = cause.getCause()) {
+            if (cause instanceof ApiException && ((ApiException) cause).getStatusCode().getCode() == code) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,302 @@
+package de.bbqb.backend.gcp.firestore;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.cloud.Timestamp;
+import de.bbqb.backend.api.model.service.IdempotencyService;
+import de.bbqb.backend.gcp.firestore.document.IdempotencyKeyDoc;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoProcessor;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Executes requests once per idempotency key.
+ * The executions of the latest keys are held in a bounded LRU map, so duplicates sent to the same instance while a request
+ * is executed join its execution and later ones replay its response without any read.
+ * Keys are also claimed in Firestore, so a duplicate sent to another instance replays the stored response or is rejected
+ * with 409 while the first request is still executed.
+ * An execution is not cancelled when its client disconnects, so a retry finds the response.
+ *
+ * @author Marius Degen
+ */
+@Service
+public class FirestoreIdempotencyService implements IdempotencyService {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(FirestoreIdempotencyService.class);
+    private static final int MAX_KEY_LENGTH = 255;
+    // A key which is still started after this time was abandoned by a crashed instance and is executed again.
+    // Stripe deduplicates the forwarded key itself, so a payment is not created twice, and the booking of the payment is reused.
+    private static final long STARTED_LEASE_MILLIS = 60 * 1000;
+    private static final String STARTED = "started";
+    private static final String COMPLETED = "completed";
+    static final String REPLAYED_HEADER = "Idempotent-Replayed";
+
+    private final IdempotencyStore store;
+    private final ObjectMapper objectMapper;
+    private final long ttlMillis;
+    // Guarded by itself
+    private final Map<String, Execution> executions;
+    private final Counter executedCounter;
+    private final Counter joinedCounter;
+    private final Counter replayedCounter;
+    private final Counter replayedStoredCounter;
+    private final Counter conflictCounter;
+    private final Counter mismatchCounter;
+    private final Counter savedCounter;
+
+    public FirestoreIdempotencyService(IdempotencyStore store,
+                                       ObjectMapper objectMapper,
+                                       @Value("${bbq.backend.idempotency.cache-size}") int cacheSize,
+                                       @Value("${bbq.backend.idempotency.ttl}") long ttlSeconds,
+                                       MeterRegistry meterRegistry) {
+        this.store = store;
+        this.objectMapper = objectMapper;
+        this.ttlMillis = ttlSeconds * 1000;
+        this.executions = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Execution> eldest) {
+                // An evicted key is still found in Firestore
+                return size() > cacheSize;
+            }
+        };
+        this.executedCounter = counter(meterRegistry, "executed");
+        this.joinedCounter = counter(meterRegistry, "joined");
+        this.replayedCounter = counter(meterRegistry, "replayed");
+        this.replayedStoredCounter = counter(meterRegistry, "replayed_stored");
+        this.conflictCounter = counter(meterRegistry, "conflict");
+        this.mismatchCounter = counter(meterRegistry, "mismatch");
+        this.savedCounter = Counter.builder("bbqb.idempotency.saved")
+                .description("Number of duplicate requests answered without calling Stripe and Firestore again")
+                .register(meterRegistry);
+        Gauge.builder("bbqb.idempotency.cached", this, FirestoreIdempotencyService::cached)
+                .description("Number of idempotency keys held in memory")
+                .register(meterRegistry);
+    }
+
+    @Override
+    public <T> Mono<ResponseEntity<T>> execute(String scope,
+                                               String key,
+                                               String fingerprint,
+                                               Class<? extends T> bodyType,
+                                               Function<String, Mono<ResponseEntity<T>>> request) {
+        if (key.isEmpty() || key.length() > MAX_KEY_LENGTH) {
+            return Mono.just(ResponseEntity.badRequest().build());
+        }
+        return Mono.<ResponseEntity<T>>defer(() -> {
+            String id = id(scope, key);
+            long now = System.currentTimeMillis();
+            Execution execution;
+            boolean created = false;
+            synchronized (executions) {
+                execution = executions.get(id);
+                if (execution == null || execution.expireAt <= now) {
+                    execution = new Execution(fingerprint, now + ttlMillis);
+                    executions.put(id, execution);
+                    created = true;
+                }
+            }
+            if (created) {
+                Execution started = execution;
+                // Subscribed outside of the lock and not tied to the subscriber, so it completes if the client disconnects
+                executeOnce(id, fingerprint, now, bodyType, request, true)
+                        .doOnNext(response -> {
+                            if (response.getStatusCode().is5xxServerError()) {
+                                forget(id, started);
+                            }
+                        })
+                        .doOnError(e -> forget(id, started))
+                        .doOnTerminate(() -> started.done = true)
+                        .subscribe(started.response);
+                return FirestoreIdempotencyService.<T>cast(started.response);
+            }
+            if (!execution.fingerprint.equals(fingerprint)) {
+                mismatchCounter.increment();
+                return Mono.just(ResponseEntity.unprocessableEntity().<T>build());
+            }
+            (execution.done ? replayedCounter : joinedCounter).increment();
+            savedCounter.increment();
+            return FirestoreIdempotencyService.<T>cast(execution.response).map(FirestoreIdempotencyService::replayed);
+        });
+    }
+
+    /**
+     * @return Number of idempotency keys held in memory
+     */
+    public int cached() {
+        synchronized (executions) {
+            return executions.size();
+        }
+    }
+
+    private <T> Mono<ResponseEntity<T>> executeOnce(String id,
+                                                    String fingerprint,
+                                                    long now,
+                                                    Class<? extends T> bodyType,
+                                                    Function<String, Mono<ResponseEntity<T>>> request,
+                                                    boolean takeOver) {
+        IdempotencyKeyDoc started = new IdempotencyKeyDoc(id, fingerprint, STARTED, null, null, null,
+                Timestamp.ofTimeMicroseconds(now * 1000), Timestamp.ofTimeMicroseconds((now + ttlMillis) * 1000));
+        return store.begin(started)
+                .flatMap(begun -> {
+                    if (begun) {
+                        executedCounter.increment();
+                        return run(started, request);
+                    }
+                    return replayStored(id, fingerprint, bodyType, request, takeOver);
+                });
+    }
+
+    private <T> Mono<ResponseEntity<T>> run(IdempotencyKeyDoc started, Function<String, Mono<ResponseEntity<T>>> request) {
+        String id = started.getId();
+        return Mono.defer(() -> request.apply(id))
+                .flatMap(response -> {
+                    if (response.getStatusCode().is5xxServerError()) {
+                        // Not stored, so the client can retry with the same key
+                        return delete(id).thenReturn(response);
+                    }
+                    return Mono.<IdempotencyKeyDoc>fromCallable(() -> completed(started, response))
+                            .flatMap(store::complete)
+                            // Other instances answer the key with 409 until the started lease passed
+                            .doOnError(e -> LOGGER.error("Unable to store the response of idempotency key " + id, e))
+                            .onErrorResume(e -> Mono.empty())
+                            .thenReturn(response);
+                })
+                .onErrorResume(e -> delete(id).then(Mono.error(e)));
+    }
+
+    private <T> Mono<ResponseEntity<T>> replayStored(String id,
+                                                     String fingerprint,
+                                                     Class<? extends T> bodyType,
+                                                     Function<String, Mono<ResponseEntity<T>>> request,
+                                                     boolean takeOver) {
+        return store.read(id)
+                .flatMap(idempotencyKeyDoc -> {
+                    long now = System.currentTimeMillis();
+                    boolean stale = COMPLETED.equals(idempotencyKeyDoc.getState())
+                            ? toMillis(idempotencyKeyDoc.getExpireAt()) <= now
+                            : toMillis(idempotencyKeyDoc.getCreatedAt()) + STARTED_LEASE_MILLIS <= now;
+                    if (stale) {
+                        if (!takeOver) {
+                            conflictCounter.increment();
+                            return Mono.just(ResponseEntity.status(HttpStatus.CONFLICT).<T>build());
+                        }
+                        LOGGER.info("Executing idempotency key " + id + " again because it " + (COMPLETED.equals(idempotencyKeyDoc.getState()) ? "expired" : "was abandoned"));
+                        return store.delete(id).then(executeOnce(id, fingerprint, now, bodyType, request, false));
+                    }
+                    if (!fingerprint.equals(idempotencyKeyDoc.getFingerprint())) {
+                        mismatchCounter.increment();
+                        return Mono.just(ResponseEntity.unprocessableEntity().<T>build());
+                    }
+                    if (!COMPLETED.equals(idempotencyKeyDoc.getState())) {
+                        // Executed by another instance right now
+                        conflictCounter.increment();
+                        return Mono.just(ResponseEntity.status(HttpStatus.CONFLICT).<T>build());
+                    }
+                    replayedStoredCounter.increment();
+                    savedCounter.increment();
+                    return Mono.<ResponseEntity<T>>fromCallable(() -> this.<T>fromIdempotencyKeyDoc(idempotencyKeyDoc, bodyType));
+                })
+                // Deleted by its execution in the meantime because it failed
+                .switchIfEmpty(Mono.defer(() -> {
+                    if (takeOver) {
+                        return executeOnce(id, fingerprint, System.currentTimeMillis(), bodyType, request, false);
+                    }
+                    conflictCounter.increment();
+                    return Mono.just(ResponseEntity.status(HttpStatus.CONFLICT).build());
+                }));
+    }
+
+    private Mono<Void> delete(String id) {
+        return store.delete(id)
+                .doOnError(e -> LOGGER.error("Unable to delete idempotency key " + id, e))
+                .onErrorResume(e -> Mono.empty());
+    }
+
+    private void forget(String id, Execution execution) {
+        synchronized (executions) {
+            executions.remove(id, execution);
+        }
+    }
+
+    private IdempotencyKeyDoc completed(IdempotencyKeyDoc started, ResponseEntity<?> response) throws JsonProcessingException {
+        String body = response.getBody() != null ? objectMapper.writeValueAsString(response.getBody()) : null;
+        return new IdempotencyKeyDoc(started.getId(), started.getFingerprint(), COMPLETED, response.getStatusCodeValue(),
+                new LinkedHashMap<>(response.getHeaders()), body, started.getCreatedAt(), started.getExpireAt());
+    }
+
+    private <T> ResponseEntity<T> fromIdempotencyKeyDoc(IdempotencyKeyDoc idempotencyKeyDoc, Class<? extends T> bodyType) throws JsonProcessingException {
+        HttpHeaders headers = new HttpHeaders();
+        if (idempotencyKeyDoc.getHeaders() != null) {
+            idempotencyKeyDoc.getHeaders().forEach(headers::addAll);
+        }
+        headers.set(REPLAYED_HEADER, "true");
+        T body = idempotencyKeyDoc.getBody() != null ? objectMapper.readValue(idempotencyKeyDoc.getBody(), bodyType) : null;
+        return new ResponseEntity<>(body, headers, HttpStatus.valueOf(idempotencyKeyDoc.getStatus()));
+    }
+
+    private static <T> ResponseEntity<T> replayed(ResponseEntity<T> response) {
+        HttpHeaders headers = new HttpHeaders();
+        headers.addAll(response.getHeaders());
+        headers.set(REPLAYED_HEADER, "true");
+        return new ResponseEntity<>(response.getBody(), headers, response.getStatusCode());
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> Mono<ResponseEntity<T>> cast(MonoProcessor<ResponseEntity<?>> response) {
+        // The scope of a key determines the endpoint, so all executions of a key have the same body type
+        return (Mono<ResponseEntity<T>>) (Mono<?>) response;
+    }
+
+    // Hashed so that keys of any characters are valid document ids
+    private static String id(String scope, String key) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest((scope + "\n" + key).getBytes(StandardCharsets.UTF_8));
+            StringBuilder id = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                id.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return id.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static long toMillis(Timestamp timestamp) {
+        return timestamp != null ? timestamp.getSeconds() * 1000 + timestamp.getNanos() / 1_000_000 : 0;
+    }
+
+    private static Counter counter(MeterRegistry meterRegistry, String result) {
+        return Counter.builder("bbqb.idempotency.requests")
+                .description("Number of requests with an idempotency key by result")
+                .tag("result", result)
+                .register(meterRegistry);
+    }
+
+    private static final class Execution {
+        private final String fingerprint;
+        private final long expireAt;
+        private final MonoProcessor<ResponseEntity<?>> response = MonoProcessor.create();
+        private volatile boolean done = false;
+
+        private Execution(String fingerprint, long expireAt) {
+            this.fingerprint = fingerprint;
+            this.expireAt = expireAt;
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package de.bbqb.backend.gcp.firestore;
+
+import com.google.api.gax.rpc.StatusCode;
+import com.google.cloud.firestore.CollectionReference;
+import com.google.cloud.firestore.DocumentSnapshot;
+import com.google.cloud.firestore.Firestore;
+import de.bbqb.backend.gcp.firestore.document.IdempotencyKeyDoc;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+
+/**
+ * Stores idempotency keys in the idempotency_keys collection.
+ * A key is claimed with a create, which fails if another instance claimed it first.
+ *
+ * @author Marius Degen
+ */
+@Component
+public class FirestoreIdempotencyStore implements IdempotencyStore {
+
+    private static final String COLLECTION = "idempotency_keys";
+
+    private final Firestore firestore;
+
+    public FirestoreIdempotencyStore(Firestore firestore) {
+        this.firestore = firestore;
+    }
+
+    @Override
+    public Mono<Boolean> begin(IdempotencyKeyDoc idempotencyKeyDoc) {
+        return FutureMono.from(() -> collection().document(idempotencyKeyDoc.getId()).create(idempotencyKeyDoc))
+                .thenReturn(true)
+                .onErrorResume(e -> FirestoreErrors.hasCode(e, StatusCode.Code.ALREADY_EXISTS), e -> Mono.just(false));
+    }
+
+    @Override
+    public Mono<IdempotencyKeyDoc> read(String id) {
+        return FutureMono.from(() -> collection().document(id).get())
+                .filter(DocumentSnapshot::exists)
+                .map(snapshot -> snapshot.toObject(IdempotencyKeyDoc.class));
+    }
+
+    @Override
+    public Mono<Void> complete(IdempotencyKeyDoc idempotencyKeyDoc) {
+        return FutureMono.from(() -> collection().document(idempotencyKeyDoc.getId()).set(idempotencyKeyDoc)).then();
+    }
+
+    @Override
+    public Mono<Void> delete(String id) {
+        return FutureMono.from(() -> collection().document(id).delete()).then();
+    }
+
+    private CollectionReference collection() {
+        return firestore.collection(COLLECTION);
+    }
+}
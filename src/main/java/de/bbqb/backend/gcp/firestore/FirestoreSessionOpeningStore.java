@@ -0,0 +1,55 @@
+package de.bbqb.backend.gcp.firestore;
+
+import com.google.cloud.Timestamp;
+import com.google.cloud.firestore.DocumentReference;
+import com.google.cloud.firestore.DocumentSnapshot;
+import com.google.cloud.firestore.Firestore;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Claims the opening of a device in the collection session_openings with the id of its booking.
+ * The status of the booking is checked within the same transaction, so a booking which is canceled or refunded
+ * at the same time is not opened. Delete old claims with a TTL policy on the field expireAt.
+ *
+ * @author Marius Degen
+ */
+@Component
+public class FirestoreSessionOpeningStore implements SessionOpeningStore {
+
+    private static final String BOOKINGS = "bookings";
+    private static final String COLLECTION = "session_openings";
+
+    private final Firestore firestore;
+
+    public FirestoreSessionOpeningStore(Firestore firestore) {
+        this.firestore = firestore;
+    }
+
+    @Override
+    public Mono<Boolean> claim(String bookingId) {
+        DocumentReference bookingReference = firestore.collection(BOOKINGS).document(bookingId);
+        DocumentReference openingReference = firestore.collection(COLLECTION).document(bookingId);
+        return FutureMono.from(() -> firestore.runTransaction(transaction -> {
+            DocumentSnapshot booking = transaction.get(bookingReference).get();
+            DocumentSnapshot opening = transaction.get(openingReference).get();
+            if (!booking.exists() || !"payed".equals(booking.getString("status")) || opening.exists()) {
+                return false;
+            }
+            Map<String, Object> fields = new HashMap<>();
+            fields.put("openedAt", Timestamp.now());
+            // The claim is only needed until the session ended
+            fields.put("expireAt", booking.getTimestamp("sessionEnd"));
+            transaction.create(openingReference, fields);
+            return true;
+        }));
+    }
+
+    @Override
+    public Mono<Void> release(String bookingId) {
+        return FutureMono.from(() -> firestore.collection(COLLECTION).document(bookingId).delete()).then();
+    }
+}
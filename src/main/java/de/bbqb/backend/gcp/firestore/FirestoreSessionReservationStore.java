@@ -0,0 +1,132 @@
+package de.bbqb.backend.gcp.firestore;
+
+import com.google.cloud.firestore.DocumentReference;
+import com.google.cloud.firestore.DocumentSnapshot;
+import com.google.cloud.firestore.FieldPath;
+import com.google.cloud.firestore.FieldValue;
+import com.google.cloud.firestore.Firestore;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reserves sessions in the collection session_reservations with one document per device, keyed by the device document id.
+ * The field sessions maps the booking ids to the start and end of their session and the time they were reserved.
+ * A reservation is checked and written within one transaction, so two instances cannot reserve overlapping sessions.
+ * Reservations are not removed when a booking ends. Instead the bookings of overlapping sessions are read in the same
+ * transaction and sessions of bookings which are neither pending nor payed, or which were not saved within the
+ * pending timeout, do not block the device. Sessions which ended are dropped with the next reservation.
+ *
+ * @author Marius Degen
+ */
+@Component
+public class FirestoreSessionReservationStore implements SessionReservationStore {
+
+    private static final String BOOKINGS = "bookings";
+    private static final String COLLECTION = "session_reservations";
+    private static final String SESSIONS = "sessions";
+
+    private final Firestore firestore;
+    private final long pendingTimeoutMillis;
+
+    public FirestoreSessionReservationStore(Firestore firestore,
+                                            @Value("${bbq.backend.booking.pending-timeout}") long pendingTimeoutSeconds) {
+        this.firestore = firestore;
+        this.pendingTimeoutMillis = TimeUnit.SECONDS.toMillis(pendingTimeoutSeconds);
+    }
+
+    @Override
+    public Mono<Boolean> reserve(String deviceId, String bookingId, long start, long end) {
+        DocumentReference reference = firestore.collection(COLLECTION).document(deviceId);
+        // The transaction is retried by the client if the document changed before the commit
+        return FutureMono.from(() -> firestore.runTransaction(transaction -> {
+            long now = System.currentTimeMillis();
+            Map<String, Map<String, Object>> sessions = sessions(transaction.get(reference).get());
+            List<String> overlapping = overlapping(sessions, bookingId, start, end, now);
+            Map<String, DocumentSnapshot> bookings = new HashMap<>();
+            if (!overlapping.isEmpty()) {
+                DocumentReference[] bookingReferences = overlapping.stream()
+                        .map(id -> firestore.collection(BOOKINGS).document(id))
+                        .toArray(DocumentReference[]::new);
+                transaction.getAll(bookingReferences).get().forEach(booking -> bookings.put(booking.getId(), booking));
+            }
+            Map<String, Map<String, Object>> reserved = reserve(sessions, overlapping, bookings, bookingId, start, end, now, pendingTimeoutMillis);
+            if (reserved == null) {
+                return false;
+            }
+            transaction.set(reference, Map.of(SESSIONS, reserved));
+            return true;
+        }));
+    }
+
+    @Override
+    public Mono<Void> release(String deviceId, String bookingId) {
+        return FutureMono.from(() -> firestore.collection(COLLECTION).document(deviceId)
+                .update(FieldPath.of(SESSIONS, bookingId), FieldValue.delete()))
+                // Nothing to release if the device never had a reservation
+                .onErrorResume(FirestoreErrors::isNotFound, e -> Mono.empty())
+                .then();
+    }
+
+    /**
+     * @return Ids of the bookings whose session did not end and overlaps the given one, except the booking itself
+     */
+    static List<String> overlapping(Map<String, Map<String, Object>> sessions, String bookingId, long start, long end, long now) {
+        List<String> overlapping = new ArrayList<>();
+        sessions.forEach((id, session) -> {
+            long sessionStart = millis(session, "start");
+            long sessionEnd = millis(session, "end");
+            if (!id.equals(bookingId) && sessionEnd > now && sessionStart < end && sessionEnd > start) {
+                overlapping.add(id);
+            }
+        });
+        return overlapping;
+    }
+
+    /**
+     * @param sessions    The reserved sessions of the device by booking id
+     * @param overlapping Ids of the bookings whose session overlaps the new one
+     * @param bookings    The overlapping bookings by id. Missing bookings were not saved (yet).
+     * @return The sessions which did not end including the new one or null if an active booking overlaps it
+     */
+    static Map<String, Map<String, Object>> reserve(Map<String, Map<String, Object>> sessions,
+                                                    List<String> overlapping,
+                                                    Map<String, DocumentSnapshot> bookings,
+                                                    String bookingId, long start, long end, long now, long pendingTimeoutMillis) {
+        for (String id : overlapping) {
+            DocumentSnapshot booking = bookings.get(id);
+            boolean blocking = booking != null && booking.exists()
+                    ? BookingCalendar.ACTIVE_STATUSES.contains(booking.getString("status"))
+                    // Reserved by a booking which is still being created on another instance
+                    : now - millis(sessions.get(id), "reservedAt") < pendingTimeoutMillis;
+            if (blocking) {
+                return null;
+            }
+        }
+        Map<String, Map<String, Object>> reserved = new HashMap<>();
+        sessions.forEach((id, session) -> {
+            if (millis(session, "end") > now && !overlapping.contains(id)) {
+                reserved.put(id, session);
+            }
+        });
+        reserved.put(bookingId, Map.of("start", start, "end", end, "reservedAt", now));
+        return reserved;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Map<String, Object>> sessions(DocumentSnapshot snapshot) {
+        Object sessions = snapshot.exists() ? snapshot.get(SESSIONS) : null;
+        return sessions instanceof Map ? (Map<String, Map<String, Object>>) sessions : Map.of();
+    }
+
+    private static long millis(Map<String, Object> session, String field) {
+        Object value = session.get(field);
+        return value instanceof Number ? ((Number) value).longValue() : 0;
+    }
+}
@@ -0,0 +1,183 @@
+package de.bbqb.backend.gcp.firestore;
+
+import com.google.cloud.Timestamp;
+import com.google.cloud.firestore.DocumentReference;
+import com.google.cloud.firestore.DocumentSnapshot;
+import com.google.cloud.firestore.FieldValue;
+import com.google.cloud.firestore.Firestore;
+import com.google.cloud.firestore.QuerySnapshot;
+import de.bbqb.backend.api.model.service.StripeEventLog;
+import de.bbqb.backend.concurrent.RecentKeys;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Logs Stripe webhook events in the stripe_events collection and the time of the last applied event of each object
+ * in the stripe_objects collection. Both are written in one transaction, which creates the event document,
+ * so an event is applied by exactly one instance.
+ * An event to apply is stored with its payload in the state pending until it was applied.
+ * The field leaseAt holds the time an instance last took over the event, so abandoned events are claimed by one instance.
+ * The ids of the recently received events are also held in memory, so most redeliveries are detected without a read.
+ *
+ * @author Marius Degen
+ */
+@Service
+public class FirestoreStripeEventLog implements StripeEventLog {
+
+    private static final String EVENTS = "stripe_events";
+    private static final String OBJECTS = "stripe_objects";
+    // Stripe retries a delivery for up to three days
+    private static final long RETENTION_MILLIS = TimeUnit.DAYS.toMillis(30);
+    private static final String PENDING = "pending";
+    private static final String APPLIED = "applied";
+    private static final String IGNORED = "ignored";
+
+    private final Firestore firestore;
+    private final RecentKeys recentEvents;
+    private final Counter appliedCounter;
+    private final Counter duplicateCounter;
+    private final Counter cachedDuplicateCounter;
+    private final Counter outOfOrderCounter;
+
+    public FirestoreStripeEventLog(Firestore firestore,
+                                   @Value("${bbq.backend.stripe.recent-events}") int recentEvents,
+                                   MeterRegistry meterRegistry) {
+        this.firestore = firestore;
+        this.recentEvents = new RecentKeys(recentEvents);
+        this.appliedCounter = counter(meterRegistry, "applied");
+        this.duplicateCounter = counter(meterRegistry, "duplicate");
+        this.cachedDuplicateCounter = counter(meterRegistry, "duplicate_cached");
+        this.outOfOrderCounter = counter(meterRegistry, "out_of_order");
+    }
+
+    @Override
+    public Mono<Delivery> record(String eventId, String type, String objectId, long created, String payload) {
+        if (recentEvents.contains(eventId)) {
+            cachedDuplicateCounter.increment();
+            return Mono.just(Delivery.DUPLICATE);
+        }
+        DocumentReference eventReference = firestore.collection(EVENTS).document(eventId);
+        DocumentReference objectReference = objectId != null ? firestore.collection(OBJECTS).document(objectId) : null;
+        // The transaction is retried by the client if one of the documents changed before the commit,
+        // so of two instances receiving the same event the second one finds it
+        return FutureMono.from(() -> firestore.runTransaction(transaction -> {
+            DocumentSnapshot event = transaction.get(eventReference).get();
+            DocumentSnapshot object = objectReference != null ? transaction.get(objectReference).get() : null;
+            Long lastEventCreated = object != null && object.exists() ? object.getLong("lastEventCreated") : null;
+            Delivery delivery = delivery(event.exists(), lastEventCreated, created);
+            if (delivery == Delivery.DUPLICATE) {
+                return delivery;
+            }
+            Timestamp now = Timestamp.now();
+            Timestamp expireAt = Timestamp.ofTimeMicroseconds((System.currentTimeMillis() + RETENTION_MILLIS) * 1000);
+            Map<String, Object> eventDoc = new HashMap<>();
+            eventDoc.put("type", type);
+            eventDoc.put("objectId", objectId);
+            eventDoc.put("created", created);
+            eventDoc.put("state", delivery == Delivery.APPLY ? PENDING : IGNORED);
+            eventDoc.put("receivedAt", now);
+            eventDoc.put("expireAt", expireAt);
+            if (delivery == Delivery.APPLY) {
+                eventDoc.put("payload", payload);
+                eventDoc.put("leaseAt", now);
+            }
+            transaction.create(eventReference, eventDoc);
+            if (delivery == Delivery.APPLY && objectReference != null) {
+                Map<String, Object> objectDoc = new HashMap<>();
+                objectDoc.put("lastEventId", eventId);
+                objectDoc.put("lastEventCreated", created);
+                objectDoc.put("expireAt", expireAt);
+                transaction.set(objectReference, objectDoc);
+            }
+            return delivery;
+        }))
+                .doOnNext(delivery -> {
+                    recentEvents.add(eventId);
+                    switch (delivery) {
+                        case APPLY:
+                            appliedCounter.increment();
+                            break;
+                        case DUPLICATE:
+                            duplicateCounter.increment();
+                            break;
+                        default:
+                            outOfOrderCounter.increment();
+                    }
+                });
+    }
+
+    @Override
+    public Mono<Void> applied(String eventId) {
+        Map<String, Object> fields = new HashMap<>();
+        fields.put("state", APPLIED);
+        // Only needed to apply the event later
+        fields.put("payload", FieldValue.delete());
+        fields.put("leaseAt", FieldValue.delete());
+        return FutureMono.from(() -> firestore.collection(EVENTS).document(eventId).update(fields)).then();
+    }
+
+    @Override
+    public Mono<Void> forget(String eventId) {
+        return Mono.defer(() -> {
+            recentEvents.remove(eventId);
+            return FutureMono.from(() -> firestore.collection(EVENTS).document(eventId).delete()).then();
+        });
+    }
+
+    @Override
+    public Flux<String> claimAbandoned(long leaseMillis) {
+        return FutureMono.from(() -> firestore.collection(EVENTS).whereEqualTo("state", PENDING).get())
+                .flatMapIterable(QuerySnapshot::getDocuments)
+                .filter(event -> isLeaseExpired(event.getTimestamp("leaseAt"), leaseMillis))
+                .concatMap(event -> claim(event.getReference(), leaseMillis));
+    }
+
+    private Mono<String> claim(DocumentReference eventReference, long leaseMillis) {
+        // Of several instances claiming the same event only the first one finds the lease expired
+        return FutureMono.from(() -> firestore.runTransaction(transaction -> {
+            DocumentSnapshot event = transaction.get(eventReference).get();
+            if (!event.exists() || !PENDING.equals(event.getString("state"))
+                    || !isLeaseExpired(event.getTimestamp("leaseAt"), leaseMillis)) {
+                return null;
+            }
+            transaction.update(eventReference, "leaseAt", Timestamp.now());
+            return event.getString("payload");
+        }));
+    }
+
+    static boolean isLeaseExpired(Timestamp leaseAt, long leaseMillis) {
+        return leaseAt == null || leaseAt.toDate().getTime() + leaseMillis <= System.currentTimeMillis();
+    }
+
+    /**
+     * @param received         true if the event was received before
+     * @param lastEventCreated Creation time of the last applied event of the object in seconds or null if there is none
+     * @param created          Creation time of the event in seconds
+     * @return Whether the event has to be applied
+     */
+    static Delivery delivery(boolean received, Long lastEventCreated, long created) {
+        if (received) {
+            return Delivery.DUPLICATE;
+        }
+        // Stripe only has a resolution of seconds, events created within the same second are applied in the order they arrive
+        if (lastEventCreated != null && lastEventCreated > created) {
+            return Delivery.OUT_OF_ORDER;
+        }
+        return Delivery.APPLY;
+    }
+
+    private static Counter counter(MeterRegistry meterRegistry, String result) {
+        return Counter.builder("bbqb.stripe.events")
+                .description("Number of received Stripe webhook events by result")
+                .tag("result", result)
+                .register(meterRegistry);
+    }
+}
@@ -0,0 +1,115 @@
+package de.bbqb.backend.gcp.firestore;
+
+import com.google.api.gax.rpc.StatusCode;
+import com.google.cloud.Timestamp;
+import com.google.cloud.firestore.Firestore;
+import com.google.cloud.firestore.WriteBatch;
+import de.bbqb.backend.api.model.entity.DeviceTelemetry;
+import de.bbqb.backend.gcp.firestore.document.DeviceDoc;
+import de.bbqb.backend.gcp.pubsub.TelemetryWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.util.function.Tuple2;
+import reactor.util.function.Tuples;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes the latest state of devices into their device documents with one batched write per call.
+ * Only the state fields of a document are updated. States of devices which are unknown are skipped.
+ * A batch fails as a whole if one of its updates fails, e.g. because a device was deleted in the meantime.
+ * Such a batch is written again one update at a time and the states which cannot be written are dropped,
+ * so they are acknowledged instead of being redelivered forever.
+ *
+ * @author Marius Degen
+ */
+@Component
+public class FirestoreTelemetryWriter implements TelemetryWriter {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(FirestoreTelemetryWriter.class);
+    private static final String COLLECTION = "devices";
+
+    private final Firestore firestore;
+    private final DeviceRepo deviceRepo;
+    private final DeviceCache deviceCache;
+
+    public FirestoreTelemetryWriter(Firestore firestore, DeviceRepo deviceRepo, DeviceCache deviceCache) {
+        this.firestore = firestore;
+        this.deviceRepo = deviceRepo;
+        this.deviceCache = deviceCache;
+    }
+
+    @Override
+    public Mono<Void> write(List<DeviceTelemetry> telemetries) {
+        return Flux.fromIterable(telemetries)
+                .concatMap(telemetry -> resolveId(telemetry.getDeviceId())
+                        .map(id -> Tuples.of(id, telemetry))
+                        .switchIfEmpty(Mono.fromRunnable(() ->
+                                LOGGER.warn("Dropping state of unknown device " + telemetry.getDeviceId()))))
+                .collectList()
+                .flatMap(updates -> {
+                    if (updates.isEmpty()) {
+                        return Mono.empty();
+                    }
+                    WriteBatch batch = firestore.batch();
+                    for (Tuple2<String, DeviceTelemetry> update : updates) {
+                        batch.update(firestore.collection(COLLECTION).document(update.getT1()), toFields(update.getT2()));
+                    }
+                    return FutureMono.from(batch::commit)
+                            .then()
+                            .onErrorResume(FirestoreTelemetryWriter::isPermanent, e -> {
+                                LOGGER.warn("Unable to write a batch of " + updates.size() + " device states. Writing them one by one.", e);
+                                return writeEach(updates);
+                            });
+                })
+                .then();
+    }
+
+    private Mono<Void> writeEach(List<Tuple2<String, DeviceTelemetry>> updates) {
+        return Flux.fromIterable(updates)
+                .concatMap(update -> FutureMono.from(() -> firestore.collection(COLLECTION).document(update.getT1()).update(toFields(update.getT2())))
+                        .then()
+                        .onErrorResume(FirestoreTelemetryWriter::isPermanent, e -> {
+                            LOGGER.warn("Dropping state of device " + update.getT2().getDeviceId() + " which cannot be written", e);
+                            return Mono.empty();
+                        }))
+                .then();
+    }
+
+    // Writing these again would fail again
+    private static boolean isPermanent(Throwable error) {
+        return FirestoreErrors.isNotFound(error)
+                || FirestoreErrors.hasCode(error, StatusCode.Code.INVALID_ARGUMENT)
+                || FirestoreErrors.hasCode(error, StatusCode.Code.FAILED_PRECONDITION);
+    }
+
+    private Mono<String> resolveId(String deviceId) {
+        if (deviceCache.isReady()) {
+            return Mono.justOrEmpty(deviceCache.findByDeviceId(deviceId).map(DeviceDoc::getId));
+        }
+        return deviceRepo.findFirstByDeviceId(deviceId).map(DeviceDoc::getId);
+    }
+
+    private static Map<String, Object> toFields(DeviceTelemetry telemetry) {
+        Map<String, Object> fields = new HashMap<>();
+        fields.put("publishTime", Timestamp.ofTimeMicroseconds(TimeUnit.MILLISECONDS.toMicros(telemetry.getPublishTime())));
+        putIfNotNull(fields, "locked", telemetry.getLocked());
+        putIfNotNull(fields, "closed", telemetry.getClosed());
+        putIfNotNull(fields, "wifiSignal", telemetry.getWifiSignal());
+        putIfNotNull(fields, "isTemperaturePlate1", telemetry.getTemperaturePlate1());
+        putIfNotNull(fields, "isTemperaturePlate2", telemetry.getTemperaturePlate2());
+        return fields;
+    }
+
+    private static void putIfNotNull(Map<String, Object> fields, String field, Object value) {
+        if (value != null) {
+            fields.put(field, value);
+        }
+    }
+}
@@ -1,12 +1,22 @@
 package de.bbqb.backend.gcp.firestore;
 
+import com.google.cloud.firestore.DocumentReference;
+import com.google.cloud.firestore.DocumentSnapshot;
 import com.google.cloud.firestore.Firestore;
 import de.bbqb.backend.api.model.entity.User;
 import de.bbqb.backend.api.model.service.UserService;
+import de.bbqb.backend.concurrent.BatchLoader;
 import de.bbqb.backend.gcp.firestore.document.UserDoc;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
 import org.springframework.stereotype.Service;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  * Service to manage user resources
@@ -16,12 +26,34 @@ import reactor.core.publisher.Mono;
 @Service
 public class FirestoreUserService implements UserService {
 
+    private static final String COLLECTION = "users";
+
+    private static final int MAX_LOAD_BATCH_SIZE = 100;
+
+    // The fields which are written from a user, named like the fields of UserDoc
+    private static final FieldMapping<User, UserDoc> USER_FIELDS = new FieldMapping<User, UserDoc>()
+            .field("email", User::getEmail, UserDoc::setEmail)
+            .field("firstName", User::getFirstName, UserDoc::setFirstName)
+            .field("lastName", User::getLastName, UserDoc::setLastName)
+            .field("stripeCustomerId", User::getStripeCustomerId, UserDoc::setStripeCustomerId);
+
     private UserRepo repo;
     private Firestore firestore;
+    private DistributionSummary fullWriteSummary;
+    private DistributionSummary partialWriteSummary;
+    private DistributionSummary loadBatchSummary;
+    private BatchLoader<String, User> userLoader;
 
-    public FirestoreUserService(UserRepo repo, Firestore firestore) {
+    public FirestoreUserService(UserRepo repo, Firestore firestore, MeterRegistry meterRegistry) {
        this.repo = repo;
        this.firestore = firestore;
+       this.fullWriteSummary = DocumentSize.summary(meterRegistry, COLLECTION, "full");
+       this.partialWriteSummary = DocumentSize.summary(meterRegistry, COLLECTION, "partial");
+       this.loadBatchSummary = DistributionSummary.builder("bbqb.firestore.read.batch.size")
+               .description("Number of documents read together with one request")
+               .tag("collection", COLLECTION)
+               .register(meterRegistry);
+       this.userLoader = new BatchLoader<>(this::readUserBatch, MAX_LOAD_BATCH_SIZE, Schedulers.parallel());
     }
 
     /**
@@ -36,31 +68,42 @@ public class FirestoreUserService implements UserService {
         if (user == null) {
             throw new IllegalArgumentException("user must not be null");
         }
-        String id = firestore.collection("users").document().getId();
+        String id = firestore.collection(COLLECTION).document().getId();
         UserDoc userDoc = new UserDoc(id, user.getStripeCustomerId(), user.getFirstName(), user.getLastName(),  user.getEmail());
-        return this.repo.save(mapToUserDoc(user, userDoc)).map(this::mapFromUserDoc);
+        return this.repo.save(mapToUserDoc(user, userDoc))
+                .doOnNext(savedUserDoc -> fullWriteSummary.record(DocumentSize.ofDocument(COLLECTION + "/" + savedUserDoc.getId(), savedUserDoc)))
+                .map(this::mapFromUserDoc);
     }
 
     /**
      * Update a user with the provided user data.
      * The user to update is identified by user.getId()
-     * If the provided user does not exists no write operation is performed.
+     * Only the fields which are set in user are written, without reading the document.
+     * If the provided user does not exists a new user is created.
      *
      * @param user The new values for the user identified by its id
      * @throws IllegalArgumentException in case the given id is null
-     * @return Mono emitting the updated user object or Mono.empty() if no user was found
+     * @return Mono emitting the user with the written fields only, fields which are not set in user are not read back
      */
     @Override
     public Mono<User> updateUser(User user) {
-        return this.repo.findById(user.getId())
-                .map(userDoc -> this.mapToUserDoc(user, userDoc))
-                .flatMap(repo::save) // if existing(not Empty) update userDocument
-                .map(this::mapFromUserDoc)
-                .switchIfEmpty(this.createUser(user)); // otherwise create a new DeviceDoc
+        Map<String, Object> fields = USER_FIELDS.toFields(user);
+        if (fields.isEmpty()) {
+            return this.readUser(user.getId())
+                    .switchIfEmpty(this.createUser(user));
+        }
+        DocumentReference reference = firestore.collection(COLLECTION).document(user.getId());
+        // update fails with NOT_FOUND if the document does not exist
+        return FutureMono.from(() -> reference.update(fields))
+                .doOnNext(writeResult -> partialWriteSummary.record(DocumentSize.ofFields(reference.getPath(), fields)))
+                .map(writeResult -> mapFromUserDoc(mapToUserDoc(user, new UserDoc())))
+                .onErrorResume(FirestoreErrors::isNotFound, e -> this.createUser(user)); // otherwise create a new UserDoc
     }
 
     /**
-     * Read a particular user by its id
+     * Read a particular user by its id.
+     * Concurrent reads of the same user share one read and reads of different users
+     * requested at the same time are combined into one batched read.
      *
      * @param id must not be null
      * @throws IllegalArgumentException in case the id is null
@@ -68,7 +111,29 @@ public class FirestoreUserService implements UserService {
      */
     @Override
     public Mono<User> readUser(String id) {
-        return this.repo.findById(id).map(this::mapFromUserDoc);
+        if (id == null) {
+            throw new IllegalArgumentException("id must not be null");
+        }
+        return userLoader.load(id);
+    }
+
+    private Mono<Map<String, User>> readUserBatch(List<String> ids) {
+        DocumentReference[] references = ids.stream()
+                .map(id -> firestore.collection(COLLECTION).document(id))
+                .toArray(DocumentReference[]::new);
+        loadBatchSummary.record(references.length);
+        return FutureMono.from(() -> firestore.getAll(references))
+                .map(snapshots -> {
+                    Map<String, User> users = new HashMap<>();
+                    for (DocumentSnapshot snapshot : snapshots) {
+                        if (snapshot.exists()) {
+                            UserDoc userDoc = snapshot.toObject(UserDoc.class);
+                            userDoc.setId(snapshot.getId());
+                            users.put(snapshot.getId(), mapFromUserDoc(userDoc));
+                        }
+                    }
+                    return users;
+                });
     }
 
     /**
@@ -85,19 +150,7 @@ public class FirestoreUserService implements UserService {
         if (user.getId() != null) {
             userDoc.setId(user.getId());
         }
-        if (user.getEmail() != null) {
-            userDoc.setEmail(user.getEmail());
-        }
-        if (user.getFirstName() != null) {
-            userDoc.setFirstName(user.getFirstName());
-        }
-        if (user.getLastName() != null) {
-            userDoc.setLastName(user.getLastName());
-        }
-        if (user.getStripeCustomerId() != null) {
-            userDoc.setStripeCustomerId(user.getStripeCustomerId());
-        }
-        return userDoc;
+        return USER_FIELDS.apply(user, userDoc);
     }
 
     private User mapFromUserDoc(UserDoc userDoc) {
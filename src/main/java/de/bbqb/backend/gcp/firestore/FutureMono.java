@@ -0,0 +1,42 @@
+package de.bbqb.backend.gcp.firestore;
+
+import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutureCallback;
+import com.google.api.core.ApiFutures;
+import com.google.common.util.concurrent.MoreExecutors;
+import reactor.core.publisher.Mono;
+
+import java.util.function.Supplier;
+
+/**
+ * Adapter from the futures returned by the Firestore client to Monos
+ *
+ * @author Marius Degen
+ */
+public final class FutureMono {
+
+    private FutureMono() {
+    }
+
+    /**
+     * @param futureSupplier Starts the Firestore operation. Called once per subscription.
+     * @return A Mono emitting the result of the future or its error
+     */
+    public static <T> Mono<T> from(Supplier<ApiFuture<T>> futureSupplier) {
+        return Mono.create(sink -> {
+            ApiFuture<T> future = futureSupplier.get();
+            sink.onCancel(() -> future.cancel(false));
+            ApiFutures.addCallback(future, new ApiFutureCallback<T>() {
+                @Override
+                public void onFailure(Throwable t) {
+                    sink.error(t);
+                }
+
+                @Override
+                public void onSuccess(T result) {
+                    sink.success(result);
+                }
+            }, MoreExecutors.directExecutor());
+        });
+    }
+}
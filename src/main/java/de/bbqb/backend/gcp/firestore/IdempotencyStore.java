@@ -0,0 +1,40 @@
+package de.bbqb.backend.gcp.firestore;
+
+import de.bbqb.backend.gcp.firestore.document.IdempotencyKeyDoc;
+import reactor.core.publisher.Mono;
+
+/**
+ * Persistence of idempotency keys shared by all instances
+ *
+ * @author Marius Degen
+ */
+public interface IdempotencyStore {
+
+    /**
+     * Atomically create the document of a key unless it exists
+     *
+     * @param idempotencyKeyDoc The key in state started
+     * @return Mono emitting true if the document was created, false if it already exists
+     */
+    Mono<Boolean> begin(IdempotencyKeyDoc idempotencyKeyDoc);
+
+    /**
+     * @param id The id of the key
+     * @return Mono emitting the document of the key or Mono.empty if it does not exist
+     */
+    Mono<IdempotencyKeyDoc> read(String id);
+
+    /**
+     * Replace the document of a key, e.g. with the completed response
+     *
+     * @param idempotencyKeyDoc The document to store
+     * @return Mono completing when the document was written
+     */
+    Mono<Void> complete(IdempotencyKeyDoc idempotencyKeyDoc);
+
+    /**
+     * @param id The id of the key
+     * @return Mono completing when the document was deleted
+     */
+    Mono<Void> delete(String id);
+}
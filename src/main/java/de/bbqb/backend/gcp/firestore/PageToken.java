@@ -0,0 +1,40 @@
+package de.bbqb.backend.gcp.firestore;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * Encodes the position of the last document of a page into an opaque token
+ * which clients pass back to request the following page.
+ *
+ * @author Marius Degen
+ */
+public final class PageToken {
+
+    private static final String SEPARATOR = "\n";
+
+    private PageToken() {
+    }
+
+    /**
+     * @param values Values of the ordered fields of the last document of a page
+     * @return An url safe token
+     */
+    public static String encode(String... values) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(String.join(SEPARATOR, values).getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @param token         A token created with {@link #encode(String...)}
+     * @param expectedParts Number of values the token must contain
+     * @return The values encoded in the token
+     * @throws IllegalArgumentException in case the token is malformed
+     */
+    public static String[] decode(String token, int expectedParts) {
+        String[] values = new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8).split(SEPARATOR, -1);
+        if (values.length != expectedParts) {
+            throw new IllegalArgumentException("Invalid page token");
+        }
+        return values;
+    }
+}
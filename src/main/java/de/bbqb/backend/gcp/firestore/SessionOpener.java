@@ -0,0 +1,235 @@
+package de.bbqb.backend.gcp.firestore;
+
+import com.google.cloud.Timestamp;
+import de.bbqb.backend.api.model.service.DeviceService;
+import de.bbqb.backend.gcp.firestore.document.BookingDoc;
+import de.bbqb.backend.gcp.iot.UnconfirmedCommandException;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Opens the device of a payed booking in advance when its session starts.
+ * The session starts are scheduled from the payed bookings on startup and from the bookings received by the
+ * {@link BookingCalendar}, so they survive a restart and every instance knows the bookings payed on other instances.
+ * The {@link SessionOpeningStore} lets only one instance open the device. A device which could not be opened is
+ * tried again shortly after until the session ended. A command which was sent but not confirmed is not sent again,
+ * as the device may have received it.
+ * Bookings for right away are opened by the Stripe webhook when their payment succeeded.
+ *
+ * @author Marius Degen
+ */
+@Component
+public class SessionOpener implements BookingCalendar.BookingListener {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SessionOpener.class);
+    private static final long RETRY_MILLIS = 30 * 1000;
+
+    private final BookingRepo repo;
+    private final SessionOpeningStore store;
+    private final DeviceService deviceService;
+    private final BookingCalendar bookingCalendar;
+    private final ScheduledExecutorService scheduler;
+    // Guarded by this
+    private final Map<String, Session> sessions = new HashMap<>();
+    private final Counter openedCounter;
+    private final Counter skippedCounter;
+    private final Counter unconfirmedCounter;
+    private final Counter failedCounter;
+
+    public SessionOpener(BookingRepo repo,
+                         SessionOpeningStore store,
+                         DeviceService deviceService,
+                         BookingCalendar bookingCalendar,
+                         MeterRegistry meterRegistry) {
+        this.repo = repo;
+        this.store = store;
+        this.deviceService = deviceService;
+        this.bookingCalendar = bookingCalendar;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "session-opener");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.openedCounter = counter(meterRegistry, "opened");
+        this.skippedCounter = counter(meterRegistry, "skipped");
+        this.unconfirmedCounter = counter(meterRegistry, "unconfirmed");
+        this.failedCounter = counter(meterRegistry, "failed");
+        Gauge.builder("bbqb.booking.sessions.scheduled", this, SessionOpener::scheduled)
+                .description("Number of payed bookings in advance waiting for their session start")
+                .register(meterRegistry);
+    }
+
+    @PostConstruct
+    public void start() {
+        bookingCalendar.addListener(this);
+        // Sessions of bookings payed before this instance started. Sessions which already started are opened right away.
+        repo.findAllByStatus("payed")
+                .filter(bookingDoc -> isOpenedBySessionStart(bookingDoc, System.currentTimeMillis()))
+                .doOnNext(bookingDoc -> schedule(bookingDoc.getId(), bookingDoc))
+                .count()
+                .subscribe(count -> LOGGER.info("Scheduled the session start of " + count + " payed bookings"),
+                        e -> LOGGER.error("Unable to read payed bookings. Their devices are only opened for bookings received by the booking calendar.", e));
+    }
+
+    @PreDestroy
+    public void stop() {
+        scheduler.shutdownNow();
+    }
+
+    @Override
+    public void onBookingChanged(String bookingId, BookingDoc bookingDoc) {
+        schedule(bookingId, bookingDoc);
+    }
+
+    @Override
+    public void onBookingRemoved(String bookingId) {
+        cancel(bookingId);
+    }
+
+    /**
+     * Open the device of a booking when its session starts if it is a payed booking in advance, otherwise stop waiting for it
+     *
+     * @param bookingId  Id of the booking
+     * @param bookingDoc The current booking
+     */
+    public synchronized void schedule(String bookingId, BookingDoc bookingDoc) {
+        long now = System.currentTimeMillis();
+        if (!isOpenedBySessionStart(bookingDoc, now)) {
+            cancel(bookingId);
+            return;
+        }
+        long sessionStart = toMillis(bookingDoc.getSessionStart());
+        Session session = sessions.get(bookingId);
+        if (session != null && session.sessionStart == sessionStart) {
+            // Received again, e.g. from the listener after this instance scheduled it
+            return;
+        }
+        scheduleAt(bookingId, bookingDoc, sessionStart, now);
+    }
+
+    /**
+     * Stop waiting for the session start of a booking
+     *
+     * @param bookingId Id of the booking
+     */
+    public synchronized void cancel(String bookingId) {
+        Session session = sessions.remove(bookingId);
+        if (session != null) {
+            session.future.cancel(false);
+        }
+    }
+
+    /**
+     * @return Number of bookings waiting for their session start
+     */
+    public synchronized int scheduled() {
+        return sessions.size();
+    }
+
+    /**
+     * Open the device of a booking unless another instance opened it or the booking is not payed anymore
+     *
+     * @param bookingId  Id of the booking
+     * @param bookingDoc The booking
+     * @return Mono completing when the booking was handled. Errors are logged and the opening is retried later.
+     */
+    Mono<Void> open(String bookingId, BookingDoc bookingDoc) {
+        return store.claim(bookingId)
+                .flatMap(claimed -> {
+                    if (!claimed) {
+                        skippedCounter.increment();
+                        return Mono.empty();
+                    }
+                    return deviceService.readDevice(bookingDoc.getDeviceId())
+                            .switchIfEmpty(Mono.error(new RuntimeException("No device with id " + bookingDoc.getDeviceId() + " was found")))
+                            .flatMap(device -> deviceService.openDevice(device.getDeviceId(), bookingDoc.getTimeslot()))
+                            .doOnSuccess(done -> {
+                                LOGGER.info("Opened the device of booking " + bookingId + " at its session start");
+                                openedCounter.increment();
+                            })
+                            .onErrorResume(UnconfirmedCommandException.class, e -> {
+                                // The claim is kept, so the device is not unlocked again every retry interval
+                                LOGGER.warn("Sent the open command for booking " + bookingId + " but the device did not confirm it", e);
+                                unconfirmedCounter.increment();
+                                return Mono.empty();
+                            })
+                            .onErrorResume(e -> store.release(bookingId).then(Mono.error(e)));
+                })
+                .doOnError(e -> {
+                    failedCounter.increment();
+                    long now = System.currentTimeMillis();
+                    if (toMillis(bookingDoc.getSessionEnd()) > now + RETRY_MILLIS) {
+                        LOGGER.error("Unable to open the device of booking " + bookingId + ". Retrying in " + RETRY_MILLIS / 1000 + "s", e);
+                        synchronized (this) {
+                            if (!sessions.containsKey(bookingId)) {
+                                scheduleAt(bookingId, bookingDoc, now + RETRY_MILLIS, now);
+                            }
+                        }
+                    } else {
+                        LOGGER.error("Unable to open the device of booking " + bookingId + " before its session ends", e);
+                    }
+                })
+                .onErrorResume(e -> Mono.empty())
+                .then();
+    }
+
+    // Called while holding the lock
+    private void scheduleAt(String bookingId, BookingDoc bookingDoc, long at, long now) {
+        Session session = new Session(toMillis(bookingDoc.getSessionStart()));
+        session.future = scheduler.schedule(() -> {
+            synchronized (this) {
+                sessions.remove(bookingId, session);
+            }
+            open(bookingId, bookingDoc).subscribe();
+        }, Math.max(0, at - now), TimeUnit.MILLISECONDS);
+        Session previous = sessions.put(bookingId, session);
+        if (previous != null) {
+            previous.future.cancel(false);
+        }
+    }
+
+    // Bookings in advance are requested before their session starts, bookings for right away at their session start
+    private static boolean isOpenedBySessionStart(BookingDoc bookingDoc, long now) {
+        return "payed".equals(bookingDoc.getStatus())
+                && bookingDoc.getDeviceId() != null
+                && bookingDoc.getRequestTime() != null
+                && bookingDoc.getSessionStart() != null
+                && bookingDoc.getSessionEnd() != null
+                && bookingDoc.getSessionStart().compareTo(bookingDoc.getRequestTime()) > 0
+                && toMillis(bookingDoc.getSessionEnd()) > now;
+    }
+
+    private static long toMillis(Timestamp timestamp) {
+        return timestamp.getSeconds() * 1000 + timestamp.getNanos() / 1_000_000;
+    }
+
+    private static Counter counter(MeterRegistry meterRegistry, String result) {
+        return Counter.builder("bbqb.booking.sessions.openings")
+                .description("Number of session starts of payed bookings in advance by result")
+                .tag("result", result)
+                .register(meterRegistry);
+    }
+
+    private static final class Session {
+        private final long sessionStart;
+        private ScheduledFuture<?> future;
+
+        private Session(long sessionStart) {
+            this.sessionStart = sessionStart;
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package de.bbqb.backend.gcp.firestore;
+
+import reactor.core.publisher.Mono;
+
+/**
+ * Records which bookings in advance had their device opened, shared by all instances
+ *
+ * @author Marius Degen
+ */
+public interface SessionOpeningStore {
+
+    /**
+     * Atomically claim the opening of the device of a booking if the booking is still payed and no instance claimed it yet
+     *
+     * @param bookingId The id of the booking
+     * @return Mono emitting true if this instance opens the device, false if the booking is not payed
+     * or its device was already opened
+     */
+    Mono<Boolean> claim(String bookingId);
+
+    /**
+     * Drop the claim of a booking whose device could not be opened, so that it can be opened again
+     *
+     * @param bookingId The id of the booking
+     * @return Mono completing when the claim was dropped
+     */
+    Mono<Void> release(String bookingId);
+}
@@ -0,0 +1,31 @@
+package de.bbqb.backend.gcp.firestore;
+
+import reactor.core.publisher.Mono;
+
+/**
+ * Reserves the sessions of the bookings of a device, shared by all instances
+ *
+ * @author Marius Degen
+ */
+public interface SessionReservationStore {
+
+    /**
+     * Atomically reserve the session of a booking if no other active booking of the device overlaps it
+     *
+     * @param deviceId  Document id of the device
+     * @param bookingId Id of the booking
+     * @param start     Start of the session in milliseconds since epoch
+     * @param end       End of the session in milliseconds since epoch, exclusive
+     * @return Mono emitting true if the session was reserved, false if it overlaps another one
+     */
+    Mono<Boolean> reserve(String deviceId, String bookingId, long start, long end);
+
+    /**
+     * Free the session of a booking which was not created
+     *
+     * @param deviceId  Document id of the device
+     * @param bookingId Id of the booking
+     * @return Mono completing when the session was freed
+     */
+    Mono<Void> release(String deviceId, String bookingId);
+}
@@ -30,6 +30,8 @@ public class BookingDoc {
     private Timestamp requestTime;
     private Integer timeslot;
     private Timestamp sessionStart;
+    // Start of the session plus the timeslot, stored to query the sessions which did not end yet
+    private Timestamp sessionEnd;
 
 
 }
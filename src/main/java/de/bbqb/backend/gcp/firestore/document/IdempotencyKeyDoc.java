@@ -0,0 +1,36 @@
+package de.bbqb.backend.gcp.firestore.document;
+
+import com.google.cloud.Timestamp;
+import com.google.cloud.firestore.annotation.DocumentId;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Idempotency key bean to represent an idempotency key document from a gcp firestore database.
+ * Holds the response of the first request sent with the key once it completed.
+ *
+ * @author Marius Degen
+ */
+@Getter
+@Setter
+@AllArgsConstructor
+@NoArgsConstructor
+public class IdempotencyKeyDoc {
+    @DocumentId
+    private String id;
+    private String fingerprint;
+    // started or completed
+    private String state;
+    private Integer status;
+    private Map<String, List<String>> headers;
+    // Response body as JSON
+    private String body;
+    private Timestamp createdAt;
+    // Firestore TTL policy field, documents are deleted some time after it passed
+    private Timestamp expireAt;
+}
@@ -0,0 +1,220 @@
+package de.bbqb.backend.gcp.iot;
+
+import de.bbqb.backend.api.model.entity.DeviceTelemetry;
+import de.bbqb.backend.api.model.service.DeviceTelemetryListener;
+import de.bbqb.backend.concurrent.HashedTimingWheel;
+import de.bbqb.backend.gcp.firestore.DeviceCache;
+import de.bbqb.backend.gcp.firestore.DeviceCacheListener;
+import de.bbqb.backend.gcp.firestore.document.DeviceDoc;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import reactor.core.Disposable;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoSink;
+import reactor.core.scheduler.Schedulers;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Tracks commands sent to BBQB-IoT-Devices until the device confirms them with a state message.
+ * Every command carries a correlation id which the device echoes in its next state message.
+ * Devices with older firmware do not echo the id, for them an unlocked state message which was published
+ * after the command was sent confirms the oldest pending command of the device.
+ * States are received from Pub/Sub if it is enabled and from the device documents held by the {@link DeviceCache}.
+ * Commands which are not confirmed within {@code bbq.backend.gcp.iot.ack-timeout} milliseconds fail
+ * with a {@link TimeoutException}. All timeouts are driven by a single {@link HashedTimingWheel}.
+ * Without any source of device states commands are done once they were sent.
+ *
+ * @author Marius Degen
+ */
+@Component
+public class CommandAckTracker implements DeviceTelemetryListener, DeviceCacheListener {
+
+    private static final long TICK_MILLIS = 100;
+
+    private final long ackTimeoutMillis;
+    private final DeviceCache deviceCache;
+    // False if neither Pub/Sub nor the device cache deliver device states
+    private final boolean confirmed;
+    private final HashedTimingWheel wheel;
+    private final Map<String, PendingCommand> pending = new ConcurrentHashMap<>();
+    private final Timer ackTimer;
+    private final Counter timeoutCounter;
+
+    public CommandAckTracker(@Value("${bbq.backend.gcp.iot.ack-timeout}") long ackTimeoutMillis,
+                             @Value("${bbq.backend.gcp.pubsub.telemetry.enabled}") boolean telemetryEnabled,
+                             DeviceCache deviceCache,
+                             MeterRegistry meterRegistry) {
+        this.ackTimeoutMillis = ackTimeoutMillis;
+        this.deviceCache = deviceCache;
+        this.confirmed = telemetryEnabled || deviceCache.isEnabled();
+        this.wheel = new HashedTimingWheel("iot-command-ack", TICK_MILLIS, (int) (ackTimeoutMillis / TICK_MILLIS) + 1);
+        this.ackTimer = Timer.builder("bbqb.iot.command.ack")
+                .description("Time from dispatching a device command until the device confirmed it")
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+        this.timeoutCounter = Counter.builder("bbqb.iot.command.ack.timeout")
+                .description("Number of device commands which were not confirmed in time")
+                .register(meterRegistry);
+        Gauge.builder("bbqb.iot.command.pending", pending, Map::size)
+                .description("Number of device commands waiting for confirmation")
+                .register(meterRegistry);
+    }
+
+    @PostConstruct
+    public void init() {
+        wheel.start();
+        if (deviceCache.isEnabled()) {
+            deviceCache.addListener(this);
+        }
+    }
+
+    @PreDestroy
+    public void stop() {
+        wheel.stop();
+    }
+
+    /**
+     * @return A new random correlation id to put into a command payload
+     */
+    public String newCorrelationId() {
+        return Long.toHexString(ThreadLocalRandom.current().nextLong());
+    }
+
+    /**
+     * Send a command and wait for its confirmation.
+     * The command is registered before it is sent, so a confirmation arriving before the send
+     * response is not missed.
+     *
+     * @param deviceId      IoT id of the device the command is sent to
+     * @param correlationId Correlation id contained in the command payload
+     * @param command       Sends the command when subscribed
+     * @return Mono completing once the device confirmed the command, emitting the error of the command
+     * if sending failed or a {@link TimeoutException} if the device did not confirm it in time.
+     * The exception is an {@link UnconfirmedCommandException} if the command was sent.
+     * Without a source of device states the Mono completes once the command was sent.
+     */
+    public Mono<Void> send(String deviceId, String correlationId, Mono<?> command) {
+        if (!confirmed) {
+            return command.then();
+        }
+        return Mono.create(sink -> {
+            PendingCommand pendingCommand = new PendingCommand(deviceId, sink);
+            pendingCommand.timeout = wheel.schedule(() -> timeout(correlationId, pendingCommand),
+                    System.currentTimeMillis() + ackTimeoutMillis);
+            if (pending.putIfAbsent(correlationId, pendingCommand) != null) {
+                pendingCommand.timeout.cancel();
+                sink.error(new IllegalStateException("Command " + correlationId + " is already pending"));
+                return;
+            }
+            pendingCommand.sentAt = System.currentTimeMillis();
+            Disposable sending = command.subscribe(
+                    response -> pendingCommand.sent = true,
+                    error -> {
+                        if (pending.remove(correlationId, pendingCommand)) {
+                            pendingCommand.timeout.cancel();
+                            sink.error(error);
+                        }
+                    },
+                    () -> pendingCommand.sent = true);
+            sink.onCancel(() -> {
+                sending.dispose();
+                if (pending.remove(correlationId, pendingCommand)) {
+                    pendingCommand.timeout.cancel();
+                }
+            });
+        });
+    }
+
+    /**
+     * @return Number of commands waiting for confirmation
+     */
+    public int pending() {
+        return pending.size();
+    }
+
+    @Override
+    public void onTelemetry(DeviceTelemetry telemetry) {
+        String correlationId = telemetry.getCorrelationId();
+        if (correlationId != null) {
+            PendingCommand command = pending.get(correlationId);
+            if (command != null && command.deviceId.equals(telemetry.getDeviceId())) {
+                acknowledge(correlationId, command);
+            }
+        } else if (Boolean.FALSE.equals(telemetry.getLocked()) && telemetry.getPublishTime() != null) {
+            acknowledgeOldest(telemetry.getDeviceId(), telemetry.getPublishTime());
+        }
+    }
+
+    @Override
+    public void onDeviceChanged(DeviceDoc deviceDoc) {
+        if (Boolean.FALSE.equals(deviceDoc.getLocked()) && deviceDoc.getPublishTime() != null && deviceDoc.getDeviceId() != null) {
+            long publishTime = deviceDoc.getPublishTime().toDate().getTime();
+            // Listeners are called while the cache is updated, so the waiting command continues on another thread
+            Schedulers.parallel().schedule(() -> acknowledgeOldest(deviceDoc.getDeviceId(), publishTime));
+        }
+    }
+
+    @Override
+    public void onDeviceRemoved(String id) {
+        // Pending commands of the device time out
+    }
+
+    // A state which was published before a command was sent is no confirmation of it, e.g. a delayed
+    // state of a previous session or a redelivered message
+    private void acknowledgeOldest(String deviceId, long publishTime) {
+        // Only a few commands are pending at a time, so scanning them is cheaper than a second index
+        Map.Entry<String, PendingCommand> oldest = null;
+        for (Map.Entry<String, PendingCommand> entry : pending.entrySet()) {
+            PendingCommand command = entry.getValue();
+            if (command.sent && command.deviceId.equals(deviceId) && publishTime >= command.sentAt
+                    && (oldest == null || command.createdAt < oldest.getValue().createdAt)) {
+                oldest = entry;
+            }
+        }
+        if (oldest != null) {
+            acknowledge(oldest.getKey(), oldest.getValue());
+        }
+    }
+
+    private void acknowledge(String correlationId, PendingCommand command) {
+        if (pending.remove(correlationId, command)) {
+            command.timeout.cancel();
+            ackTimer.record(System.nanoTime() - command.createdAt, TimeUnit.NANOSECONDS);
+            command.sink.success();
+        }
+    }
+
+    private void timeout(String correlationId, PendingCommand command) {
+        if (pending.remove(correlationId, command)) {
+            timeoutCounter.increment();
+            String message = "Device " + command.deviceId + " did not confirm command " + correlationId + " within " + ackTimeoutMillis + "ms";
+            command.sink.error(command.sent ? new UnconfirmedCommandException(message) : new TimeoutException(message + ". It was not sent yet"));
+        }
+    }
+
+    private static final class PendingCommand {
+        private final String deviceId;
+        private final MonoSink<Void> sink;
+        private final long createdAt = System.nanoTime();
+        private volatile boolean sent = false;
+        // Milliseconds since the epoch when sending started
+        private volatile long sentAt;
+        private HashedTimingWheel.Timeout timeout;
+
+        private PendingCommand(String deviceId, MonoSink<Void> sink) {
+            this.deviceId = deviceId;
+            this.sink = sink;
+        }
+    }
+}
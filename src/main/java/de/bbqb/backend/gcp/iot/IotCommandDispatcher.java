@@ -0,0 +1,115 @@
+package de.bbqb.backend.gcp.iot;
+
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.services.cloudiot.v1.model.SendCommandToDeviceResponse;
+import de.bbqb.backend.concurrent.KeyedSerialExecutor;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Queues commands for BBQB-IoT-Devices and sends them on a dedicated pool of I/O threads.
+ * Commands for the same device are sent one after another in the order they were dispatched,
+ * so an UNLOCK and a following LOCK for one BBQB can never overtake each other.
+ * If the queue is full new commands are rejected instead of piling up.
+ *
+ * @author Marius Degen
+ */
+@Component
+public class IotCommandDispatcher {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(IotCommandDispatcher.class);
+
+    private final IotCommandGateway gateway;
+    private final KeyedSerialExecutor executor;
+    private final Timer waitTimer;
+    private final Timer executionTimer;
+    private final Counter rejectedCounter;
+
+    public IotCommandDispatcher(IotCommandGateway gateway,
+                                @Value("${bbq.backend.gcp.iot.dispatcher.threads}") int threads,
+                                @Value("${bbq.backend.gcp.iot.dispatcher.queue-capacity}") int queueCapacity,
+                                MeterRegistry meterRegistry) {
+        this.gateway = gateway;
+        this.executor = new KeyedSerialExecutor("iot-command", threads, queueCapacity);
+        Gauge.builder("bbqb.iot.command.queue.depth", executor, KeyedSerialExecutor::pending)
+                .description("Number of queued and running device commands")
+                .register(meterRegistry);
+        this.waitTimer = Timer.builder("bbqb.iot.command.queue.wait")
+                .description("Time a device command waited in the queue")
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+        this.executionTimer = Timer.builder("bbqb.iot.command.execution")
+                .description("Time it took to send a queued device command")
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+        this.rejectedCounter = Counter.builder("bbqb.iot.command.rejected")
+                .description("Number of device commands rejected because the queue was full")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Queue a command for a device.
+     *
+     * @param deviceId The IoT id of the device to send the command to
+     * @param payload  The raw command payload
+     * @return A Mono emitting the Cloud IoT response once the command was sent or an error if sending failed.
+     * Emits a {@link RejectedExecutionException} if the queue is full.
+     */
+    public Mono<SendCommandToDeviceResponse> dispatch(String deviceId, byte[] payload) {
+        return Mono.create(sink -> {
+            long enqueuedAt = System.nanoTime();
+            try {
+                executor.execute(deviceId, () -> {
+                    long startedAt = System.nanoTime();
+                    waitTimer.record(startedAt - enqueuedAt, TimeUnit.NANOSECONDS);
+                    try {
+                        sink.success(gateway.sendCommand(deviceId, payload));
+                    } catch (Exception e) {
+                        sink.error(e);
+                    } finally {
+                        executionTimer.record(System.nanoTime() - startedAt, TimeUnit.NANOSECONDS);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                rejectedCounter.increment();
+                LOGGER.warn("Rejected command for device " + deviceId + ": " + e.getMessage());
+                sink.error(e);
+            }
+        });
+    }
+
+    /**
+     * Decide if sending a command again may succeed.
+     * Network errors, server errors and throttling of Cloud IoT are retryable.
+     * Client errors like an unknown or disconnected device and a full queue are not.
+     *
+     * @param error The error of a dispatched command
+     * @return true if the command should be sent again
+     */
+    public static boolean isRetryable(Throwable error) {
+        if (error instanceof GoogleJsonResponseException) {
+            int status = ((GoogleJsonResponseException) error).getStatusCode();
+            return status >= 500 || status == 429;
+        }
+        return error instanceof IOException;
+    }
+
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        if (!executor.shutdown(10, TimeUnit.SECONDS)) {
+            LOGGER.warn("Device commands still pending on shutdown: " + executor.pending());
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package de.bbqb.backend.gcp.iot;
+
+import com.google.api.client.googleapis.javanet.GoogleNetHttpTransport;
+import com.google.api.client.http.HttpRequestInitializer;
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.services.cloudiot.v1.CloudIot;
+import com.google.api.services.cloudiot.v1.CloudIotScopes;
+import com.google.api.services.cloudiot.v1.model.SendCommandToDeviceRequest;
+import com.google.api.services.cloudiot.v1.model.SendCommandToDeviceResponse;
+import com.google.auth.http.HttpCredentialsAdapter;
+import com.google.auth.oauth2.GoogleCredentials;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.Base64;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Long-lived client to send commands to BBQB-IoT-Devices over the Cloud IoT Core API.
+ * Owns a single set of GCP credentials which are refreshed in the background,
+ * a single HTTP transport whose keep-alive connections are reused across commands
+ * and a single CloudIot instance. The client is created lazily on first use
+ * if it could not be created on startup.
+ *
+ * @author Marius Degen
+ */
+@Component
+public class IotCommandGateway {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(IotCommandGateway.class);
+
+    // Credentials file used for development deploys if no application default credentials are available
+    private static final String CREDENTIALS_FILE = "bbqb-prd-a6d055683b57.json";
+
+    private final String gcpProjectId;
+    private final String registryPath;
+    private final int connectTimeout;
+    private final int readTimeout;
+    private final long tokenRefreshInterval;
+    private final Timer sendSuccessTimer;
+    private final Timer sendFailureTimer;
+    private final ScheduledExecutorService tokenRefresher;
+
+    private volatile GoogleCredentials credentials;
+    private volatile CloudIot cloudIot;
+
+    public IotCommandGateway(@Value("${spring.cloud.gcp.project-id}") String gcpProjectId,
+                             @Value("${bbq.backend.gcp.cloud-region}") String cloudRegion,
+                             @Value("${bbq.backend.gcp.registry-name}") String registryName,
+                             @Value("${bbq.backend.gcp.iot.connect-timeout}") int connectTimeout,
+                             @Value("${bbq.backend.gcp.iot.read-timeout}") int readTimeout,
+                             @Value("${bbq.backend.gcp.iot.token-refresh-interval}") long tokenRefreshInterval,
+                             MeterRegistry meterRegistry) {
+        this.gcpProjectId = gcpProjectId;
+        this.registryPath = String.format("projects/%s/locations/%s/registries/%s", gcpProjectId, cloudRegion, registryName);
+        this.connectTimeout = connectTimeout;
+        this.readTimeout = readTimeout;
+        this.tokenRefreshInterval = tokenRefreshInterval;
+        this.sendSuccessTimer = sendTimer(meterRegistry, "success");
+        this.sendFailureTimer = sendTimer(meterRegistry, "failure");
+        this.tokenRefresher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "iot-token-refresher");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    private static Timer sendTimer(MeterRegistry meterRegistry, String outcome) {
+        return Timer.builder("bbqb.iot.command.send")
+                .description("Latency of sending a command to a BBQB over Cloud IoT Core")
+                .tag("outcome", outcome)
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+    }
+
+    /**
+     * Try to create the client on startup so that the first command does not pay for
+     * loading credentials and the TLS trust store. Failures are only logged because
+     * the client is created again on first use.
+     */
+    @PostConstruct
+    public void init() {
+        try {
+            client();
+        } catch (IOException | GeneralSecurityException e) {
+            LOGGER.warn("Unable to create Cloud IoT client on startup. Retrying on first command.", e);
+        }
+        tokenRefresher.scheduleWithFixedDelay(this::refreshToken, tokenRefreshInterval, tokenRefreshInterval, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        tokenRefresher.shutdownNow();
+    }
+
+    /**
+     * Send a command to a BBQB-IoT-Device.
+     * This is a blocking call and must not be executed on a request or callback thread.
+     *
+     * @param deviceId The IoT id of the device to send the command to
+     * @param payload  The raw command payload
+     * @return The response of the Cloud IoT API
+     * @throws IOException              in case the command could not be delivered to Cloud IoT
+     * @throws GeneralSecurityException in case the HTTP transport could not be created
+     */
+    public SendCommandToDeviceResponse sendCommand(String deviceId, byte[] payload) throws IOException, GeneralSecurityException {
+        final String devicePath = registryPath + "/devices/" + deviceId;
+        SendCommandToDeviceRequest req = new SendCommandToDeviceRequest();
+        req.setBinaryData(Base64.getEncoder().encodeToString(payload));
+
+        CloudIot service = client();
+        long start = System.nanoTime();
+        try {
+            LOGGER.info("Sending command to " + devicePath);
+            SendCommandToDeviceResponse response = service.projects().locations().registries().devices()
+                    .sendCommandToDevice(devicePath, req).execute();
+            sendSuccessTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            return response;
+        } catch (IOException e) {
+            sendFailureTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            throw e;
+        }
+    }
+
+    private CloudIot client() throws IOException, GeneralSecurityException {
+        CloudIot client = this.cloudIot;
+        if (client == null) {
+            synchronized (this) {
+                client = this.cloudIot;
+                if (client == null) {
+                    GoogleCredentials credentials = loadCredentials();
+                    HttpTransport transport = GoogleNetHttpTransport.newTrustedTransport();
+                    HttpCredentialsAdapter credentialsAdapter = new HttpCredentialsAdapter(credentials);
+                    HttpRequestInitializer init = request -> {
+                        credentialsAdapter.initialize(request);
+                        request.setConnectTimeout(connectTimeout);
+                        request.setReadTimeout(readTimeout);
+                    };
+                    client = new CloudIot.Builder(transport, JacksonFactory.getDefaultInstance(), init)
+                            .setApplicationName(gcpProjectId)
+                            .build();
+                    this.credentials = credentials;
+                    this.cloudIot = client;
+                }
+            }
+        }
+        return client;
+    }
+
+    private GoogleCredentials loadCredentials() throws IOException {
+        try {
+            return GoogleCredentials.getApplicationDefault().createScoped(CloudIotScopes.all());
+        } catch (IOException e) {
+            // For development deploys
+            // Try to load GCP credentials file from classpath (resources folder)
+            return GoogleCredentials.fromStream(new ClassPathResource(CREDENTIALS_FILE).getInputStream()).createScoped(CloudIotScopes.all());
+        }
+    }
+
+    /**
+     * Refresh the access token before it expires so that sending a command never waits for a token request.
+     */
+    private void refreshToken() {
+        GoogleCredentials credentials = this.credentials;
+        if (credentials == null) {
+            return;
+        }
+        try {
+            credentials.refreshIfExpired();
+        } catch (IOException | RuntimeException e) {
+            LOGGER.warn("Unable to refresh Cloud IoT access token", e);
+        }
+    }
+}
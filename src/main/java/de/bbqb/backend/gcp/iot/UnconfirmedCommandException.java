@@ -0,0 +1,17 @@
+package de.bbqb.backend.gcp.iot;
+
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Signals that a command was sent to a BBQB-IoT-Device but the device did not confirm it in time.
+ * Unlike a plain {@link TimeoutException} the device most likely received the command,
+ * so sending it again may execute it twice.
+ *
+ * @author Marius Degen
+ */
+public class UnconfirmedCommandException extends TimeoutException {
+
+    public UnconfirmedCommandException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,125 @@
+package de.bbqb.backend.gcp.pubsub;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.cloud.pubsub.v1.Subscriber;
+import com.google.pubsub.v1.PubsubMessage;
+import de.bbqb.backend.api.model.entity.DeviceTelemetry;
+import de.bbqb.backend.api.model.service.DeviceTelemetryListener;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.cloud.gcp.pubsub.core.PubSubTemplate;
+import org.springframework.cloud.gcp.pubsub.support.BasicAcknowledgeablePubsubMessage;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Receives the state messages published by the BBQBs via Pub/Sub, notifies all
+ * {@link DeviceTelemetryListener}s and hands the messages to a {@link TelemetryBatcher}.
+ * Messages are acknowledged once the state was written. The number of unacknowledged messages
+ * held in memory is limited by the Pub/Sub subscriber flow control.
+ * Use {@code spring.cloud.gcp.pubsub.emulator-host} to run against the Pub/Sub emulator.
+ *
+ * @author Marius Degen
+ */
+@Component
+@ConditionalOnProperty(name = "bbq.backend.gcp.pubsub.telemetry.enabled", havingValue = "true")
+public class DeviceTelemetrySubscriber {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(DeviceTelemetrySubscriber.class);
+    private static final Duration SHUTDOWN_TIMEOUT = Duration.ofSeconds(10);
+
+    private final PubSubTemplate pubSubTemplate;
+    private final ObjectMapper objectMapper;
+    private final ObjectProvider<DeviceTelemetryListener> listenerProvider;
+    private final String subscription;
+    private final TelemetryBatcher batcher;
+    private final Counter invalidCounter;
+
+    private List<DeviceTelemetryListener> listeners;
+    private Subscriber subscriber;
+
+    public DeviceTelemetrySubscriber(PubSubTemplate pubSubTemplate,
+                                     ObjectMapper objectMapper,
+                                     TelemetryWriter telemetryWriter,
+                                     ObjectProvider<DeviceTelemetryListener> listenerProvider,
+                                     MeterRegistry meterRegistry,
+                                     @Value("${bbq.backend.gcp.pubsub.telemetry.subscription}") String subscription,
+                                     @Value("${bbq.backend.gcp.pubsub.telemetry.flush-window}") long flushWindow,
+                                     @Value("${bbq.backend.gcp.pubsub.telemetry.max-in-flight-batches}") int maxInFlightBatches) {
+        this.pubSubTemplate = pubSubTemplate;
+        this.objectMapper = objectMapper;
+        this.listenerProvider = listenerProvider;
+        this.subscription = subscription;
+        this.batcher = new TelemetryBatcher(telemetryWriter, Duration.ofMillis(flushWindow), maxInFlightBatches, meterRegistry);
+        this.invalidCounter = Counter.builder("bbqb.telemetry.invalid")
+                .description("Number of device state messages which could not be parsed")
+                .register(meterRegistry);
+    }
+
+    @PostConstruct
+    public void start() {
+        listeners = listenerProvider.orderedStream().collect(Collectors.toList());
+        batcher.start();
+        subscriber = pubSubTemplate.subscribe(subscription, this::onMessage);
+        LOGGER.info("Receiving device states from subscription " + subscription);
+    }
+
+    @PreDestroy
+    public void stop() throws InterruptedException {
+        if (subscriber != null) {
+            subscriber.stopAsync().awaitTerminated();
+        }
+        batcher.stop(SHUTDOWN_TIMEOUT);
+    }
+
+    void onMessage(BasicAcknowledgeablePubsubMessage message) {
+        DeviceTelemetry telemetry;
+        try {
+            telemetry = parse(message.getPubsubMessage());
+        } catch (IOException | IllegalArgumentException e) {
+            // Redelivering a malformed message would not help
+            LOGGER.warn("Dropping malformed device state message " + message.getPubsubMessage().getMessageId(), e);
+            invalidCounter.increment();
+            message.ack();
+            return;
+        }
+        for (DeviceTelemetryListener listener : listeners) {
+            try {
+                listener.onTelemetry(telemetry);
+            } catch (RuntimeException e) {
+                LOGGER.error("Device telemetry listener " + listener.getClass().getSimpleName() + " failed", e);
+            }
+        }
+        batcher.add(telemetry, success -> {
+            if (success) {
+                message.ack();
+            } else {
+                message.nack();
+            }
+        });
+    }
+
+    private DeviceTelemetry parse(PubsubMessage message) throws IOException {
+        DeviceTelemetry payload = objectMapper.readValue(message.getData().toByteArray(), DeviceTelemetry.class);
+        // IoT Core sets the device id as attribute, the publish time falls back to the time Pub/Sub received the message
+        String deviceId = payload.getDeviceId() != null ? payload.getDeviceId() : message.getAttributesOrDefault("deviceId", null);
+        Long publishTime = payload.getPublishTime() != null ? payload.getPublishTime()
+                : message.getPublishTime().getSeconds() * 1000 + message.getPublishTime().getNanos() / 1_000_000;
+        if (deviceId == null) {
+            throw new IllegalArgumentException("Device state message without device id");
+        }
+        return new DeviceTelemetry(deviceId, publishTime, payload.getLocked(), payload.getClosed(), payload.getWifiSignal(),
+                payload.getTemperaturePlate1(), payload.getTemperaturePlate2(), payload.getCorrelationId());
+    }
+}
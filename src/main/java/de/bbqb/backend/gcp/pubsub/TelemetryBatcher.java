@@ -0,0 +1,208 @@
+package de.bbqb.backend.gcp.pubsub;
+
+import de.bbqb.backend.api.model.entity.DeviceTelemetry;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+/**
+ * Coalesces device state messages and writes them in batches.
+ * Within one flush window only the message with the latest publish time of each device is written,
+ * older messages of the same device are acknowledged together with it. Messages older than the
+ * state already written are dropped, as long as that state is not older than {@link #WRITTEN_RETENTION}. Batches are written with a bounded number of batches in flight;
+ * when all permits are taken the flush waits, which in turn lets the receiver's flow control kick in.
+ *
+ * @author Marius Degen
+ */
+public class TelemetryBatcher {
+
+    // Firestore allows at most 500 writes per batch
+    public static final int MAX_BATCH_SIZE = 500;
+
+    // Publish times of written states are kept this long, redelivered messages are usually older by far less
+    static final Duration WRITTEN_RETENTION = Duration.ofHours(1);
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(TelemetryBatcher.class);
+
+    private final TelemetryWriter writer;
+    private final Duration window;
+    private final int maxInFlightBatches;
+    private final Semaphore inFlightBatches;
+    private final ScheduledExecutorService flusher;
+    // Publish time of the latest state written per device
+    private final Map<String, Long> written = new ConcurrentHashMap<>();
+    private final Counter ingestedCounter;
+    private final Counter staleCounter;
+    private final DistributionSummary batchSizeSummary;
+    private final Timer flushTimer;
+
+    private Map<String, Pending> pending = new HashMap<>();
+    // Only accessed by the flushing thread
+    private long lastPruneMillis = 0;
+
+    /**
+     * @param writer             Writes the coalesced states
+     * @param window             Time between two flushes
+     * @param maxInFlightBatches Maximum number of batches written at the same time
+     * @param meterRegistry      Registry for the ingest metrics
+     */
+    public TelemetryBatcher(TelemetryWriter writer, Duration window, int maxInFlightBatches, MeterRegistry meterRegistry) {
+        this.writer = writer;
+        this.window = window;
+        this.maxInFlightBatches = maxInFlightBatches;
+        this.inFlightBatches = new Semaphore(maxInFlightBatches);
+        this.flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "telemetry-flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.ingestedCounter = Counter.builder("bbqb.telemetry.ingested")
+                .description("Number of received device state messages")
+                .register(meterRegistry);
+        this.staleCounter = Counter.builder("bbqb.telemetry.stale")
+                .description("Number of device state messages dropped because a newer state was already written")
+                .register(meterRegistry);
+        this.batchSizeSummary = DistributionSummary.builder("bbqb.telemetry.batch.size")
+                .description("Number of device states per written batch")
+                .register(meterRegistry);
+        this.flushTimer = Timer.builder("bbqb.telemetry.flush")
+                .description("Time it took to write a batch of device states")
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+    }
+
+    public void start() {
+        flusher.scheduleWithFixedDelay(this::flush, window.toMillis(), window.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop flushing periodically, write all pending states and wait for the writes to finish.
+     *
+     * @param timeout Maximum time to wait for the writes
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void stop(Duration timeout) throws InterruptedException {
+        flusher.shutdown();
+        flusher.awaitTermination(timeout.toMillis(), TimeUnit.MILLISECONDS);
+        flush();
+        if (inFlightBatches.tryAcquire(maxInFlightBatches, timeout.toMillis(), TimeUnit.MILLISECONDS)) {
+            inFlightBatches.release(maxInFlightBatches);
+        } else {
+            LOGGER.warn("Device state batches still in flight on shutdown");
+        }
+    }
+
+    /**
+     * Add a state message to the current window
+     *
+     * @param telemetry   The state of a device. deviceId and publishTime must not be null.
+     * @param acknowledge Called with true once the message can be acknowledged or with false if it must be redelivered
+     */
+    public void add(DeviceTelemetry telemetry, Consumer<Boolean> acknowledge) {
+        ingestedCounter.increment();
+        Long writtenPublishTime = written.get(telemetry.getDeviceId());
+        if (writtenPublishTime != null && writtenPublishTime >= telemetry.getPublishTime()) {
+            staleCounter.increment();
+            acknowledge.accept(true);
+            return;
+        }
+        synchronized (this) {
+            Pending current = pending.get(telemetry.getDeviceId());
+            if (current == null) {
+                pending.put(telemetry.getDeviceId(), new Pending(telemetry, acknowledge));
+            } else {
+                current.merge(telemetry, acknowledge);
+            }
+        }
+    }
+
+    /**
+     * Write the states collected in the current window
+     */
+    public void flush() {
+        pruneWritten(System.currentTimeMillis());
+        Map<String, Pending> window;
+        synchronized (this) {
+            if (pending.isEmpty()) {
+                return;
+            }
+            window = pending;
+            pending = new HashMap<>();
+        }
+        List<Pending> states = new ArrayList<>(window.values());
+        for (int from = 0; from < states.size(); from += MAX_BATCH_SIZE) {
+            List<Pending> batch = states.subList(from, Math.min(states.size(), from + MAX_BATCH_SIZE));
+            inFlightBatches.acquireUninterruptibly();
+            long start = System.nanoTime();
+            writer.write(batch.stream().map(state -> state.telemetry).collect(Collectors.toList()))
+                    .doFinally(signal -> inFlightBatches.release())
+                    .subscribe(null,
+                            error -> {
+                                LOGGER.warn("Unable to write " + batch.size() + " device states", error);
+                                batch.forEach(state -> state.acknowledge(false));
+                            },
+                            () -> {
+                                flushTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+                                batchSizeSummary.record(batch.size());
+                                batch.forEach(state -> {
+                                    written.merge(state.telemetry.getDeviceId(), state.telemetry.getPublishTime(), Math::max);
+                                    state.acknowledge(true);
+                                });
+                            });
+        }
+    }
+
+    /**
+     * @return Number of devices whose latest written publish time is held
+     */
+    public int written() {
+        return written.size();
+    }
+
+    // Otherwise every device id ever received would be held, including the ones of deleted or unknown devices
+    void pruneWritten(long now) {
+        if (now - lastPruneMillis < WRITTEN_RETENTION.toMillis() / 60) {
+            return;
+        }
+        lastPruneMillis = now;
+        long oldest = now - WRITTEN_RETENTION.toMillis();
+        written.values().removeIf(publishTime -> publishTime < oldest);
+    }
+
+    private static final class Pending {
+        private DeviceTelemetry telemetry;
+        private final List<Consumer<Boolean>> acknowledgements = new ArrayList<>(1);
+
+        private Pending(DeviceTelemetry telemetry, Consumer<Boolean> acknowledge) {
+            this.telemetry = telemetry;
+            this.acknowledgements.add(acknowledge);
+        }
+
+        private void merge(DeviceTelemetry other, Consumer<Boolean> acknowledge) {
+            if (other.getPublishTime() >= telemetry.getPublishTime()) {
+                telemetry = other;
+            }
+            acknowledgements.add(acknowledge);
+        }
+
+        private void acknowledge(boolean success) {
+            acknowledgements.forEach(acknowledge -> acknowledge.accept(success));
+        }
+    }
+}
@@ -0,0 +1,23 @@
+package de.bbqb.backend.gcp.pubsub;
+
+import de.bbqb.backend.api.model.entity.DeviceTelemetry;
+import reactor.core.publisher.Mono;
+
+import java.util.List;
+
+/**
+ * Persists the latest state of devices
+ *
+ * @author Marius Degen
+ */
+public interface TelemetryWriter {
+
+    /**
+     * Write the state of several devices at once
+     *
+     * @param telemetries At most {@link TelemetryBatcher#MAX_BATCH_SIZE} states, one per device
+     * @return Mono completing when all states were written or dropped because they can never be written,
+     * or emitting an error if the states have to be redelivered
+     */
+    Mono<Void> write(List<DeviceTelemetry> telemetries);
+}
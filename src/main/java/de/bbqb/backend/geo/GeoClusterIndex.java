@@ -0,0 +1,265 @@
+package de.bbqb.backend.geo;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Pyramid of point counts over web mercator tiles to aggregate points into map clusters.
+ * For every tile level the index keeps the number of points, the number of available points
+ * and the sum of their coordinates per tile. Adding, moving or removing a point updates one
+ * cell per level. A map tile at zoom z is split into 8x8 cluster cells taken from level z + 3.
+ * The clusters of a map tile are cached until a point inside the tile changes.
+ *
+ * @author Marius Degen
+ */
+public class GeoClusterIndex {
+
+    public static final int MAX_ZOOM = 18;
+    // A map tile is split into 2^CLUSTER_SHIFT x 2^CLUSTER_SHIFT cluster cells
+    private static final int CLUSTER_SHIFT = 3;
+    private static final int LEVELS = MAX_ZOOM + CLUSTER_SHIFT + 1;
+    private static final double MAX_LATITUDE = 85.05112878;
+
+    private final List<Map<Long, Cell>> levels = new ArrayList<>(LEVELS);
+    private final List<Map<Long, List<Cluster>>> tileCaches = new ArrayList<>(MAX_ZOOM + 1);
+    private final Map<String, Member> members = new HashMap<>();
+    // Incremented before and after every change
+    private volatile long version = 0;
+
+    public GeoClusterIndex() {
+        for (int level = 0; level < LEVELS; level++) {
+            levels.add(new ConcurrentHashMap<>());
+        }
+        for (int zoom = 0; zoom <= MAX_ZOOM; zoom++) {
+            tileCaches.add(new ConcurrentHashMap<>());
+        }
+    }
+
+    /**
+     * Add a point or update the position or availability of an existing point
+     *
+     * @param id        Identifier of the point
+     * @param lat       Latitude in degrees
+     * @param lng       Longitude in degrees
+     * @param available Whether the point is counted as available
+     */
+    public synchronized void put(String id, double lat, double lng, boolean available) {
+        Member member = new Member(lat, lng, available);
+        Member previous = members.put(id, member);
+        if (previous != null) {
+            if (previous.equals(member)) {
+                return;
+            }
+            update(previous, -1);
+        }
+        update(member, 1);
+    }
+
+    /**
+     * Remove a point. Does nothing if no point with this id exists.
+     *
+     * @param id Identifier of the point
+     */
+    public synchronized void remove(String id) {
+        Member previous = members.remove(id);
+        if (previous != null) {
+            update(previous, -1);
+        }
+    }
+
+    /**
+     * Aggregate all points in the map tiles covering a bounding box into clusters
+     *
+     * @param minLat Southern edge of the bounding box
+     * @param minLng Western edge of the bounding box
+     * @param maxLat Northern edge of the bounding box
+     * @param maxLng Eastern edge of the bounding box. May be smaller than minLng if the box crosses the date line.
+     * @param zoom   Map zoom level between 0 and {@link #MAX_ZOOM}
+     * @return The clusters of all covering tiles
+     */
+    public List<Cluster> clusters(double minLat, double minLng, double maxLat, double maxLng, int zoom) {
+        int tiles = 1 << zoom;
+        int minX = tileX(minLng, zoom);
+        int maxX = tileX(maxLng, zoom);
+        int minY = tileY(maxLat, zoom);
+        int maxY = tileY(minLat, zoom);
+        int columns = Math.floorMod(maxX - minX, tiles) + 1;
+        List<Cluster> result = new ArrayList<>();
+        for (int i = 0; i < columns; i++) {
+            int x = (minX + i) % tiles;
+            for (int y = minY; y <= maxY; y++) {
+                result.addAll(tile(zoom, x, y));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @param minLat Southern edge of the bounding box
+     * @param minLng Western edge of the bounding box
+     * @param maxLat Northern edge of the bounding box
+     * @param maxLng Eastern edge of the bounding box
+     * @param zoom   Map zoom level
+     * @return Number of map tiles covering the bounding box at the zoom level
+     */
+    public static long tileCount(double minLat, double minLng, double maxLat, double maxLng, int zoom) {
+        int tiles = 1 << zoom;
+        long columns = Math.floorMod(tileX(maxLng, zoom) - tileX(minLng, zoom), tiles) + 1;
+        long rows = tileY(minLat, zoom) - tileY(maxLat, zoom) + 1;
+        return columns * rows;
+    }
+
+    private List<Cluster> tile(int zoom, int x, int y) {
+        long tileKey = key(x, y);
+        if (!levels.get(zoom).containsKey(tileKey)) {
+            return Collections.emptyList();
+        }
+        Map<Long, List<Cluster>> tileCache = tileCaches.get(zoom);
+        List<Cluster> cached = tileCache.get(tileKey);
+        if (cached != null) {
+            return cached;
+        }
+        long versionBefore = version;
+        Map<Long, Cell> clusterLevel = levels.get(zoom + CLUSTER_SHIFT);
+        int size = 1 << CLUSTER_SHIFT;
+        List<Cluster> clusters = new ArrayList<>();
+        for (int cx = x * size; cx < (x + 1) * size; cx++) {
+            for (int cy = y * size; cy < (y + 1) * size; cy++) {
+                Cell cell = clusterLevel.get(key(cx, cy));
+                if (cell != null) {
+                    clusters.add(new Cluster(cell.sumLat / cell.count, cell.sumLng / cell.count, cell.count, cell.available));
+                }
+            }
+        }
+        clusters = Collections.unmodifiableList(clusters);
+        // Only cache the tile if no point changed while it was computed. The version is odd while a change is applied.
+        if (versionBefore % 2 == 0 && version == versionBefore) {
+            tileCache.put(tileKey, clusters);
+            // A change which started after the first check may have removed the tile before it was put,
+            // a change which starts after this check removes it afterwards
+            if (version != versionBefore) {
+                tileCache.remove(tileKey, clusters);
+            }
+        }
+        return clusters;
+    }
+
+    private void update(Member member, int sign) {
+        version++;
+        for (int level = 0; level < LEVELS; level++) {
+            int x = tileX(member.lng, level);
+            int y = tileY(member.lat, level);
+            levels.get(level).compute(key(x, y), (key, cell) -> {
+                Cell current = cell != null ? cell : Cell.EMPTY;
+                int count = current.count + sign;
+                if (count == 0) {
+                    return null;
+                }
+                return new Cell(count, current.available + (member.available ? sign : 0),
+                        current.sumLat + sign * member.lat, current.sumLng + sign * member.lng);
+            });
+            if (level <= MAX_ZOOM) {
+                tileCaches.get(level).remove(key(x, y));
+            }
+        }
+        version++;
+    }
+
+    private static int tileX(double lng, int level) {
+        int tiles = 1 << level;
+        int x = (int) Math.floor((lng + 180) / 360 * tiles);
+        return Math.floorMod(x, tiles);
+    }
+
+    private static int tileY(double lat, int level) {
+        int tiles = 1 << level;
+        double latRad = Math.toRadians(Math.max(-MAX_LATITUDE, Math.min(MAX_LATITUDE, lat)));
+        int y = (int) Math.floor((1 - Math.log(Math.tan(latRad) + 1 / Math.cos(latRad)) / Math.PI) / 2 * tiles);
+        return Math.min(tiles - 1, Math.max(0, y));
+    }
+
+    private static long key(int x, int y) {
+        return ((long) x << 32) | y;
+    }
+
+    private static final class Member {
+        private final double lat;
+        private final double lng;
+        private final boolean available;
+
+        private Member(double lat, double lng, boolean available) {
+            this.lat = lat;
+            // Stored in the range of its tile column, e.g. 180 as -180, so the longitudes of a cell can be averaged.
+            // A cell never crosses the date line, its westmost column starts at -180.
+            this.lng = lng - 360 * Math.floor((lng + 180) / 360);
+            this.available = available;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Member)) {
+                return false;
+            }
+            Member other = (Member) o;
+            return lat == other.lat && lng == other.lng && available == other.available;
+        }
+
+        @Override
+        public int hashCode() {
+            return Double.hashCode(lat) * 31 + Double.hashCode(lng) * 7 + Boolean.hashCode(available);
+        }
+    }
+
+    private static final class Cell {
+        private static final Cell EMPTY = new Cell(0, 0, 0, 0);
+
+        private final int count;
+        private final int available;
+        private final double sumLat;
+        private final double sumLng;
+
+        private Cell(int count, int available, double sumLat, double sumLng) {
+            this.count = count;
+            this.available = available;
+            this.sumLat = sumLat;
+            this.sumLng = sumLng;
+        }
+    }
+
+    /**
+     * Points of one cluster cell aggregated to their centroid
+     */
+    public static final class Cluster {
+        private final double lat;
+        private final double lng;
+        private final int count;
+        private final int availableCount;
+
+        public Cluster(double lat, double lng, int count, int availableCount) {
+            this.lat = lat;
+            this.lng = lng;
+            this.count = count;
+            this.availableCount = availableCount;
+        }
+
+        public double getLat() {
+            return lat;
+        }
+
+        public double getLng() {
+            return lng;
+        }
+
+        public int getCount() {
+            return count;
+        }
+
+        public int getAvailableCount() {
+            return availableCount;
+        }
+    }
+}
@@ -0,0 +1,228 @@
+package de.bbqb.backend.geo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+
+/**
+ * Spatial index which assigns points to cells of a fixed size latitude/longitude grid.
+ * Nearest neighbour queries visit the cells in rings around the query point and stop
+ * as soon as no unvisited cell can contain a closer point.
+ * Writes are serialized, reads never lock because cells are replaced instead of modified.
+ *
+ * @author Marius Degen
+ */
+public class GeoGridIndex {
+
+    private final double cellDegrees;
+    private final int rows;
+    private final int columns;
+    private final double cellHeightKm;
+    private final Map<Long, Entry[]> cells = new ConcurrentHashMap<>();
+    private final Map<String, Entry> entries = new HashMap<>();
+
+    /**
+     * @param cellDegrees Edge length of a grid cell in degrees
+     */
+    public GeoGridIndex(double cellDegrees) {
+        if (cellDegrees <= 0 || cellDegrees > 90) {
+            throw new IllegalArgumentException("cellDegrees must be in (0, 90]");
+        }
+        this.cellDegrees = cellDegrees;
+        this.rows = (int) Math.ceil(180 / cellDegrees);
+        this.columns = (int) Math.ceil(360 / cellDegrees);
+        this.cellHeightKm = cellDegrees * GeoMath.KM_PER_DEGREE;
+    }
+
+    /**
+     * Add a point or move an existing point to a new position
+     *
+     * @param id  Identifier of the point
+     * @param lat Latitude in degrees
+     * @param lng Longitude in degrees
+     */
+    public synchronized void put(String id, double lat, double lng) {
+        Entry previous = entries.get(id);
+        if (previous != null && previous.lat == lat && previous.lng == lng) {
+            return;
+        }
+        if (previous != null) {
+            removeFromCell(previous);
+        }
+        Entry entry = new Entry(id, lat, lng, cellKey(row(lat), column(lng)));
+        entries.put(id, entry);
+        cells.merge(entry.cell, new Entry[]{entry}, (current, added) -> {
+            Entry[] next = Arrays.copyOf(current, current.length + 1);
+            next[current.length] = added[0];
+            return next;
+        });
+    }
+
+    /**
+     * Remove a point. Does nothing if no point with this id exists.
+     *
+     * @param id Identifier of the point
+     */
+    public synchronized void remove(String id) {
+        Entry previous = entries.remove(id);
+        if (previous != null) {
+            removeFromCell(previous);
+        }
+    }
+
+    /**
+     * @return Number of indexed points
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Find the points closest to a position
+     *
+     * @param lat      Latitude of the position in degrees
+     * @param lng      Longitude of the position in degrees
+     * @param radiusKm Maximum distance of a point to the position
+     * @param limit    Maximum number of points to return
+     * @param filter   Only points whose id matches the filter are returned
+     * @return The matching points sorted by distance in ascending order
+     */
+    public List<Neighbor> nearest(double lat, double lng, double radiusKm, int limit, Predicate<String> filter) {
+        if (limit <= 0 || radiusKm < 0) {
+            return Collections.emptyList();
+        }
+        // Max heap so that the farthest of the current best points can be replaced
+        PriorityQueue<Neighbor> best = new PriorityQueue<>(limit, Comparator.comparingDouble(Neighbor::getDistanceKm).reversed());
+
+        // A longitude cell is narrowest at the highest latitude the search radius can reach
+        double maxAbsLat = Math.min(90, Math.abs(lat) + radiusKm / GeoMath.KM_PER_DEGREE);
+        double cellWidthKm = cellHeightKm * Math.cos(Math.toRadians(maxAbsLat));
+        int maxRowRing = (int) Math.ceil(radiusKm / cellHeightKm) + 1;
+        // Column offsets wrap around the date line. With an even number of columns the opposite column
+        // is reached from both sides, so it is only visited with the positive offset.
+        int maxColumnOffset = columns / 2;
+        int minColumnOffset = -((columns - 1) / 2);
+        int maxColumnRing = cellWidthKm < 1e-9 ? maxColumnOffset
+                : (int) Math.min(maxColumnOffset, Math.ceil(radiusKm / cellWidthKm) + 1);
+        double minCellKm = Math.min(cellHeightKm, cellWidthKm);
+        int row = row(lat);
+        int column = column(lng);
+
+        for (int ring = 0; ring <= Math.max(maxRowRing, maxColumnRing); ring++) {
+            // Every point in this ring is at least ring - 1 cells away from the query position
+            double ringMinDistanceKm = Math.max(0, ring - 1) * minCellKm;
+            if (ringMinDistanceKm > radiusKm || (best.size() == limit && best.peek().distanceKm <= ringMinDistanceKm)) {
+                break;
+            }
+            for (int dr = -ring; dr <= ring; dr++) {
+                if (Math.abs(dr) > maxRowRing || row + dr < 0 || row + dr >= rows) {
+                    continue;
+                }
+                if (Math.abs(dr) == ring) {
+                    int maxDc = Math.min(ring, maxColumnRing);
+                    for (int dc = Math.max(-maxDc, minColumnOffset); dc <= maxDc; dc++) {
+                        visit(row + dr, column + dc, lat, lng, radiusKm, limit, filter, best);
+                    }
+                } else if (ring <= maxColumnRing) {
+                    if (-ring >= minColumnOffset) {
+                        visit(row + dr, column - ring, lat, lng, radiusKm, limit, filter, best);
+                    }
+                    visit(row + dr, column + ring, lat, lng, radiusKm, limit, filter, best);
+                }
+            }
+        }
+        List<Neighbor> result = new ArrayList<>(best);
+        result.sort(Comparator.comparingDouble(Neighbor::getDistanceKm));
+        return result;
+    }
+
+    private void visit(int row, int column, double lat, double lng, double radiusKm, int limit,
+                       Predicate<String> filter, PriorityQueue<Neighbor> best) {
+        Entry[] cell = cells.get(cellKey(row, Math.floorMod(column, columns)));
+        if (cell == null) {
+            return;
+        }
+        for (Entry entry : cell) {
+            double distanceKm = GeoMath.distanceKm(lat, lng, entry.lat, entry.lng);
+            if (distanceKm > radiusKm || (best.size() == limit && distanceKm >= best.peek().distanceKm)) {
+                continue;
+            }
+            if (filter.test(entry.id)) {
+                if (best.size() == limit) {
+                    best.poll();
+                }
+                best.add(new Neighbor(entry.id, distanceKm));
+            }
+        }
+    }
+
+    private void removeFromCell(Entry entry) {
+        cells.computeIfPresent(entry.cell, (key, current) -> {
+            if (current.length == 1) {
+                return null;
+            }
+            Entry[] next = new Entry[current.length - 1];
+            int i = 0;
+            for (Entry other : current) {
+                if (other != entry) {
+                    next[i++] = other;
+                }
+            }
+            return next;
+        });
+    }
+
+    private int row(double lat) {
+        return Math.min(rows - 1, Math.max(0, (int) Math.floor((lat + 90) / cellDegrees)));
+    }
+
+    private int column(double lng) {
+        return Math.floorMod((int) Math.floor((lng + 180) / cellDegrees), columns);
+    }
+
+    private long cellKey(int row, int column) {
+        return (long) row * columns + column;
+    }
+
+    private static final class Entry {
+        private final String id;
+        private final double lat;
+        private final double lng;
+        private final long cell;
+
+        private Entry(String id, double lat, double lng, long cell) {
+            this.id = id;
+            this.lat = lat;
+            this.lng = lng;
+            this.cell = cell;
+        }
+    }
+
+    /**
+     * A point found by a nearest neighbour query
+     */
+    public static final class Neighbor {
+        private final String id;
+        private final double distanceKm;
+
+        public Neighbor(String id, double distanceKm) {
+            this.id = id;
+            this.distanceKm = distanceKm;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public double getDistanceKm() {
+            return distanceKm;
+        }
+    }
+}
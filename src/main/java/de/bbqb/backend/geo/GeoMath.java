@@ -0,0 +1,29 @@
+package de.bbqb.backend.geo;
+
+/**
+ * Distance calculations on the earth surface
+ *
+ * @author Marius Degen
+ */
+public final class GeoMath {
+
+    public static final double EARTH_RADIUS_KM = 6371.0088;
+    // Length of one degree latitude in km
+    public static final double KM_PER_DEGREE = Math.PI * EARTH_RADIUS_KM / 180.0;
+
+    private GeoMath() {
+    }
+
+    /**
+     * Great-circle distance between two points calculated with the haversine formula
+     *
+     * @return distance in km
+     */
+    public static double distanceKm(double lat1, double lng1, double lat2, double lng2) {
+        double dLat = Math.toRadians(lat2 - lat1);
+        double dLng = Math.toRadians(lng2 - lng1);
+        double a = Math.sin(dLat / 2) * Math.sin(dLat / 2)
+                + Math.cos(Math.toRadians(lat1)) * Math.cos(Math.toRadians(lat2)) * Math.sin(dLng / 2) * Math.sin(dLng / 2);
+        return 2 * EARTH_RADIUS_KM * Math.asin(Math.min(1.0, Math.sqrt(a)));
+    }
+}
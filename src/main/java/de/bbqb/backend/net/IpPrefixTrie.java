@@ -0,0 +1,328 @@
+package de.bbqb.backend.net;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * Immutable set of IPv4 and IPv6 address ranges in CIDR notation, e.g. 3.18.12.63/32 or 2001:db8::/32.
+ * The ranges are stored in one binary trie per address family with a node for every prefix bit,
+ * held in a single int array, so a lookup walks at most 32 or 128 array entries and does not allocate.
+ * Build it with {@link #builder()}.
+ *
+ * @author Marius Degen
+ */
+public final class IpPrefixTrie {
+
+    private static final int IPV4_BITS = 32;
+    private static final int IPV6_BITS = 128;
+    private static final int IPV6_GROUPS = 8;
+    // Groups of the IPv6 address which is looked up, so lookups do not allocate
+    private static final ThreadLocal<int[]> GROUPS = ThreadLocal.withInitial(() -> new int[IPV6_GROUPS]);
+
+    private final Trie ipv4;
+    private final Trie ipv6;
+    private final int size;
+
+    private IpPrefixTrie(Trie ipv4, Trie ipv6, int size) {
+        this.ipv4 = ipv4;
+        this.ipv6 = ipv6;
+        this.size = size;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * @return Number of added ranges
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @param address An IPv4 or IPv6 address literal like returned by {@code ServletRequest.getRemoteAddr()}
+     * @return true if the address is in one of the ranges, false if it is not or is no valid address
+     */
+    public boolean contains(String address) {
+        if (address == null || address.isEmpty()) {
+            return false;
+        }
+        if (address.indexOf(':') < 0) {
+            long ipv4Address = parseIpv4(address, 0, address.length());
+            return ipv4Address >= 0 && ipv4.containsIpv4((int) ipv4Address);
+        }
+        int[] groups = GROUPS.get();
+        if (!parseIpv6(address, groups)) {
+            return false;
+        }
+        if (isIpv4Mapped(groups)) {
+            return ipv4.containsIpv4(groups[6] << 16 | groups[7]);
+        }
+        return ipv6.containsIpv6(groups);
+    }
+
+    /**
+     * Builds an {@link IpPrefixTrie}. Not thread safe.
+     */
+    public static final class Builder {
+
+        private final Trie ipv4 = new Trie();
+        private final Trie ipv6 = new Trie();
+        private int size = 0;
+
+        private Builder() {
+        }
+
+        /**
+         * @param range An address range in CIDR notation or a single address
+         * @return This builder
+         * @throws IllegalArgumentException in case the range is no valid IPv4 or IPv6 range
+         */
+        public Builder add(String range) {
+            String trimmed = range.trim();
+            int slash = trimmed.indexOf('/');
+            int addressEnd = slash >= 0 ? slash : trimmed.length();
+            if (trimmed.lastIndexOf(':', addressEnd) < 0) {
+                long address = parseIpv4(trimmed, 0, addressEnd);
+                if (address < 0) {
+                    throw new IllegalArgumentException("Invalid IPv4 range " + range);
+                }
+                int prefixLength = prefixLength(trimmed, slash, IPV4_BITS, range);
+                ipv4.insert(prefixLength, bit -> (int) (address >>> (IPV4_BITS - 1 - bit)) & 1);
+            } else {
+                int[] groups = new int[IPV6_GROUPS];
+                if (!parseIpv6(trimmed.substring(0, addressEnd), groups)) {
+                    throw new IllegalArgumentException("Invalid IPv6 range " + range);
+                }
+                int prefixLength = prefixLength(trimmed, slash, IPV6_BITS, range);
+                ipv6.insert(prefixLength, bit -> ipv6Bit(groups, bit));
+            }
+            size++;
+            return this;
+        }
+
+        public IpPrefixTrie build() {
+            return new IpPrefixTrie(ipv4.trimmed(), ipv6.trimmed(), size);
+        }
+
+        private static int prefixLength(String range, int slash, int maxLength, String original) {
+            if (slash < 0) {
+                return maxLength;
+            }
+            String length = range.substring(slash + 1);
+            if (length.isEmpty() || length.length() > 3 || !length.chars().allMatch(Character::isDigit)) {
+                throw new IllegalArgumentException("Invalid prefix length in " + original);
+            }
+            int prefixLength = Integer.parseInt(length);
+            if (prefixLength > maxLength) {
+                throw new IllegalArgumentException("Prefix length of " + original + " is longer than " + maxLength);
+            }
+            return prefixLength;
+        }
+    }
+
+    /**
+     * Binary trie of prefixes. Node 0 is the root, so 0 marks a missing child.
+     */
+    private static final class Trie {
+
+        // The children of node n are at 2n for bit 0 and 2n + 1 for bit 1
+        private int[] children;
+        // Nodes at which a prefix ends
+        private final BitSet terminal;
+        private int nodes;
+
+        private Trie() {
+            this(new int[16], new BitSet(), 1);
+        }
+
+        private Trie(int[] children, BitSet terminal, int nodes) {
+            this.children = children;
+            this.terminal = terminal;
+            this.nodes = nodes;
+        }
+
+        private void insert(int prefixLength, IntUnaryOperator bitAt) {
+            int node = 0;
+            for (int i = 0; i < prefixLength; i++) {
+                if (terminal.get(node)) {
+                    // A shorter prefix already covers this one
+                    return;
+                }
+                int slot = 2 * node + bitAt.applyAsInt(i);
+                if (children[slot] == 0) {
+                    if (2 * nodes + 2 > children.length) {
+                        children = Arrays.copyOf(children, children.length * 2);
+                    }
+                    children[slot] = nodes++;
+                }
+                node = children[slot];
+            }
+            terminal.set(node);
+        }
+
+        private Trie trimmed() {
+            return new Trie(Arrays.copyOf(children, 2 * nodes), (BitSet) terminal.clone(), nodes);
+        }
+
+        private boolean containsIpv4(int address) {
+            int node = 0;
+            for (int i = 0; i < IPV4_BITS; i++) {
+                if (terminal.get(node)) {
+                    return true;
+                }
+                node = children[2 * node + ((address >>> (IPV4_BITS - 1 - i)) & 1)];
+                if (node == 0) {
+                    return false;
+                }
+            }
+            return terminal.get(node);
+        }
+
+        private boolean containsIpv6(int[] groups) {
+            int node = 0;
+            for (int i = 0; i < IPV6_BITS; i++) {
+                if (terminal.get(node)) {
+                    return true;
+                }
+                node = children[2 * node + ipv6Bit(groups, i)];
+                if (node == 0) {
+                    return false;
+                }
+            }
+            return terminal.get(node);
+        }
+    }
+
+    private static int ipv6Bit(int[] groups, int bit) {
+        return (groups[bit >> 4] >>> (15 - (bit & 15))) & 1;
+    }
+
+    private static boolean isIpv4Mapped(int[] groups) {
+        for (int i = 0; i < 5; i++) {
+            if (groups[i] != 0) {
+                return false;
+            }
+        }
+        return groups[5] == 0xffff;
+    }
+
+    /**
+     * @return The address as unsigned int or -1 if the characters from start to end are no dotted IPv4 address
+     */
+    static long parseIpv4(String address, int start, int end) {
+        long result = 0;
+        int parts = 0;
+        int i = start;
+        while (parts < 4) {
+            int value = 0;
+            int digits = 0;
+            while (i < end && digits < 4) {
+                char c = address.charAt(i);
+                if (c < '0' || c > '9') {
+                    break;
+                }
+                value = value * 10 + (c - '0');
+                digits++;
+                i++;
+            }
+            if (digits == 0 || digits > 3 || value > 255) {
+                return -1;
+            }
+            result = result << 8 | value;
+            parts++;
+            if (parts < 4) {
+                if (i >= end || address.charAt(i) != '.') {
+                    return -1;
+                }
+                i++;
+            }
+        }
+        return i == end ? result : -1;
+    }
+
+    /**
+     * Parse an IPv6 address with optional :: abbreviation, embedded IPv4 address and zone id
+     *
+     * @param groups Receives the eight 16 bit groups of the address
+     * @return false if the address is invalid
+     */
+    static boolean parseIpv6(String address, int[] groups) {
+        int zone = address.indexOf('%');
+        int end = zone >= 0 ? zone : address.length();
+        if (end < 2) {
+            return false;
+        }
+        int count = 0;
+        // Index of the group at which the :: abbreviation starts or -1
+        int gap = -1;
+        int i = 0;
+        if (address.charAt(0) == ':') {
+            if (address.charAt(1) != ':') {
+                return false;
+            }
+            gap = 0;
+            i = 2;
+        }
+        while (i < end) {
+            if (count == IPV6_GROUPS) {
+                return false;
+            }
+            int groupEnd = i;
+            boolean dotted = false;
+            while (groupEnd < end && address.charAt(groupEnd) != ':') {
+                dotted |= address.charAt(groupEnd) == '.';
+                groupEnd++;
+            }
+            if (dotted) {
+                // An embedded IPv4 address has to be the last part and fills two groups
+                long ipv4Address = groupEnd == end && count <= IPV6_GROUPS - 2 ? parseIpv4(address, i, end) : -1;
+                if (ipv4Address < 0) {
+                    return false;
+                }
+                groups[count++] = (int) (ipv4Address >>> 16);
+                groups[count++] = (int) (ipv4Address & 0xffff);
+                break;
+            }
+            if (groupEnd == i || groupEnd - i > 4) {
+                return false;
+            }
+            int value = 0;
+            for (int j = i; j < groupEnd; j++) {
+                int digit = Character.digit(address.charAt(j), 16);
+                if (digit < 0) {
+                    return false;
+                }
+                value = value << 4 | digit;
+            }
+            groups[count++] = value;
+            i = groupEnd;
+            if (i < end) {
+                i++;
+                if (i == end) {
+                    // Trailing single colon
+                    return false;
+                }
+                if (address.charAt(i) == ':') {
+                    if (gap >= 0) {
+                        return false;
+                    }
+                    gap = count;
+                    i++;
+                }
+            }
+        }
+        if (gap < 0) {
+            return count == IPV6_GROUPS;
+        }
+        if (count == IPV6_GROUPS) {
+            return false;
+        }
+        int tail = count - gap;
+        System.arraycopy(groups, gap, groups, IPV6_GROUPS - tail, tail);
+        Arrays.fill(groups, gap, IPV6_GROUPS - tail, 0);
+        return true;
+    }
+}
@@ -0,0 +1,149 @@
+package de.bbqb.backend.stripe;
+
+import de.bbqb.backend.api.model.entity.Card;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoProcessor;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Card payment methods of the Stripe customers which were read recently.
+ * Concurrent reads of a customer which is not cached share one request to Stripe.
+ * Entries expire after {@code bbq.backend.stripe.payment-methods.ttl} seconds and are invalidated
+ * when a card is attached or detached, so a card added on another instance is found at the latest after the ttl.
+ *
+ * @author Marius Degen
+ */
+@Component
+public class PaymentMethodCache {
+
+    private final long ttlMillis;
+    // Guarded by itself
+    private final Map<String, Entry> entries;
+    private final Counter hitCounter;
+    private final Counter joinedCounter;
+    private final Counter missCounter;
+
+    public PaymentMethodCache(@Value("${bbq.backend.stripe.payment-methods.cache-size}") int cacheSize,
+                              @Value("${bbq.backend.stripe.payment-methods.ttl}") long ttlSeconds,
+                              MeterRegistry meterRegistry) {
+        this.ttlMillis = ttlSeconds * 1000;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > cacheSize;
+            }
+        };
+        this.hitCounter = counter(meterRegistry, "hit");
+        this.joinedCounter = counter(meterRegistry, "joined");
+        this.missCounter = counter(meterRegistry, "miss");
+        Gauge.builder("bbqb.stripe.payment_methods.cached", this, PaymentMethodCache::cached)
+                .description("Number of Stripe customers whose cards are held in memory")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Read the cards of a customer from the cache or load them if they are not cached
+     *
+     * @param customerId Id of the Stripe customer
+     * @param loader     Reads the cards of the customer from Stripe
+     * @return Mono emitting the cards of the customer
+     */
+    public Mono<List<Card>> get(String customerId, Function<String, Mono<List<Card>>> loader) {
+        return Mono.defer(() -> {
+            long now = System.currentTimeMillis();
+            Entry entry;
+            boolean created = false;
+            synchronized (entries) {
+                entry = entries.get(customerId);
+                if (entry == null || entry.isExpired(now)) {
+                    entry = new Entry();
+                    entries.put(customerId, entry);
+                    created = true;
+                }
+            }
+            if (created) {
+                missCounter.increment();
+                Entry loading = entry;
+                // Subscribed outside of the lock and not tied to the subscriber, so the other readers get the cards if it cancels
+                loader.apply(customerId)
+                        .doOnSuccess(cards -> loading.expireAt = System.currentTimeMillis() + ttlMillis)
+                        .doOnError(e -> remove(customerId, loading))
+                        .subscribe(loading.cards);
+                return loading.cards;
+            }
+            (entry.expireAt > 0 ? hitCounter : joinedCounter).increment();
+            return entry.cards;
+        });
+    }
+
+    /**
+     * Drop the cached cards of a customer, so they are read from Stripe again.
+     * A read which is in flight still completes for its readers but is not cached.
+     *
+     * @param customerId Id of the Stripe customer
+     */
+    public void invalidate(String customerId) {
+        if (customerId == null) {
+            return;
+        }
+        synchronized (entries) {
+            entries.remove(customerId);
+        }
+    }
+
+    /**
+     * Drop the cached cards of every customer owning a payment method.
+     * Used if the customer is not known anymore, e.g. after the payment method was detached.
+     *
+     * @param paymentMethodId Id of the payment method
+     */
+    public void invalidatePaymentMethod(String paymentMethodId) {
+        synchronized (entries) {
+            entries.values().removeIf(entry -> {
+                List<Card> cards = entry.cards.peek();
+                return cards != null && cards.stream().anyMatch(card -> paymentMethodId.equals(card.getId()));
+            });
+        }
+    }
+
+    /**
+     * @return Number of customers whose cards are held in memory
+     */
+    public int cached() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    private void remove(String customerId, Entry entry) {
+        synchronized (entries) {
+            entries.remove(customerId, entry);
+        }
+    }
+
+    private static Counter counter(MeterRegistry meterRegistry, String result) {
+        return Counter.builder("bbqb.stripe.payment_methods.reads")
+                .description("Number of reads of the cards of a Stripe customer by result")
+                .tag("result", result)
+                .register(meterRegistry);
+    }
+
+    private static final class Entry {
+        private final MonoProcessor<List<Card>> cards = MonoProcessor.create();
+        // 0 as long as the cards are read
+        private volatile long expireAt = 0;
+
+        private boolean isExpired(long now) {
+            return expireAt > 0 && expireAt <= now;
+        }
+    }
+}
@@ -0,0 +1,257 @@
+package de.bbqb.backend.stripe;
+
+import com.stripe.model.Event;
+import com.stripe.model.HasId;
+import com.stripe.model.StripeObject;
+import com.stripe.net.ApiResource;
+import de.bbqb.backend.api.model.service.StripeEventLog;
+import de.bbqb.backend.concurrent.KeyedSerialExecutor;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.time.Duration;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records received Stripe webhook events and applies them on a dedicated pool of worker threads,
+ * so the webhook is acknowledged as soon as the event is stored no matter how long Firestore and the devices take.
+ * Events of the same object, e.g. a payment intent, are applied one after another in the order they were received
+ * while events of different objects are applied in parallel.
+ * If the event cannot be recorded or the queue is full the event is rejected, so Stripe delivers it again later.
+ * Events which were recorded but not applied within the lease, e.g. because an instance stopped before it applied them,
+ * are claimed from the {@link StripeEventLog} and applied by the next instance checking for them.
+ *
+ * @author Marius Degen
+ */
+@Component
+public class StripeEventDispatcher {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(StripeEventDispatcher.class);
+    private static final long DRAIN_TIMEOUT_SECONDS = 20;
+
+    private final StripeEventLog stripeEventLog;
+    private final StripeEventHandler stripeEventHandler;
+    private final int queueCapacity;
+    private final Duration processingTimeout;
+    private final long leaseMillis;
+    private final KeyedSerialExecutor executor;
+    private final ScheduledExecutorService recoverer;
+    // Time each queued event was received at in nanoseconds, to report the age of the oldest one
+    private final Map<Object, Long> queued = new ConcurrentHashMap<>();
+    private final Timer waitTimer;
+    private final Timer processingTimer;
+    private final Counter rejectedCounter;
+    private final Counter failedCounter;
+    private final Counter recoveredCounter;
+
+    public StripeEventDispatcher(StripeEventLog stripeEventLog,
+                                 StripeEventHandler stripeEventHandler,
+                                 @Value("${bbq.backend.stripe.webhook.threads}") int threads,
+                                 @Value("${bbq.backend.stripe.webhook.queue-capacity}") int queueCapacity,
+                                 @Value("${bbq.backend.stripe.webhook.processing-timeout}") long processingTimeoutMillis,
+                                 @Value("${bbq.backend.stripe.webhook.lease}") long leaseSeconds,
+                                 MeterRegistry meterRegistry) {
+        this.stripeEventLog = stripeEventLog;
+        this.stripeEventHandler = stripeEventHandler;
+        this.queueCapacity = queueCapacity;
+        this.processingTimeout = Duration.ofMillis(processingTimeoutMillis);
+        this.leaseMillis = leaseSeconds * 1000;
+        this.executor = new KeyedSerialExecutor("stripe-event", threads, queueCapacity);
+        this.recoverer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "stripe-event-recoverer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        Gauge.builder("bbqb.stripe.webhook.queue.depth", executor, KeyedSerialExecutor::pending)
+                .description("Number of queued and running Stripe events")
+                .register(meterRegistry);
+        Gauge.builder("bbqb.stripe.webhook.queue.age", this, StripeEventDispatcher::oldestQueuedSeconds)
+                .description("Seconds the oldest queued Stripe event is waiting")
+                .baseUnit("seconds")
+                .register(meterRegistry);
+        this.waitTimer = Timer.builder("bbqb.stripe.webhook.queue.wait")
+                .description("Time a Stripe event waited in the queue")
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+        this.processingTimer = Timer.builder("bbqb.stripe.webhook.processing")
+                .description("Time it took to apply a queued Stripe event")
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+        this.rejectedCounter = Counter.builder("bbqb.stripe.webhook.rejected")
+                .description("Number of Stripe events rejected because the queue was full or the event could not be recorded")
+                .register(meterRegistry);
+        this.failedCounter = Counter.builder("bbqb.stripe.webhook.failed")
+                .description("Number of Stripe events which could not be applied")
+                .register(meterRegistry);
+        this.recoveredCounter = Counter.builder("bbqb.stripe.webhook.recovered")
+                .description("Number of Stripe events which were recorded but not applied in time and were applied again")
+                .register(meterRegistry);
+    }
+
+    @PostConstruct
+    public void start() {
+        // Events abandoned by stopped instances are applied right after the start
+        recoverer.scheduleWithFixedDelay(this::recover, 0, leaseMillis / 2, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Record an event and queue it behind the other events of its object.
+     * The event must only be acknowledged once the returned Mono completed.
+     *
+     * @param event        The verified event
+     * @param stripeObject The object of the event
+     * @param payload      The event as sent by Stripe, to apply it later if this instance stops before
+     * @return Mono completing when the event was recorded and queued or was ignored as duplicate or out of order.
+     * Fails with a {@link RejectedExecutionException} in case the queue is full and with the error of the event log
+     * in case the event could not be recorded.
+     */
+    public Mono<Void> accept(Event event, StripeObject stripeObject, String payload) {
+        return Mono.defer(() -> {
+            if (executor.pending() >= queueCapacity) {
+                // Checked before recording, so a full queue does not cost a transaction
+                rejectedCounter.increment();
+                return Mono.error(new RejectedExecutionException("Stripe event queue is full"));
+            }
+            String objectId = objectId(stripeObject);
+            return stripeEventLog.record(event.getId(), event.getType(), objectId, event.getCreated(), payload)
+                    .doOnError(e -> {
+                        rejectedCounter.increment();
+                        LOGGER.warn("Unable to record event " + event.getId() + ": " + e.getMessage());
+                    })
+                    .flatMap(delivery -> {
+                        if (delivery != StripeEventLog.Delivery.APPLY) {
+                            LOGGER.info("Ignoring " + delivery + " event " + event.getId() + " of type " + event.getType());
+                            return Mono.empty();
+                        }
+                        try {
+                            dispatch(event, stripeObject, objectId);
+                            return Mono.empty();
+                        } catch (RejectedExecutionException e) {
+                            // Stripe delivers the event again, which has to be applied then
+                            return stripeEventLog.forget(event.getId())
+                                    .onErrorResume(forgetError -> Mono.empty())
+                                    .then(Mono.error(e));
+                        }
+                    })
+                    .then();
+        });
+    }
+
+    /**
+     * @return The number of queued and running events
+     */
+    public int pending() {
+        return executor.pending();
+    }
+
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        recoverer.shutdownNow();
+        // Events which are not applied by then are applied by another instance after their lease
+        if (!executor.shutdown(DRAIN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+            LOGGER.warn("Stripe events still pending on shutdown: " + executor.pending());
+        }
+    }
+
+    /**
+     * Claim the events abandoned by other instances and queue them
+     */
+    void recover() {
+        try {
+            stripeEventLog.claimAbandoned(leaseMillis)
+                    .doOnNext(this::reapply)
+                    .blockLast();
+        } catch (RuntimeException e) {
+            LOGGER.warn("Unable to claim abandoned Stripe events", e);
+        }
+    }
+
+    private void reapply(String payload) {
+        Event event = ApiResource.GSON.fromJson(payload, Event.class);
+        Optional<StripeObject> stripeObject = event.getDataObjectDeserializer().getObject();
+        if (!stripeObject.isPresent()) {
+            // Would be claimed again and again
+            LOGGER.warn("Unable to deserialize the object of abandoned event " + event.getId() + ". Dropping it.");
+            stripeEventLog.forget(event.getId()).onErrorResume(e -> Mono.empty()).block();
+            return;
+        }
+        try {
+            dispatch(event, stripeObject.get(), objectId(stripeObject.get()));
+            recoveredCounter.increment();
+            LOGGER.info("Applying abandoned event " + event.getId() + " of type " + event.getType());
+        } catch (RejectedExecutionException e) {
+            // Claimed again after the lease
+            LOGGER.warn("Rejected abandoned event " + event.getId() + ": " + e.getMessage());
+        }
+    }
+
+    private void dispatch(Event event, StripeObject stripeObject, String objectId) {
+        long enqueuedAt = System.nanoTime();
+        // Redeliveries of an event may be queued at the same time, so each one gets its own token
+        Object token = new Object();
+        queued.put(token, enqueuedAt);
+        try {
+            // Events without an object are not ordered
+            executor.execute(objectId != null ? objectId : event.getId(), () -> {
+                long startedAt = System.nanoTime();
+                queued.remove(token);
+                waitTimer.record(startedAt - enqueuedAt, TimeUnit.NANOSECONDS);
+                try {
+                    apply(event, stripeObject).block();
+                } catch (RuntimeException e) {
+                    LOGGER.error("Error while processing event " + event.getId() + " of type " + event.getType(), e);
+                    failedCounter.increment();
+                } finally {
+                    processingTimer.record(System.nanoTime() - startedAt, TimeUnit.NANOSECONDS);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            queued.remove(token);
+            rejectedCounter.increment();
+            LOGGER.warn("Rejected event " + event.getId() + ": " + e.getMessage());
+            throw e;
+        }
+    }
+
+    private Mono<Void> apply(Event event, StripeObject stripeObject) {
+        return Mono.defer(() -> stripeEventHandler.handle(event, stripeObject))
+                // Holds up the following events of the object at most this long
+                .timeout(processingTimeout)
+                // So that the event is applied if it is resent from the Stripe dashboard.
+                // Also after a timeout, as the event may have been applied only partly.
+                .onErrorResume(e -> stripeEventLog.forget(event.getId())
+                        .onErrorResume(forgetError -> Mono.empty())
+                        .then(Mono.error(e)))
+                // An event which cannot be marked is applied again after its lease
+                .then(Mono.defer(() -> stripeEventLog.applied(event.getId())
+                        .doOnError(e -> LOGGER.warn("Unable to mark event " + event.getId() + " as applied: " + e.getMessage()))
+                        .onErrorResume(e -> Mono.empty())));
+    }
+
+    private static String objectId(StripeObject stripeObject) {
+        return stripeObject instanceof HasId ? ((HasId) stripeObject).getId() : null;
+    }
+
+    private double oldestQueuedSeconds() {
+        long now = System.nanoTime();
+        return queued.values().stream()
+                .mapToLong(enqueuedAt -> now - enqueuedAt)
+                .max()
+                .orElse(0) / 1e9;
+    }
+}
@@ -0,0 +1,161 @@
+package de.bbqb.backend.stripe;
+
+import com.stripe.model.Event;
+import com.stripe.model.PaymentIntent;
+import com.stripe.model.PaymentMethod;
+import com.stripe.model.SetupIntent;
+import com.stripe.model.StripeObject;
+import de.bbqb.backend.api.model.entity.Booking;
+import de.bbqb.backend.api.model.service.BookingService;
+import de.bbqb.backend.api.model.service.DeviceService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+
+import java.util.Map;
+
+/**
+ * Applies Stripe webhook events to bookings and devices
+ *
+ * @author Marius Degen
+ */
+@Component
+public class StripeEventHandler {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(StripeEventHandler.class);
+
+    private final BookingService bookingService;
+    private final DeviceService deviceService;
+    private final PaymentMethodCache paymentMethodCache;
+    private final StripeService stripeService;
+
+    public StripeEventHandler(BookingService bookingService,
+                              DeviceService deviceService,
+                              PaymentMethodCache paymentMethodCache,
+                              StripeService stripeService) {
+        this.bookingService = bookingService;
+        this.deviceService = deviceService;
+        this.paymentMethodCache = paymentMethodCache;
+        this.stripeService = stripeService;
+    }
+
+    /**
+     * Apply an event
+     *
+     * @param event        The event
+     * @param stripeObject The object of the event
+     * @return Mono completing when the event was applied. A device booked in advance is opened by the session opener when its session starts.
+     */
+    public Mono<Void> handle(Event event, StripeObject stripeObject) {
+        switch (event.getType()) {
+            case "card.issuing_card.created":
+                LOGGER.info("Received event of type card.issuing_card.created");
+                //Card card = (Card) stripeObject;
+                return Mono.empty();
+            case "payment_method.attached":
+                LOGGER.info("Received event of type payment_method.attached");
+                PaymentMethod attachedPaymentMethod = (PaymentMethod) stripeObject;
+                paymentMethodCache.invalidate(attachedPaymentMethod.getCustomer());
+                return Mono.empty();
+            case "payment_method.detached":
+                LOGGER.info("Received event of type payment_method.detached");
+                PaymentMethod detachedPaymentMethod = (PaymentMethod) stripeObject;
+                // The customer of a detached payment method is only part of the previous attributes
+                Map<String, Object> previousAttributes = event.getData() != null ? event.getData().getPreviousAttributes() : null;
+                Object customer = previousAttributes != null ? previousAttributes.get("customer") : null;
+                if (customer instanceof String) {
+                    paymentMethodCache.invalidate((String) customer);
+                } else {
+                    paymentMethodCache.invalidatePaymentMethod(detachedPaymentMethod.getId());
+                }
+                return Mono.empty();
+            case "setup_intent.succeeded":
+                LOGGER.info("Received event of type setup_intent.succeeded");
+                SetupIntent setupIntent = (SetupIntent) stripeObject;
+                paymentMethodCache.invalidate(setupIntent.getCustomer());
+                return Mono.empty();
+            case "setup_intent.setup_failed":
+                LOGGER.info("Received event of type setup_intent.setup_failed");
+                //SetupIntent paymentIntent = (SetupIntent) stripeObject;
+                return Mono.empty();
+            case "payment_intent.succeeded":
+                LOGGER.info("Received event of type payment_intent.succeeded");
+                PaymentIntent paymentIntent = (PaymentIntent) stripeObject;
+                return this.bookingService.findBookingByPaymentIntentId(paymentIntent.getId())
+                        .doOnSuccess(data -> {
+                            if (data == null) {
+                                LOGGER.warn("No booking found for successful payment " + paymentIntent.getId());
+                            }
+                        })
+                        .flatMap(booking -> {
+                            if (!"pending".equals(booking.getStatus())) {
+                                return settleLatePayment(booking);
+                            }
+                            return bookingService.updateBooking(withStatus(booking, "payed"))
+                                    // The booking may have expired since it was read
+                                    .flatMap(updated -> "payed".equals(updated.getStatus())
+                                            ? deviceService.readDevice(updated.getDeviceId()).flatMap(device -> openDevice(updated, device.getDeviceId()))
+                                            : settleLatePayment(updated));
+                        });
+            case "payment_intent.payment_failed":
+                LOGGER.info("Received event of type payment_intent.payment_failed");
+                PaymentIntent failedPaymentIntent = (PaymentIntent) stripeObject;
+                return this.bookingService.findBookingByPaymentIntentId(failedPaymentIntent.getId())
+                        // The device of a booking which expired may be booked by someone else already
+                        .filter(booking -> "pending".equals(booking.getStatus()))
+                        .map(booking -> withStatus(booking, "payment_failed"))
+                        .flatMap(bookingService::updateBooking)
+                        // The booking may have expired since it was read
+                        .filter(booking -> "payment_failed".equals(booking.getStatus()))
+                        .flatMap(booking -> deviceService.releaseDevice(booking.getDeviceId()))
+                        .then();
+            default:
+                LOGGER.warn("Unhandled event type: " + event.getType());
+                return Mono.empty();
+        }
+    }
+
+    /**
+     * Handle a payment which succeeded for a booking which is not pending anymore, e.g. because it expired and its
+     * device may be booked by someone else already. A succeeded payment intent cannot be canceled, so it is refunded.
+     */
+    private Mono<Void> settleLatePayment(Booking booking) {
+        if ("payed".equals(booking.getStatus())) {
+            return Mono.empty();
+        }
+        LOGGER.warn("Payment succeeded for booking " + booking.getId() + " with status " + booking.getStatus() + ". Refunding it.");
+        return stripeService.refundPaymentIntent(booking.getPaymentIntentId()).then();
+    }
+
+    private static Booking withStatus(Booking booking, String status) {
+        return new Booking(
+                booking.getId(),
+                booking.getPaymentIntentId(),
+                booking.getDeviceId(),
+                booking.getUserId(),
+                status,
+                booking.getRequestTime(),
+                booking.getSessionStart(),
+                booking.getPayment(),
+                booking.getTimeslot());
+    }
+
+    private Mono<Void> openDevice(Booking booking, String deviceId) {
+        if (isBookedInAdvance(booking)) {
+            // Opened when its session starts by every instance which received the payed booking, so it survives a restart
+            return Mono.empty();
+        }
+        return Mono.defer(() -> this.deviceService.openDevice(deviceId, booking.getTimeslot()))
+                .doOnError(e -> LOGGER.warn("Unable to open device " + deviceId + ": " + e.getMessage()))
+                // The payment was applied, a resent event would not open the device either
+                .onErrorResume(e -> Mono.empty())
+                .then();
+    }
+
+    // Bookings for right away start their session when they are requested
+    private static boolean isBookedInAdvance(Booking booking) {
+        return booking.getSessionStart() != null && booking.getRequestTime() != null
+                && booking.getSessionStart().after(booking.getRequestTime());
+    }
+}
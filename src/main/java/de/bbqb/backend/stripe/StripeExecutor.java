@@ -0,0 +1,184 @@
+package de.bbqb.backend.stripe;
+
+import com.stripe.exception.StripeException;
+import com.stripe.net.RequestOptions;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import javax.annotation.PreDestroy;
+import java.time.Duration;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Bulkhead for the blocking calls of the Stripe SDK.
+ * Calls run on a fixed pool of threads reserved for Stripe with a bounded queue in front of it,
+ * so a slow Stripe API blocks neither Jetty threads nor Firestore callback threads.
+ * Calls are rejected with a {@link RejectedExecutionException} once the queue is full
+ * or if they did not start within {@code bbq.backend.stripe.executor.queue-timeout} milliseconds.
+ * A call which started is not abandoned, as a write like a confirmed payment intent would still be executed by Stripe,
+ * so it is bounded by the connect and read timeout of its request instead.
+ *
+ * @author Marius Degen
+ */
+@Component
+public class StripeExecutor {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(StripeExecutor.class);
+    // Requests with an idempotency key are retried on network errors. Stripe answers a retry with the result of the first request.
+    private static final int NETWORK_RETRIES = 1;
+
+    private enum State {QUEUED, RUNNING, ABANDONED}
+
+    /**
+     * A blocking call of the Stripe SDK
+     */
+    @FunctionalInterface
+    public interface StripeCall<T> {
+        /**
+         * @param options Request options with the timeout of the operation and the idempotency key, which have to be passed to the SDK
+         */
+        T call(RequestOptions options) throws StripeException;
+    }
+
+    private final ThreadPoolExecutor executor;
+    private final Scheduler scheduler;
+    private final Duration queueTimeout;
+    private final MeterRegistry meterRegistry;
+    private final Timer waitTimer;
+    private final Counter rejectedCounter;
+
+    public StripeExecutor(@Value("${bbq.backend.stripe.executor.threads}") int threads,
+                          @Value("${bbq.backend.stripe.executor.queue-capacity}") int queueCapacity,
+                          @Value("${bbq.backend.stripe.executor.queue-timeout}") long queueTimeoutMillis,
+                          MeterRegistry meterRegistry) {
+        AtomicInteger threadCount = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(queueCapacity), runnable -> {
+            Thread thread = new Thread(runnable, "stripe-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.scheduler = Schedulers.fromExecutorService(executor, "stripe");
+        this.queueTimeout = Duration.ofMillis(queueTimeoutMillis);
+        this.meterRegistry = meterRegistry;
+        Gauge.builder("bbqb.stripe.executor.active", executor, ThreadPoolExecutor::getActiveCount)
+                .description("Number of Stripe calls running")
+                .register(meterRegistry);
+        Gauge.builder("bbqb.stripe.executor.queued", executor, e -> e.getQueue().size())
+                .description("Number of Stripe calls waiting for a thread")
+                .register(meterRegistry);
+        this.waitTimer = Timer.builder("bbqb.stripe.executor.wait")
+                .description("Time a Stripe call waited for a thread")
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+        this.rejectedCounter = Counter.builder("bbqb.stripe.executor.rejected")
+                .description("Number of Stripe calls rejected because the queue was full or they waited too long for a thread")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Run a call of the Stripe SDK on the Stripe threads
+     *
+     * @param operation Name of the operation for the metrics, e.g. payment_intent.create
+     * @param timeout   Connect and read timeout of the request
+     * @param call      The blocking call
+     * @return Mono emitting the result of the call
+     */
+    public <T> Mono<T> execute(String operation, Duration timeout, StripeCall<T> call) {
+        return execute(operation, timeout, null, call);
+    }
+
+    /**
+     * Run a call of the Stripe SDK on the Stripe threads
+     *
+     * @param operation      Name of the operation for the metrics, e.g. payment_intent.create
+     * @param timeout        Connect and read timeout of the request
+     * @param idempotencyKey Key with which stripe executes a request only once if it is retried or null.
+     *                       A request with a key is retried once on network errors.
+     * @param call           The blocking call
+     * @return Mono emitting the result of the call
+     */
+    public <T> Mono<T> execute(String operation, Duration timeout, String idempotencyKey, StripeCall<T> call) {
+        return Mono.defer(() -> {
+            long enqueuedAt = System.nanoTime();
+            AtomicReference<State> state = new AtomicReference<>(State.QUEUED);
+            return Mono.fromCallable(() -> {
+                if (!state.compareAndSet(State.QUEUED, State.RUNNING)) {
+                    throw new RejectedExecutionException("Stripe call " + operation + " was abandoned in the queue");
+                }
+                waitTimer.record(System.nanoTime() - enqueuedAt, TimeUnit.NANOSECONDS);
+                return call.call(requestOptions(timeout, idempotencyKey));
+            })
+                    .subscribeOn(scheduler)
+                    // Only bounds the time in the queue. Once the call runs it ends with its read timeout.
+                    .timeout(Mono.delay(queueTimeout).flatMap(tick -> state.compareAndSet(State.QUEUED, State.ABANDONED)
+                            ? Mono.just(tick)
+                            : Mono.never()))
+                    .onErrorMap(TimeoutException.class, e -> {
+                        // The abandoned call is cancelled but would hold its place in the queue until a thread takes it
+                        executor.purge();
+                        return new RejectedExecutionException("Stripe call " + operation + " did not start within " + queueTimeout.toMillis() + " ms");
+                    })
+                    .doOnSuccess(result -> record(operation, "success", enqueuedAt))
+                    .doOnError(e -> {
+                        if (e instanceof RejectedExecutionException) {
+                            rejectedCounter.increment();
+                            LOGGER.warn("Rejected Stripe call " + operation + ": " + e.getMessage());
+                        }
+                        record(operation, outcome(e), enqueuedAt);
+                    });
+        });
+    }
+
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        executor.shutdown();
+        if (!executor.awaitTermination(10, TimeUnit.SECONDS)) {
+            LOGGER.warn("Stripe calls still running on shutdown: " + executor.getActiveCount());
+        }
+    }
+
+    private void record(String operation, String outcome, long enqueuedAt) {
+        Timer.builder("bbqb.stripe.calls")
+                .description("Time a Stripe call took including the time waiting for a thread")
+                .tag("operation", operation)
+                .tag("outcome", outcome)
+                .publishPercentileHistogram()
+                .register(meterRegistry)
+                .record(System.nanoTime() - enqueuedAt, TimeUnit.NANOSECONDS);
+    }
+
+    private static String outcome(Throwable error) {
+        if (error instanceof RejectedExecutionException) {
+            return "rejected";
+        }
+        return "error";
+    }
+
+    private static RequestOptions requestOptions(Duration timeout, String idempotencyKey) {
+        int timeoutMillis = (int) timeout.toMillis();
+        RequestOptions.RequestOptionsBuilder builder = RequestOptions.builder()
+                .setConnectTimeout(timeoutMillis)
+                .setReadTimeout(timeoutMillis);
+        if (idempotencyKey != null) {
+            // Stripe returns the result of the first request for a key it saw within the last 24 hours
+            builder.setIdempotencyKey(idempotencyKey)
+                    .setMaxNetworkRetries(NETWORK_RETRIES);
+        }
+        return builder.build();
+    }
+}
@@ -6,7 +6,7 @@ import com.stripe.model.*;
 import com.stripe.model.checkout.Session;
 import com.stripe.param.CustomerCreateParams;
 import com.stripe.param.PaymentIntentCreateParams;
-import com.stripe.param.PaymentMethodListParams;
+import com.stripe.param.RefundCreateParams;
 import com.stripe.param.SetupIntentCreateParams;
 import com.stripe.param.checkout.SessionCreateParams;
 import de.bbqb.backend.api.model.entity.Card;
@@ -18,20 +18,41 @@ import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import reactor.core.publisher.Mono;
 
+import java.time.Duration;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
 import java.util.stream.Collectors;
 
 
 @Service
 public class StripeService implements CustomerService {
 
+    // Statuses in which a payment intent can still be canceled
+    private static final Set<String> CANCELABLE_STATUSES = Set.of(
+            "requires_payment_method", "requires_confirmation", "requires_action", "requires_capture");
+
     private UserService userService;
+    private StripeExecutor stripeExecutor;
+    private PaymentMethodCache paymentMethodCache;
+    private Duration readTimeout;
+    private Duration writeTimeout;
 
-    public StripeService(@Value("${bbq.backend.stripe.apikey}") String apiKey, UserService userService) {
+    public StripeService(@Value("${bbq.backend.stripe.apikey}") String apiKey,
+                         UserService userService,
+                         StripeExecutor stripeExecutor,
+                         PaymentMethodCache paymentMethodCache,
+                         @Value("${bbq.backend.stripe.timeout.read}") long readTimeoutMillis,
+                         @Value("${bbq.backend.stripe.timeout.write}") long writeTimeoutMillis) {
         Stripe.apiKey = apiKey;
         this.userService = userService;
+        this.stripeExecutor = stripeExecutor;
+        this.paymentMethodCache = paymentMethodCache;
+        this.readTimeout = Duration.ofMillis(readTimeoutMillis);
+        this.writeTimeout = Duration.ofMillis(writeTimeoutMillis);
     }
 
     /**
@@ -41,29 +62,34 @@ public class StripeService implements CustomerService {
      * @return A Mono emitting the created user
      */
     public Mono<User> createCustomer(String userId) {
+        return createCustomer(userId, null);
+    }
+
+    /**
+     * Create a new customer
+     *
+     * @param userId         Id of an existing user
+     * @param idempotencyKey Key with which stripe creates the customer only once if the request is retried or null
+     * @return A Mono emitting the created user
+     */
+    public Mono<User> createCustomer(String userId, String idempotencyKey) {
         // TODO: Check if it makes sense the require an existing user before creating a stripe customer. Maybe move firbase user creation into this method
         return userService.readUser(userId)
-                .flatMap(user ->
-                        Mono.create(userMonoSink -> {
-                            CustomerCreateParams customerParam = new CustomerCreateParams.Builder()
-                                    .setEmail(user.getEmail())
-                                    .setName(user.getFirstName() + " " + user.getLastName())
-                                    .build();
-                            try {
-                                Customer stripeCustomer = Customer.create(customerParam); // Blocking request
-                                User newCustomer = new User(
-                                        user.getId(),
-                                        stripeCustomer.getId(),
-                                        null,
-                                        user.getFirstName(),
-                                        user.getLastName(),
-                                        user.getEmail());
-                                userMonoSink.success(newCustomer);
-                            } catch (StripeException e) {
-                                e.printStackTrace();
-                                userMonoSink.error(e);
-                            }
-                        }));
+                .flatMap(user -> {
+                    CustomerCreateParams customerParam = new CustomerCreateParams.Builder()
+                            .setEmail(user.getEmail())
+                            .setName(user.getFirstName() + " " + user.getLastName())
+                            .build();
+                    return stripeExecutor.execute("customer.create", writeTimeout, idempotencyKey,
+                            options -> Customer.create(customerParam, options))
+                            .map(stripeCustomer -> new User(
+                                    user.getId(),
+                                    stripeCustomer.getId(),
+                                    null,
+                                    user.getFirstName(),
+                                    user.getLastName(),
+                                    user.getEmail()));
+                });
     }
 
     /**
@@ -75,21 +101,25 @@ public class StripeService implements CustomerService {
      */
     public Mono<String> createSetupCardSession(String userId) {
         return userService.readUser(userId)
-                .flatMap(user -> Mono.create(monoSink -> {
-                    SessionCreateParams params =
-                            SessionCreateParams.builder()
-                                    .addPaymentMethodType(SessionCreateParams.PaymentMethodType.CARD)
-                                    .setMode(SessionCreateParams.Mode.SETUP)
-                                    .addExpand("setup_intent")
-                                    .setCustomer(user.getStripeCustomerId())
-                                    .build();
-                    try {
-                        Session session = Session.create(params);
-                        monoSink.success(session.getId());
-                    } catch (StripeException e) {
-                        monoSink.error(e);
-                    }
-                }));
+                .flatMap(this::createSetupCardSession);
+    }
+
+    /**
+     * Setup a stripe setup session to allow a client to add a card to an existing user.
+     *
+     * @param user The already read user for which a card should be added
+     * @return A stripe session id that a client can use to call stripe API and add card details
+     */
+    public Mono<String> createSetupCardSession(User user) {
+        SessionCreateParams params =
+                SessionCreateParams.builder()
+                        .addPaymentMethodType(SessionCreateParams.PaymentMethodType.CARD)
+                        .setMode(SessionCreateParams.Mode.SETUP)
+                        .addExpand("setup_intent")
+                        .setCustomer(user.getStripeCustomerId())
+                        .build();
+        return stripeExecutor.execute("checkout_session.create", writeTimeout, options -> Session.create(params, options))
+                .map(Session::getId);
     }
 
     /**
@@ -101,17 +131,21 @@ public class StripeService implements CustomerService {
      */
     public Mono<Card> createSetupCardIntent(String userId) {
         return userService.readUser(userId)
-                .flatMap(user -> Mono.create(monoSink -> {
-                    try {
-                        SetupIntentCreateParams setupIntentParams = SetupIntentCreateParams.builder()
-                                .setCustomer(user.getStripeCustomerId())
-                                .build();
-                        SetupIntent setupIntent = SetupIntent.create(setupIntentParams);
-                        monoSink.success(new de.bbqb.backend.api.model.entity.Card(setupIntent.getClientSecret()));
-                    } catch (StripeException e) {
-                        monoSink.error(e);
-                    }
-                }));
+                .flatMap(this::createSetupCardIntent);
+    }
+
+    /**
+     * Create a Stripe card setup intent to add a new card to a user
+     *
+     * @param user the already read user to add the new card to
+     * @return A Mono emitting the created card
+     */
+    public Mono<Card> createSetupCardIntent(User user) {
+        SetupIntentCreateParams setupIntentParams = SetupIntentCreateParams.builder()
+                .setCustomer(user.getStripeCustomerId())
+                .build();
+        return stripeExecutor.execute("setup_intent.create", writeTimeout, options -> SetupIntent.create(setupIntentParams, options))
+                .map(setupIntent -> new de.bbqb.backend.api.model.entity.Card(setupIntent.getClientSecret()));
     }
 
     /**
@@ -126,45 +160,118 @@ public class StripeService implements CustomerService {
      */
     public Mono<Payment> createCardPaymentIntent(String userId, Long amount, String paymentMethodId) {
         return userService.readUser(userId)
-                .flatMap(user -> Mono.create(monoSink -> {
-                    try {
-                        PaymentMethodListParams params =
-                                PaymentMethodListParams.builder()
-                                        .setCustomer(user.getStripeCustomerId())
-                                        .setType(PaymentMethodListParams.Type.CARD)
-                                        .build();
-                        // Retrieve all card payment methods for this user
-                        PaymentMethodCollection paymentMethods = PaymentMethod.list(params); // May throw StripeException
-
-                        // Check if the paymentMethodId is valid for the selected user
-                        if (paymentMethods.getData().stream().anyMatch(paymentMethod -> paymentMethod.getId().contentEquals(paymentMethodId))) {
-                            PaymentIntentCreateParams paymentIntentParams = PaymentIntentCreateParams.builder()
-                                    .setCustomer(user.getStripeCustomerId())
-                                    .setCurrency("eur")
-                                    .setAmount(amount)
-                                    .setReceiptEmail(user.getEmail())
-                                    .setPaymentMethod(paymentMethodId)
-                                    .setConfirm(true) // TODO: Check if it's necessary to confirm on the server side
-                                    .setOffSession(true) // With this set to true PaymentIntent throws an error if authentication is required!
-                                    .build();
-                            PaymentIntent paymentIntent = PaymentIntent.create(paymentIntentParams); // May throw StripeException
-
-                            monoSink.success(
-                                    new Payment(
-                                            paymentIntent.getId(),
-                                            paymentIntent.getClientSecret(),
-                                            paymentMethodId,
-                                            paymentIntent.getAmount(),
-                                            "germany", // The country where the service is deliverd. Currently hard coded but can be read from the device document
-                                            paymentIntent.getCurrency(),
-                                            "BBQ BUTLER Miete"));
-                        } else {
-                            monoSink.error(new Exception("No payment method with id " + paymentMethodId + " found for user " + user.getId()));
-                        }
-                    } catch (StripeException e) {
-                        monoSink.error(e);
+                .flatMap(user -> createCardPaymentIntent(user, amount, paymentMethodId));
+    }
+
+    /**
+     * Create a stripe payment intent to pay with a credit card
+     *
+     * @param user            the already read card owner
+     * @param amount          the amount to charge
+     * @param paymentMethodId the id of the payment method(card)
+     * @return A Mono emitting a payment object containing the payment intent and payment information
+     * @throws Exception       in case no payment method with the given id was found
+     * @throws StripeException in case communication with stripe fails
+     */
+    public Mono<Payment> createCardPaymentIntent(User user, Long amount, String paymentMethodId) {
+        return createCardPaymentIntent(user, amount, paymentMethodId, null);
+    }
+
+    /**
+     * Create a stripe payment intent to pay with a credit card
+     *
+     * @param user            the already read card owner
+     * @param amount          the amount to charge
+     * @param paymentMethodId the id of the payment method(card)
+     * @param idempotencyKey  key with which stripe creates the payment intent only once if the request is retried or null to generate one
+     * @return A Mono emitting a payment object containing the payment intent and payment information
+     * @throws Exception       in case no payment method with the given id was found
+     * @throws StripeException in case communication with stripe fails
+     */
+    public Mono<Payment> createCardPaymentIntent(User user, Long amount, String paymentMethodId, String idempotencyKey) {
+        // Check if the paymentMethodId is valid for the selected user
+        return readCards(user)
+                .flatMap(cards -> {
+                    if (containsCard(cards, paymentMethodId)) {
+                        return Mono.just(cards);
+                    }
+                    // The card may have been added after the cards were cached, e.g. on another instance
+                    paymentMethodCache.invalidate(user.getStripeCustomerId());
+                    return readCards(user);
+                })
+                .flatMap(cards -> {
+                    if (!containsCard(cards, paymentMethodId)) {
+                        return Mono.error(new Exception("No payment method with id " + paymentMethodId + " found for user " + user.getId()));
                     }
-                }));
+                    PaymentIntentCreateParams paymentIntentParams = PaymentIntentCreateParams.builder()
+                            .setCustomer(user.getStripeCustomerId())
+                            .setCurrency("eur")
+                            .setAmount(amount)
+                            .setReceiptEmail(user.getEmail())
+                            .setPaymentMethod(paymentMethodId)
+                            .setConfirm(true) // TODO: Check if it's necessary to confirm on the server side
+                            .setOffSession(true) // With this set to true PaymentIntent throws an error if authentication is required!
+                            .build();
+                    // The payment intent is confirmed right away, so a request which is retried after a network error must not charge the card twice
+                    String key = idempotencyKey != null ? idempotencyKey : UUID.randomUUID().toString();
+                    return stripeExecutor.execute("payment_intent.create", writeTimeout, key,
+                            options -> PaymentIntent.create(paymentIntentParams, options));
+                })
+                .map(paymentIntent -> new Payment(
+                        paymentIntent.getId(),
+                        paymentIntent.getClientSecret(),
+                        paymentMethodId,
+                        paymentIntent.getAmount(),
+                        "germany", // The country where the service is deliverd. Currently hard coded but can be read from the device document
+                        paymentIntent.getCurrency(),
+                        "BBQ BUTLER Miete"));
+    }
+
+    /**
+     * Read the current status of a stripe payment intent
+     *
+     * @param paymentIntentId id of the payment intent
+     * @return A Mono emitting the status of the payment intent, e.g. "succeeded" or "processing"
+     * @throws StripeException in case communication with stripe fails
+     */
+    public Mono<String> readPaymentIntentStatus(String paymentIntentId) {
+        return stripeExecutor.execute("payment_intent.retrieve", readTimeout, options -> PaymentIntent.retrieve(paymentIntentId, options))
+                .map(PaymentIntent::getStatus);
+    }
+
+    /**
+     * Cancel a stripe payment intent, so it cannot be charged anymore.
+     * A payment intent which succeeded, is processing or was canceled before is left as it is.
+     *
+     * @param paymentIntentId id of the payment intent
+     * @return A Mono emitting the status of the payment intent afterwards, e.g. "canceled" or "succeeded"
+     * @throws StripeException in case communication with stripe fails
+     */
+    public Mono<String> cancelPaymentIntent(String paymentIntentId) {
+        return stripeExecutor.execute("payment_intent.retrieve", readTimeout, options -> PaymentIntent.retrieve(paymentIntentId, options))
+                .flatMap(paymentIntent -> {
+                    if (!CANCELABLE_STATUSES.contains(paymentIntent.getStatus())) {
+                        return Mono.just(paymentIntent.getStatus());
+                    }
+                    return stripeExecutor.<PaymentIntent>execute("payment_intent.cancel", writeTimeout, options -> paymentIntent.cancel(options))
+                            .map(PaymentIntent::getStatus);
+                });
+    }
+
+    /**
+     * Refund the whole amount of a payment intent which succeeded
+     *
+     * @param paymentIntentId id of the payment intent
+     * @return A Mono emitting the status of the refund, e.g. "succeeded" or "pending"
+     * @throws StripeException in case communication with stripe fails
+     */
+    public Mono<String> refundPaymentIntent(String paymentIntentId) {
+        RefundCreateParams params = RefundCreateParams.builder()
+                .setPaymentIntent(paymentIntentId)
+                .build();
+        // The key makes sure a payment intent is refunded once if its event is applied again
+        return stripeExecutor.execute("refund.create", writeTimeout, "refund-" + paymentIntentId, options -> Refund.create(params, options))
+                .map(Refund::getStatus);
     }
 
     /**
@@ -177,26 +284,31 @@ public class StripeService implements CustomerService {
     public Mono<Card> deleteCard(String cardId, String userId) {
         // TODO: validate if the customer has no open subscriptions if your about to delete the last remaining card otherwise fail
         return userService.readUser(userId)
-                .flatMap(user ->
-                        // TODO: Validate if the user is the customer associated with the card
-                        Mono.create(monoSink -> {
-                            try {
-                                PaymentMethod paymentMethod =
-                                        PaymentMethod.retrieve(cardId);
-
-                                PaymentMethod updatedPaymentMethod =
-                                        paymentMethod.detach();
-                                monoSink.success(new de.bbqb.backend.api.model.entity.Card(
-                                        paymentMethod.getId(),
-                                        null,
-                                        paymentMethod.getCard().getBrand(),
-                                        paymentMethod.getCard().getExpMonth(),
-                                        paymentMethod.getCard().getExpYear(),
-                                        paymentMethod.getCard().getLast4()));
-                            } catch (StripeException e) {
-                                monoSink.error(e);
-                            }
-                        }));
+                .flatMap(user -> deleteCard(cardId, user));
+    }
+
+    /**
+     * Delete a users credit card
+     *
+     * @param cardId
+     * @param user   The already read user owning the card
+     * @return A Mono emitting the deleted card
+     */
+    public Mono<Card> deleteCard(String cardId, User user) {
+        // TODO: Validate if the user is the customer associated with the card
+        return stripeExecutor.execute("payment_method.retrieve", readTimeout, options -> PaymentMethod.retrieve(cardId, options))
+                .flatMap(paymentMethod -> stripeExecutor.execute("payment_method.detach", writeTimeout, options -> paymentMethod.detach(options))
+                        .doOnSuccess(detached -> {
+                            paymentMethodCache.invalidate(paymentMethod.getCustomer());
+                            paymentMethodCache.invalidate(user.getStripeCustomerId());
+                        })
+                        .thenReturn(new de.bbqb.backend.api.model.entity.Card(
+                                paymentMethod.getId(),
+                                null,
+                                paymentMethod.getCard().getBrand(),
+                                paymentMethod.getCard().getExpMonth(),
+                                paymentMethod.getCard().getExpYear(),
+                                paymentMethod.getCard().getLast4())));
     }
 
     // TODO: Test the return value if no cards are found
@@ -209,31 +321,41 @@ public class StripeService implements CustomerService {
      */
     public Mono<List<Card>> readCards(String userId) {
         return userService.readUser(userId)
-                .flatMap(user ->
-                        Mono.create(cardMonoSink -> {
-                            Map<String, Object> params = new HashMap<>();
-                            params.put("customer", user.getStripeCustomerId());
-                            params.put("type", "card");
-                            try {
-                                PaymentMethodCollection paymentMethods =
-                                        PaymentMethod.list(params);
-                                cardMonoSink.success(
-                                        paymentMethods.getData()
-                                                .stream()
-                                                .map(paymentSource -> {
-                                                    PaymentMethod.Card card = paymentSource.getCard();
-                                                    return new Card(
-                                                            paymentSource.getId(),
-                                                            null,
-                                                            card.getBrand(),
-                                                            card.getExpMonth(),
-                                                            card.getExpYear(),
-                                                            card.getLast4());
-                                                })
-                                                .collect(Collectors.toList()));
-                            } catch (StripeException e) {
-                                cardMonoSink.error(e);
-                            }
-                        }));
+                .flatMap(this::readCards);
+    }
+
+    /**
+     * Read all cards for a particular user
+     *
+     * @param user the already read card owner. Must not be null.
+     * @return A Mono emitting a list of cards owned by the user
+     */
+    public Mono<List<Card>> readCards(User user) {
+        return paymentMethodCache.get(user.getStripeCustomerId(), this::listCards);
+    }
+
+    private Mono<List<Card>> listCards(String customerId) {
+        Map<String, Object> params = new HashMap<>();
+        params.put("customer", customerId);
+        params.put("type", "card");
+        return stripeExecutor.execute("payment_method.list", readTimeout, options -> PaymentMethod.list(params, options))
+                .map(paymentMethods -> paymentMethods.getData()
+                        .stream()
+                        .map(paymentSource -> {
+                            PaymentMethod.Card card = paymentSource.getCard();
+                            return new Card(
+                                    paymentSource.getId(),
+                                    null,
+                                    card.getBrand(),
+                                    card.getExpMonth(),
+                                    card.getExpYear(),
+                                    card.getLast4());
+                        })
+                        // Shared by all readers of the cache
+                        .collect(Collectors.collectingAndThen(Collectors.toList(), Collections::unmodifiableList)));
+    }
+
+    private static boolean containsCard(List<Card> cards, String paymentMethodId) {
+        return cards.stream().anyMatch(card -> card.getId().contentEquals(paymentMethodId));
     }
 }
@@ -0,0 +1,153 @@
+package de.bbqb.backend.stripe;
+
+import de.bbqb.backend.net.IpPrefixTrie;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * IP ranges Stripe sends webhook events from.
+ * The list is downloaded from {@code bbq.backend.stripe.webhook-ips-url} in the background after the start
+ * and every {@code bbq.backend.stripe.webhook-ips-refresh} seconds afterwards.
+ * If a download fails the last downloaded list is kept. Until the first download succeeded no address is allowed.
+ *
+ * @author Marius Degen
+ */
+@Component
+public class StripeWebhookAllowlist {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(StripeWebhookAllowlist.class);
+    private static final int TIMEOUT_MILLIS = 10000;
+    private static final long RETRY_SECONDS = 60;
+
+    private final String url;
+    private final String[] additionalRanges;
+    private final long refreshSeconds;
+    private final ScheduledExecutorService refresher;
+    private final Counter refreshFailedCounter;
+
+    // Replaced as a whole on every refresh, null until the first download succeeded
+    private volatile IpPrefixTrie ranges;
+    private volatile long lastRefreshMillis = 0;
+
+    public StripeWebhookAllowlist(@Value("${bbq.backend.stripe.webhook-ips-url}") String url,
+                                  @Value("${bbq.backend.stripe.webhook-ips-additional}") String[] additionalRanges,
+                                  @Value("${bbq.backend.stripe.webhook-ips-refresh}") long refreshSeconds,
+                                  MeterRegistry meterRegistry) {
+        this.url = url;
+        this.additionalRanges = additionalRanges;
+        this.refreshSeconds = refreshSeconds;
+        this.refresher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "stripe-webhook-ips-refresher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        Gauge.builder("bbqb.stripe.webhook.allowlist.size", this, allowlist -> allowlist.ranges != null ? allowlist.ranges.size() : 0)
+                .description("Number of IP ranges Stripe webhook requests are accepted from")
+                .register(meterRegistry);
+        Gauge.builder("bbqb.stripe.webhook.allowlist.age", this, allowlist -> allowlist.lastRefreshMillis > 0
+                ? (System.currentTimeMillis() - allowlist.lastRefreshMillis) / 1000.0
+                : Double.NaN)
+                .description("Seconds since the Stripe webhook IPs were last downloaded")
+                .baseUnit("seconds")
+                .register(meterRegistry);
+        this.refreshFailedCounter = Counter.builder("bbqb.stripe.webhook.allowlist.refresh.failed")
+                .description("Number of failed downloads of the Stripe webhook IPs")
+                .register(meterRegistry);
+    }
+
+    @PostConstruct
+    public void start() {
+        // Not downloaded on the startup thread, so an unreachable Stripe does not delay the start
+        refresher.execute(this::refresh);
+    }
+
+    @PreDestroy
+    public void stop() {
+        refresher.shutdownNow();
+    }
+
+    /**
+     * @return true once the Stripe webhook IPs were downloaded
+     */
+    public boolean isLoaded() {
+        return ranges != null;
+    }
+
+    /**
+     * @param address The address of the client
+     * @return true if Stripe sends webhook events from the address
+     */
+    public boolean isAllowed(String address) {
+        IpPrefixTrie current = ranges;
+        return current != null && current.contains(address);
+    }
+
+    void refresh() {
+        long delaySeconds = refreshSeconds;
+        try {
+            IpPrefixTrie downloaded = download();
+            ranges = downloaded;
+            lastRefreshMillis = System.currentTimeMillis();
+            LOGGER.info("Downloaded " + downloaded.size() + " Stripe webhook IP ranges");
+        } catch (IOException | RuntimeException e) {
+            refreshFailedCounter.increment();
+            LOGGER.warn("Unable to download the Stripe webhook IPs from " + url + ". "
+                    + (ranges != null ? "Keeping the last downloaded list." : "Webhook requests are rejected until they are downloaded."), e);
+            delaySeconds = Math.min(refreshSeconds, RETRY_SECONDS);
+        }
+        if (!refresher.isShutdown()) {
+            refresher.schedule(this::refresh, delaySeconds, TimeUnit.SECONDS);
+        }
+    }
+
+    private IpPrefixTrie download() throws IOException {
+        IpPrefixTrie.Builder builder = IpPrefixTrie.builder();
+        int downloaded = 0;
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setConnectTimeout(TIMEOUT_MILLIS);
+        connection.setReadTimeout(TIMEOUT_MILLIS);
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.trim().isEmpty()) {
+                    continue;
+                }
+                try {
+                    builder.add(line);
+                    downloaded++;
+                } catch (IllegalArgumentException e) {
+                    LOGGER.warn("Ignoring invalid Stripe webhook IP range: " + e.getMessage());
+                }
+            }
+        } finally {
+            connection.disconnect();
+        }
+        // An empty list would reject every event, so it is treated like a failed download
+        if (downloaded == 0) {
+            throw new IOException("No IP ranges found");
+        }
+        for (String range : additionalRanges) {
+            if (!range.trim().isEmpty()) {
+                builder.add(range);
+            }
+        }
+        return builder.build();
+    }
+}
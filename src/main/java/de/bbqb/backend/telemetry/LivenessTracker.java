@@ -0,0 +1,124 @@
+package de.bbqb.backend.telemetry;
+
+import de.bbqb.backend.concurrent.HashedTimingWheel;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongSupplier;
+
+/**
+ * Tracks whether devices are online from the time they were last seen.
+ * A device is online once it was seen less than the silence period ago and goes offline when it
+ * stays silent for the whole period. Every online device has exactly one timeout in a
+ * {@link HashedTimingWheel}: a heartbeat only records the time, and when the timeout fires it is
+ * scheduled again for the remaining silence if the device was seen in the meantime.
+ * So heartbeats never touch the wheel and the wheel holds at most one entry per device.
+ *
+ * @author Marius Degen
+ */
+public class LivenessTracker {
+
+    private final HashedTimingWheel wheel;
+    private final long silenceMillis;
+    private final LongSupplier clock;
+    private final Map<String, Liveness> devices = new ConcurrentHashMap<>();
+    private final AtomicInteger online = new AtomicInteger();
+    private final AtomicInteger wentOffline = new AtomicInteger();
+
+    /**
+     * @param wheel         Timer for the offline checks. Must be ticked with the same clock.
+     * @param silenceMillis Time without heartbeat after which a device is offline
+     * @param clock         Current time in milliseconds
+     */
+    public LivenessTracker(HashedTimingWheel wheel, long silenceMillis, LongSupplier clock) {
+        this.wheel = wheel;
+        this.silenceMillis = silenceMillis;
+        this.clock = clock;
+    }
+
+    /**
+     * Record that a device was seen
+     *
+     * @param deviceId   Id of the device
+     * @param seenMillis Time the device was seen. Times in the future are treated as now.
+     */
+    public void heartbeat(String deviceId, long seenMillis) {
+        long now = clock.getAsLong();
+        long seen = Math.min(seenMillis, now);
+        Liveness liveness = devices.computeIfAbsent(deviceId, id -> new Liveness());
+        synchronized (liveness) {
+            if (seen <= liveness.lastSeen) {
+                return;
+            }
+            liveness.lastSeen = seen;
+            if (!liveness.online && now - seen < silenceMillis) {
+                liveness.online = true;
+                online.incrementAndGet();
+                wheel.schedule(() -> check(liveness), seen + silenceMillis);
+            }
+        }
+    }
+
+    /**
+     * Stop tracking a device
+     *
+     * @param deviceId Id of the device
+     */
+    public void remove(String deviceId) {
+        Liveness liveness = devices.remove(deviceId);
+        if (liveness != null) {
+            synchronized (liveness) {
+                if (liveness.online) {
+                    liveness.online = false;
+                    online.decrementAndGet();
+                }
+            }
+        }
+    }
+
+    /**
+     * @param deviceId Id of the device
+     * @return true if the device was seen within the silence period, false if not or it is unknown
+     */
+    public boolean isOnline(String deviceId) {
+        Liveness liveness = devices.get(deviceId);
+        return liveness != null && liveness.online;
+    }
+
+    /**
+     * @return Number of online devices
+     */
+    public int onlineCount() {
+        return online.get();
+    }
+
+    /**
+     * @return Number of times a device went offline since the tracker was created
+     */
+    public int offlineTransitions() {
+        return wentOffline.get();
+    }
+
+    private void check(Liveness liveness) {
+        synchronized (liveness) {
+            if (!liveness.online) {
+                // Removed in the meantime
+                return;
+            }
+            long deadline = liveness.lastSeen + silenceMillis;
+            if (clock.getAsLong() >= deadline) {
+                liveness.online = false;
+                online.decrementAndGet();
+                wentOffline.incrementAndGet();
+            } else {
+                wheel.schedule(() -> check(liveness), deadline);
+            }
+        }
+    }
+
+    private static final class Liveness {
+        private long lastSeen = Long.MIN_VALUE;
+        private boolean online = false;
+    }
+}
@@ -0,0 +1,255 @@
+package de.bbqb.backend.telemetry;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Fixed-size history of the plate temperatures of one device.
+ * Samples are held in three primitive arrays sorted by timestamp. When the buffer is full the oldest
+ * sample is overwritten, so a buffer takes {@link #BYTES_PER_SAMPLE} bytes per sample of capacity
+ * (plus about 100 bytes of object and array headers) no matter how many samples were appended.
+ * Missing temperatures are stored as NaN.
+ *
+ * @author Marius Degen
+ */
+public class TelemetryRingBuffer {
+
+    // One long timestamp and two float temperatures
+    public static final int BYTES_PER_SAMPLE = Long.BYTES + 2 * Float.BYTES;
+
+    private final long[] timestamps;
+    private final float[] plate1;
+    private final float[] plate2;
+    // Physical index of the oldest sample
+    private int start = 0;
+    private int size = 0;
+
+    /**
+     * @param capacity Maximum number of samples kept
+     */
+    public TelemetryRingBuffer(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        this.timestamps = new long[capacity];
+        this.plate1 = new float[capacity];
+        this.plate2 = new float[capacity];
+    }
+
+    /**
+     * Add a sample. Samples which arrive late are inserted at their place in time,
+     * samples with a timestamp which is already stored are ignored.
+     *
+     * @param timestamp Milliseconds since January 1, 1970, 00:00:00 UTC
+     * @param plate1    Temperature of plate 1 or NaN
+     * @param plate2    Temperature of plate 2 or NaN
+     * @return false if the sample was ignored because it is a duplicate or older than all samples of a full buffer
+     */
+    public synchronized boolean append(long timestamp, float plate1, float plate2) {
+        int capacity = timestamps.length;
+        int position = size;
+        if (size > 0 && timestamp <= timestamps[physical(size - 1)]) {
+            position = lowerBound(timestamp);
+            if (position < size && timestamps[physical(position)] == timestamp) {
+                return false;
+            }
+            if (position == 0 && size == capacity) {
+                return false;
+            }
+        }
+        if (size == capacity) {
+            // Drop the oldest sample
+            start = (start + 1) % capacity;
+            size--;
+            position--;
+        }
+        for (int i = size; i > position; i--) {
+            int to = physical(i);
+            int from = physical(i - 1);
+            timestamps[to] = timestamps[from];
+            this.plate1[to] = this.plate1[from];
+            this.plate2[to] = this.plate2[from];
+        }
+        int index = physical(position);
+        timestamps[index] = timestamp;
+        this.plate1[index] = plate1;
+        this.plate2[index] = plate2;
+        size++;
+        return true;
+    }
+
+    /**
+     * @return Number of stored samples
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * @return Timestamp of the newest sample or Long.MIN_VALUE if the buffer is empty
+     */
+    public synchronized long latestTimestamp() {
+        return size > 0 ? timestamps[physical(size - 1)] : Long.MIN_VALUE;
+    }
+
+    /**
+     * Aggregate the samples of a time range into buckets of equal length
+     *
+     * @param from       Start of the range in milliseconds (inclusive)
+     * @param to         End of the range in milliseconds (exclusive)
+     * @param resolution Length of a bucket in milliseconds
+     * @return The buckets containing at least one sample ordered by time
+     */
+    public List<Bucket> downsample(long from, long to, long resolution) {
+        long range = to - from;
+        // A range which overflows is negative as well
+        if (resolution <= 0 || to <= from || range <= 0) {
+            throw new IllegalArgumentException("resolution and range must be positive");
+        }
+        // Rounded up without adding, which could overflow for large resolutions
+        int buckets = (int) Math.min(Integer.MAX_VALUE, range / resolution + (range % resolution != 0 ? 1 : 0));
+        int[] counts = new int[buckets];
+        Stats stats1 = new Stats(buckets);
+        Stats stats2 = new Stats(buckets);
+        synchronized (this) {
+            for (int i = lowerBound(from); i < size; i++) {
+                int index = physical(i);
+                long timestamp = timestamps[index];
+                if (timestamp >= to) {
+                    break;
+                }
+                int bucket = (int) ((timestamp - from) / resolution);
+                counts[bucket]++;
+                stats1.add(bucket, plate1[index]);
+                stats2.add(bucket, plate2[index]);
+            }
+        }
+        List<Bucket> result = new ArrayList<>();
+        for (int bucket = 0; bucket < buckets; bucket++) {
+            if (counts[bucket] > 0) {
+                result.add(new Bucket(from + bucket * resolution, counts[bucket],
+                        stats1.min(bucket), stats1.max(bucket), stats1.avg(bucket),
+                        stats2.min(bucket), stats2.max(bucket), stats2.avg(bucket)));
+            }
+        }
+        return result;
+    }
+
+    // Logical index of the first sample with a timestamp >= the given one
+    private int lowerBound(long timestamp) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (timestamps[physical(middle)] < timestamp) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    private int physical(int logical) {
+        int index = start + logical;
+        return index < timestamps.length ? index : index - timestamps.length;
+    }
+
+    private static final class Stats {
+        private final float[] min;
+        private final float[] max;
+        private final double[] sum;
+        private final int[] count;
+
+        private Stats(int buckets) {
+            min = new float[buckets];
+            max = new float[buckets];
+            sum = new double[buckets];
+            count = new int[buckets];
+        }
+
+        private void add(int bucket, float value) {
+            if (Float.isNaN(value)) {
+                return;
+            }
+            if (count[bucket] == 0 || value < min[bucket]) {
+                min[bucket] = value;
+            }
+            if (count[bucket] == 0 || value > max[bucket]) {
+                max[bucket] = value;
+            }
+            sum[bucket] += value;
+            count[bucket]++;
+        }
+
+        private double min(int bucket) {
+            return count[bucket] > 0 ? min[bucket] : Double.NaN;
+        }
+
+        private double max(int bucket) {
+            return count[bucket] > 0 ? max[bucket] : Double.NaN;
+        }
+
+        private double avg(int bucket) {
+            return count[bucket] > 0 ? sum[bucket] / count[bucket] : Double.NaN;
+        }
+    }
+
+    /**
+     * Aggregated samples of one time bucket. Values are NaN if no sample in the bucket had a temperature.
+     */
+    public static final class Bucket {
+        private final long start;
+        private final int count;
+        private final double minPlate1;
+        private final double maxPlate1;
+        private final double avgPlate1;
+        private final double minPlate2;
+        private final double maxPlate2;
+        private final double avgPlate2;
+
+        public Bucket(long start, int count, double minPlate1, double maxPlate1, double avgPlate1,
+                      double minPlate2, double maxPlate2, double avgPlate2) {
+            this.start = start;
+            this.count = count;
+            this.minPlate1 = minPlate1;
+            this.maxPlate1 = maxPlate1;
+            this.avgPlate1 = avgPlate1;
+            this.minPlate2 = minPlate2;
+            this.maxPlate2 = maxPlate2;
+            this.avgPlate2 = avgPlate2;
+        }
+
+        public long getStart() {
+            return start;
+        }
+
+        public int getCount() {
+            return count;
+        }
+
+        public double getMinPlate1() {
+            return minPlate1;
+        }
+
+        public double getMaxPlate1() {
+            return maxPlate1;
+        }
+
+        public double getAvgPlate1() {
+            return avgPlate1;
+        }
+
+        public double getMinPlate2() {
+            return minPlate2;
+        }
+
+        public double getMaxPlate2() {
+            return maxPlate2;
+        }
+
+        public double getAvgPlate2() {
+            return avgPlate2;
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package de.bbqb.backend.api.config;
+
+import de.bbqb.backend.stripe.StripeWebhookAllowlist;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.web.MockFilterChain;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.*;
+
+/**
+ * @author Marius Degen
+ */
+public class StripeWebhookIpFilterTest {
+
+    private static final String CLIENT_IP_HEADER = "X-AppEngine-User-IP";
+    private static final String STRIPE_IP = "3.18.12.63";
+    private static final String PROXY_IP = "169.254.1.1";
+
+    private StripeWebhookAllowlist allowlist;
+    private MeterRegistry meterRegistry;
+    private StripeWebhookIpFilter sut;
+
+    @BeforeEach
+    void setUp() {
+        allowlist = mock(StripeWebhookAllowlist.class);
+        when(allowlist.isAllowed(anyString())).thenReturn(false);
+        when(allowlist.isAllowed(STRIPE_IP)).thenReturn(true);
+        meterRegistry = new SimpleMeterRegistry();
+        sut = new StripeWebhookIpFilter(allowlist, CLIENT_IP_HEADER, meterRegistry);
+    }
+
+    @Test
+    void testRequestFromStripeIsLetThrough() throws Exception {
+        //given the request was forwarded by the proxy
+        MockHttpServletRequest request = request(PROXY_IP);
+        request.addHeader(CLIENT_IP_HEADER, STRIPE_IP);
+        MockFilterChain chain = new MockFilterChain();
+
+        //when
+        sut.doFilter(request, new MockHttpServletResponse(), chain);
+
+        //then
+        assertSame(request, chain.getRequest());
+    }
+
+    @Test
+    void testRequestFromOtherIpIsForbidden() throws Exception {
+        //given the client pretends to be Stripe, but the proxy overwrites the header
+        MockHttpServletRequest request = request(PROXY_IP);
+        request.addHeader("X-Forwarded-For", STRIPE_IP);
+        request.addHeader(CLIENT_IP_HEADER, "8.8.8.8");
+        when(allowlist.isLoaded()).thenReturn(true);
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        MockFilterChain chain = new MockFilterChain();
+
+        //when
+        sut.doFilter(request, response, chain);
+
+        //then
+        assertEquals(403, response.getStatus());
+        assertNull(chain.getRequest());
+        assertEquals(1, requests("rejected"));
+    }
+
+    @Test
+    void testRequestIsUnavailableUntilTheAllowlistIsLoaded() throws Exception {
+        //given
+        when(allowlist.isLoaded()).thenReturn(false);
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        MockFilterChain chain = new MockFilterChain();
+
+        //when
+        sut.doFilter(request(STRIPE_IP.replace('3', '4')), response, chain);
+
+        //then Stripe sends the event again later
+        assertEquals(503, response.getStatus());
+        assertNull(chain.getRequest());
+        assertEquals(1, requests("unavailable"));
+    }
+
+    @Test
+    void testRemoteAddressIsCheckedWithoutHeader() throws Exception {
+        //given the app does not run behind a proxy
+        StripeWebhookIpFilter direct = new StripeWebhookIpFilter(allowlist, "", meterRegistry);
+        MockHttpServletRequest request = request(STRIPE_IP);
+        request.addHeader(CLIENT_IP_HEADER, "8.8.8.8");
+        MockFilterChain chain = new MockFilterChain();
+        MockFilterChain withoutHeaderChain = new MockFilterChain();
+
+        //when
+        direct.doFilter(request, new MockHttpServletResponse(), chain);
+        sut.doFilter(request(STRIPE_IP), new MockHttpServletResponse(), withoutHeaderChain);
+
+        //then
+        assertNotNull(chain.getRequest());
+        assertNotNull(withoutHeaderChain.getRequest());
+    }
+
+    private double requests(String result) {
+        return meterRegistry.get("bbqb.stripe.webhook.allowlist.requests").tag("result", result).counter().count();
+    }
+
+    private static MockHttpServletRequest request(String remoteAddress) {
+        MockHttpServletRequest request = new MockHttpServletRequest("POST", "/stripe/webhook");
+        request.setRemoteAddr(remoteAddress);
+        return request;
+    }
+}
@@ -3,6 +3,7 @@ package de.bbqb.backend.api.controller;
 import de.bbqb.backend.api.model.entity.*;
 import de.bbqb.backend.api.model.service.BookingService;
 import de.bbqb.backend.api.model.service.DeviceService;
+import de.bbqb.backend.api.model.service.IdempotencyService;
 import de.bbqb.backend.api.model.service.UserService;
 import de.bbqb.backend.stripe.StripeService;
 import org.junit.jupiter.api.BeforeEach;
@@ -17,6 +18,7 @@ import reactor.core.publisher.Mono;
 
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.stream.Collectors;
 
 import static org.junit.jupiter.api.Assertions.*;
@@ -38,10 +40,12 @@ public class BookingControllerTest {
     StripeService stripeService;
     @Mock
     BookingService bookingService;
+    @Mock
+    IdempotencyService idempotencyService;
 
     @BeforeEach
     void setup() {
-        this.sut = new BookingController(deviceService, userService, stripeService, bookingService);
+        this.sut = new BookingController(deviceService, userService, stripeService, bookingService, idempotencyService);
     }
 
     @Test
@@ -66,6 +70,25 @@ public class BookingControllerTest {
         assertTrue(bookings.stream().map(booking -> booking.getId()).collect(Collectors.toList()).equals(List.of("1", "2")));
     }
 
+    @Test
+    void testReadBookingPage() {
+        //given
+        Booking result = new Booking("1", "intent", "bbqbId", "user", "status", new Date(), new Date(), null, 45);
+
+        when(sub.getName()).thenReturn("userId");
+        when(bookingService.findBookingsByUserId("userId", 1, null)).thenReturn(Mono.just(new Page<>(List.of(result), "next")));
+
+        //when
+        ResponseEntity<Page<Booking>> page = this.sut.getBookingPage(sub, 1, null).block();
+
+        //then
+        assertNotNull(page);
+        assertEquals("next", page.getBody().getNextPageToken());
+        assertEquals("1", page.getBody().getItems().get(0).getId());
+        // Page size is limited
+        assertEquals(400, this.sut.getBookingPage(sub, 101, null).block().getStatusCodeValue());
+    }
+
     @Test
     void testReadBooking() {
         //given
@@ -96,7 +119,7 @@ public class BookingControllerTest {
         String paymentMethodId = "stripeCreditCardId";
         String paymentIntentId = "payentIntentId";
         String userId = "userId";
-        BookingRequest bookingRequest = new BookingRequest(deviceId, timeslot.getTime(), paymentMethodId);
+        BookingRequest bookingRequest = new BookingRequest(deviceId, timeslot.getTime(), paymentMethodId, null);
         // BBQB to create a booking for
         Device bbqb = new Device("id",//TODO: Check if we search devices by database id(id) or Iot-Id(deviceId)
                 deviceId,
@@ -117,7 +140,8 @@ public class BookingControllerTest {
                         "city",
                         "street",
                         "houseNumber",
-                        "name"));
+                        "name"),
+                true);
         User currentUser = new User(userId,
                 "stripeCustomerId",
                 "lastBookingId",
@@ -148,10 +172,10 @@ public class BookingControllerTest {
         when(userService.readUser(userId)).thenReturn(Mono.just(currentUser));
         when(stripeService.createCardPaymentIntent(userId, timeslot.getCost(), paymentMethodId)).thenReturn(Mono.just(payment));
         // When creating a booking return the booking which was requested for creation
-        when(bookingService.createBooking(paymentMethodId, deviceId, userId, timeslot)).thenReturn(Mono.just(booking));
+        when(bookingService.createBooking(paymentMethodId, deviceId, userId, timeslot, null, null)).thenReturn(Mono.just(booking));
 
         //when
-        ResponseEntity<Booking> resultBooking = this.sut.postBookings(sub, bookingRequest).block();
+        ResponseEntity<Booking> resultBooking = this.sut.postBookings(sub, null, bookingRequest).block();
 
         //then
         assertNotNull(resultBooking);
@@ -159,4 +183,21 @@ public class BookingControllerTest {
         assertTrue(resultBooking.getBody().getDeviceId().contentEquals(deviceId));
     }
 
+    @Test
+    void testTemporaryBookingErrorIsRetryable() {
+        //given
+        BookingRequest bookingRequest = new BookingRequest("bbqbId", Timeslot.FORTY_FIVE.getTime(), "stripeCreditCardId", null);
+        when(sub.getName()).thenReturn("userId");
+        when(bookingService.createBooking("stripeCreditCardId", "bbqbId", "userId", Timeslot.FORTY_FIVE, null, null))
+                .thenReturn(Mono.error(new RuntimeException(new RejectedExecutionException("All Stripe threads are busy"))))
+                .thenReturn(Mono.error(new RuntimeException("Device bbqbId is already blocked")));
+
+        //when
+        ResponseEntity<Booking> temporaryError = this.sut.postBookings(sub, null, bookingRequest).block();
+        ResponseEntity<Booking> bookingError = this.sut.postBookings(sub, null, bookingRequest).block();
+
+        //then
+        assertEquals(503, temporaryError.getStatusCodeValue());
+        assertEquals(422, bookingError.getStatusCodeValue());
+    }
 }
@@ -0,0 +1,252 @@
+package de.bbqb.backend.api.controller;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import de.bbqb.backend.api.model.entity.Device;
+import de.bbqb.backend.api.model.entity.DeviceBatchResult;
+import de.bbqb.backend.api.model.entity.DeviceEvent;
+import de.bbqb.backend.api.model.entity.Page;
+import de.bbqb.backend.api.model.service.BookingService;
+import de.bbqb.backend.api.model.service.DeviceService;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.http.codec.ServerSentEvent;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
+
+/**
+ * @author Marius Degen
+ */
+@ExtendWith(MockitoExtension.class)
+public class DeviceControllerTest {
+
+    private static final long HEARTBEAT_INTERVAL_MILLIS = 100;
+
+    DeviceController sut;
+
+    ObjectMapper objectMapper = new ObjectMapper();
+
+    @Mock
+    DeviceService deviceService;
+
+    @Mock
+    BookingService bookingService;
+
+    @BeforeEach
+    void setup() {
+        this.sut = new DeviceController(deviceService, bookingService, objectMapper, HEARTBEAT_INTERVAL_MILLIS);
+        // Report every device as updated
+        lenient().when(deviceService.writeDevices(any())).thenAnswer(invocation -> {
+            Flux<Device> devices = invocation.getArgument(0);
+            return devices.index().map(device -> new DeviceBatchResult(device.getT1(), device.getT2().getId(), DeviceBatchResult.UPDATED, null));
+        });
+    }
+
+    @Test
+    void testPostDeviceBatchReadsJsonArray() throws Exception {
+        //when
+        List<String> lines = postDeviceBatch("[{\"id\":\"a\",\"number\":\"1\"},{\"id\":\"b\",\"number\":\"2\"}]");
+
+        //then
+        assertEquals(2, lines.size());
+        JsonNode second = objectMapper.readTree(lines.get(1));
+        assertEquals(1, second.get("index").asInt());
+        assertEquals("b", second.get("id").asText());
+        assertEquals(DeviceBatchResult.UPDATED, second.get("status").asText());
+    }
+
+    @Test
+    void testPostDeviceBatchReadsNdjson() throws Exception {
+        //when
+        List<String> lines = postDeviceBatch("{\"id\":\"a\",\"number\":\"1\"}\n{\"id\":\"b\",\"number\":\"2\"}\n{\"id\":\"c\",\"number\":\"3\"}\n");
+
+        //then
+        assertEquals(3, lines.size());
+        assertEquals("c", objectMapper.readTree(lines.get(2)).get("id").asText());
+    }
+
+    @Test
+    void testPostDeviceBatchReportsMalformedBody() throws Exception {
+        //when
+        List<String> lines = postDeviceBatch("{\"id\":\"a\",\"number\":\"1\"}\n{\"id\":");
+
+        //then the device before the error is still written
+        assertEquals(2, lines.size());
+        assertEquals("a", objectMapper.readTree(lines.get(0)).get("id").asText());
+        JsonNode error = objectMapper.readTree(lines.get(1));
+        assertTrue(error.get("index").isNull());
+        assertEquals(DeviceBatchResult.FAILED, error.get("status").asText());
+    }
+
+    @Test
+    void testTelemetryRangeWhichOverflowsIsBadRequest() {
+        //when
+        HttpStatus fullRange = sut.getDeviceTelemetry("device", Long.MIN_VALUE, Long.MAX_VALUE, 60000).block().getStatusCode();
+        HttpStatus defaultFrom = sut.getDeviceTelemetry("device", null, Long.MIN_VALUE, 60000).block().getStatusCode();
+        HttpStatus hugeResolution = sut.getDeviceTelemetry("device", Long.MIN_VALUE, 0L, Long.MAX_VALUE).block().getStatusCode();
+
+        //then
+        assertEquals(HttpStatus.BAD_REQUEST, fullRange);
+        assertEquals(HttpStatus.BAD_REQUEST, defaultFrom);
+        assertEquals(HttpStatus.BAD_REQUEST, hugeResolution);
+        verifyNoInteractions(deviceService);
+    }
+
+    @Test
+    void testMalformedPageTokenIsBadRequest() {
+        //given
+        when(deviceService.readDevices(10, "tampered")).thenReturn(Mono.error(new IllegalArgumentException("Invalid page token")));
+
+        //when
+        ResponseEntity<Page<Device>> response = sut.getDevicePage(10, "tampered").block();
+
+        //then
+        assertEquals(HttpStatus.BAD_REQUEST, response.getStatusCode());
+    }
+
+    @Test
+    void testDevicesAreStreamedAsNdjson() throws Exception {
+        //given
+        when(deviceService.readAllDevices()).thenReturn(Flux.just(device("a"), device("b")));
+        MockMvc mockMvc = MockMvcBuilders.standaloneSetup(sut).build();
+
+        //when
+        MvcResult result = mockMvc.perform(get("/devices").accept("application/x-ndjson"))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        mockMvc.perform(asyncDispatch(result));
+
+        //then
+        assertEquals("application/x-ndjson", result.getResponse().getContentType());
+        List<String> ids = Stream.of(result.getResponse().getContentAsString().split("\n"))
+                .map(line -> readTree(line).get("id").asText())
+                .collect(Collectors.toList());
+        assertEquals(List.of("a", "b"), ids);
+    }
+
+    @Test
+    void testDevicesAreStreamedAsServerSentEventsAndJsonStream() throws Exception {
+        //given
+        when(deviceService.readAllDevices()).thenAnswer(invocation -> Flux.just(device("a"), device("b")));
+        MockMvc mockMvc = MockMvcBuilders.standaloneSetup(sut).build();
+
+        //when
+        MvcResult events = mockMvc.perform(get("/devices").accept(MediaType.TEXT_EVENT_STREAM))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        MvcResult stream = mockMvc.perform(get("/devices").accept(MediaType.APPLICATION_STREAM_JSON))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        mockMvc.perform(asyncDispatch(events));
+        mockMvc.perform(asyncDispatch(stream));
+
+        //then
+        assertEquals(2, Stream.of(events.getResponse().getContentAsString().split("\n")).filter(line -> line.startsWith("data:")).count());
+        assertEquals(2, Stream.of(stream.getResponse().getContentAsString().split("\n")).filter(line -> !line.isEmpty()).count());
+    }
+
+    @Test
+    void testDeviceEventsAreUnavailableWithoutDeviceCache() {
+        //given
+        when(deviceService.isDeviceChangesEnabled()).thenReturn(false);
+
+        //when
+        ResponseEntity<Flux<ServerSentEvent<Object>>> all = sut.getDeviceEvents();
+        ResponseEntity<Flux<ServerSentEvent<Object>>> single = sut.getDeviceEvents("a").block();
+
+        //then
+        assertEquals(HttpStatus.SERVICE_UNAVAILABLE, all.getStatusCode());
+        assertEquals(HttpStatus.SERVICE_UNAVAILABLE, single.getStatusCode());
+    }
+
+    @Test
+    void testEventsOfUnknownDeviceAreNotFound() {
+        //given
+        when(deviceService.isDeviceChangesEnabled()).thenReturn(true);
+        when(deviceService.readDevice("a")).thenReturn(Mono.empty());
+
+        //when
+        ResponseEntity<Flux<ServerSentEvent<Object>>> response = sut.getDeviceEvents("a").block();
+
+        //then
+        assertEquals(HttpStatus.NOT_FOUND, response.getStatusCode());
+        verify(deviceService, never()).readDeviceChanges("a");
+    }
+
+    @Test
+    void testDeviceEventsContainChangesHeartbeatsAndDeletion() {
+        //given the device is deleted a while after its current state was sent
+        Device device = new Device("a", "iot", "1", 0L, false, true, true, -60.0, 20.0, 20.0, 200.0, 200.0, null, null, true);
+        when(deviceService.isDeviceChangesEnabled()).thenReturn(true);
+        when(deviceService.readDevice("a")).thenReturn(Mono.just(device));
+        when(deviceService.readDeviceChanges("a")).thenReturn(Flux.just(new DeviceEvent(DeviceEvent.CHANGED, "a", device))
+                .concatWith(Mono.delay(Duration.ofMillis(5 * HEARTBEAT_INTERVAL_MILLIS / 2))
+                        .thenReturn(new DeviceEvent(DeviceEvent.DELETED, "a", null))));
+
+        //when
+        List<ServerSentEvent<Object>> events = sut.getDeviceEvents("a").block().getBody()
+                .collectList()
+                .block(Duration.ofSeconds(5));
+
+        //then
+        assertSame(device, events.get(0).data());
+        assertNull(events.get(0).event());
+        List<String> comments = events.subList(1, events.size() - 1).stream()
+                .map(ServerSentEvent::comment)
+                .collect(Collectors.toList());
+        assertFalse(comments.isEmpty());
+        assertTrue(comments.stream().allMatch("heartbeat"::equals));
+        ServerSentEvent<Object> deleted = events.get(events.size() - 1);
+        assertEquals(DeviceEvent.DELETED, deleted.event());
+        assertEquals(Map.of("id", "a"), deleted.data());
+    }
+
+    private List<String> postDeviceBatch(String content) throws Exception {
+        MockHttpServletRequest request = new MockHttpServletRequest("POST", "/devices:batch");
+        request.setContent(content.getBytes(StandardCharsets.UTF_8));
+        ResponseEntity<StreamingResponseBody> response = sut.postDeviceBatch(request);
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        response.getBody().writeTo(outputStream);
+        return List.of(outputStream.toString(StandardCharsets.UTF_8).split("\n"));
+    }
+
+    private JsonNode readTree(String json) {
+        try {
+            return objectMapper.readTree(json);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static Device device(String id) {
+        return new Device(id, "iot", "1", 0L, false, true, true, -60.0, 20.0, 20.0, 200.0, 200.0, null, null, true);
+    }
+}
@@ -0,0 +1,73 @@
+package de.bbqb.backend.api.controller;
+
+import de.bbqb.backend.api.model.entity.User;
+import de.bbqb.backend.api.model.service.BookingService;
+import de.bbqb.backend.api.model.service.IdempotencyService;
+import de.bbqb.backend.api.model.service.UserService;
+import de.bbqb.backend.stripe.StripeService;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.security.core.Authentication;
+import reactor.core.publisher.Mono;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * @author Marius Degen
+ */
+@ExtendWith(MockitoExtension.class)
+public class UserControllerTest {
+
+    private final String id = "uid";
+    private UserController sut;
+    @Mock
+    private UserService userService;
+    @Mock
+    private StripeService stripeService;
+    @Mock
+    private BookingService bookingService;
+    @Mock
+    private IdempotencyService idempotencyService;
+    @Mock
+    private Authentication sub;
+
+    @BeforeEach
+    public void setUp() {
+        this.sut = new UserController(userService, stripeService, bookingService, idempotencyService);
+        when(sub.getName()).thenReturn(id);
+    }
+
+    @Test
+    public void testPutUserRespondsWithoutBody() {
+        // given only the first name is sent
+        User user = new User(id, null, null, "Marius", null, null);
+        when(userService.updateUser(user)).thenReturn(Mono.just(user));
+
+        // when
+        ResponseEntity<User> response = this.sut.putUser(sub, id, user).block();
+
+        // then the partially written user is not returned as if it was the whole user
+        assertEquals(HttpStatus.NO_CONTENT, response.getStatusCode());
+        assertNull(response.getBody());
+        verify(userService).updateUser(user);
+    }
+
+    @Test
+    public void testPutUserWithFailedWrite() {
+        // given
+        User user = new User(id, null, null, "Marius", null, null);
+        when(userService.updateUser(user)).thenReturn(Mono.error(new RuntimeException("UNAVAILABLE")));
+
+        // when
+        ResponseEntity<User> response = this.sut.putUser(sub, id, user).block();
+
+        // then
+        assertEquals(HttpStatus.INTERNAL_SERVER_ERROR, response.getStatusCode());
+    }
+}
@@ -0,0 +1,113 @@
+package de.bbqb.backend.calendar;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author Marius Degen
+ */
+public class IntervalCalendarTest {
+
+    IntervalCalendar sut;
+
+    @BeforeEach
+    void setup() {
+        sut = new IntervalCalendar();
+        sut.add(10, 20);
+        sut.add(30, 40);
+        sut.add(50, 60);
+    }
+
+    @Test
+    void testOverlaps() {
+        assertTrue(sut.overlaps(15, 16));
+        assertTrue(sut.overlaps(5, 11));
+        assertTrue(sut.overlaps(39, 45));
+        assertTrue(sut.overlaps(0, 100));
+        // Intervals are half-open, so adjacent ranges are free
+        assertFalse(sut.overlaps(20, 30));
+        assertFalse(sut.overlaps(0, 10));
+        assertFalse(sut.overlaps(60, 70));
+    }
+
+    @Test
+    void testOverlapsWithNestedIntervals() {
+        //given an interval covering a later one
+        sut.add(0, 100);
+
+        //then the range between the short intervals is covered by the long one
+        assertTrue(sut.overlaps(20, 30));
+        assertTrue(sut.overlaps(90, 95));
+        assertFalse(sut.overlaps(100, 110));
+    }
+
+    @Test
+    void testAddIfFree() {
+        assertFalse(sut.addIfFree(35, 45));
+        assertTrue(sut.addIfFree(40, 50));
+        assertEquals(4, sut.size());
+        assertTrue(sut.overlaps(45, 46));
+    }
+
+    @Test
+    void testNextFree() {
+        assertEquals(0, sut.nextFree(0, 10));
+        assertEquals(20, sut.nextFree(5, 10));
+        assertEquals(20, sut.nextFree(12, 10));
+        // The gap between 20 and 30 is too short
+        assertEquals(60, sut.nextFree(12, 11));
+        assertEquals(70, sut.nextFree(70, 100));
+    }
+
+    @Test
+    void testBusyMergesAndClipsIntervals() {
+        //given
+        sut.add(15, 35);
+
+        //when
+        List<long[]> busy = sut.busy(12, 55);
+
+        //then
+        assertEquals(2, busy.size());
+        assertArrayEquals(new long[]{12, 40}, busy.get(0));
+        assertArrayEquals(new long[]{50, 55}, busy.get(1));
+        assertTrue(sut.busy(40, 50).isEmpty());
+    }
+
+    @Test
+    void testRemove() {
+        assertFalse(sut.remove(30, 41));
+        assertTrue(sut.remove(30, 40));
+        assertEquals(2, sut.size());
+        assertFalse(sut.overlaps(30, 40));
+        assertTrue(sut.overlaps(55, 56));
+    }
+
+    @Test
+    void testRemoveEndedBefore() {
+        //when
+        sut.removeEndedBefore(40);
+
+        //then
+        assertEquals(1, sut.size());
+        assertFalse(sut.overlaps(0, 50));
+        assertTrue(sut.overlaps(50, 51));
+    }
+
+    @Test
+    void testRemoveEndedBeforeKeepsIntervalsAfterARunningOne() {
+        //given an interval which is still running at 45
+        sut.add(5, 50);
+
+        //when
+        sut.removeEndedBefore(45);
+
+        //then
+        assertTrue(sut.overlaps(45, 46));
+        assertEquals(4, sut.size());
+    }
+}
@@ -0,0 +1,87 @@
+package de.bbqb.backend.concurrent;
+
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author Marius Degen
+ */
+public class BatchLoaderTest {
+
+    @Test
+    void testKeysRequestedTogetherAreLoadedInBatches() throws InterruptedException {
+        //given a scheduler which is blocked until all keys are requested
+        List<List<String>> batches = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch requested = new CountDownLatch(1);
+        Schedulers.single().schedule(() -> {
+            try {
+                requested.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        BatchLoader<String, String> sut = new BatchLoader<>(keys -> {
+            batches.add(keys);
+            Map<String, String> values = new HashMap<>();
+            keys.stream().filter(key -> !key.equals("missing")).forEach(key -> values.put(key, key.toUpperCase()));
+            return Mono.just(values);
+        }, 2, Schedulers.single());
+
+        //when
+        Mono<List<String>> loaded = Flux.just("a", "b", "a", "c", "missing")
+                .flatMapSequential(sut::load)
+                .collectList()
+                .cache();
+        loaded.subscribe();
+        requested.countDown();
+        List<String> values = loaded.block(Duration.ofSeconds(5));
+
+        //then
+        assertNotNull(values);
+        assertEquals(List.of("A", "B", "A", "C"), values);
+        assertEquals(List.of(List.of("a", "b"), List.of("c", "missing")), batches);
+        assertEquals(0, sut.inFlight());
+    }
+
+    @Test
+    void testLoadAfterCompletedLookupReadsAgain() {
+        //given
+        List<List<String>> batches = Collections.synchronizedList(new ArrayList<>());
+        BatchLoader<String, String> sut = new BatchLoader<>(keys -> {
+            batches.add(keys);
+            return Mono.just(Collections.singletonMap(keys.get(0), "value" + batches.size()));
+        }, 10, Schedulers.parallel());
+
+        //when
+        String first = sut.load("a").block(Duration.ofSeconds(5));
+        String second = sut.load("a").block(Duration.ofSeconds(5));
+
+        //then
+        assertEquals("value1", first);
+        assertEquals("value2", second);
+        assertEquals(2, batches.size());
+    }
+
+    @Test
+    void testErrorIsPassedToAllLoadsOfTheBatch() {
+        //given
+        BatchLoader<String, String> sut = new BatchLoader<>(keys -> Mono.error(new IllegalStateException("unavailable")), 10, Schedulers.parallel());
+
+        //then
+        assertThrows(IllegalStateException.class, () -> sut.load("a").block(Duration.ofSeconds(5)));
+        assertEquals(0, sut.inFlight());
+    }
+}
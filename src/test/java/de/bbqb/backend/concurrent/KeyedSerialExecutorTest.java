@@ -0,0 +1,86 @@
+package de.bbqb.backend.concurrent;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author Marius Degen
+ */
+public class KeyedSerialExecutorTest {
+
+    private KeyedSerialExecutor sut;
+
+    @AfterEach
+    void tearDown() throws InterruptedException {
+        if (sut != null) {
+            sut.shutdown(1, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    void testTasksWithSameKeyRunInSubmissionOrder() throws InterruptedException {
+        //given
+        this.sut = new KeyedSerialExecutor("test", 8, 10_000);
+        List<Integer> deviceA = Collections.synchronizedList(new ArrayList<>());
+        List<Integer> deviceB = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch done = new CountDownLatch(2000);
+
+        //when
+        for (int i = 0; i < 1000; i++) {
+            int command = i;
+            sut.execute("butler-1", () -> {
+                deviceA.add(command);
+                done.countDown();
+            });
+            sut.execute("butler-2", () -> {
+                deviceB.add(command);
+                done.countDown();
+            });
+        }
+
+        //then
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        List<Integer> expected = IntStream.range(0, 1000).boxed().collect(Collectors.toList());
+        assertEquals(expected, deviceA);
+        assertEquals(expected, deviceB);
+    }
+
+    @Test
+    void testRejectWhenSaturated() throws InterruptedException {
+        //given
+        this.sut = new KeyedSerialExecutor("test", 1, 2);
+        CountDownLatch release = new CountDownLatch(1);
+        sut.execute("butler-1", () -> awaitQuietly(release));
+        sut.execute("butler-1", () -> {
+        });
+
+        //when / then
+        assertThrows(RejectedExecutionException.class, () -> sut.execute("butler-2", () -> {
+        }));
+        assertEquals(2, sut.pending());
+
+        release.countDown();
+        assertTrue(sut.shutdown(1, TimeUnit.SECONDS));
+        assertEquals(0, sut.pending());
+        assertEquals(0, sut.activeKeys());
+    }
+
+    private static void awaitQuietly(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
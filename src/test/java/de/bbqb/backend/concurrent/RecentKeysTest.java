@@ -0,0 +1,93 @@
+package de.bbqb.backend.concurrent;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author Marius Degen
+ */
+public class RecentKeysTest {
+
+    @Test
+    void testOldestKeysAreEvicted() {
+        //given
+        RecentKeys sut = new RecentKeys(2);
+
+        //when
+        sut.add("evt_1");
+        sut.add("evt_2");
+        sut.add("evt_3");
+
+        //then
+        assertFalse(sut.contains("evt_1"));
+        assertTrue(sut.contains("evt_2"));
+        assertTrue(sut.contains("evt_3"));
+        assertEquals(2, sut.size());
+    }
+
+    @Test
+    void testKeyIsOnlyAddedOnce() {
+        //given
+        RecentKeys sut = new RecentKeys(2);
+
+        //when
+        assertTrue(sut.add("evt_1"));
+        assertFalse(sut.add("evt_1"));
+        sut.add("evt_2");
+
+        //then the duplicate did not take the place of another key
+        assertTrue(sut.contains("evt_1"));
+        assertTrue(sut.contains("evt_2"));
+    }
+
+    @Test
+    void testRemovedKeyCanBeAddedAgain() {
+        //given
+        RecentKeys sut = new RecentKeys(2);
+        sut.add("evt_1");
+
+        //when
+        sut.remove("evt_1");
+
+        //then
+        assertFalse(sut.contains("evt_1"));
+        assertTrue(sut.add("evt_1"));
+    }
+
+    @Test
+    void testRemovedKeyDoesNotCountAgainstCapacity() {
+        //given
+        RecentKeys sut = new RecentKeys(2);
+        sut.add("evt_1");
+        sut.add("evt_2");
+
+        //when
+        sut.remove("evt_1");
+        sut.add("evt_3");
+
+        //then no key was evicted for the removed one
+        assertTrue(sut.contains("evt_2"));
+        assertTrue(sut.contains("evt_3"));
+        assertEquals(2, sut.size());
+    }
+
+    @Test
+    void testReAddedKeyIsEvictedInItsNewOrder() {
+        //given
+        RecentKeys sut = new RecentKeys(2);
+        sut.add("evt_1");
+        sut.add("evt_2");
+
+        //when
+        sut.remove("evt_1");
+        sut.add("evt_1");
+        sut.add("evt_3");
+
+        //then the oldest key is evicted, not the one added again
+        assertFalse(sut.contains("evt_2"));
+        assertTrue(sut.contains("evt_1"));
+        assertTrue(sut.contains("evt_3"));
+        assertEquals(2, sut.size());
+    }
+}
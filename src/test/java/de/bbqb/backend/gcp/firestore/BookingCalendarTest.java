@@ -0,0 +1,173 @@
+package de.bbqb.backend.gcp.firestore;
+
+import com.google.cloud.Timestamp;
+import com.google.cloud.firestore.DocumentChange;
+import com.google.cloud.firestore.EventListener;
+import com.google.cloud.firestore.Firestore;
+import com.google.cloud.firestore.Query;
+import com.google.cloud.firestore.QueryDocumentSnapshot;
+import com.google.cloud.firestore.QuerySnapshot;
+import de.bbqb.backend.gcp.firestore.document.BookingDoc;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+/**
+ * @author Marius Degen
+ */
+public class BookingCalendarTest {
+
+    private static final String DEVICE_ID = "device";
+    private static final long HOUR = 3600 * 1000;
+
+    private MeterRegistry meterRegistry;
+    private Query query;
+    private EventListener<QuerySnapshot> snapshotListener;
+    private BookingCalendar.BookingListener bookingListener;
+    private BookingCalendar sut;
+    private long start;
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    void setUp() {
+        Firestore firestore = mock(Firestore.class, RETURNS_DEEP_STUBS);
+        query = mock(Query.class, RETURNS_DEEP_STUBS);
+        when(firestore.collection("bookings").whereGreaterThan(eq("sessionEnd"), any(Timestamp.class))).thenReturn(query);
+        meterRegistry = new SimpleMeterRegistry();
+        sut = new BookingCalendar(firestore, meterRegistry);
+        bookingListener = mock(BookingCalendar.BookingListener.class);
+        sut.addListener(bookingListener);
+        sut.start();
+        ArgumentCaptor<EventListener<QuerySnapshot>> captor = ArgumentCaptor.forClass(EventListener.class);
+        verify(query).addSnapshotListener(captor.capture());
+        snapshotListener = captor.getValue();
+        start = System.currentTimeMillis() + HOUR;
+    }
+
+    @Test
+    void testOverlappingSessionIsRejectedUntilReleased() {
+        //given
+        assertTrue(sut.tryReserve(DEVICE_ID, "first", start, start + HOUR));
+
+        //when
+        boolean overlapping = sut.tryReserve(DEVICE_ID, "second", start + HOUR / 2, start + 2 * HOUR);
+        boolean adjacent = sut.tryReserve(DEVICE_ID, "third", start + HOUR, start + 2 * HOUR);
+        sut.release("third");
+        sut.release("first");
+
+        //then
+        assertFalse(overlapping);
+        assertTrue(adjacent);
+        assertTrue(sut.tryReserve(DEVICE_ID, "second", start + HOUR / 2, start + 2 * HOUR));
+        assertEquals(1, sut.reservations());
+        assertEquals(1, meterRegistry.get("bbqb.booking.conflicts").counter().count());
+    }
+
+    @Test
+    void testFirstSnapshotReplacesReservationsAndNotifiesListeners() {
+        //given a reservation of this instance for a booking which is not saved yet
+        sut.tryReserve(DEVICE_ID, "unsaved", start, start + HOUR);
+        BookingDoc payed = booking("booking", "payed", start + 2 * HOUR);
+        QuerySnapshot snapshot = mock(QuerySnapshot.class);
+        List<QueryDocumentSnapshot> documents = List.of(document(payed));
+        when(snapshot.getDocuments()).thenReturn(documents);
+
+        //when
+        snapshotListener.onEvent(snapshot, null);
+
+        //then
+        assertTrue(sut.isReady());
+        assertEquals(2, sut.reservations());
+        assertFalse(sut.tryReserve(DEVICE_ID, "new", start, start + HOUR));
+        assertFalse(sut.tryReserve(DEVICE_ID, "conflict", start + 2 * HOUR, start + 3 * HOUR));
+        verify(bookingListener).onBookingChanged("booking", payed);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void testResubscribingDropsSavedBookingsWhichAreMissingAndKeepsUnsavedOnes() {
+        //given a booking which was saved and delivered by the listener and one which is not saved yet
+        QuerySnapshot first = mock(QuerySnapshot.class);
+        when(first.getDocuments()).thenReturn(List.of());
+        snapshotListener.onEvent(first, null);
+        sut.tryReserve(DEVICE_ID, "saved", start, start + HOUR);
+        QuerySnapshot changes = mock(QuerySnapshot.class);
+        List<DocumentChange> documentChanges = List.of(change(DocumentChange.Type.ADDED, booking("saved", "pending", start)));
+        when(changes.getDocumentChanges()).thenReturn(documentChanges);
+        snapshotListener.onEvent(changes, null);
+        sut.tryReserve(DEVICE_ID, "unsaved", start + 2 * HOUR, start + 3 * HOUR);
+
+        //when the listener is replaced and its first snapshot does not contain the saved booking anymore
+        sut.resubscribe();
+        ArgumentCaptor<EventListener<QuerySnapshot>> captor = ArgumentCaptor.forClass(EventListener.class);
+        verify(query, times(2)).addSnapshotListener(captor.capture());
+        // The replaced listener still delivers a change before it is removed
+        snapshotListener.onEvent(changes, null);
+        assertTrue(sut.isReady());
+        QuerySnapshot snapshot = mock(QuerySnapshot.class);
+        when(snapshot.getDocuments()).thenReturn(List.of());
+        captor.getAllValues().get(1).onEvent(snapshot, null);
+
+        //then
+        assertEquals(1, sut.reservations());
+        assertTrue(sut.tryReserve(DEVICE_ID, "new", start, start + HOUR));
+        assertFalse(sut.tryReserve(DEVICE_ID, "conflict", start + 2 * HOUR, start + 3 * HOUR));
+        verify(bookingListener, times(1)).onBookingChanged(eq("saved"), any());
+    }
+
+    @Test
+    void testChangesUpdateReservationsAndNotifyListeners() {
+        //given
+        QuerySnapshot first = mock(QuerySnapshot.class);
+        when(first.getDocuments()).thenReturn(List.of());
+        snapshotListener.onEvent(first, null);
+        sut.tryReserve(DEVICE_ID, "expiring", start, start + HOUR);
+        BookingDoc expired = booking("expiring", "expired", start);
+        BookingDoc added = booking("added", "payed", start + 2 * HOUR);
+        List<DocumentChange> documentChanges = List.of(
+                change(DocumentChange.Type.MODIFIED, expired),
+                change(DocumentChange.Type.ADDED, added),
+                change(DocumentChange.Type.REMOVED, booking("removed", "payed", start + 4 * HOUR)));
+        QuerySnapshot changes = mock(QuerySnapshot.class);
+        when(changes.getDocumentChanges()).thenReturn(documentChanges);
+
+        //when
+        snapshotListener.onEvent(changes, null);
+
+        //then the expired booking frees its session and the added one reserves its session
+        assertTrue(sut.tryReserve(DEVICE_ID, "new", start, start + HOUR));
+        assertFalse(sut.tryReserve(DEVICE_ID, "conflict", start + 2 * HOUR, start + 3 * HOUR));
+        verify(bookingListener).onBookingChanged("expiring", expired);
+        verify(bookingListener).onBookingChanged("added", added);
+        verify(bookingListener).onBookingRemoved("removed");
+    }
+
+    private BookingDoc booking(String id, String status, long sessionStart) {
+        return new BookingDoc(id, "pi_" + id, DEVICE_ID, "user", status, Timestamp.now(), 60,
+                Timestamp.ofTimeMicroseconds(sessionStart * 1000), Timestamp.ofTimeMicroseconds((sessionStart + HOUR) * 1000));
+    }
+
+    private static QueryDocumentSnapshot document(BookingDoc bookingDoc) {
+        QueryDocumentSnapshot document = mock(QueryDocumentSnapshot.class);
+        when(document.getId()).thenReturn(bookingDoc.getId());
+        when(document.toObject(BookingDoc.class)).thenReturn(bookingDoc);
+        return document;
+    }
+
+    private static DocumentChange change(DocumentChange.Type type, BookingDoc bookingDoc) {
+        DocumentChange change = mock(DocumentChange.class);
+        when(change.getType()).thenReturn(type);
+        QueryDocumentSnapshot document = document(bookingDoc);
+        when(change.getDocument()).thenReturn(document);
+        return change;
+    }
+}
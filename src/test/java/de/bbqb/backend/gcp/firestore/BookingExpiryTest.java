@@ -0,0 +1,146 @@
+package de.bbqb.backend.gcp.firestore;
+
+import com.google.cloud.Timestamp;
+import com.google.cloud.firestore.Firestore;
+import de.bbqb.backend.gcp.firestore.document.BookingDoc;
+import de.bbqb.backend.stripe.StripeService;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.InOrder;
+import reactor.core.publisher.Mono;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.*;
+
+/**
+ * @author Marius Degen
+ */
+public class BookingExpiryTest {
+
+    private static final String BOOKING_ID = "booking";
+    private static final String DEVICE_ID = "device";
+
+    private BookingRepo repo;
+    private BookingExpiryStore store;
+    private StripeService stripeService;
+    private BookingCalendar bookingCalendar;
+    private MeterRegistry meterRegistry;
+    private BookingExpiry sut;
+
+    @BeforeEach
+    void setUp() {
+        repo = mock(BookingRepo.class);
+        store = mock(BookingExpiryStore.class);
+        stripeService = mock(StripeService.class);
+        meterRegistry = new SimpleMeterRegistry();
+        bookingCalendar = new BookingCalendar(mock(Firestore.class), meterRegistry);
+        sut = new BookingExpiry(repo, store, stripeService, bookingCalendar, 900, meterRegistry);
+        when(repo.findById(BOOKING_ID)).thenReturn(Mono.just(booking("pending")));
+    }
+
+    @Test
+    void testUnpaidBookingExpiresAndReleasesItsSession() {
+        //given
+        bookingCalendar.tryReserve(DEVICE_ID, BOOKING_ID, 0, 1000);
+        when(stripeService.cancelPaymentIntent("pi_1")).thenReturn(Mono.just("canceled"));
+        when(store.expireIfPending(BOOKING_ID)).thenReturn(Mono.just(true));
+
+        //when
+        sut.expire(BOOKING_ID).block();
+
+        //then
+        verify(store).expireIfPending(BOOKING_ID);
+        assertEquals(1, expirations("expired"));
+        assertEquals(0, bookingCalendar.reservations());
+    }
+
+    @Test
+    void testPayedBookingDoesNotExpire() {
+        //given the webhook did not arrive yet
+        when(stripeService.cancelPaymentIntent("pi_1")).thenReturn(Mono.just("succeeded"));
+
+        //when
+        sut.expire(BOOKING_ID).block();
+
+        //then it is checked again in case the webhook does not arrive at all
+        verify(store, never()).expireIfPending(anyString());
+        assertEquals(1, expirations("payed"));
+        assertEquals(1, sut.scheduled());
+    }
+
+    @Test
+    void testProcessingPaymentIsCheckedAgainLater() {
+        //given
+        when(stripeService.cancelPaymentIntent("pi_1")).thenReturn(Mono.just("processing"));
+
+        //when
+        sut.expire(BOOKING_ID).block();
+
+        //then
+        verify(store, never()).expireIfPending(anyString());
+        assertEquals(1, sut.scheduled());
+    }
+
+    @Test
+    void testBookingWhichIsNotPendingIsIgnored() {
+        //given
+        when(repo.findById(BOOKING_ID)).thenReturn(Mono.just(booking("payed")));
+
+        //when
+        sut.expire(BOOKING_ID).block();
+
+        //then
+        verifyNoInteractions(stripeService, store);
+    }
+
+    @Test
+    void testPaymentIsCanceledBeforeTheBookingExpires() {
+        //given
+        when(stripeService.cancelPaymentIntent("pi_1")).thenReturn(Mono.just("canceled"));
+        when(store.expireIfPending(BOOKING_ID)).thenReturn(Mono.just(true));
+
+        //when
+        sut.expire(BOOKING_ID).block();
+
+        //then
+        InOrder inOrder = inOrder(stripeService, store);
+        inOrder.verify(stripeService).cancelPaymentIntent("pi_1");
+        inOrder.verify(store).expireIfPending(BOOKING_ID);
+    }
+
+    @Test
+    void testFailedExpiryIsRetried() {
+        //given
+        when(stripeService.cancelPaymentIntent("pi_1")).thenReturn(Mono.error(new IllegalStateException("stripe unavailable")));
+
+        //when
+        sut.expire(BOOKING_ID).block();
+
+        //then it is retried, as its deadline passed already
+        assertEquals(1, expirations("failed"));
+        assertEquals(1, sut.scheduled());
+    }
+
+    @Test
+    void testCancelRemovesDeadline() {
+        //when
+        sut.schedule(BOOKING_ID, System.currentTimeMillis());
+        sut.schedule(BOOKING_ID, System.currentTimeMillis());
+
+        //then
+        assertEquals(1, sut.scheduled());
+        sut.cancel(BOOKING_ID);
+        assertEquals(0, sut.scheduled());
+    }
+
+    private double expirations(String result) {
+        return meterRegistry.get("bbqb.booking.expirations").tag("result", result).counter().count();
+    }
+
+    private static BookingDoc booking(String status) {
+        return new BookingDoc(BOOKING_ID, "pi_1", DEVICE_ID, "user", status, Timestamp.now(), 45, Timestamp.now(), Timestamp.now());
+    }
+}
@@ -0,0 +1,203 @@
+package de.bbqb.backend.gcp.firestore;
+
+import com.google.cloud.Timestamp;
+import com.google.cloud.firestore.DocumentChange;
+import com.google.cloud.firestore.EventListener;
+import com.google.cloud.firestore.Firestore;
+import com.google.cloud.firestore.QueryDocumentSnapshot;
+import com.google.cloud.firestore.QuerySnapshot;
+import de.bbqb.backend.gcp.firestore.document.DeviceDoc;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * @author Marius Degen
+ */
+public class DeviceCacheTest {
+
+    private MeterRegistry meterRegistry;
+    private EventListener<QuerySnapshot> snapshotListener;
+    private DeviceCacheListener cacheListener;
+    private DeviceCache sut;
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    void setUp() {
+        Firestore firestore = mock(Firestore.class, RETURNS_DEEP_STUBS);
+        meterRegistry = new SimpleMeterRegistry();
+        sut = new DeviceCache(firestore, true, meterRegistry);
+        cacheListener = mock(DeviceCacheListener.class);
+        sut.addListener(cacheListener);
+        sut.start();
+        ArgumentCaptor<EventListener<QuerySnapshot>> captor = ArgumentCaptor.forClass(EventListener.class);
+        verify(firestore.collection("devices")).addSnapshotListener(captor.capture());
+        snapshotListener = captor.getValue();
+        QuerySnapshot first = mock(QuerySnapshot.class);
+        List<QueryDocumentSnapshot> documents = List.of(document(deviceDoc("a", "1"), 10));
+        when(first.getDocuments()).thenReturn(documents);
+        snapshotListener.onEvent(first, null);
+    }
+
+    @AfterEach
+    void tearDown() {
+        sut.stop();
+    }
+
+    @Test
+    void testLateListenerChangeDoesNotOverwriteNewerPut() {
+        //given this instance wrote the device after the change which the listener delivers late
+        DeviceDoc written = deviceDoc("a", "3");
+        sut.put(written, timestamp(30));
+        DeviceDoc late = deviceDoc("a", "2");
+        DeviceDoc newest = deviceDoc("a", "4");
+
+        //when
+        snapshotListener.onEvent(changes(change(late, 20)), null);
+        String afterLateChange = sut.find("a").get().getNumber();
+        snapshotListener.onEvent(changes(change(newest, 40)), null);
+
+        //then
+        assertEquals("3", afterLateChange);
+        assertEquals("4", sut.find("a").get().getNumber());
+        verify(cacheListener).onDeviceChanged(written);
+        verify(cacheListener, never()).onDeviceChanged(late);
+        verify(cacheListener).onDeviceChanged(newest);
+    }
+
+    @Test
+    void testPutDoesNotOverwriteNewerListenerState() {
+        //given
+        snapshotListener.onEvent(changes(change(deviceDoc("a", "3"), 30)), null);
+
+        //when the writes of this instance are put after the listener delivered a newer state
+        sut.put(deviceDoc("a", "2"), timestamp(20));
+        sut.put(deviceDoc("a", "saved"), null);
+        sut.put(deviceDoc("b", "created"), null);
+
+        //then devices with unknown update time are only put if they are not cached yet
+        assertEquals("3", sut.find("a").get().getNumber());
+        assertEquals("created", sut.find("b").get().getNumber());
+    }
+
+    @Test
+    void testUpdateIsAppliedToTheCurrentState() {
+        //given
+        snapshotListener.onEvent(changes(change(deviceDoc("a", "3"), 30)), null);
+
+        //when
+        DeviceDoc blocked = sut.update("a", null, cachedDeviceDoc -> {
+            DeviceDoc updatedDeviceDoc = deviceDoc("a", cachedDeviceDoc.getNumber());
+            updatedDeviceDoc.setBlocked(true);
+            return updatedDeviceDoc;
+        }).get();
+        DeviceDoc outdated = sut.update("a", timestamp(20), cachedDeviceDoc -> deviceDoc("a", "2")).get();
+
+        //then
+        assertEquals("3", blocked.getNumber());
+        assertTrue(blocked.getBlocked());
+        assertSame(blocked, outdated);
+        assertSame(blocked, sut.find("a").get());
+        assertFalse(sut.update("unknown", null, cachedDeviceDoc -> cachedDeviceDoc).isPresent());
+    }
+
+    @Test
+    void testOnlyLookupsOfSingleDevicesAreCounted() {
+        //given
+        sut.put(deviceDoc("b", "2"), timestamp(20));
+
+        //when
+        sut.find("a");
+        sut.findByDeviceId("iot-b");
+        sut.find("unknown");
+        sut.findByDeviceId("unknown");
+        sut.findAll();
+        sut.findPage(null, 10);
+
+        //then
+        assertEquals(2, meterRegistry.get("bbqb.device.cache.requests").tag("result", "hit").counter().count());
+        assertEquals(2, meterRegistry.get("bbqb.device.cache.requests").tag("result", "miss").counter().count());
+        assertEquals(2, meterRegistry.get("bbqb.device.cache.size").gauge().value());
+    }
+
+    @Test
+    void testRemovedDeviceIsDropped() {
+        //when
+        snapshotListener.onEvent(changes(change(DocumentChange.Type.REMOVED, deviceDoc("a", "1"), 10)), null);
+
+        //then
+        assertFalse(sut.find("a").isPresent());
+        assertFalse(sut.findByDeviceId("iot-a").isPresent());
+        verify(cacheListener).onDeviceRemoved("a");
+    }
+
+    @Test
+    void testDeviceIdIndexFollowsChangedDeviceIds() {
+        //given device a is moved to another IoT device and b takes over its IoT device id
+        DeviceDoc moved = deviceDoc("a", "1");
+        moved.setDeviceId("iot-new");
+        DeviceDoc takeover = deviceDoc("b", "2");
+        takeover.setDeviceId("iot-a");
+
+        //when
+        sut.put(takeover, timestamp(20));
+        snapshotListener.onEvent(changes(change(moved, 30)), null);
+
+        //then
+        assertSame(moved, sut.findByDeviceId("iot-new").get());
+        assertSame(takeover, sut.findByDeviceId("iot-a").get());
+        sut.put(deviceDoc("c", "3"), timestamp(40));
+        snapshotListener.onEvent(changes(change(DocumentChange.Type.REMOVED, moved, 50)), null);
+        assertFalse(sut.findByDeviceId("iot-new").isPresent());
+        assertSame(takeover, sut.findByDeviceId("iot-a").get());
+        assertEquals(List.of("b", "c"), sut.findPage(null, 10).stream().map(DeviceDoc::getId).collect(Collectors.toList()));
+    }
+
+    private static QuerySnapshot changes(DocumentChange change) {
+        QuerySnapshot snapshot = mock(QuerySnapshot.class);
+        List<DocumentChange> documentChanges = List.of(change);
+        when(snapshot.getDocumentChanges()).thenReturn(documentChanges);
+        return snapshot;
+    }
+
+    private static DocumentChange change(DeviceDoc deviceDoc, long updateSeconds) {
+        return change(DocumentChange.Type.MODIFIED, deviceDoc, updateSeconds);
+    }
+
+    private static DocumentChange change(DocumentChange.Type type, DeviceDoc deviceDoc, long updateSeconds) {
+        DocumentChange change = mock(DocumentChange.class);
+        when(change.getType()).thenReturn(type);
+        QueryDocumentSnapshot document = document(deviceDoc, updateSeconds);
+        when(change.getDocument()).thenReturn(document);
+        return change;
+    }
+
+    private static QueryDocumentSnapshot document(DeviceDoc deviceDoc, long updateSeconds) {
+        QueryDocumentSnapshot document = mock(QueryDocumentSnapshot.class);
+        when(document.getId()).thenReturn(deviceDoc.getId());
+        when(document.toObject(DeviceDoc.class)).thenReturn(deviceDoc);
+        when(document.getUpdateTime()).thenReturn(timestamp(updateSeconds));
+        return document;
+    }
+
+    private static DeviceDoc deviceDoc(String id, String number) {
+        DeviceDoc deviceDoc = new DeviceDoc();
+        deviceDoc.setId(id);
+        deviceDoc.setDeviceId("iot-" + id);
+        deviceDoc.setNumber(number);
+        return deviceDoc;
+    }
+
+    private static Timestamp timestamp(long seconds) {
+        return Timestamp.ofTimeSecondsAndNanos(seconds, 0);
+    }
+}
@@ -0,0 +1,143 @@
+package de.bbqb.backend.gcp.firestore;
+
+import de.bbqb.backend.gcp.firestore.document.DeviceDoc;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.reactivestreams.Subscription;
+import reactor.core.Disposable;
+import reactor.core.publisher.BaseSubscriber;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.when;
+
+/**
+ * @author Marius Degen
+ */
+@ExtendWith(MockitoExtension.class)
+public class DeviceEventBroadcasterTest {
+
+    private static final int BUFFER_SIZE = 4;
+
+    @Mock
+    private DeviceCache deviceCache;
+
+    private SimpleMeterRegistry meterRegistry;
+    private DeviceEventBroadcaster sut;
+
+    @BeforeEach
+    void setUp() {
+        meterRegistry = new SimpleMeterRegistry();
+        sut = new DeviceEventBroadcaster(deviceCache, BUFFER_SIZE, meterRegistry);
+    }
+
+    @Test
+    void testChangesAreFannedOutToDeviceAndAllSubscribers() {
+        //given
+        when(deviceCache.find("a")).thenReturn(Optional.of(deviceDoc("a", "initial")));
+        List<String> allChanges = new ArrayList<>();
+        List<String> changesOfA = new ArrayList<>();
+        List<String> changesOfB = new ArrayList<>();
+        Disposable all = sut.subscribe(null).subscribe(change -> allChanges.add(change.getDeviceDoc().getNumber()));
+        Disposable a = sut.subscribe("a").subscribe(change -> changesOfA.add(change.getDeviceDoc().getNumber()));
+        Disposable b = sut.subscribe("b").subscribe(change -> changesOfB.add(change.getDeviceDoc().getNumber()));
+
+        //when
+        sut.onDeviceChanged(deviceDoc("a", "1"));
+        sut.onDeviceChanged(deviceDoc("c", "2"));
+
+        //then
+        assertEquals(List.of("1", "2"), allChanges);
+        assertEquals(List.of("initial", "1"), changesOfA);
+        assertEquals(List.of(), changesOfB);
+        assertEquals(3, sut.subscribers());
+        assertEquals(4, meterRegistry.get("bbqb.device.events.fanout").timer().count());
+        all.dispose();
+        a.dispose();
+        b.dispose();
+        assertEquals(0, sut.subscribers());
+    }
+
+    @Test
+    void testSlowSubscriberReceivesLatestChanges() {
+        //given a subscriber which does not request anything yet
+        List<String> received = new ArrayList<>();
+        BaseSubscriber<DeviceEventBroadcaster.Change> slow = new BaseSubscriber<>() {
+            @Override
+            protected void hookOnSubscribe(Subscription subscription) {
+            }
+
+            @Override
+            protected void hookOnNext(DeviceEventBroadcaster.Change change) {
+                received.add(change.getDeviceDoc().getNumber());
+            }
+        };
+        sut.subscribe(null).subscribe(slow);
+
+        //when
+        for (int i = 0; i < 10; i++) {
+            sut.onDeviceChanged(deviceDoc("a", String.valueOf(i)));
+        }
+        slow.requestUnbounded();
+
+        //then the oldest changes were dropped
+        assertEquals(List.of("6", "7", "8", "9"), received);
+        assertEquals(6.0, meterRegistry.get("bbqb.device.events.dropped").counter().count());
+        slow.dispose();
+    }
+
+    @Test
+    void testDeviceStreamCompletesWhenDeviceIsRemoved() {
+        //given the device was created a moment ago and is not cached yet
+        when(deviceCache.find("a")).thenReturn(Optional.empty());
+        when(deviceCache.isReady()).thenReturn(false);
+        List<DeviceEventBroadcaster.Change> received = new ArrayList<>();
+        List<DeviceEventBroadcaster.Change> receivedByAll = new ArrayList<>();
+        boolean[] completed = {false};
+        sut.subscribe("a").doOnComplete(() -> completed[0] = true).subscribe(received::add);
+        Disposable all = sut.subscribe(null).subscribe(receivedByAll::add);
+
+        //when
+        sut.onDeviceChanged(deviceDoc("a", "1"));
+        sut.onDeviceRemoved("a");
+
+        //then both streams receive the deletion
+        assertTrue(completed[0]);
+        assertEquals(2, received.size());
+        assertNull(received.get(1).getDeviceDoc());
+        assertEquals("a", received.get(1).getId());
+        assertEquals(2, receivedByAll.size());
+        assertNull(receivedByAll.get(1).getDeviceDoc());
+        assertEquals(1, sut.subscribers());
+        all.dispose();
+    }
+
+    @Test
+    void testStreamOfUnknownDeviceCompletesRightAway() {
+        //given
+        when(deviceCache.find("unknown")).thenReturn(Optional.empty());
+        when(deviceCache.isReady()).thenReturn(true);
+        boolean[] completed = {false};
+
+        //when
+        sut.subscribe("unknown").doOnComplete(() -> completed[0] = true).subscribe();
+
+        //then
+        assertTrue(completed[0]);
+        assertEquals(0, sut.subscribers());
+    }
+
+    private static DeviceDoc deviceDoc(String id, String number) {
+        DeviceDoc deviceDoc = new DeviceDoc();
+        deviceDoc.setId(id);
+        deviceDoc.setNumber(number);
+        return deviceDoc;
+    }
+}
@@ -0,0 +1,56 @@
+package de.bbqb.backend.gcp.firestore;
+
+import com.google.cloud.Timestamp;
+import de.bbqb.backend.api.model.entity.DeviceTelemetry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * @author Marius Degen
+ */
+public class DeviceLivenessTest {
+
+    private DeviceLiveness sut;
+
+    @BeforeEach
+    void setUp() {
+        // Neither the device cache nor Pub/Sub deliver states
+        sut = new DeviceLiveness(mock(DeviceCache.class), 300, new SimpleMeterRegistry());
+        sut.init();
+    }
+
+    @AfterEach
+    void tearDown() {
+        sut.stop();
+    }
+
+    @Test
+    void testPublishTimeOfTheDocumentDecidesWithoutHeartbeats() {
+        //given
+        long now = System.currentTimeMillis();
+
+        //when //then
+        assertTrue(sut.isOnline("butler-1", timestamp(now - 60 * 1000)));
+        assertFalse(sut.isOnline("butler-1", timestamp(now - 600 * 1000)));
+        assertFalse(sut.isOnline("butler-1", null));
+    }
+
+    @Test
+    void testReceivedStateMessageMarksDeviceOnline() {
+        //given
+        sut.onTelemetry(new DeviceTelemetry("butler-1", System.currentTimeMillis(), true, true, -60.0, 20.0, 20.0, null));
+
+        //when //then
+        assertTrue(sut.isOnline("butler-1", timestamp(System.currentTimeMillis() - 600 * 1000)));
+        assertFalse(sut.isOnline("butler-2", null));
+    }
+
+    private static Timestamp timestamp(long millis) {
+        return Timestamp.ofTimeMicroseconds(millis * 1000);
+    }
+}
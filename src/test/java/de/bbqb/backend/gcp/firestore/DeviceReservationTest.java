@@ -0,0 +1,98 @@
+package de.bbqb.backend.gcp.firestore;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author Marius Degen
+ */
+public class DeviceReservationTest {
+
+    private static final String DEVICE_ID = "butler-1";
+
+    @Test
+    void testConcurrentReservationsOnTwoInstancesBlockDeviceOnce() {
+        //given two instances sharing one store
+        InMemoryDeviceBlockStore store = new InMemoryDeviceBlockStore();
+        store.blocked.put(DEVICE_ID, false);
+        DeviceReservation instance1 = new DeviceReservation(store, 16, 1000, new SimpleMeterRegistry());
+        DeviceReservation instance2 = new DeviceReservation(store, 16, 1000, new SimpleMeterRegistry());
+        int requests = 500;
+
+        //when
+        List<Boolean> results = Flux.range(0, requests)
+                .flatMap(i -> (i % 2 == 0 ? instance1 : instance2).reserve(DEVICE_ID).subscribeOn(Schedulers.parallel()), requests)
+                .collectList()
+                .block(Duration.ofSeconds(30));
+
+        //then
+        assertNotNull(results);
+        assertEquals(requests, results.size());
+        assertEquals(1, results.stream().filter(reserved -> reserved).count());
+        assertTrue(store.blocked.get(DEVICE_ID));
+        // The local lock lets at most one check-and-set per instance run at a time
+        assertTrue(store.maxConcurrent.get() <= 2);
+    }
+
+    @Test
+    void testReleaseAllowsNextReservation() {
+        //given
+        InMemoryDeviceBlockStore store = new InMemoryDeviceBlockStore();
+        store.blocked.put(DEVICE_ID, false);
+        DeviceReservation sut = new DeviceReservation(store, 16, 1000, new SimpleMeterRegistry());
+
+        //when
+        Boolean first = sut.reserve(DEVICE_ID).block();
+        Boolean second = sut.reserve(DEVICE_ID).block();
+        Boolean released = sut.release(DEVICE_ID).block();
+        Boolean third = sut.reserve(DEVICE_ID).block();
+        Boolean unknown = sut.reserve("unknown").block();
+
+        //then
+        assertTrue(first);
+        assertFalse(second);
+        assertTrue(released);
+        assertTrue(third);
+        assertNull(unknown);
+    }
+
+    /**
+     * Store which applies the check-and-set atomically after a short delay like a Firestore transaction
+     */
+    private static class InMemoryDeviceBlockStore implements DeviceBlockStore {
+        private final Map<String, Boolean> blocked = new ConcurrentHashMap<>();
+        private final AtomicInteger concurrent = new AtomicInteger();
+        private final AtomicInteger maxConcurrent = new AtomicInteger();
+
+        @Override
+        public Mono<Boolean> compareAndSetBlocked(String deviceId, boolean expected, boolean value) {
+            return Mono.delay(Duration.ofMillis(1))
+                    .doOnSubscribe(subscription -> maxConcurrent.accumulateAndGet(concurrent.incrementAndGet(), Math::max))
+                    .flatMap(tick -> {
+                        synchronized (blocked) {
+                            Boolean current = blocked.get(deviceId);
+                            if (current == null) {
+                                return Mono.<Boolean>empty();
+                            }
+                            if (current != expected) {
+                                return Mono.just(false);
+                            }
+                            blocked.put(deviceId, value);
+                            return Mono.just(true);
+                        }
+                    })
+                    .doOnTerminate(concurrent::decrementAndGet);
+        }
+    }
+}
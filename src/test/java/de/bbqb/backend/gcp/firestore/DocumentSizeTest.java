@@ -0,0 +1,32 @@
+package de.bbqb.backend.gcp.firestore;
+
+import com.google.cloud.Timestamp;
+import com.google.cloud.firestore.GeoPoint;
+import de.bbqb.backend.gcp.firestore.document.DeviceDoc;
+import org.junit.jupiter.api.Test;
+
+import java.util.Collections;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author Marius Degen
+ */
+public class DocumentSizeTest {
+
+    @Test
+    void testPartialUpdateIsSmallerThanFullDocument() {
+        //given
+        DeviceDoc deviceDoc = new DeviceDoc("abc", "butler-1", "1", Timestamp.now(), false, true, true, -60.0, 20.0, 20.0,
+                200.0, 200.0, new GeoPoint(47.66, 9.17), "Seerhein", "Strandweg", "1", "Konstanz", "78467", "Deutschland");
+
+        //when
+        long full = DocumentSize.ofDocument("devices/abc", deviceDoc);
+        long partial = DocumentSize.ofFields("devices/abc", Collections.singletonMap("blocked", true));
+
+        //then
+        // 8 + 4 bytes path, 32 bytes document, 8 bytes "blocked" and 1 byte boolean
+        assertEquals(53, partial);
+        assertTrue(full > 4 * partial);
+    }
+}
@@ -0,0 +1,209 @@
+package de.bbqb.backend.gcp.firestore;
+
+import com.google.api.core.ApiFutures;
+import com.google.api.core.SettableApiFuture;
+import com.google.cloud.Timestamp;
+import com.google.cloud.firestore.DocumentReference;
+import com.google.cloud.firestore.DocumentSnapshot;
+import com.google.cloud.firestore.FieldPath;
+import com.google.cloud.firestore.Firestore;
+import com.google.cloud.firestore.Query;
+import com.google.cloud.firestore.QueryDocumentSnapshot;
+import com.google.cloud.firestore.QuerySnapshot;
+import de.bbqb.backend.api.model.entity.Booking;
+import de.bbqb.backend.api.model.entity.Device;
+import de.bbqb.backend.api.model.entity.Payment;
+import de.bbqb.backend.api.model.entity.Timeslot;
+import de.bbqb.backend.api.model.entity.User;
+import de.bbqb.backend.api.model.service.DeviceService;
+import de.bbqb.backend.gcp.firestore.document.BookingDoc;
+import de.bbqb.backend.gcp.firestore.document.UserDoc;
+import de.bbqb.backend.stripe.PaymentMethodCache;
+import de.bbqb.backend.stripe.StripeExecutor;
+import de.bbqb.backend.stripe.StripeService;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentMatchers;
+import reactor.core.publisher.Mono;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.intThat;
+import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.Mockito.*;
+
+/**
+ * Counts the Firestore reads of users while creating a booking and of bookings
+ *
+ * @author Marius Degen
+ */
+public class FirestoreBookingServiceReadTest {
+
+    private static final String USER_ID = "user";
+    private static final String DEVICE_ID = "device";
+    private static final String PAYMENT_METHOD_ID = "pm";
+
+    private Firestore firestore;
+    private FirestoreUserService userService;
+    private StripeService stripeService;
+    private BookingRepo bookingRepo;
+    private BookingCalendar bookingCalendar;
+    private SessionReservationStore sessionReservationStore;
+    private FirestoreBookingService sut;
+    private DocumentSnapshot userSnapshot;
+
+    @BeforeEach
+    void setUp() {
+        firestore = mock(Firestore.class, RETURNS_DEEP_STUBS);
+        userSnapshot = mock(DocumentSnapshot.class);
+        when(userSnapshot.exists()).thenReturn(true);
+        when(userSnapshot.getId()).thenReturn(USER_ID);
+        when(userSnapshot.toObject(UserDoc.class)).thenReturn(new UserDoc(USER_ID, "cus_1", "Max", "Mustermann", "max@example.com"));
+        when(firestore.getAll(ArgumentMatchers.<DocumentReference>any())).thenReturn(ApiFutures.immediateFuture(List.of(userSnapshot)));
+        userService = new FirestoreUserService(mock(UserRepo.class), firestore, new SimpleMeterRegistry());
+
+        stripeService = spy(new StripeService("sk_test", userService, mock(StripeExecutor.class), mock(PaymentMethodCache.class), 5000, 20000));
+        Payment payment = new Payment("pi_1", "secret", PAYMENT_METHOD_ID, 800L, "germany", "eur", "BBQ BUTLER Miete");
+        doReturn(Mono.just(payment)).when(stripeService).createCardPaymentIntent(any(User.class), anyLong(), anyString(), any());
+
+        DeviceService deviceService = mock(DeviceService.class);
+        Device device = new Device(DEVICE_ID, "iot", "1", 0L, false, true, true, -60.0, 20.0, 20.0, 200.0, 200.0, null, null, true);
+        when(deviceService.readDevice(DEVICE_ID)).thenReturn(Mono.just(device));
+        when(deviceService.reserveDevice(DEVICE_ID)).thenReturn(Mono.just(true));
+
+        bookingRepo = mock(BookingRepo.class);
+        when(bookingRepo.findByPaymentIntentId(anyString())).thenReturn(Mono.empty());
+        when(bookingRepo.save(any(BookingDoc.class))).thenAnswer(invocation -> Mono.just(invocation.getArgument(0)));
+        bookingCalendar = mock(BookingCalendar.class);
+        when(bookingCalendar.isReady()).thenReturn(true);
+        when(bookingCalendar.tryReserve(eq(DEVICE_ID), any(), anyLong(), anyLong())).thenReturn(true);
+        sessionReservationStore = mock(SessionReservationStore.class);
+        when(sessionReservationStore.reserve(eq(DEVICE_ID), any(), anyLong(), anyLong())).thenReturn(Mono.just(true));
+        when(sessionReservationStore.release(eq(DEVICE_ID), any())).thenReturn(Mono.empty());
+        sut = new FirestoreBookingService(bookingRepo, firestore, deviceService, userService, stripeService, bookingCalendar, sessionReservationStore, mock(BookingExpiry.class), mock(FirestoreBookingStatisticService.class));
+    }
+
+    @Test
+    void testPassingTheUserIdToStripeReadsUserTwice() {
+        //when the booking is created like before: the user is read and only its id is passed to the stripe service
+        userService.readUser(USER_ID)
+                .flatMap(user -> stripeService.createCardPaymentIntent(USER_ID, Timeslot.FORTY_FIVE.getCost(), PAYMENT_METHOD_ID))
+                .block();
+
+        //then
+        verify(firestore, times(2)).getAll(ArgumentMatchers.<DocumentReference>any());
+    }
+
+    @Test
+    void testCreateBookingReadsUserOnce() {
+        //when
+        Booking booking = sut.createBooking(PAYMENT_METHOD_ID, DEVICE_ID, USER_ID, Timeslot.FORTY_FIVE, null, null).block();
+
+        //then
+        assertNotNull(booking);
+        assertEquals("pi_1", booking.getPaymentIntentId());
+        verify(firestore, times(1)).getAll(ArgumentMatchers.<DocumentReference>any());
+        verify(stripeService).createCardPaymentIntent(any(User.class), eq(Timeslot.FORTY_FIVE.getCost()), eq(PAYMENT_METHOD_ID), isNull());
+        verify(stripeService, never()).createCardPaymentIntent(anyString(), anyLong(), anyString());
+    }
+
+    @Test
+    void testRetriedBookingReturnsTheBookingOfItsPaymentIntent() {
+        //given the first attempt with the same idempotency key already created the booking
+        when(bookingRepo.findByPaymentIntentId("pi_1"))
+                .thenReturn(Mono.just(new BookingDoc("booking", "pi_1", DEVICE_ID, USER_ID, "pending", Timestamp.now(), 45, null, null)));
+
+        //when
+        Booking booking = sut.createBooking(PAYMENT_METHOD_ID, DEVICE_ID, USER_ID, Timeslot.FORTY_FIVE, null, "key").block();
+
+        //then
+        assertNotNull(booking);
+        assertEquals("booking", booking.getId());
+        verify(bookingRepo, never()).save(any(BookingDoc.class));
+        verify(sessionReservationStore).release(eq(DEVICE_ID), any());
+    }
+
+    @Test
+    void testSessionReservedByAnotherInstanceIsRejected() {
+        //given another instance reserved an overlapping session which this calendar does not know yet
+        when(sessionReservationStore.reserve(eq(DEVICE_ID), any(), anyLong(), anyLong())).thenReturn(Mono.just(false));
+
+        //when
+        assertThrows(RuntimeException.class, () -> sut.createBooking(PAYMENT_METHOD_ID, DEVICE_ID, USER_ID, Timeslot.FORTY_FIVE, null, null).block());
+
+        //then the local reservation is dropped and no payment is created
+        verify(bookingCalendar).release(any());
+        verify(stripeService, never()).createCardPaymentIntent(any(User.class), anyLong(), anyString(), any());
+        verify(bookingRepo, never()).save(any(BookingDoc.class));
+    }
+
+    @Test
+    void testBookingIsRejectedWhileCalendarIsNotSynchronized() {
+        //given
+        when(bookingCalendar.isReady()).thenReturn(false);
+
+        //when //then
+        assertThrows(IllegalStateException.class, () -> sut.createBooking(PAYMENT_METHOD_ID, DEVICE_ID, USER_ID, Timeslot.FORTY_FIVE, null, null).block());
+        verify(sessionReservationStore, never()).reserve(any(), any(), anyLong(), anyLong());
+    }
+
+    @Test
+    void testFindLatestBookingReadsOneDocument() {
+        //given
+        Query query = firestore.collection("bookings")
+                .whereEqualTo("userId", USER_ID)
+                .orderBy("requestTime", Query.Direction.DESCENDING)
+                .orderBy(FieldPath.documentId(), Query.Direction.DESCENDING);
+        QuerySnapshot snapshot = mock(QuerySnapshot.class);
+        QueryDocumentSnapshot document = mock(QueryDocumentSnapshot.class);
+        when(document.toObject(BookingDoc.class)).thenReturn(new BookingDoc("booking", "pi_1", DEVICE_ID, USER_ID, "payed", Timestamp.now(), 45, null, null));
+        when(snapshot.getDocuments()).thenReturn(List.of(document));
+        when(query.limit(1).get()).thenReturn(ApiFutures.immediateFuture(snapshot));
+
+        //when
+        Booking booking = sut.findLatestBookingByUserId(USER_ID).block();
+
+        //then
+        assertNotNull(booking);
+        assertEquals("booking", booking.getId());
+        verify(query, never()).limit(intThat(limit -> limit != 1));
+    }
+
+    @Test
+    void testConcurrentReadsOfTheSameUserAreCoalesced() throws Exception {
+        //given the read is still in flight when the second read starts
+        SettableApiFuture<List<DocumentSnapshot>> read = SettableApiFuture.create();
+        when(firestore.getAll(ArgumentMatchers.<DocumentReference>any())).thenReturn(read);
+
+        //when
+        CompletableFuture<List<User>> reads = Mono.zip(userService.readUser(USER_ID), userService.readUser(USER_ID), (first, second) -> List.of(first, second))
+                .toFuture();
+        read.set(List.of(userSnapshot));
+        List<User> users = reads.get(5, TimeUnit.SECONDS);
+
+        //then
+        assertNotNull(users);
+        assertEquals("cus_1", users.get(1).getStripeCustomerId());
+        verify(firestore, times(1)).getAll(ArgumentMatchers.<DocumentReference>any());
+    }
+
+    @Test
+    void testEndedBookingKeepsItsStatus() {
+        assertTrue(FirestoreBookingService.isUpdatable("pending", "payed"));
+        assertTrue(FirestoreBookingService.isUpdatable("pending", "payment_failed"));
+        assertTrue(FirestoreBookingService.isUpdatable("payed", "refunded"));
+        assertTrue(FirestoreBookingService.isUpdatable("expired", "expired"));
+        assertTrue(FirestoreBookingService.isUpdatable(null, "payed"));
+        // A payment which succeeded after the booking expired
+        assertFalse(FirestoreBookingService.isUpdatable("expired", "payed"));
+        assertFalse(FirestoreBookingService.isUpdatable("payment_failed", "payed"));
+    }
+}
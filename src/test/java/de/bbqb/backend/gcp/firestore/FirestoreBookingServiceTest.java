@@ -40,9 +40,21 @@ public class FirestoreBookingServiceTest {
     @Autowired
     private StripeService stripeService;
 
+    @Autowired
+    private BookingCalendar bookingCalendar;
+
+    @Autowired
+    private SessionReservationStore sessionReservationStore;
+
+    @Autowired
+    private BookingExpiry bookingExpiry;
+
+    @Autowired
+    private FirestoreBookingStatisticService bookingStatisticService;
+
     @BeforeEach
     public void setUp() {
-        this.sut = new FirestoreBookingService(bookingRepo, firestoreMock, deviceService, userService, stripeService);
+        this.sut = new FirestoreBookingService(bookingRepo, firestoreMock, deviceService, userService, stripeService, bookingCalendar, sessionReservationStore, bookingExpiry, bookingStatisticService);
     }
 
     @Test
@@ -0,0 +1,115 @@
+package de.bbqb.backend.gcp.firestore;
+
+import com.google.api.core.ApiFutures;
+import com.google.cloud.Timestamp;
+import com.google.cloud.firestore.Firestore;
+import com.google.cloud.firestore.Query;
+import com.google.cloud.firestore.QueryDocumentSnapshot;
+import com.google.cloud.firestore.QuerySnapshot;
+import de.bbqb.backend.api.model.entity.BookingStatistic;
+import de.bbqb.backend.api.model.entity.Timeslot;
+import de.bbqb.backend.api.model.service.BookingStatisticService;
+import de.bbqb.backend.api.model.service.DeviceService;
+import de.bbqb.backend.gcp.firestore.document.BookingDoc;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDate;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+/**
+ * @author Marius Degen
+ */
+public class FirestoreBookingStatisticServiceTest {
+
+    private static final LocalDate DAY = LocalDate.of(2020, 7, 1);
+
+    private Firestore firestore;
+    private FirestoreBookingStatisticService sut;
+
+    @BeforeEach
+    void setUp() {
+        firestore = mock(Firestore.class, RETURNS_DEEP_STUBS);
+        sut = new FirestoreBookingStatisticService(firestore, mock(DeviceService.class), 8);
+    }
+
+    @Test
+    void testPayedBookingIncrementsRevenue() {
+        //when
+        Map<String, Object> increments = sut.increments(booking("payed"), "Konstanz");
+
+        //then
+        assertNotNull(increments);
+        assertEquals("2020-07-01", increments.get("day"));
+        assertEquals("device", increments.get("deviceId"));
+        assertEquals("Konstanz", increments.get("city"));
+        assertTrue(increments.keySet().containsAll(List.of("payed", "revenue", "minutes")));
+        assertFalse(increments.containsKey("failed"));
+    }
+
+    @Test
+    void testExpiredBookingIsCountedWithoutRevenue() {
+        //when
+        Map<String, Object> increments = sut.increments(booking("expired"), null);
+
+        //then
+        assertNotNull(increments);
+        assertTrue(increments.containsKey("expired"));
+        assertFalse(increments.containsKey("revenue"));
+    }
+
+    @Test
+    void testPendingBookingIsNotCounted() {
+        assertNull(sut.increments(booking("pending"), "Konstanz"));
+    }
+
+    @Test
+    void testStatisticsSumUpShardsPerCity() {
+        //given two devices in one city, one of them with two shards
+        Query query = firestore.collectionGroup(anyString())
+                .whereGreaterThanOrEqualTo(eq("day"), any())
+                .whereLessThanOrEqualTo(eq("day"), any());
+        QuerySnapshot snapshot = mock(QuerySnapshot.class);
+        List<QueryDocumentSnapshot> shards = List.of(
+                shard("a", "Konstanz", 2, 1600L, 90L),
+                shard("a", "Konstanz", 1, 800L, 45L),
+                shard("b", "Konstanz", 1, 1300L, 90L));
+        when(snapshot.getDocuments()).thenReturn(shards);
+        when(query.get()).thenReturn(ApiFutures.immediateFuture(snapshot));
+
+        //when
+        List<BookingStatistic> statistics = sut.readBookingStatistics(BookingStatisticService.GROUP_BY_CITY, DAY, DAY).block();
+
+        //then
+        assertNotNull(statistics);
+        assertEquals(1, statistics.size());
+        BookingStatistic konstanz = statistics.get(0);
+        assertEquals("Konstanz", konstanz.getGroup());
+        assertEquals(4, konstanz.getPayedBookings());
+        assertEquals(3700, konstanz.getRevenue());
+        assertEquals(225, konstanz.getBookedMinutes());
+        assertEquals(225.0 / (2 * 24 * 60), konstanz.getUtilization(), 1e-9);
+    }
+
+    private static QueryDocumentSnapshot shard(String deviceId, String city, long payed, Long revenue, Long minutes) {
+        QueryDocumentSnapshot shard = mock(QueryDocumentSnapshot.class);
+        when(shard.getString("deviceId")).thenReturn(deviceId);
+        when(shard.getString("city")).thenReturn(city);
+        when(shard.getLong("payed")).thenReturn(payed);
+        when(shard.getLong("revenue")).thenReturn(revenue);
+        when(shard.getLong("minutes")).thenReturn(minutes);
+        return shard;
+    }
+
+    private static BookingDoc booking(String status) {
+        Timestamp requestTime = Timestamp.ofTimeSecondsAndNanos(DAY.atStartOfDay(java.time.ZoneOffset.UTC).toEpochSecond() + 3600, 0);
+        return new BookingDoc("booking", "pi_1", "device", "user", status, requestTime, Timeslot.FORTY_FIVE.getTime(), requestTime, requestTime);
+    }
+}
@@ -0,0 +1,86 @@
+package de.bbqb.backend.gcp.firestore;
+
+import com.google.api.core.ApiFutures;
+import com.google.api.gax.grpc.GrpcStatusCode;
+import com.google.api.gax.rpc.ApiExceptionFactory;
+import com.google.cloud.firestore.DocumentSnapshot;
+import com.google.cloud.firestore.Firestore;
+import io.grpc.Status;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+/**
+ * @author Marius Degen
+ */
+public class FirestoreDeviceBlockStoreTest {
+
+    private Firestore firestore;
+    private FirestoreDeviceBlockStore sut;
+
+    @BeforeEach
+    void setUp() {
+        firestore = mock(Firestore.class, RETURNS_DEEP_STUBS);
+        sut = new FirestoreDeviceBlockStore(firestore);
+    }
+
+    @Test
+    void testResultOfTheTransactionIsPassedOn() {
+        //given
+        when(firestore.runTransaction(any())).thenReturn(ApiFutures.immediateFuture(true), ApiFutures.immediateFuture(false));
+
+        //when
+        Boolean set = sut.compareAndSetBlocked("butler-1", false, true).block();
+        Boolean notSet = sut.compareAndSetBlocked("butler-1", false, true).block();
+
+        //then
+        assertTrue(set);
+        assertFalse(notSet);
+        verify(firestore, times(2)).runTransaction(any());
+    }
+
+    @Test
+    void testUnknownDeviceCompletesEmpty() {
+        //given
+        when(firestore.runTransaction(any())).thenReturn(ApiFutures.immediateFuture(null));
+
+        //when
+        Boolean set = sut.compareAndSetBlocked("unknown", false, true).block();
+
+        //then
+        assertNull(set);
+    }
+
+    @Test
+    void testFailedTransactionIsPassedOn() {
+        //given the transaction was aborted more often than the client retries it
+        when(firestore.runTransaction(any())).thenReturn(ApiFutures.immediateFailedFuture(
+                ApiExceptionFactory.createException(new RuntimeException("ABORTED"), GrpcStatusCode.of(Status.Code.ABORTED), true)));
+
+        //when //then
+        assertThrows(RuntimeException.class, () -> sut.compareAndSetBlocked("butler-1", false, true).block());
+    }
+
+    @Test
+    void testCompareAndSet() {
+        assertNull(FirestoreDeviceBlockStore.compareAndSet(snapshot(false, null), false));
+        assertTrue(FirestoreDeviceBlockStore.compareAndSet(snapshot(true, false), false));
+        // Devices without blocked flag are not blocked
+        assertTrue(FirestoreDeviceBlockStore.compareAndSet(snapshot(true, null), false));
+        assertFalse(FirestoreDeviceBlockStore.compareAndSet(snapshot(true, true), false));
+        assertTrue(FirestoreDeviceBlockStore.compareAndSet(snapshot(true, true), true));
+        assertFalse(FirestoreDeviceBlockStore.compareAndSet(snapshot(true, false), true));
+    }
+
+    private static DocumentSnapshot snapshot(boolean exists, Boolean blocked) {
+        DocumentSnapshot snapshot = mock(DocumentSnapshot.class);
+        when(snapshot.exists()).thenReturn(exists);
+        if (exists) {
+            when(snapshot.getBoolean("blocked")).thenReturn(blocked);
+        }
+        return snapshot;
+    }
+}
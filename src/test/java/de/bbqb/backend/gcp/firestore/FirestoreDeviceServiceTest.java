@@ -1,117 +1,495 @@
 package de.bbqb.backend.gcp.firestore;
 
+import com.google.api.core.ApiFutures;
+import com.google.api.gax.grpc.GrpcStatusCode;
+import com.google.api.gax.rpc.ApiExceptionFactory;
+import com.google.api.services.cloudiot.v1.model.SendCommandToDeviceResponse;
+import com.google.cloud.Timestamp;
+import com.google.cloud.firestore.DocumentReference;
+import com.google.cloud.firestore.DocumentSnapshot;
+import com.google.cloud.firestore.FieldPath;
 import com.google.cloud.firestore.Firestore;
+import com.google.cloud.firestore.GeoPoint;
+import com.google.cloud.firestore.Query;
+import com.google.cloud.firestore.QueryDocumentSnapshot;
+import com.google.cloud.firestore.QuerySnapshot;
+import com.google.cloud.firestore.WriteBatch;
+import com.google.cloud.firestore.WriteResult;
 import de.bbqb.backend.api.model.entity.Address;
 import de.bbqb.backend.api.model.entity.Device;
+import de.bbqb.backend.api.model.entity.DeviceBatchResult;
 import de.bbqb.backend.api.model.entity.Location;
-import de.bbqb.backend.gcp.firestore.DeviceRepo;
-import de.bbqb.backend.gcp.firestore.FirestoreDeviceService;
+import de.bbqb.backend.api.model.entity.Page;
+import de.bbqb.backend.gcp.firestore.document.DeviceDoc;
+import de.bbqb.backend.gcp.iot.CommandAckTracker;
+import de.bbqb.backend.gcp.iot.IotCommandDispatcher;
+import de.bbqb.backend.geo.GeoGridIndex;
+import io.grpc.Status;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import org.junit.jupiter.api.BeforeEach;
-import org.junit.jupiter.api.Disabled;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Answers;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.test.util.ReflectionTestUtils;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
-import java.util.Date;
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+import java.util.function.UnaryOperator;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyMap;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.Mockito.*;
 
 /**
  * @author Marius Degen
  */
-@Disabled
+@ExtendWith(MockitoExtension.class)
 public class FirestoreDeviceServiceTest {
 
     private final String id = "id";
     private final String deviceId = "deviceId";
-    private final String name = "name";
     private final String number = "123";
-    private final Long publishTime = new Date().getTime();
-    private final Boolean lockStatus = true;
-    private final Boolean drawerStatus = true;
-    private final Double wifiSignal = 89.0;
-    private final Double setTemperature1 = 30.0;
-    private final Double setTemperature2 = 30.0;
-    private final Double isTemperature1 = 30.0;
-    private final Double isTemperature2 = 30.0;
     private final Address address = new Address("Deutschland", "78467", "Konstanz", "Straße", "2", "Adressname");
     private final Location location = new Location(1.1, 1.2);
     private FirestoreDeviceService sut;
     @Mock
     private DeviceRepo deviceRepoMock;
-    @Mock
+    @Mock(answer = Answers.RETURNS_DEEP_STUBS)
     private Firestore firestoreMock;
+    @Mock
+    private IotCommandDispatcher iotCommandDispatcherMock;
+    @Mock
+    private CommandAckTracker commandAckTrackerMock;
+    @Mock
+    private DeviceCache deviceCacheMock;
+    @Mock
+    private DeviceGeoIndex deviceGeoIndexMock;
+    @Mock
+    private DeviceClusterIndex deviceClusterIndexMock;
+    @Mock
+    private DeviceTelemetryHistory deviceTelemetryHistoryMock;
+    @Mock
+    private DeviceReservation deviceReservationMock;
+    @Mock
+    private DeviceLiveness deviceLivenessMock;
+    @Mock
+    private DeviceEventBroadcaster deviceEventBroadcasterMock;
 
     @BeforeEach
     public void setUp() {
-        this.sut = new FirestoreDeviceService(deviceRepoMock, firestoreMock);
+        this.sut = new FirestoreDeviceService(deviceRepoMock, firestoreMock, iotCommandDispatcherMock, commandAckTrackerMock, deviceCacheMock, deviceGeoIndexMock, deviceClusterIndexMock, deviceTelemetryHistoryMock, deviceReservationMock, deviceLivenessMock, deviceEventBroadcasterMock, new SimpleMeterRegistry());
+        ReflectionTestUtils.setField(this.sut, "batchParallelism", 2);
     }
 
     @Test
     public void testCreateDevice() {
         // given
-        //Device device = new Device(id, deviceId, number,  publishTime, lockStatus, drawerStatus, wifiSignal, isTemperature1, isTemperature2, setTemperature1, setTemperature2, location, address);
+        when(firestoreMock.collection("devices").document().getId()).thenReturn(id);
+        when(deviceRepoMock.save(any(DeviceDoc.class))).thenAnswer(invocation -> Mono.just(invocation.getArgument(0)));
+        Device device = new Device(null, deviceId, number, null, null, null, null, null, null, null, null, null, location, address, null);
 
         // when
-        //Mono<Device> savedDevice = this.sut.createDevice(device);
+        Device savedDevice = this.sut.createDevice(device).block();
+
+        // then the new device is cached unless the listener delivered it already
+        assertEquals(id, savedDevice.getId());
+        assertEquals(deviceId, savedDevice.getDeviceId());
+        assertEquals(false, savedDevice.getBlocked());
+        ArgumentCaptor<DeviceDoc> captor = ArgumentCaptor.forClass(DeviceDoc.class);
+        verify(deviceCacheMock).put(captor.capture(), isNull());
+        assertEquals(id, captor.getValue().getId());
+    }
+
+    @Test
+    public void testReadDevice() {
+        // given
+        when(deviceCacheMock.isReady()).thenReturn(true);
+        when(deviceCacheMock.find(id)).thenReturn(Optional.of(deviceDoc(id)));
+
+        // when
+        Device readDevice = this.sut.readDevice(id).block();
+
+        // then
+        assertEquals(id, readDevice.getId());
+        verify(deviceRepoMock, never()).findById(anyString());
+    }
+
+    @Test
+    public void testReadDeviceMissingInCache() {
+        // given the device was created by another instance a moment ago
+        when(deviceCacheMock.isReady()).thenReturn(true);
+        when(deviceCacheMock.find(id)).thenReturn(Optional.empty());
+        when(deviceRepoMock.findById(id)).thenReturn(Mono.just(deviceDoc(id)));
+
+        // when
+        Device readDevice = this.sut.readDevice(id).block();
 
         // then
-        //Device actualSavedDevice = savedDevice.block();
-        //actualSavedDevice.equals(device);
+        assertEquals(id, readDevice.getId());
     }
 
     @Test
-    public void testUpdateDevice() {
+    public void testReadAllDevice() {
         // given
-        //Device device = new Device(id, deviceId, number,  publishTime, lockStatus, drawerStatus, wifiSignal, isTemperature1, isTemperature2, setTemperature1, setTemperature2, location, address);
+        when(deviceCacheMock.isReady()).thenReturn(true);
+        List<DeviceDoc> deviceDocs = List.of(deviceDoc("a"), deviceDoc("b"));
+        when(deviceCacheMock.findAll()).thenReturn(deviceDocs);
 
         // when
-        //Mono<Device> updatedDevice = this.sut.updateDevice(device);
+        List<Device> allDevices = this.sut.readAllDevices().collectList().block();
 
         // then
-        //Device actualUpdatedDevice = updatedDevice.block();
-        //actualUpdatedDevice.equals(device);
+        assertEquals(2, allDevices.size());
+        verify(deviceRepoMock, never()).findAll();
     }
 
-    //@Test
-    public void testReadDevice() {
+    @Test
+    public void testReadAllDeviceWithoutCache() {
         // given
-        String deviceId = "Butler-2";
+        when(deviceCacheMock.isReady()).thenReturn(false);
+        when(deviceRepoMock.findAll()).thenReturn(Flux.just(deviceDoc("a")));
 
         // when
-        Mono<Device> readDevice = this.sut.readDevice(deviceId);
+        List<Device> allDevices = this.sut.readAllDevices().collectList().block();
 
         // then
-        Device actualReadDevice = readDevice.block();
+        assertEquals(1, allDevices.size());
+        verify(deviceCacheMock, never()).findAll();
     }
 
     @Test
-    public void testReadAllDevice() {
+    public void testReadDevicesPageByPage() {
+        // given
+        when(deviceCacheMock.isReady()).thenReturn(true);
+        when(deviceCacheMock.findPage(null, 3)).thenReturn(List.of(deviceDoc("a"), deviceDoc("b"), deviceDoc("c")));
+        when(deviceCacheMock.findPage("b", 3)).thenReturn(List.of(deviceDoc("c"), deviceDoc("d")));
+        when(deviceCacheMock.findPage("d", 3)).thenReturn(List.of());
+
+        // when
+        Page<Device> first = this.sut.readDevices(2, null).block();
+        Page<Device> second = this.sut.readDevices(2, first.getNextPageToken()).block();
+        Page<Device> empty = this.sut.readDevices(2, PageToken.encode("d")).block();
+
+        // then the last page holds exactly as many devices as fit on a page, but has no next page
+        assertEquals(List.of("a", "b"), first.getItems().stream().map(Device::getId).collect(Collectors.toList()));
+        assertEquals(List.of("c", "d"), second.getItems().stream().map(Device::getId).collect(Collectors.toList()));
+        assertNull(second.getNextPageToken());
+        assertTrue(empty.getItems().isEmpty());
+        assertNull(empty.getNextPageToken());
+    }
+
+    @Test
+    public void testReadDevicesWithoutCache() {
+        // given
+        when(deviceCacheMock.isReady()).thenReturn(false);
+        Query query = firestoreMock.collection("devices").orderBy(FieldPath.documentId()).limit(3);
+        Query page = mock(Query.class);
+        when(query.startAfter("b")).thenReturn(page);
+        QuerySnapshot snapshot = mock(QuerySnapshot.class);
+        List<QueryDocumentSnapshot> documents = List.of(document(deviceDoc("c")));
+        when(snapshot.getDocuments()).thenReturn(documents);
+        when(page.get()).thenReturn(ApiFutures.immediateFuture(snapshot));
+
+        // when
+        Page<Device> last = this.sut.readDevices(2, PageToken.encode("b")).block();
+
+        // then
+        assertEquals(1, last.getItems().size());
+        assertEquals("c", last.getItems().get(0).getId());
+        assertNull(last.getNextPageToken());
+    }
+
+    @Test
+    public void testReadDevicesWithMalformedPageToken() {
+        // when the token is not decoded before the page is subscribed
+        Mono<Page<Device>> page = this.sut.readDevices(2, "not a token");
+
+        // then
+        assertThrows(IllegalArgumentException.class, page::block);
+        assertThrows(IllegalArgumentException.class, () -> this.sut.readDevices(2, PageToken.encode("devices/a")).block());
+        assertThrows(IllegalArgumentException.class, () -> this.sut.readDevices(2, PageToken.encode("")).block());
+        verifyNoInteractions(deviceCacheMock);
+    }
+
+    @Test
+    public void testUpdateDeviceWritesOnlySetFields() {
+        // given
+        DocumentReference reference = reference(id);
+        Timestamp updateTime = Timestamp.ofTimeSecondsAndNanos(1600000100, 0);
+        when(reference.update(anyMap())).thenReturn(ApiFutures.immediateFuture(writeResult(updateTime)));
+        when(deviceCacheMock.isReady()).thenReturn(true);
+        DeviceDoc cachedDeviceDoc = deviceDoc(id);
+        when(deviceCacheMock.update(eq(id), eq(updateTime), any())).thenAnswer(invocation ->
+                Optional.of(invocation.<UnaryOperator<DeviceDoc>>getArgument(2).apply(cachedDeviceDoc)));
+        Address city = new Address(null, null, "Singen", null, null, null);
+        Device device = new Device(id, null, "7", null, true, null, null, null, null, null, null, null, null, city, null);
+
+        // when
+        Device updatedDevice = this.sut.updateDevice(device).block();
+
+        // then the other fields are taken from the cached document without reading it
+        verify(reference).update(Map.of("number", "7", "blocked", true, "city", "Singen"));
+        assertEquals("7", updatedDevice.getNumber());
+        assertTrue(updatedDevice.getBlocked());
+        assertEquals("Singen", updatedDevice.getAddress().getCity());
+        assertEquals(address.getStreet(), updatedDevice.getAddress().getStreet());
+        assertEquals(deviceId, updatedDevice.getDeviceId());
+        verify(deviceRepoMock, never()).findById(anyString());
+    }
+
+    @Test
+    public void testUpdateMissingDeviceCreatesIt() {
         // given
+        DocumentReference reference = reference(id);
+        when(reference.update(anyMap())).thenReturn(ApiFutures.immediateFailedFuture(notFound()));
+        when(firestoreMock.collection("devices").document().getId()).thenReturn("new");
+        when(deviceRepoMock.save(any(DeviceDoc.class))).thenAnswer(invocation -> Mono.just(invocation.getArgument(0)));
+        Device device = new Device(id, deviceId, number, null, null, null, null, null, null, null, null, null, location, address, null);
 
         // when
-        Flux<Device> allDevices = this.sut.readAllDevices();
+        Device createdDevice = this.sut.updateDevice(device).block();
 
         // then
+        assertEquals("new", createdDevice.getId());
+        assertEquals(number, createdDevice.getNumber());
+        assertEquals(address.getCity(), createdDevice.getAddress().getCity());
     }
 
     @Test
-    public void testOpenDevice() {
+    public void testSetDeviceBlockedWritesOnlyBlockedField() {
         // given
+        DocumentReference reference = reference(id);
+        Timestamp updateTime = Timestamp.ofTimeSecondsAndNanos(1600000100, 0);
+        when(reference.update(anyMap())).thenReturn(ApiFutures.immediateFuture(writeResult(updateTime)));
 
         // when
-        this.sut.openDevice(deviceId ,20);
+        this.sut.setDeviceBlocked(id, true).block();
 
         // then
+        verify(reference).update(Map.of("blocked", true));
+        verify(deviceCacheMock).update(eq(id), eq(updateTime), any());
+        verify(deviceRepoMock, never()).findById(anyString());
     }
 
     @Test
-    public void testLockDevice() {
+    public void testSetBlockedOfMissingDeviceFails() {
         // given
-        //Device device = new Device(id, deviceId, number,  publishTime, lockStatus, drawerStatus, wifiSignal, isTemperature1, isTemperature2, setTemperature1, setTemperature2, location, address);
+        DocumentReference reference = reference(id);
+        when(reference.update(anyMap())).thenReturn(ApiFutures.immediateFailedFuture(notFound()));
 
         // when
-        //this.sut.lockDevice(device);
+        Mono<Void> blocked = this.sut.setDeviceBlocked(id, true);
 
         // then
+        assertThrows(RuntimeException.class, blocked::block);
+        verify(deviceCacheMock, never()).update(anyString(), any(), any());
+    }
+
+    @Test
+    public void testReadDevicesNearDoesNotCountCandidatesAsCacheLookups() {
+        // given
+        when(deviceCacheMock.isReady()).thenReturn(true);
+        DeviceDoc blocked = deviceDoc("b");
+        blocked.setBlocked(true);
+        when(deviceCacheMock.peek("a")).thenReturn(Optional.of(deviceDoc("a")));
+        when(deviceCacheMock.peek("b")).thenReturn(Optional.of(blocked));
+        when(deviceGeoIndexMock.nearest(eq(1.1), eq(1.2), eq(10.0), eq(5), any())).thenAnswer(invocation -> {
+            Predicate<String> filter = invocation.getArgument(4);
+            return List.of(new GeoGridIndex.Neighbor("a", 0.5), new GeoGridIndex.Neighbor("b", 1.0)).stream()
+                    .filter(neighbor -> filter.test(neighbor.getId()))
+                    .collect(Collectors.toList());
+        });
+
+        // when
+        List<Device> devices = this.sut.readDevicesNear(location, 10, 5).collectList().block();
+
+        // then
+        assertEquals(1, devices.size());
+        assertEquals("a", devices.get(0).getId());
+        verify(deviceCacheMock, never()).find(anyString());
+    }
+
+    @Test
+    public void testReservedDeviceIsUpdatedInCache() {
+        // given
+        DeviceDoc cachedDeviceDoc = deviceDoc(id);
+        when(deviceReservationMock.reserve(id)).thenReturn(Mono.just(true));
+        when(deviceCacheMock.update(eq(id), isNull(), any())).thenAnswer(invocation ->
+                Optional.of(invocation.<UnaryOperator<DeviceDoc>>getArgument(2).apply(cachedDeviceDoc)));
+
+        // when
+        Boolean reserved = this.sut.reserveDevice(id).block();
+
+        // then the cached document is not modified but replaced by a blocked copy
+        assertTrue(reserved);
+        verify(deviceCacheMock).update(eq(id), isNull(), any());
+        assertEquals(false, cachedDeviceDoc.getBlocked());
+    }
+
+    @Test
+    public void testOpenDeviceRetriesTemporaryErrorsWithBackoff() {
+        // given
+        when(commandAckTrackerMock.newCorrelationId()).thenReturn("abc");
+        when(commandAckTrackerMock.send(eq(deviceId), eq("abc"), any())).thenAnswer(invocation -> invocation.<Mono<?>>getArgument(2).then());
+        AtomicInteger attempts = new AtomicInteger();
+        when(iotCommandDispatcherMock.dispatch(eq(deviceId), any())).thenReturn(Mono.defer(() -> attempts.incrementAndGet() < 3
+                ? Mono.error(new IOException("connection reset"))
+                : Mono.just(new SendCommandToDeviceResponse())));
+        long start = System.nanoTime();
+
+        // when
+        this.sut.openDevice(deviceId, 20).block();
+
+        // then the second retry waits twice as long as the first one
+        assertEquals(3, attempts.get());
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(600));
+    }
+
+    @Test
+    public void testOpenDeviceDoesNotRetryPermanentErrors() {
+        // given
+        when(commandAckTrackerMock.newCorrelationId()).thenReturn("abc");
+        when(commandAckTrackerMock.send(eq(deviceId), eq("abc"), any())).thenAnswer(invocation -> invocation.<Mono<?>>getArgument(2).then());
+        AtomicInteger attempts = new AtomicInteger();
+        when(iotCommandDispatcherMock.dispatch(eq(deviceId), any())).thenReturn(Mono.defer(() -> {
+            attempts.incrementAndGet();
+            return Mono.error(new IllegalArgumentException("Unknown device"));
+        }));
+
+        // when
+        assertThrows(IllegalArgumentException.class, () -> this.sut.openDevice(deviceId, 20).block());
+
+        // then
+        assertEquals(1, attempts.get());
+    }
+
+    @Test
+    public void testWriteDevicesUpdatesExistingDevicesAndCreatesMissingOnes() {
+        // given "cached" is known to the cache, "stored" exists in Firestore only and "missing" and "gone" do not exist
+        WriteBatch batch = mock(WriteBatch.class);
+        when(firestoreMock.batch()).thenReturn(batch);
+        when(batch.commit()).thenReturn(ApiFutures.immediateFuture(List.of()));
+        when(deviceCacheMock.isReady()).thenReturn(true);
+        when(deviceCacheMock.peek(anyString())).thenReturn(Optional.empty());
+        when(deviceCacheMock.peek("cached")).thenReturn(Optional.of(deviceDoc("cached")));
+        DocumentReference cached = reference("cached");
+        DocumentReference stored = reference("stored");
+        DocumentReference missing = reference("missing");
+        reference("gone");
+        DocumentReference created = mock(DocumentReference.class);
+        when(created.getId()).thenReturn("new");
+        when(firestoreMock.collection("devices").document()).thenReturn(created);
+        List<DocumentSnapshot> snapshots = List.of(snapshot("stored", true), snapshot("missing", false), snapshot("gone", false));
+        when(firestoreMock.getAll(any())).thenReturn(ApiFutures.immediateFuture(snapshots));
+        Flux<Device> devices = Flux.just(
+                new Device("cached", null, "1", null, null, null, null, null, null, null, null, null, null, null, null),
+                new Device("stored", null, "2", null, null, null, null, null, null, null, null, null, null, null, null),
+                new Device("missing", deviceId, "3", null, null, null, null, null, null, null, null, null, location, null, null),
+                new Device("gone", null, "4", null, null, null, null, null, null, null, null, null, null, null, null),
+                new Device(null, deviceId, "5", null, null, null, null, null, null, null, null, null, location, null, null),
+                new Device("a/b", null, "6", null, null, null, null, null, null, null, null, null, null, null, null));
+
+        // when
+        List<DeviceBatchResult> results = this.sut.writeDevices(devices).collectList().block();
+
+        // then
+        assertEquals(List.of(DeviceBatchResult.UPDATED, DeviceBatchResult.UPDATED, DeviceBatchResult.CREATED,
+                DeviceBatchResult.INVALID, DeviceBatchResult.CREATED, DeviceBatchResult.INVALID),
+                results.stream().map(DeviceBatchResult::getStatus).collect(Collectors.toList()));
+        assertEquals("new", results.get(4).getId());
+        verify(batch).update(eq(cached), anyMap());
+        verify(batch).update(eq(stored), anyMap());
+        // The missing device is created with the defaults of a new device
+        ArgumentCaptor<DeviceDoc> captor = ArgumentCaptor.forClass(DeviceDoc.class);
+        verify(batch).create(eq(missing), captor.capture());
+        assertEquals("missing", captor.getValue().getId());
+        assertEquals(true, captor.getValue().getLocked());
+        assertEquals(false, captor.getValue().getBlocked());
+        verify(batch).create(eq(created), any(DeviceDoc.class));
+        verify(deviceCacheMock).put(captor.getValue(), null);
+    }
+
+    @Test
+    public void testWriteDevicesReportsFailedBatch() {
+        // given the device was deleted after the cache was updated
+        WriteBatch batch = mock(WriteBatch.class);
+        when(firestoreMock.batch()).thenReturn(batch);
+        when(batch.commit()).thenReturn(ApiFutures.immediateFailedFuture(new IllegalStateException("NOT_FOUND")));
+        when(deviceCacheMock.isReady()).thenReturn(true);
+        when(deviceCacheMock.peek("cached")).thenReturn(Optional.of(deviceDoc("cached")));
+        reference("cached");
+        Flux<Device> devices = Flux.just(
+                new Device("cached", null, "1", null, null, null, null, null, null, null, null, null, null, null, null),
+                new Device("cached", null, null, null, null, null, null, null, null, null, null, null, null, null, null));
+
+        // when
+        List<DeviceBatchResult> results = this.sut.writeDevices(devices).collectList().block();
+
+        // then
+        assertEquals(DeviceBatchResult.FAILED, results.get(0).getStatus());
+        assertEquals("NOT_FOUND", results.get(0).getError());
+        assertEquals(DeviceBatchResult.INVALID, results.get(1).getStatus());
+        assertEquals("No fields to update", results.get(1).getError());
+        verify(firestoreMock, never()).getAll(any());
+    }
+
+    private DocumentReference reference(String id) {
+        DocumentReference reference = mock(DocumentReference.class);
+        lenient().when(reference.getId()).thenReturn(id);
+        lenient().when(reference.getPath()).thenReturn("devices/" + id);
+        when(firestoreMock.collection("devices").document(id)).thenReturn(reference);
+        return reference;
+    }
+
+    // WriteResult can neither be mocked nor created by clients
+    private static WriteResult writeResult(Timestamp updateTime) {
+        try {
+            Constructor<WriteResult> constructor = WriteResult.class.getDeclaredConstructor(Timestamp.class);
+            constructor.setAccessible(true);
+            return constructor.newInstance(updateTime);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static Exception notFound() {
+        return ApiExceptionFactory.createException(new RuntimeException("NOT_FOUND"), GrpcStatusCode.of(Status.Code.NOT_FOUND), false);
+    }
+
+    private static QueryDocumentSnapshot document(DeviceDoc deviceDoc) {
+        QueryDocumentSnapshot document = mock(QueryDocumentSnapshot.class);
+        when(document.toObject(DeviceDoc.class)).thenReturn(deviceDoc);
+        return document;
+    }
+
+    private static DocumentSnapshot snapshot(String id, boolean exists) {
+        DocumentSnapshot snapshot = mock(DocumentSnapshot.class);
+        when(snapshot.exists()).thenReturn(exists);
+        if (exists) {
+            when(snapshot.getId()).thenReturn(id);
+        }
+        return snapshot;
+    }
+
+    private DeviceDoc deviceDoc(String id) {
+        return new DeviceDoc(id, deviceId, number, Timestamp.ofTimeSecondsAndNanos(1600000000, 0), false, true, true, -60.0,
+                20.0, 20.0, 200.0, 200.0, new GeoPoint(location.getLatitude(), location.getLongitude()),
+                address.getName(), address.getStreet(), address.getHouseNumber(), address.getCity(), address.getPostalcode(), address.getCountry());
     }
 }
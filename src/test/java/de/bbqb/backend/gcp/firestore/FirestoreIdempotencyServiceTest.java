@@ -0,0 +1,190 @@
+package de.bbqb.backend.gcp.firestore;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.cloud.Timestamp;
+import de.bbqb.backend.gcp.firestore.document.IdempotencyKeyDoc;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoProcessor;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.*;
+
+/**
+ * @author Marius Degen
+ */
+public class FirestoreIdempotencyServiceTest {
+
+    private static final String SCOPE = "POST /bookings user";
+
+    private IdempotencyStore store;
+    private MeterRegistry meterRegistry;
+    private FirestoreIdempotencyService sut;
+    private AtomicInteger executions;
+
+    @BeforeEach
+    void setUp() {
+        store = mock(IdempotencyStore.class);
+        when(store.begin(any(IdempotencyKeyDoc.class))).thenReturn(Mono.just(true));
+        when(store.complete(any(IdempotencyKeyDoc.class))).thenReturn(Mono.empty());
+        when(store.delete(anyString())).thenReturn(Mono.empty());
+        meterRegistry = new SimpleMeterRegistry();
+        sut = new FirestoreIdempotencyService(store, new ObjectMapper(), 100, 3600, meterRegistry);
+        executions = new AtomicInteger();
+    }
+
+    @Test
+    void testConcurrentDuplicateJoinsExecution() {
+        //given a request which did not complete yet
+        MonoProcessor<ResponseEntity<String>> response = MonoProcessor.create();
+        Function<String, Mono<ResponseEntity<String>>> request = stripeKey -> {
+            executions.incrementAndGet();
+            return response;
+        };
+
+        //when
+        Mono<ResponseEntity<String>> first = sut.execute(SCOPE, "key", "fingerprint", String.class, request);
+        Mono<ResponseEntity<String>> second = sut.execute(SCOPE, "key", "fingerprint", String.class, request);
+        MonoProcessor<ResponseEntity<String>> firstResult = first.toProcessor();
+        MonoProcessor<ResponseEntity<String>> secondResult = second.toProcessor();
+        assertFalse(secondResult.isTerminated());
+        response.onNext(ResponseEntity.ok("booking"));
+
+        //then
+        assertEquals(1, executions.get());
+        assertEquals("booking", firstResult.block().getBody());
+        assertEquals("booking", secondResult.block().getBody());
+        assertEquals("true", secondResult.block().getHeaders().getFirst(FirestoreIdempotencyService.REPLAYED_HEADER));
+        assertEquals(1, requests("joined"));
+        assertEquals(1, meterRegistry.get("bbqb.idempotency.saved").counter().count());
+    }
+
+    @Test
+    void testCompletedRequestIsReplayedFromMemory() {
+        //given
+        Function<String, Mono<ResponseEntity<String>>> request = stripeKey -> {
+            executions.incrementAndGet();
+            return Mono.just(ResponseEntity.ok("booking"));
+        };
+        sut.execute(SCOPE, "key", "fingerprint", String.class, request).block();
+
+        //when
+        ResponseEntity<String> replayed = sut.execute(SCOPE, "key", "fingerprint", String.class, request).block();
+
+        //then
+        assertEquals(1, executions.get());
+        assertEquals("booking", replayed.getBody());
+        assertEquals(1, requests("replayed"));
+        verify(store, times(1)).begin(any(IdempotencyKeyDoc.class));
+        verify(store, never()).read(anyString());
+    }
+
+    @Test
+    void testKeyReusedWithOtherParametersIsRejected() {
+        //given
+        sut.execute(SCOPE, "key", "fingerprint", String.class, stripeKey -> Mono.just(ResponseEntity.ok("booking"))).block();
+
+        //when
+        ResponseEntity<String> response = sut.execute(SCOPE, "key", "other", String.class, stripeKey -> Mono.just(ResponseEntity.ok("other"))).block();
+
+        //then
+        assertEquals(HttpStatus.UNPROCESSABLE_ENTITY, response.getStatusCode());
+        assertEquals(1, requests("mismatch"));
+    }
+
+    @Test
+    void testResponseOfAnotherInstanceIsReplayedFromFirestore() {
+        //given the key was completed by another instance
+        long now = System.currentTimeMillis();
+        when(store.begin(any(IdempotencyKeyDoc.class))).thenReturn(Mono.just(false));
+        when(store.read(anyString())).thenReturn(Mono.just(new IdempotencyKeyDoc("id", "fingerprint", "completed", 201,
+                Map.of("Location", List.of("/users/user")), "\"user\"", timestamp(now), timestamp(now + 3600 * 1000))));
+
+        //when
+        ResponseEntity<String> response = sut.execute(SCOPE, "key", "fingerprint", String.class, stripeKey -> {
+            executions.incrementAndGet();
+            return Mono.just(ResponseEntity.ok("user"));
+        }).block();
+
+        //then
+        assertEquals(0, executions.get());
+        assertEquals(HttpStatus.CREATED, response.getStatusCode());
+        assertEquals("user", response.getBody());
+        assertEquals("/users/user", response.getHeaders().getFirst("Location"));
+        assertEquals(1, requests("replayed_stored"));
+    }
+
+    @Test
+    void testKeyStartedByAnotherInstanceIsAConflict() {
+        //given
+        long now = System.currentTimeMillis();
+        when(store.begin(any(IdempotencyKeyDoc.class))).thenReturn(Mono.just(false));
+        when(store.read(anyString())).thenReturn(Mono.just(new IdempotencyKeyDoc("id", "fingerprint", "started", null,
+                null, null, timestamp(now), timestamp(now + 3600 * 1000))));
+
+        //when
+        ResponseEntity<String> response = sut.execute(SCOPE, "key", "fingerprint", String.class, stripeKey -> Mono.just(ResponseEntity.ok("booking"))).block();
+
+        //then
+        assertEquals(HttpStatus.CONFLICT, response.getStatusCode());
+        assertEquals(1, requests("conflict"));
+    }
+
+    @Test
+    void testServerErrorIsNotStored() {
+        //given
+        Function<String, Mono<ResponseEntity<String>>> request = stripeKey -> executions.incrementAndGet() == 1
+                ? Mono.just(ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).build())
+                : Mono.just(ResponseEntity.ok("booking"));
+        sut.execute(SCOPE, "key", "fingerprint", String.class, request).block();
+
+        //when retried with the same key
+        ResponseEntity<String> response = sut.execute(SCOPE, "key", "fingerprint", String.class, request).block();
+
+        //then
+        assertEquals(2, executions.get());
+        assertEquals("booking", response.getBody());
+        verify(store).delete(anyString());
+        verify(store, times(1)).complete(any(IdempotencyKeyDoc.class));
+    }
+
+    @Test
+    void testSameKeyIsForwardedForRetries() {
+        //given
+        String[] stripeKeys = new String[2];
+        sut.execute(SCOPE, "key", "fingerprint", String.class, stripeKey -> {
+            stripeKeys[0] = stripeKey;
+            return Mono.just(ResponseEntity.status(HttpStatus.BAD_GATEWAY).build());
+        }).block();
+
+        //when
+        sut.execute(SCOPE, "key", "fingerprint", String.class, stripeKey -> {
+            stripeKeys[1] = stripeKey;
+            return Mono.just(ResponseEntity.ok("booking"));
+        }).block();
+
+        //then
+        assertNotNull(stripeKeys[0]);
+        assertEquals(stripeKeys[0], stripeKeys[1]);
+    }
+
+    private double requests(String result) {
+        return meterRegistry.get("bbqb.idempotency.requests").tag("result", result).counter().count();
+    }
+
+    private static Timestamp timestamp(long millis) {
+        return Timestamp.ofTimeMicroseconds(millis * 1000);
+    }
+}
@@ -0,0 +1,137 @@
+package de.bbqb.backend.gcp.firestore;
+
+import com.google.api.core.ApiFutures;
+import com.google.api.gax.grpc.GrpcStatusCode;
+import com.google.api.gax.rpc.ApiExceptionFactory;
+import com.google.cloud.firestore.DocumentSnapshot;
+import com.google.cloud.firestore.FieldPath;
+import com.google.cloud.firestore.FieldValue;
+import com.google.cloud.firestore.Firestore;
+import io.grpc.Status;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+/**
+ * @author Marius Degen
+ */
+public class FirestoreSessionReservationStoreTest {
+
+    private static final long HOUR = 3600 * 1000;
+    private static final long PENDING_TIMEOUT = 900 * 1000;
+
+    private Firestore firestore;
+    private FirestoreSessionReservationStore sut;
+    private long now;
+
+    @BeforeEach
+    void setUp() {
+        firestore = mock(Firestore.class, RETURNS_DEEP_STUBS);
+        sut = new FirestoreSessionReservationStore(firestore, 900);
+        now = System.currentTimeMillis();
+    }
+
+    @Test
+    void testResultOfTheTransactionIsPassedOn() {
+        //given
+        when(firestore.runTransaction(any())).thenReturn(ApiFutures.immediateFuture(true), ApiFutures.immediateFuture(false));
+
+        //when
+        Boolean reserved = sut.reserve("device", "first", now, now + HOUR).block();
+        Boolean overlapping = sut.reserve("device", "second", now, now + HOUR).block();
+
+        //then
+        assertTrue(reserved);
+        assertFalse(overlapping);
+    }
+
+    @Test
+    void testReleaseOfUnknownDeviceCompletes() {
+        //given
+        when(firestore.collection("session_reservations").document("device").update(any(FieldPath.class), any(FieldValue.class)))
+                .thenReturn(ApiFutures.immediateFailedFuture(
+                        ApiExceptionFactory.createException(new RuntimeException("NOT_FOUND"), GrpcStatusCode.of(Status.Code.NOT_FOUND), false)));
+
+        //when //then
+        assertDoesNotThrow(() -> sut.release("device", "booking").block());
+    }
+
+    @Test
+    void testOverlappingSessionsOfOtherBookings() {
+        //given
+        Map<String, Map<String, Object>> sessions = Map.of(
+                "before", session(now, now + HOUR, now),
+                "after", session(now + 2 * HOUR, now + 3 * HOUR, now),
+                "ended", session(now - 2 * HOUR, now - HOUR, now - 3 * HOUR),
+                "same", session(now + HOUR / 2, now + 2 * HOUR, now));
+
+        //when
+        List<String> overlapping = FirestoreSessionReservationStore.overlapping(sessions, "same", now + HOUR, now + 5 * HOUR / 2, now);
+
+        //then adjacent sessions and the session of the booking itself do not overlap
+        assertEquals(List.of("after"), overlapping);
+    }
+
+    @Test
+    void testActiveBookingBlocksTheSession() {
+        //given
+        Map<String, Map<String, Object>> sessions = Map.of("payed", session(now, now + HOUR, now - HOUR));
+
+        //when
+        Map<String, Map<String, Object>> reserved = FirestoreSessionReservationStore.reserve(sessions, List.of("payed"),
+                Map.of("payed", booking(true, "payed")), "new", now, now + HOUR, now, PENDING_TIMEOUT);
+
+        //then
+        assertNull(reserved);
+    }
+
+    @Test
+    void testEndedAndAbandonedBookingsDoNotBlockTheSession() {
+        //given
+        Map<String, Map<String, Object>> sessions = Map.of(
+                "expired", session(now, now + HOUR, now - HOUR),
+                "abandoned", session(now, now + HOUR, now - 2 * PENDING_TIMEOUT),
+                "ended", session(now - 2 * HOUR, now - HOUR, now - 3 * HOUR),
+                "later", session(now + 2 * HOUR, now + 3 * HOUR, now));
+
+        //when
+        Map<String, Map<String, Object>> reserved = FirestoreSessionReservationStore.reserve(sessions, List.of("expired", "abandoned"),
+                Map.of("expired", booking(true, "expired"), "abandoned", booking(false, null)), "new", now, now + HOUR, now, PENDING_TIMEOUT);
+
+        //then stale sessions are dropped
+        assertNotNull(reserved);
+        assertEquals(Set.of("later", "new"), reserved.keySet());
+        assertEquals(now + HOUR, reserved.get("new").get("end"));
+    }
+
+    @Test
+    void testBookingWhichIsStillBeingCreatedBlocksTheSession() {
+        //given another instance reserved the session but did not save its booking yet
+        Map<String, Map<String, Object>> sessions = Map.of("creating", session(now, now + HOUR, now - 1000));
+
+        //when
+        Map<String, Map<String, Object>> reserved = FirestoreSessionReservationStore.reserve(sessions, List.of("creating"),
+                Map.of("creating", booking(false, null)), "new", now, now + HOUR, now, PENDING_TIMEOUT);
+
+        //then
+        assertNull(reserved);
+    }
+
+    private static Map<String, Object> session(long start, long end, long reservedAt) {
+        return Map.of("start", start, "end", end, "reservedAt", reservedAt);
+    }
+
+    private static DocumentSnapshot booking(boolean exists, String status) {
+        DocumentSnapshot snapshot = mock(DocumentSnapshot.class);
+        when(snapshot.exists()).thenReturn(exists);
+        when(snapshot.getString("status")).thenReturn(status);
+        return snapshot;
+    }
+}
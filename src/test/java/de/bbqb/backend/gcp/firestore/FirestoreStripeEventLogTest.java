@@ -0,0 +1,82 @@
+package de.bbqb.backend.gcp.firestore;
+
+import com.google.api.core.ApiFutures;
+import com.google.cloud.Timestamp;
+import com.google.cloud.firestore.Firestore;
+import de.bbqb.backend.api.model.service.StripeEventLog.Delivery;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+/**
+ * @author Marius Degen
+ */
+public class FirestoreStripeEventLogTest {
+
+    private Firestore firestore;
+    private MeterRegistry meterRegistry;
+    private FirestoreStripeEventLog sut;
+
+    @BeforeEach
+    void setUp() {
+        firestore = mock(Firestore.class, RETURNS_DEEP_STUBS);
+        meterRegistry = new SimpleMeterRegistry();
+        sut = new FirestoreStripeEventLog(firestore, 100, meterRegistry);
+    }
+
+    @Test
+    void testRedeliveryIsDetectedInMemory() {
+        //given
+        when(firestore.runTransaction(any())).thenReturn(ApiFutures.immediateFuture(Delivery.APPLY));
+        assertEquals(Delivery.APPLY, sut.record("evt_1", "payment_intent.succeeded", "pi_1", 100, "{}").block());
+
+        //when
+        Delivery delivery = sut.record("evt_1", "payment_intent.succeeded", "pi_1", 100, "{}").block();
+
+        //then
+        assertEquals(Delivery.DUPLICATE, delivery);
+        verify(firestore, times(1)).runTransaction(any());
+        assertEquals(1, events("applied"));
+        assertEquals(1, events("duplicate_cached"));
+    }
+
+    @Test
+    void testForgottenEventIsReadAgain() {
+        //given
+        when(firestore.runTransaction(any())).thenReturn(ApiFutures.immediateFuture(Delivery.APPLY));
+        when(firestore.collection("stripe_events").document("evt_1").delete()).thenReturn(ApiFutures.immediateFuture(null));
+        sut.record("evt_1", "payment_intent.succeeded", "pi_1", 100, "{}").block();
+
+        //when
+        sut.forget("evt_1").block();
+        sut.record("evt_1", "payment_intent.succeeded", "pi_1", 100, "{}").block();
+
+        //then
+        verify(firestore, times(2)).runTransaction(any());
+    }
+
+    @Test
+    void testDelivery() {
+        assertEquals(Delivery.APPLY, FirestoreStripeEventLog.delivery(false, null, 100));
+        assertEquals(Delivery.APPLY, FirestoreStripeEventLog.delivery(false, 100L, 100));
+        assertEquals(Delivery.OUT_OF_ORDER, FirestoreStripeEventLog.delivery(false, 101L, 100));
+        assertEquals(Delivery.DUPLICATE, FirestoreStripeEventLog.delivery(true, 99L, 100));
+    }
+
+    @Test
+    void testLeaseExpiry() {
+        long now = System.currentTimeMillis();
+        assertTrue(FirestoreStripeEventLog.isLeaseExpired(null, 1000));
+        assertTrue(FirestoreStripeEventLog.isLeaseExpired(Timestamp.ofTimeMicroseconds((now - 2000) * 1000), 1000));
+        assertFalse(FirestoreStripeEventLog.isLeaseExpired(Timestamp.ofTimeMicroseconds(now * 1000), 1000));
+    }
+
+    private double events(String result) {
+        return meterRegistry.get("bbqb.stripe.events").tag("result", result).counter().count();
+    }
+}
@@ -0,0 +1,109 @@
+package de.bbqb.backend.gcp.firestore;
+
+import com.google.api.core.ApiFutures;
+import com.google.api.gax.grpc.GrpcStatusCode;
+import com.google.api.gax.rpc.ApiExceptionFactory;
+import com.google.cloud.firestore.DocumentReference;
+import com.google.cloud.firestore.Firestore;
+import com.google.cloud.firestore.WriteBatch;
+import com.google.cloud.firestore.WriteResult;
+import de.bbqb.backend.api.model.entity.DeviceTelemetry;
+import de.bbqb.backend.gcp.firestore.document.DeviceDoc;
+import io.grpc.Status;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyMap;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.*;
+
+/**
+ * @author Marius Degen
+ */
+public class FirestoreTelemetryWriterTest {
+
+    private Firestore firestore;
+    private WriteBatch batch;
+    private DocumentReference known;
+    private DocumentReference deleted;
+    private FirestoreTelemetryWriter sut;
+
+    @BeforeEach
+    void setUp() {
+        firestore = mock(Firestore.class, RETURNS_DEEP_STUBS);
+        batch = mock(WriteBatch.class);
+        when(firestore.batch()).thenReturn(batch);
+        known = mock(DocumentReference.class);
+        deleted = mock(DocumentReference.class);
+        when(firestore.collection("devices").document("known")).thenReturn(known);
+        when(firestore.collection("devices").document("deleted")).thenReturn(deleted);
+        DeviceCache deviceCache = mock(DeviceCache.class);
+        when(deviceCache.isReady()).thenReturn(true);
+        when(deviceCache.findByDeviceId(anyString())).thenReturn(Optional.empty());
+        when(deviceCache.findByDeviceId("butler-1")).thenReturn(Optional.of(deviceDoc("known")));
+        when(deviceCache.findByDeviceId("butler-2")).thenReturn(Optional.of(deviceDoc("deleted")));
+        sut = new FirestoreTelemetryWriter(firestore, mock(DeviceRepo.class), deviceCache);
+    }
+
+    @Test
+    void testStatesOfKnownDevicesAreWrittenInOneBatch() {
+        //given
+        when(batch.commit()).thenReturn(ApiFutures.immediateFuture(List.of()));
+
+        //when
+        sut.write(List.of(telemetry("butler-1"), telemetry("unknown"))).block();
+
+        //then
+        verify(batch).update(eq(known), argThat((Map<String, Object> fields) ->
+                Boolean.TRUE.equals(fields.get("locked")) && fields.get("isTemperaturePlate1").equals(20.0) && fields.containsKey("publishTime")));
+        verify(batch, times(1)).update(any(DocumentReference.class), anyMap());
+        verify(batch).commit();
+    }
+
+    @Test
+    void testBatchWithDeletedDeviceIsWrittenOneByOne() {
+        //given
+        when(batch.commit()).thenReturn(ApiFutures.immediateFailedFuture(error(Status.Code.NOT_FOUND)));
+        when(known.update(anyMap())).thenReturn(ApiFutures.<WriteResult>immediateFuture(null));
+        when(deleted.update(anyMap())).thenReturn(ApiFutures.immediateFailedFuture(error(Status.Code.NOT_FOUND)));
+
+        //when the state of the deleted device is dropped, so its message is acknowledged
+        sut.write(List.of(telemetry("butler-1"), telemetry("butler-2"))).block();
+
+        //then
+        verify(known).update(anyMap());
+        verify(deleted).update(anyMap());
+    }
+
+    @Test
+    void testTemporaryErrorIsPassedOnForRedelivery() {
+        //given
+        when(batch.commit()).thenReturn(ApiFutures.immediateFailedFuture(error(Status.Code.UNAVAILABLE)));
+
+        //when
+        assertThrows(RuntimeException.class, () -> sut.write(List.of(telemetry("butler-1"))).block());
+
+        //then
+        verify(known, never()).update(anyMap());
+    }
+
+    private static Exception error(Status.Code code) {
+        return ApiExceptionFactory.createException(new RuntimeException(code.name()), GrpcStatusCode.of(code), false);
+    }
+
+    private static DeviceDoc deviceDoc(String id) {
+        DeviceDoc deviceDoc = new DeviceDoc();
+        deviceDoc.setId(id);
+        return deviceDoc;
+    }
+
+    private static DeviceTelemetry telemetry(String deviceId) {
+        return new DeviceTelemetry(deviceId, 1000L, true, true, -60.0, 20.0, 20.0, null);
+    }
+}
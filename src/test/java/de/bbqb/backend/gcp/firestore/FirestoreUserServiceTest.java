@@ -1,4 +1,98 @@
 package de.bbqb.backend.gcp.firestore;
 
+import com.google.api.core.ApiFutures;
+import com.google.api.gax.grpc.GrpcStatusCode;
+import com.google.api.gax.rpc.ApiExceptionFactory;
+import com.google.cloud.Timestamp;
+import com.google.cloud.firestore.DocumentReference;
+import com.google.cloud.firestore.Firestore;
+import com.google.cloud.firestore.WriteResult;
+import de.bbqb.backend.api.model.entity.User;
+import de.bbqb.backend.gcp.firestore.document.UserDoc;
+import io.grpc.Status;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Answers;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import reactor.core.publisher.Mono;
+
+import java.lang.reflect.Constructor;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyMap;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.*;
+
+/**
+ * @author Marius Degen
+ */
+@ExtendWith(MockitoExtension.class)
 public class FirestoreUserServiceTest {
+
+    private final String id = "uid";
+    private FirestoreUserService sut;
+    @Mock
+    private UserRepo userRepoMock;
+    @Mock(answer = Answers.RETURNS_DEEP_STUBS)
+    private Firestore firestoreMock;
+    private DocumentReference reference;
+
+    @BeforeEach
+    public void setUp() {
+        this.sut = new FirestoreUserService(userRepoMock, firestoreMock, new SimpleMeterRegistry());
+        reference = mock(DocumentReference.class);
+        lenient().when(reference.getPath()).thenReturn("users/" + id);
+        when(firestoreMock.collection("users").document(id)).thenReturn(reference);
+    }
+
+    @Test
+    public void testUpdateUserWritesOnlySetFields() {
+        // given
+        when(reference.update(anyMap())).thenReturn(ApiFutures.immediateFuture(writeResult()));
+        User user = new User(id, null, null, "Marius", null, "marius@bbqb.de");
+
+        // when
+        User updatedUser = this.sut.updateUser(user).block();
+
+        // then the user is not read back after the write
+        verify(reference).update(Map.of("firstName", "Marius", "email", "marius@bbqb.de"));
+        assertEquals(id, updatedUser.getId());
+        assertEquals("Marius", updatedUser.getFirstName());
+        assertEquals("marius@bbqb.de", updatedUser.getEmail());
+        verify(userRepoMock, never()).findById(anyString());
+        verify(firestoreMock, never()).getAll(any());
+    }
+
+    @Test
+    public void testUpdateMissingUserCreatesIt() {
+        // given
+        when(reference.update(anyMap())).thenReturn(ApiFutures.immediateFailedFuture(
+                ApiExceptionFactory.createException(new RuntimeException("NOT_FOUND"), GrpcStatusCode.of(Status.Code.NOT_FOUND), false)));
+        when(userRepoMock.save(any(UserDoc.class))).thenAnswer(invocation -> Mono.just(invocation.getArgument(0)));
+        User user = new User(id, "cus_1", null, "Marius", "Degen", "marius@bbqb.de");
+
+        // when
+        User createdUser = this.sut.updateUser(user).block();
+
+        // then the user is created with the id of the token
+        assertEquals(id, createdUser.getId());
+        assertEquals("cus_1", createdUser.getStripeCustomerId());
+        assertEquals("Degen", createdUser.getLastName());
+    }
+
+    // WriteResult can neither be mocked nor created by clients
+    private static WriteResult writeResult() {
+        try {
+            Constructor<WriteResult> constructor = WriteResult.class.getDeclaredConstructor(Timestamp.class);
+            constructor.setAccessible(true);
+            return constructor.newInstance(Timestamp.now());
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
 }
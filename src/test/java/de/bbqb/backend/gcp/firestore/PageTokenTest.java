@@ -0,0 +1,49 @@
+package de.bbqb.backend.gcp.firestore;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author Marius Degen
+ */
+public class PageTokenTest {
+
+    @Test
+    void testEncodedValuesAreDecoded() {
+        //given
+        String token = PageToken.encode("Konstanz", "device/ä?");
+
+        //when
+        String[] values = PageToken.decode(token, 2);
+
+        //then the token can be passed as query parameter as it is
+        assertArrayEquals(new String[]{"Konstanz", "device/ä?"}, values);
+        assertTrue(token.matches("[A-Za-z0-9_-]+"));
+    }
+
+    @Test
+    void testTokenWithWrongNumberOfValuesIsRejected() {
+        //given
+        String token = PageToken.encode("a", "b");
+
+        //when //then
+        assertThrows(IllegalArgumentException.class, () -> PageToken.decode(token, 1));
+        assertThrows(IllegalArgumentException.class, () -> PageToken.decode(token, 3));
+    }
+
+    @Test
+    void testTamperedTokenIsRejected() {
+        //given
+        String token = PageToken.encode("a");
+        String withSeparator = Base64.getUrlEncoder().encodeToString("a\nb".getBytes(StandardCharsets.UTF_8));
+
+        //when //then
+        assertThrows(IllegalArgumentException.class, () -> PageToken.decode(token + "*", 1));
+        assertThrows(IllegalArgumentException.class, () -> PageToken.decode("a+b/", 1));
+        assertThrows(IllegalArgumentException.class, () -> PageToken.decode(withSeparator, 1));
+    }
+}
@@ -0,0 +1,161 @@
+package de.bbqb.backend.gcp.firestore;
+
+import com.google.cloud.Timestamp;
+import de.bbqb.backend.api.model.entity.Device;
+import de.bbqb.backend.api.model.service.DeviceService;
+import de.bbqb.backend.gcp.firestore.document.BookingDoc;
+import de.bbqb.backend.gcp.iot.UnconfirmedCommandException;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.*;
+
+/**
+ * @author Marius Degen
+ */
+public class SessionOpenerTest {
+
+    private static final String DEVICE_ID = "device";
+    private static final long HOUR = 3600 * 1000;
+
+    private BookingRepo repo;
+    private SessionOpeningStore store;
+    private DeviceService deviceService;
+    private BookingCalendar bookingCalendar;
+    private MeterRegistry meterRegistry;
+    private SessionOpener sut;
+
+    @BeforeEach
+    void setUp() {
+        repo = mock(BookingRepo.class);
+        store = mock(SessionOpeningStore.class);
+        deviceService = mock(DeviceService.class);
+        bookingCalendar = mock(BookingCalendar.class);
+        meterRegistry = new SimpleMeterRegistry();
+        Device device = new Device(DEVICE_ID, "iot", "1", 0L, false, true, true, -60.0, 20.0, 20.0, 200.0, 200.0, null, null, true);
+        when(deviceService.readDevice(DEVICE_ID)).thenReturn(Mono.just(device));
+        when(store.release(anyString())).thenReturn(Mono.empty());
+        sut = new SessionOpener(repo, store, deviceService, bookingCalendar, meterRegistry);
+    }
+
+    @AfterEach
+    void tearDown() {
+        sut.stop();
+    }
+
+    @Test
+    void testPayedBookingsInAdvanceAreScheduledOnStartup() {
+        //given
+        long now = System.currentTimeMillis();
+        when(repo.findAllByStatus("payed")).thenReturn(Flux.just(
+                booking("advance", "payed", now, now + HOUR),
+                booking("immediate", "payed", now, now),
+                booking("ended", "payed", now - 3 * HOUR, now - 2 * HOUR)));
+
+        //when
+        sut.start();
+
+        //then
+        verify(bookingCalendar).addListener(sut);
+        assertEquals(1, sut.scheduled());
+    }
+
+    @Test
+    void testBookingWhichIsNotPayedAnymoreIsCanceled() {
+        //given
+        long now = System.currentTimeMillis();
+        sut.onBookingChanged("booking", booking("booking", "payed", now, now + HOUR));
+        // Received again from the listener
+        sut.onBookingChanged("booking", booking("booking", "payed", now, now + HOUR));
+        assertEquals(1, sut.scheduled());
+
+        //when
+        sut.onBookingChanged("booking", booking("booking", "refunded", now, now + HOUR));
+
+        //then
+        assertEquals(0, sut.scheduled());
+    }
+
+    @Test
+    void testSessionWhichStartedIsOpenedRightAway() {
+        //given
+        long now = System.currentTimeMillis();
+        when(store.claim("booking")).thenReturn(Mono.just(true));
+        when(deviceService.openDevice("iot", 60)).thenReturn(Mono.empty());
+
+        //when
+        sut.onBookingChanged("booking", booking("booking", "payed", now - 2 * HOUR, now - HOUR / 2));
+
+        //then
+        verify(deviceService, timeout(5000)).openDevice("iot", 60);
+    }
+
+    @Test
+    void testDeviceOpenedByAnotherInstanceIsSkipped() {
+        //given
+        long now = System.currentTimeMillis();
+        when(store.claim("booking")).thenReturn(Mono.just(false));
+
+        //when
+        sut.open("booking", booking("booking", "payed", now - HOUR, now)).block();
+
+        //then
+        verify(deviceService, never()).openDevice(anyString(), any());
+        assertEquals(1, openings("skipped"));
+    }
+
+    @Test
+    void testFailedOpeningIsReleasedAndRetried() {
+        //given
+        long now = System.currentTimeMillis();
+        when(store.claim("booking")).thenReturn(Mono.just(true));
+        when(deviceService.openDevice("iot", 60)).thenReturn(Mono.error(new RuntimeException("Device is offline")));
+
+        //when
+        sut.open("booking", booking("booking", "payed", now - HOUR, now)).block();
+
+        //then
+        verify(store).release("booking");
+        assertEquals(1, openings("failed"));
+        assertEquals(1, sut.scheduled());
+    }
+
+    @Test
+    void testSentButUnconfirmedOpeningIsNotRetried() {
+        //given
+        long now = System.currentTimeMillis();
+        when(store.claim("booking")).thenReturn(Mono.just(true));
+        when(deviceService.openDevice("iot", 60)).thenReturn(Mono.error(new UnconfirmedCommandException("Device did not confirm")));
+
+        //when
+        sut.open("booking", booking("booking", "payed", now - HOUR, now)).block();
+
+        //then the claim is kept so that no other instance sends the command again
+        verify(store, never()).release("booking");
+        assertEquals(1, openings("unconfirmed"));
+        assertEquals(0, openings("failed"));
+        assertEquals(0, sut.scheduled());
+    }
+
+    private double openings(String result) {
+        return meterRegistry.get("bbqb.booking.sessions.openings").tag("result", result).counter().count();
+    }
+
+    // The session lasts one hour
+    private static BookingDoc booking(String id, String status, long requestTime, long sessionStart) {
+        return new BookingDoc(id, "pi_" + id, DEVICE_ID, "user", status, timestamp(requestTime), 60,
+                timestamp(sessionStart), timestamp(sessionStart + HOUR));
+    }
+
+    private static Timestamp timestamp(long millis) {
+        return Timestamp.ofTimeMicroseconds(millis * 1000);
+    }
+}
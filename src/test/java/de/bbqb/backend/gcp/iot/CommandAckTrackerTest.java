@@ -0,0 +1,202 @@
+package de.bbqb.backend.gcp.iot;
+
+import com.google.cloud.Timestamp;
+import com.google.cloud.firestore.Firestore;
+import de.bbqb.backend.api.model.entity.DeviceTelemetry;
+import de.bbqb.backend.gcp.firestore.DeviceCache;
+import de.bbqb.backend.gcp.firestore.document.DeviceDoc;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.core.io.support.PropertiesLoaderUtils;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoProcessor;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Properties;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * @author Marius Degen
+ */
+public class CommandAckTrackerTest {
+
+    private static final String DEVICE_ID = "butler-1";
+
+    private SimpleMeterRegistry meterRegistry;
+    private CommandAckTracker sut;
+
+    @BeforeEach
+    public void setUp() {
+        meterRegistry = new SimpleMeterRegistry();
+        DeviceCache deviceCache = mock(DeviceCache.class);
+        sut = new CommandAckTracker(300, true, deviceCache, meterRegistry);
+        sut.init();
+    }
+
+    @AfterEach
+    public void tearDown() {
+        sut.stop();
+    }
+
+    @Test
+    void testUnlockedDeviceInCacheConfirmsCommandWithDefaultConfiguration() throws IOException {
+        //given the tracker and the device cache wired like with the shipped properties
+        Properties properties = PropertiesLoaderUtils.loadAllProperties("application.properties");
+        boolean telemetryEnabled = Boolean.parseBoolean(properties.getProperty("bbq.backend.gcp.pubsub.telemetry.enabled"));
+        boolean cacheEnabled = Boolean.parseBoolean(properties.getProperty("bbq.backend.gcp.firestore.device-cache.enabled"));
+        long ackTimeout = Long.parseLong(properties.getProperty("bbq.backend.gcp.iot.ack-timeout"));
+        DeviceCache deviceCache = new DeviceCache(mock(Firestore.class, RETURNS_DEEP_STUBS), cacheEnabled, meterRegistry);
+        CommandAckTracker tracker = new CommandAckTracker(ackTimeout, telemetryEnabled, deviceCache, meterRegistry);
+        tracker.init();
+        try {
+            Timestamp beforeSending = Timestamp.ofTimeMicroseconds((System.currentTimeMillis() - 1000) * 1000);
+            MonoProcessor<Void> ack = tracker.send(DEVICE_ID, "abc", Mono.just("sent")).toProcessor();
+
+            //when the device document is updated
+            deviceCache.put(deviceDoc(false, beforeSending), Timestamp.ofTimeSecondsAndNanos(10, 0));
+            deviceCache.put(deviceDoc(true, Timestamp.now()), Timestamp.ofTimeSecondsAndNanos(20, 0));
+            assertFalse(ack.isTerminated());
+            deviceCache.put(deviceDoc(false, Timestamp.now()), Timestamp.ofTimeSecondsAndNanos(30, 0));
+
+            //then
+            ack.block(Duration.ofSeconds(5));
+            assertTrue(ack.isSuccess());
+            assertEquals(0, tracker.pending());
+        } finally {
+            tracker.stop();
+        }
+    }
+
+    @Test
+    void testCommandIsDoneOnceSentWithoutSourceOfDeviceStates() {
+        //given
+        DeviceCache deviceCache = mock(DeviceCache.class);
+        CommandAckTracker tracker = new CommandAckTracker(300, false, deviceCache, meterRegistry);
+        tracker.init();
+        try {
+            //when
+            MonoProcessor<Void> ack = tracker.send(DEVICE_ID, "abc", Mono.just("sent")).toProcessor();
+
+            //then
+            assertTrue(ack.isSuccess());
+            assertEquals(0, tracker.pending());
+            verify(deviceCache, never()).addListener(any());
+        } finally {
+            tracker.stop();
+        }
+    }
+
+    @Test
+    void testEchoedCorrelationIdConfirmsCommand() {
+        //given
+        MonoProcessor<Void> ack = sut.send(DEVICE_ID, "abc", Mono.just("sent")).toProcessor();
+
+        //when
+        sut.onTelemetry(telemetry(DEVICE_ID, true, "other"));
+        sut.onTelemetry(telemetry("butler-2", false, "abc"));
+        assertFalse(ack.isTerminated());
+        sut.onTelemetry(telemetry(DEVICE_ID, true, "abc"));
+
+        //then
+        assertTrue(ack.isSuccess());
+        assertEquals(0, sut.pending());
+        assertEquals(1, meterRegistry.get("bbqb.iot.command.ack").timer().count());
+    }
+
+    @Test
+    void testUnlockedStateConfirmsOldestSentCommandWithoutCorrelationId() {
+        //given
+        MonoProcessor<Void> first = sut.send(DEVICE_ID, "first", Mono.just("sent")).toProcessor();
+        MonoProcessor<Void> second = sut.send(DEVICE_ID, "second", Mono.just("sent")).toProcessor();
+        MonoProcessor<Void> unsent = sut.send(DEVICE_ID, "unsent", Mono.never()).toProcessor();
+
+        //when
+        sut.onTelemetry(telemetry(DEVICE_ID, true, null));
+        sut.onTelemetry(telemetry(DEVICE_ID, false, null));
+
+        //then
+        assertTrue(first.isSuccess());
+        assertFalse(second.isTerminated());
+        sut.onTelemetry(telemetry(DEVICE_ID, false, null));
+        assertTrue(second.isSuccess());
+        sut.onTelemetry(telemetry(DEVICE_ID, false, null));
+        assertFalse(unsent.isTerminated());
+        unsent.cancel();
+        assertEquals(0, sut.pending());
+    }
+
+    @Test
+    void testUnlockedStatePublishedBeforeSendingDoesNotConfirmCommand() {
+        //given
+        long beforeSending = System.currentTimeMillis() - 1000;
+        MonoProcessor<Void> ack = sut.send(DEVICE_ID, "abc", Mono.just("sent")).toProcessor();
+
+        //when a delayed state of the previous session arrives
+        sut.onTelemetry(new DeviceTelemetry(DEVICE_ID, beforeSending, false, true, -60.0, 20.0, 20.0, null));
+
+        //then
+        assertFalse(ack.isTerminated());
+        sut.onTelemetry(telemetry(DEVICE_ID, false, null));
+        assertTrue(ack.isSuccess());
+    }
+
+    @Test
+    void testUnconfirmedCommandTimesOut() {
+        //given
+        Mono<Void> ack = sut.send(DEVICE_ID, "abc", Mono.just("sent"));
+
+        //when
+        Throwable error = assertThrows(RuntimeException.class, () -> ack.block(Duration.ofSeconds(5)));
+
+        //then
+        assertTrue(error.getCause() instanceof UnconfirmedCommandException);
+        assertEquals(0, sut.pending());
+        assertEquals(1.0, meterRegistry.get("bbqb.iot.command.ack.timeout").counter().count());
+        // A late confirmation is ignored
+        sut.onTelemetry(telemetry(DEVICE_ID, false, "abc"));
+        assertEquals(0, meterRegistry.get("bbqb.iot.command.ack").timer().count());
+    }
+
+    @Test
+    void testCommandWhichWasNotSentTimesOut() {
+        //given
+        Mono<Void> ack = sut.send(DEVICE_ID, "abc", Mono.never());
+
+        //when
+        Throwable error = assertThrows(RuntimeException.class, () -> ack.block(Duration.ofSeconds(5)));
+
+        //then
+        assertTrue(error.getCause() instanceof TimeoutException);
+        assertFalse(error.getCause() instanceof UnconfirmedCommandException);
+    }
+
+    @Test
+    void testSendErrorFailsCommand() {
+        //given
+        MonoProcessor<Void> ack = sut.send(DEVICE_ID, "abc", Mono.error(new IOException("connection reset"))).toProcessor();
+
+        //then
+        assertTrue(ack.isError());
+        assertTrue(ack.getError() instanceof IOException);
+        assertEquals(0, sut.pending());
+    }
+
+    private static DeviceDoc deviceDoc(boolean locked, Timestamp publishTime) {
+        DeviceDoc deviceDoc = new DeviceDoc();
+        deviceDoc.setId("device-doc-1");
+        deviceDoc.setDeviceId(DEVICE_ID);
+        deviceDoc.setLocked(locked);
+        deviceDoc.setPublishTime(publishTime);
+        return deviceDoc;
+    }
+
+    private static DeviceTelemetry telemetry(String deviceId, boolean locked, String correlationId) {
+        return new DeviceTelemetry(deviceId, System.currentTimeMillis(), locked, true, -60.0, 20.0, 20.0, correlationId);
+    }
+}
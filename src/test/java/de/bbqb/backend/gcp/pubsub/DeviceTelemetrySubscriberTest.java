@@ -0,0 +1,118 @@
+package de.bbqb.backend.gcp.pubsub;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.Timestamp;
+import com.google.pubsub.v1.PubsubMessage;
+import de.bbqb.backend.api.model.entity.DeviceTelemetry;
+import de.bbqb.backend.api.model.service.DeviceTelemetryListener;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.cloud.gcp.pubsub.core.PubSubTemplate;
+import org.springframework.cloud.gcp.pubsub.support.BasicAcknowledgeablePubsubMessage;
+import reactor.core.publisher.Mono;
+
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+/**
+ * @author Marius Degen
+ */
+public class DeviceTelemetrySubscriberTest {
+
+    private TelemetryWriter writer;
+    private DeviceTelemetryListener listener;
+    private MeterRegistry meterRegistry;
+    private DeviceTelemetrySubscriber sut;
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    void setUp() {
+        writer = mock(TelemetryWriter.class);
+        when(writer.write(any())).thenReturn(Mono.empty());
+        listener = mock(DeviceTelemetryListener.class);
+        ObjectProvider<DeviceTelemetryListener> listenerProvider = mock(ObjectProvider.class);
+        when(listenerProvider.orderedStream()).thenReturn(Stream.of(listener));
+        meterRegistry = new SimpleMeterRegistry();
+        sut = new DeviceTelemetrySubscriber(mock(PubSubTemplate.class), new ObjectMapper(), writer, listenerProvider, meterRegistry,
+                "device-state", 60000, 1);
+        sut.start();
+    }
+
+    @Test
+    void testMissingDeviceIdAndPublishTimeAreTakenFromTheMessage() throws InterruptedException {
+        //given
+        BasicAcknowledgeablePubsubMessage message = message(PubsubMessage.newBuilder()
+                .setData(ByteString.copyFromUtf8("{\"locked\":true,\"temperaturePlate1\":180.5}"))
+                .putAttributes("deviceId", "butler-1")
+                .setPublishTime(Timestamp.newBuilder().setSeconds(1600000000).setNanos(250_000_000)));
+
+        //when
+        sut.onMessage(message);
+        sut.stop();
+
+        //then
+        ArgumentCaptor<DeviceTelemetry> captor = ArgumentCaptor.forClass(DeviceTelemetry.class);
+        verify(listener).onTelemetry(captor.capture());
+        assertEquals("butler-1", captor.getValue().getDeviceId());
+        assertEquals(1600000000250L, captor.getValue().getPublishTime());
+        assertEquals(true, captor.getValue().getLocked());
+        assertEquals(180.5, captor.getValue().getTemperaturePlate1());
+        verify(writer).write(any());
+        verify(message).ack();
+    }
+
+    @Test
+    void testPayloadTakesPrecedenceOverTheMessage() throws InterruptedException {
+        //given
+        BasicAcknowledgeablePubsubMessage message = message(PubsubMessage.newBuilder()
+                .setData(ByteString.copyFromUtf8("{\"deviceId\":\"butler-2\",\"publishTime\":1000,\"correlationId\":\"abc\"}"))
+                .putAttributes("deviceId", "butler-1")
+                .setPublishTime(Timestamp.newBuilder().setSeconds(1600000000)));
+
+        //when
+        sut.onMessage(message);
+        sut.stop();
+
+        //then
+        ArgumentCaptor<DeviceTelemetry> captor = ArgumentCaptor.forClass(DeviceTelemetry.class);
+        verify(listener).onTelemetry(captor.capture());
+        assertEquals("butler-2", captor.getValue().getDeviceId());
+        assertEquals(1000L, captor.getValue().getPublishTime());
+        assertEquals("abc", captor.getValue().getCorrelationId());
+    }
+
+    @Test
+    void testMalformedMessageIsAcknowledgedAndDropped() throws InterruptedException {
+        //given one message which is no JSON and one without device id
+        BasicAcknowledgeablePubsubMessage malformed = message(PubsubMessage.newBuilder()
+                .setData(ByteString.copyFromUtf8("locked=true")));
+        BasicAcknowledgeablePubsubMessage withoutDeviceId = message(PubsubMessage.newBuilder()
+                .setData(ByteString.copyFromUtf8("{\"locked\":true}")));
+
+        //when
+        sut.onMessage(malformed);
+        sut.onMessage(withoutDeviceId);
+        sut.stop();
+
+        //then
+        verify(malformed).ack();
+        verify(withoutDeviceId).ack();
+        verify(listener, never()).onTelemetry(any());
+        verify(writer, never()).write(any());
+        assertEquals(2, meterRegistry.get("bbqb.telemetry.invalid").counter().count());
+    }
+
+    private static BasicAcknowledgeablePubsubMessage message(PubsubMessage.Builder builder) {
+        BasicAcknowledgeablePubsubMessage message = mock(BasicAcknowledgeablePubsubMessage.class);
+        when(message.getPubsubMessage()).thenReturn(builder.setMessageId("1").build());
+        return message;
+    }
+}
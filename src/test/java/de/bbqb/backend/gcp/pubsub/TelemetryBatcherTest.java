@@ -0,0 +1,96 @@
+package de.bbqb.backend.gcp.pubsub;
+
+import de.bbqb.backend.api.model.entity.DeviceTelemetry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author Marius Degen
+ */
+public class TelemetryBatcherTest {
+
+    @Test
+    void testFlushWritesLatestStatePerDeviceAndAcksAllMessages() {
+        //given
+        List<List<DeviceTelemetry>> writes = new CopyOnWriteArrayList<>();
+        TelemetryBatcher sut = new TelemetryBatcher(batch -> Mono.fromRunnable(() -> writes.add(batch)),
+                Duration.ofSeconds(1), 2, new SimpleMeterRegistry());
+        AtomicInteger acks = new AtomicInteger();
+        sut.add(telemetry("butler-1", 2000L, 20.0), success -> acks.incrementAndGet());
+        sut.add(telemetry("butler-1", 1000L, 10.0), success -> acks.incrementAndGet());
+        sut.add(telemetry("butler-2", 1000L, 30.0), success -> acks.incrementAndGet());
+
+        //when
+        sut.flush();
+
+        //then
+        assertEquals(1, writes.size());
+        assertEquals(2, writes.get(0).size());
+        DeviceTelemetry butler1 = writes.get(0).stream()
+                .filter(telemetry -> telemetry.getDeviceId().equals("butler-1"))
+                .findFirst().orElseThrow(AssertionError::new);
+        assertEquals(20.0, butler1.getTemperaturePlate1());
+        assertEquals(3, acks.get());
+
+        //when a message older than the written state arrives
+        sut.add(telemetry("butler-1", 1500L, 15.0), success -> acks.incrementAndGet());
+        sut.flush();
+
+        //then it is acknowledged without being written
+        assertEquals(1, writes.size());
+        assertEquals(4, acks.get());
+    }
+
+    @Test
+    void testFlushSplitsIntoBatchesAndNacksFailedBatches() {
+        //given
+        List<Integer> batchSizes = new CopyOnWriteArrayList<>();
+        TelemetryBatcher sut = new TelemetryBatcher(batch -> {
+            batchSizes.add(batch.size());
+            return batchSizes.size() == 1 ? Mono.empty() : Mono.error(new IllegalStateException("unavailable"));
+        }, Duration.ofSeconds(1), 1, new SimpleMeterRegistry());
+        List<Boolean> acknowledgements = new ArrayList<>();
+        for (int i = 0; i < TelemetryBatcher.MAX_BATCH_SIZE + 10; i++) {
+            sut.add(telemetry("butler-" + i, 1000L, 20.0), acknowledgements::add);
+        }
+
+        //when
+        sut.flush();
+
+        //then
+        assertEquals(2, batchSizes.size());
+        assertEquals(TelemetryBatcher.MAX_BATCH_SIZE + 10, batchSizes.get(0) + batchSizes.get(1));
+        assertEquals((long) batchSizes.get(0), acknowledgements.stream().filter(success -> success).count());
+        assertEquals((long) batchSizes.get(1), acknowledgements.stream().filter(success -> !success).count());
+    }
+
+    @Test
+    void testPublishTimesOfOldStatesArePruned() {
+        //given
+        TelemetryBatcher sut = new TelemetryBatcher(batch -> Mono.empty(), Duration.ofSeconds(1), 1, new SimpleMeterRegistry());
+        long now = System.currentTimeMillis();
+        sut.add(telemetry("butler-1", now, 20.0), success -> { });
+        sut.add(telemetry("butler-2", now - TelemetryBatcher.WRITTEN_RETENTION.toMillis() - 1, 20.0), success -> { });
+        sut.flush();
+        assertEquals(2, sut.written());
+
+        //when
+        sut.pruneWritten(now + TelemetryBatcher.WRITTEN_RETENTION.toMillis());
+
+        //then
+        assertEquals(1, sut.written());
+    }
+
+    private static DeviceTelemetry telemetry(String deviceId, Long publishTime, Double temperature) {
+        return new DeviceTelemetry(deviceId, publishTime, true, true, -60.0, temperature, temperature, null);
+    }
+}
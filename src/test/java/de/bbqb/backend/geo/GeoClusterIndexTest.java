@@ -0,0 +1,59 @@
+package de.bbqb.backend.geo;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author Marius Degen
+ */
+public class GeoClusterIndexTest {
+
+    @Test
+    void testClustersAreUpdatedIncrementally() {
+        //given
+        GeoClusterIndex sut = new GeoClusterIndex();
+        sut.put("butler-1", 47.66, 9.17, true); // Konstanz
+        sut.put("butler-2", 47.67, 9.18, false); // Konstanz
+        sut.put("butler-3", 48.14, 11.58, true); // München
+
+        //when
+        List<GeoClusterIndex.Cluster> world = sut.clusters(-85, -180, 85, 179.99, 0);
+        List<GeoClusterIndex.Cluster> germany = sut.clusters(47, 5, 55, 15, 8);
+
+        //then
+        assertEquals(1, world.size());
+        assertEquals(3, world.get(0).getCount());
+        assertEquals(2, world.get(0).getAvailableCount());
+        assertEquals(2, germany.size());
+
+        //when
+        sut.put("butler-2", 47.67, 9.18, true);
+        sut.remove("butler-3");
+        List<GeoClusterIndex.Cluster> updated = sut.clusters(-85, -180, 85, 179.99, 0);
+
+        //then
+        assertEquals(1, updated.size());
+        assertEquals(2, updated.get(0).getCount());
+        assertEquals(2, updated.get(0).getAvailableCount());
+        assertEquals(47.665, updated.get(0).getLat(), 1e-9);
+    }
+
+    @Test
+    void testCentroidOfPointsAtTheDateLine() {
+        //given one point east and one west of the date line, 180 being the same meridian as -180
+        GeoClusterIndex sut = new GeoClusterIndex();
+        sut.put("east", -17.0, 180.0, true);
+        sut.put("west", -17.0, -179.8, true);
+
+        //when
+        List<GeoClusterIndex.Cluster> clusters = sut.clusters(-20, 170, -10, -170, 4);
+
+        //then
+        assertEquals(1, clusters.size());
+        assertEquals(2, clusters.get(0).getCount());
+        assertEquals(-179.9, clusters.get(0).getLng(), 1e-9);
+    }
+}
@@ -0,0 +1,58 @@
+package de.bbqb.backend.geo;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency of nearest device queries for fleets of 10k and 100k devices spread over Germany.
+ * Run with the main method from the IDE or after {@code ./mvnw test-compile}.
+ *
+ * @author Marius Degen
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GeoGridIndexBenchmark {
+
+    @Param({"10000", "100000"})
+    private int devices;
+
+    @Param({"5", "50"})
+    private double radiusKm;
+
+    private GeoGridIndex index;
+    private double[][] queries;
+    private int next;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        index = new GeoGridIndex(0.05);
+        for (int i = 0; i < devices; i++) {
+            index.put("device-" + i, 47.3 + random.nextDouble() * 7.7, 5.9 + random.nextDouble() * 9.1);
+        }
+        queries = new double[1024][];
+        for (int i = 0; i < queries.length; i++) {
+            queries[i] = new double[]{47.3 + random.nextDouble() * 7.7, 5.9 + random.nextDouble() * 9.1};
+        }
+    }
+
+    @Benchmark
+    public List<GeoGridIndex.Neighbor> nearest20() {
+        double[] query = queries[next++ & (queries.length - 1)];
+        return index.nearest(query[0], query[1], radiusKm, 20, id -> true);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(GeoGridIndexBenchmark.class.getSimpleName()).build()).run();
+    }
+}
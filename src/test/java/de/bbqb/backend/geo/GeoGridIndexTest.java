@@ -0,0 +1,107 @@
+package de.bbqb.backend.geo;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author Marius Degen
+ */
+public class GeoGridIndexTest {
+
+    @Test
+    void testNearestMatchesFullScan() {
+        //given
+        GeoGridIndex sut = new GeoGridIndex(0.05);
+        Random random = new Random(42);
+        double[][] points = new double[5000][];
+        for (int i = 0; i < points.length; i++) {
+            points[i] = new double[]{47.0 + random.nextDouble() * 8, 6.0 + random.nextDouble() * 9};
+            sut.put("device-" + i, points[i][0], points[i][1]);
+        }
+
+        for (int query = 0; query < 50; query++) {
+            double lat = 47.0 + random.nextDouble() * 8;
+            double lng = 6.0 + random.nextDouble() * 9;
+
+            //when
+            List<String> result = sut.nearest(lat, lng, 30, 10, id -> !id.endsWith("7")).stream()
+                    .map(GeoGridIndex.Neighbor::getId)
+                    .collect(Collectors.toList());
+
+            //then
+            List<String> expected = IntStream.range(0, points.length)
+                    .filter(i -> !("device-" + i).endsWith("7"))
+                    .filter(i -> GeoMath.distanceKm(lat, lng, points[i][0], points[i][1]) <= 30)
+                    .boxed()
+                    .sorted(Comparator.comparingDouble(i -> GeoMath.distanceKm(lat, lng, points[i][0], points[i][1])))
+                    .limit(10)
+                    .map(i -> "device-" + i)
+                    .collect(Collectors.toList());
+            assertEquals(expected, result);
+        }
+    }
+
+    @Test
+    void testPutMovesAndRemoveDeletesPoint() {
+        //given
+        GeoGridIndex sut = new GeoGridIndex(0.05);
+        sut.put("butler-1", 47.66, 9.17); // Konstanz
+        sut.put("butler-2", 48.14, 11.58); // München
+
+        //when
+        sut.put("butler-1", 48.13, 11.57);
+        sut.remove("butler-2");
+
+        //then
+        assertEquals(1, sut.size());
+        List<GeoGridIndex.Neighbor> nearMunich = sut.nearest(48.14, 11.58, 5, 10, id -> true);
+        assertEquals(1, nearMunich.size());
+        assertEquals("butler-1", nearMunich.get(0).getId());
+        assertTrue(sut.nearest(47.66, 9.17, 5, 10, id -> true).isEmpty());
+    }
+
+    @Test
+    void testNearestAcrossDateLine() {
+        //given
+        GeoGridIndex sut = new GeoGridIndex(0.05);
+        sut.put("east", 0, 179.99);
+        sut.put("west", 0, -179.99);
+
+        //when
+        List<GeoGridIndex.Neighbor> result = sut.nearest(0, 179.995, 5, 10, id -> true);
+
+        //then
+        assertEquals(2, result.size());
+    }
+
+    @Test
+    void testNearestAcrossPoleVisitsEveryColumnOnce() {
+        //given a grid with an even number of columns and points on the opposite side of the pole
+        GeoGridIndex even = new GeoGridIndex(1);
+        GeoGridIndex odd = new GeoGridIndex(0.7);
+        for (GeoGridIndex sut : List.of(even, odd)) {
+            sut.put("opposite", 89.5, 180);
+            sut.put("west", 89.5, -90);
+            sut.put("east", 89.5, 90);
+        }
+
+        //when
+        List<GeoGridIndex.Neighbor> evenResult = even.nearest(89.5, 0, 200, 10, id -> true);
+        List<GeoGridIndex.Neighbor> oddResult = odd.nearest(89.5, 0, 200, 10, id -> true);
+
+        //then
+        for (List<GeoGridIndex.Neighbor> result : List.of(evenResult, oddResult)) {
+            assertEquals(List.of("east", "opposite", "west"), result.stream()
+                    .map(GeoGridIndex.Neighbor::getId)
+                    .sorted()
+                    .collect(Collectors.toList()));
+        }
+    }
+}
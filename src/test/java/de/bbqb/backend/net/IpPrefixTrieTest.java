@@ -0,0 +1,89 @@
+package de.bbqb.backend.net;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author Marius Degen
+ */
+public class IpPrefixTrieTest {
+
+    @Test
+    void testSingleIpv4Address() {
+        //given
+        IpPrefixTrie sut = IpPrefixTrie.builder().add("3.18.12.63").build();
+
+        //then
+        assertTrue(sut.contains("3.18.12.63"));
+        assertFalse(sut.contains("3.18.12.64"));
+        assertFalse(sut.contains("3.18.12.6"));
+    }
+
+    @Test
+    void testIpv4Range() {
+        //given
+        IpPrefixTrie sut = IpPrefixTrie.builder().add("10.0.0.0/8").add("192.168.1.128/25").build();
+
+        //then
+        assertTrue(sut.contains("10.255.3.1"));
+        assertTrue(sut.contains("192.168.1.200"));
+        assertFalse(sut.contains("192.168.1.127"));
+        assertFalse(sut.contains("11.0.0.1"));
+        assertEquals(2, sut.size());
+    }
+
+    @Test
+    void testIpv6Range() {
+        //given
+        IpPrefixTrie sut = IpPrefixTrie.builder().add("2001:db8::/32").add("::1").build();
+
+        //then
+        assertTrue(sut.contains("2001:db8:0:0:0:0:0:1"));
+        assertTrue(sut.contains("2001:0db8:ffff::abcd"));
+        assertTrue(sut.contains("0:0:0:0:0:0:0:1"));
+        assertTrue(sut.contains("::1%lo"));
+        assertFalse(sut.contains("2001:db9::1"));
+        assertFalse(sut.contains("::2"));
+    }
+
+    @Test
+    void testIpv4MappedIpv6AddressMatchesIpv4Range() {
+        //given
+        IpPrefixTrie sut = IpPrefixTrie.builder().add("54.187.174.169/32").build();
+
+        //then
+        assertTrue(sut.contains("::ffff:54.187.174.169"));
+        assertFalse(sut.contains("::ffff:54.187.174.170"));
+    }
+
+    @Test
+    void testInvalidAddressesAreNotContained() {
+        //given
+        IpPrefixTrie sut = IpPrefixTrie.builder().add("0.0.0.0/0").add("::/0").build();
+
+        //then
+        assertTrue(sut.contains("8.8.8.8"));
+        assertTrue(sut.contains("fe80::1"));
+        assertFalse(sut.contains(null));
+        assertFalse(sut.contains(""));
+        assertFalse(sut.contains("256.1.1.1"));
+        assertFalse(sut.contains("1.2.3"));
+        assertFalse(sut.contains("1.2.3.4.5"));
+        assertFalse(sut.contains("localhost"));
+        assertFalse(sut.contains("1:::2"));
+        assertFalse(sut.contains("1::2::3"));
+        assertFalse(sut.contains("1:2:3:4:5:6:7:8:9"));
+    }
+
+    @Test
+    void testInvalidRangesAreRejected() {
+        IpPrefixTrie.Builder sut = IpPrefixTrie.builder();
+
+        assertThrows(IllegalArgumentException.class, () -> sut.add("10.0.0.0/33"));
+        assertThrows(IllegalArgumentException.class, () -> sut.add("10.0.0/8"));
+        assertThrows(IllegalArgumentException.class, () -> sut.add("2001:db8::/129"));
+        assertThrows(IllegalArgumentException.class, () -> sut.add("stripe.com"));
+        assertEquals(0, sut.build().size());
+    }
+}
@@ -0,0 +1,121 @@
+package de.bbqb.backend.stripe;
+
+import de.bbqb.backend.api.model.entity.Card;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoProcessor;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author Marius Degen
+ */
+public class PaymentMethodCacheTest {
+
+    private static final String CUSTOMER_ID = "cus_1";
+
+    private MeterRegistry meterRegistry;
+    private PaymentMethodCache sut;
+    private AtomicInteger loads;
+
+    @BeforeEach
+    void setUp() {
+        meterRegistry = new SimpleMeterRegistry();
+        sut = new PaymentMethodCache(2, 300, meterRegistry);
+        loads = new AtomicInteger();
+    }
+
+    @Test
+    void testConcurrentReadsShareOneLoad() {
+        //given a load which did not complete yet
+        MonoProcessor<List<Card>> cards = MonoProcessor.create();
+        Function<String, Mono<List<Card>>> loader = customerId -> {
+            loads.incrementAndGet();
+            return cards;
+        };
+
+        //when
+        MonoProcessor<List<Card>> first = sut.get(CUSTOMER_ID, loader).toProcessor();
+        MonoProcessor<List<Card>> second = sut.get(CUSTOMER_ID, loader).toProcessor();
+        cards.onNext(List.of(card("pm_1")));
+
+        //then
+        assertEquals(1, loads.get());
+        assertEquals("pm_1", first.block().get(0).getId());
+        assertEquals("pm_1", second.block().get(0).getId());
+        assertEquals(1, reads("joined"));
+    }
+
+    @Test
+    void testCachedCardsAreReadUntilInvalidated() {
+        //given
+        Function<String, Mono<List<Card>>> loader = customerId -> Mono.just(List.of(card("pm_" + loads.incrementAndGet())));
+        sut.get(CUSTOMER_ID, loader).block();
+
+        //when
+        List<Card> cached = sut.get(CUSTOMER_ID, loader).block();
+        sut.invalidate(CUSTOMER_ID);
+        List<Card> reloaded = sut.get(CUSTOMER_ID, loader).block();
+
+        //then
+        assertEquals("pm_1", cached.get(0).getId());
+        assertEquals("pm_2", reloaded.get(0).getId());
+        assertEquals(1, reads("hit"));
+        assertEquals(2, reads("miss"));
+    }
+
+    @Test
+    void testInvalidatePaymentMethodDropsItsCustomer() {
+        //given
+        sut.get(CUSTOMER_ID, customerId -> Mono.just(List.of(card("pm_1")))).block();
+        sut.get("cus_2", customerId -> Mono.just(List.of(card("pm_2")))).block();
+
+        //when
+        sut.invalidatePaymentMethod("pm_1");
+
+        //then
+        assertEquals(1, sut.cached());
+    }
+
+    @Test
+    void testFailedLoadIsNotCached() {
+        //given
+        Function<String, Mono<List<Card>>> loader = customerId -> loads.incrementAndGet() == 1
+                ? Mono.error(new IllegalStateException("stripe unavailable"))
+                : Mono.just(List.of(card("pm_1")));
+        assertThrows(IllegalStateException.class, () -> sut.get(CUSTOMER_ID, loader).block());
+
+        //when
+        List<Card> cards = sut.get(CUSTOMER_ID, loader).block();
+
+        //then
+        assertEquals(2, loads.get());
+        assertEquals("pm_1", cards.get(0).getId());
+    }
+
+    @Test
+    void testLeastRecentlyReadCustomerIsEvicted() {
+        //when
+        sut.get("cus_1", customerId -> Mono.just(List.of(card("pm_1")))).block();
+        sut.get("cus_2", customerId -> Mono.just(List.of(card("pm_2")))).block();
+        sut.get("cus_3", customerId -> Mono.just(List.of(card("pm_3")))).block();
+
+        //then
+        assertEquals(2, sut.cached());
+    }
+
+    private double reads(String result) {
+        return meterRegistry.get("bbqb.stripe.payment_methods.reads").tag("result", result).counter().count();
+    }
+
+    private static Card card(String id) {
+        return new Card(id, null, "visa", 12L, 2030L, "4242");
+    }
+}
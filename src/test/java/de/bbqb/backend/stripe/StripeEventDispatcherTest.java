@@ -0,0 +1,206 @@
+package de.bbqb.backend.stripe;
+
+import com.stripe.Stripe;
+import com.stripe.model.Event;
+import com.stripe.model.PaymentIntent;
+import de.bbqb.backend.api.model.service.StripeEventLog;
+import de.bbqb.backend.api.model.service.StripeEventLog.Delivery;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * @author Marius Degen
+ */
+public class StripeEventDispatcherTest {
+
+    private StripeEventLog stripeEventLog;
+    private StripeEventHandler stripeEventHandler;
+    private MeterRegistry meterRegistry;
+    private StripeEventDispatcher sut;
+
+    @BeforeEach
+    void setUp() {
+        stripeEventLog = mock(StripeEventLog.class);
+        stripeEventHandler = mock(StripeEventHandler.class);
+        meterRegistry = new SimpleMeterRegistry();
+        when(stripeEventLog.record(anyString(), anyString(), any(), anyLong(), any())).thenReturn(Mono.just(Delivery.APPLY));
+        when(stripeEventLog.applied(anyString())).thenReturn(Mono.empty());
+        when(stripeEventLog.forget(anyString())).thenReturn(Mono.empty());
+        sut = new StripeEventDispatcher(stripeEventLog, stripeEventHandler, 4, 2, 5000, 600, meterRegistry);
+    }
+
+    @AfterEach
+    void tearDown() throws InterruptedException {
+        sut.shutdown();
+    }
+
+    @Test
+    void testEventsOfOnePaymentIntentAreAppliedInOrder() throws InterruptedException {
+        //given the first event takes longer to apply than the second one
+        List<String> applied = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch done = new CountDownLatch(2);
+        when(stripeEventHandler.handle(any(Event.class), any())).thenAnswer(invocation -> {
+            Event event = invocation.getArgument(0);
+            Duration delay = event.getId().equals("evt_1") ? Duration.ofMillis(200) : Duration.ZERO;
+            return Mono.delay(delay).then(Mono.fromRunnable(() -> {
+                applied.add(event.getId());
+                done.countDown();
+            }));
+        });
+
+        //when
+        accept(event("evt_1", "payment_intent.payment_failed"), paymentIntent("pi_1"));
+        accept(event("evt_2", "payment_intent.succeeded"), paymentIntent("pi_1"));
+
+        //then
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(List.of("evt_1", "evt_2"), applied);
+    }
+
+    @Test
+    void testDuplicateIsNotApplied() throws InterruptedException {
+        //given
+        when(stripeEventLog.record(eq("evt_1"), anyString(), any(), anyLong(), any())).thenReturn(Mono.just(Delivery.DUPLICATE));
+
+        //when
+        accept(event("evt_1", "payment_intent.succeeded"), paymentIntent("pi_1"));
+        sut.shutdown();
+
+        //then
+        verify(stripeEventHandler, never()).handle(any(Event.class), any());
+    }
+
+    @Test
+    void testFullQueueRejectsEvents() throws InterruptedException {
+        //given events which are not applied until released
+        CountDownLatch release = new CountDownLatch(1);
+        when(stripeEventHandler.handle(any(Event.class), any())).thenReturn(Mono.fromRunnable(() -> {
+            try {
+                release.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }));
+        accept(event("evt_1", "payment_intent.succeeded"), paymentIntent("pi_1"));
+        accept(event("evt_2", "payment_intent.succeeded"), paymentIntent("pi_2"));
+
+        //when
+        assertThrows(RejectedExecutionException.class, () -> accept(event("evt_3", "payment_intent.succeeded"), paymentIntent("pi_3")));
+
+        //then the event was not recorded, so it is applied when Stripe sends it again
+        assertEquals(1, meterRegistry.get("bbqb.stripe.webhook.rejected").counter().count());
+        verify(stripeEventLog, never()).record(eq("evt_3"), anyString(), any(), anyLong(), any());
+        release.countDown();
+    }
+
+    @Test
+    void testEventWhichCannotBeRecordedIsRejected() {
+        //given
+        when(stripeEventLog.record(eq("evt_1"), anyString(), any(), anyLong(), any())).thenReturn(Mono.error(new IllegalStateException("firestore unavailable")));
+
+        //when
+        assertThrows(IllegalStateException.class, () -> accept(event("evt_1", "payment_intent.succeeded"), paymentIntent("pi_1")));
+
+        //then
+        verify(stripeEventHandler, never()).handle(any(Event.class), any());
+        assertEquals(1, meterRegistry.get("bbqb.stripe.webhook.rejected").counter().count());
+    }
+
+    @Test
+    void testAppliedEventIsMarked() throws InterruptedException {
+        //given
+        when(stripeEventHandler.handle(any(Event.class), any())).thenReturn(Mono.empty());
+
+        //when
+        accept(event("evt_1", "payment_intent.succeeded"), paymentIntent("pi_1"));
+        sut.shutdown();
+
+        //then
+        verify(stripeEventLog).applied("evt_1");
+        verify(stripeEventLog, never()).forget(anyString());
+    }
+
+    @Test
+    void testTimedOutEventIsForgotten() throws InterruptedException {
+        //given a handler which does not complete in time
+        sut.shutdown();
+        sut = new StripeEventDispatcher(stripeEventLog, stripeEventHandler, 1, 2, 50, 600, meterRegistry);
+        when(stripeEventHandler.handle(any(Event.class), any())).thenReturn(Mono.never());
+
+        //when
+        accept(event("evt_1", "payment_intent.succeeded"), paymentIntent("pi_1"));
+        sut.shutdown();
+
+        //then
+        verify(stripeEventLog).forget("evt_1");
+        verify(stripeEventLog, never()).applied(anyString());
+        assertEquals(1, meterRegistry.get("bbqb.stripe.webhook.failed").counter().count());
+    }
+
+    @Test
+    void testAbandonedEventIsApplied() throws InterruptedException {
+        //given an event recorded by an instance which stopped before applying it
+        String payload = "{\"id\": \"evt_1\", \"object\": \"event\", \"type\": \"payment_intent.succeeded\", \"created\": 100, \"api_version\": \"" + Stripe.API_VERSION + "\", "
+                + "\"data\": {\"object\": {\"id\": \"pi_1\", \"object\": \"payment_intent\"}}}";
+        when(stripeEventLog.claimAbandoned(600 * 1000)).thenReturn(Flux.just(payload));
+        when(stripeEventHandler.handle(any(Event.class), any())).thenReturn(Mono.empty());
+
+        //when
+        sut.recover();
+        sut.shutdown();
+
+        //then
+        verify(stripeEventHandler).handle(argThat(event -> event.getId().equals("evt_1")), any(PaymentIntent.class));
+        verify(stripeEventLog).applied("evt_1");
+        assertEquals(1, meterRegistry.get("bbqb.stripe.webhook.recovered").counter().count());
+    }
+
+    private void accept(Event event, PaymentIntent paymentIntent) {
+        sut.accept(event, paymentIntent, "{}").block();
+    }
+
+    @Test
+    void testFailedEventIsForgotten() throws InterruptedException {
+        //given
+        when(stripeEventHandler.handle(any(Event.class), any())).thenReturn(Mono.error(new IllegalStateException("firestore unavailable")));
+
+        //when
+        accept(event("evt_1", "payment_intent.succeeded"), paymentIntent("pi_1"));
+        sut.shutdown();
+
+        //then
+        verify(stripeEventLog).forget("evt_1");
+        assertEquals(1, meterRegistry.get("bbqb.stripe.webhook.failed").counter().count());
+    }
+
+    private static Event event(String id, String type) {
+        Event event = new Event();
+        event.setId(id);
+        event.setType(type);
+        event.setCreated(100L);
+        return event;
+    }
+
+    private static PaymentIntent paymentIntent(String id) {
+        PaymentIntent paymentIntent = new PaymentIntent();
+        paymentIntent.setId(id);
+        return paymentIntent;
+    }
+}
@@ -0,0 +1,146 @@
+package de.bbqb.backend.stripe;
+
+import com.stripe.model.Event;
+import com.stripe.model.PaymentIntent;
+import de.bbqb.backend.api.model.entity.Booking;
+import de.bbqb.backend.api.model.entity.Device;
+import de.bbqb.backend.api.model.service.BookingService;
+import de.bbqb.backend.api.model.service.DeviceService;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Mono;
+
+import java.util.Date;
+
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * @author Marius Degen
+ */
+public class StripeEventHandlerTest {
+
+    private static final String BOOKING_ID = "booking";
+    private static final String DEVICE_ID = "device";
+    private static final String PAYMENT_INTENT_ID = "pi_1";
+
+    private BookingService bookingService;
+    private DeviceService deviceService;
+    private StripeService stripeService;
+    private StripeEventHandler sut;
+
+    @BeforeEach
+    void setUp() {
+        bookingService = mock(BookingService.class);
+        deviceService = mock(DeviceService.class);
+        stripeService = mock(StripeService.class);
+        sut = new StripeEventHandler(bookingService, deviceService, mock(PaymentMethodCache.class), stripeService);
+        Device device = new Device(DEVICE_ID, "iot", "1", 0L, false, true, true, -60.0, 20.0, 20.0, 200.0, 200.0, null, null, true);
+        when(deviceService.readDevice(DEVICE_ID)).thenReturn(Mono.just(device));
+        when(deviceService.openDevice(anyString(), any())).thenReturn(Mono.empty());
+        when(stripeService.refundPaymentIntent(PAYMENT_INTENT_ID)).thenReturn(Mono.just("succeeded"));
+    }
+
+    @Test
+    void testSucceededPaymentOpensDeviceOfPendingBooking() {
+        //given
+        when(bookingService.findBookingByPaymentIntentId(PAYMENT_INTENT_ID)).thenReturn(Mono.just(booking("pending")));
+        when(bookingService.updateBooking(any(Booking.class))).thenAnswer(invocation -> Mono.just(invocation.getArgument(0)));
+
+        //when
+        sut.handle(event("payment_intent.succeeded"), paymentIntent()).block();
+
+        //then
+        verify(bookingService).updateBooking(argThat(booking -> "payed".equals(booking.getStatus())));
+        verify(deviceService).openDevice(eq("iot"), any());
+        verify(stripeService, never()).refundPaymentIntent(anyString());
+    }
+
+    @Test
+    void testSucceededPaymentDoesNotOpenDeviceBookedInAdvance() {
+        //given
+        Date requestTime = new Date();
+        Booking booking = new Booking(BOOKING_ID, PAYMENT_INTENT_ID, DEVICE_ID, "user", "pending", requestTime,
+                new Date(requestTime.getTime() + 3600 * 1000), null, 45);
+        when(bookingService.findBookingByPaymentIntentId(PAYMENT_INTENT_ID)).thenReturn(Mono.just(booking));
+        when(bookingService.updateBooking(any(Booking.class))).thenAnswer(invocation -> Mono.just(invocation.getArgument(0)));
+
+        //when
+        sut.handle(event("payment_intent.succeeded"), paymentIntent()).block();
+
+        //then it is opened by the session opener when its session starts
+        verify(bookingService).updateBooking(argThat(updated -> "payed".equals(updated.getStatus())));
+        verify(deviceService, never()).openDevice(anyString(), any());
+    }
+
+    @Test
+    void testSucceededPaymentOfExpiredBookingIsRefunded() {
+        //given
+        when(bookingService.findBookingByPaymentIntentId(PAYMENT_INTENT_ID)).thenReturn(Mono.just(booking("expired")));
+
+        //when
+        sut.handle(event("payment_intent.succeeded"), paymentIntent()).block();
+
+        //then the device, which may be booked by someone else, is not opened
+        verify(stripeService).refundPaymentIntent(PAYMENT_INTENT_ID);
+        verify(bookingService, never()).updateBooking(any(Booking.class));
+        verify(deviceService, never()).openDevice(anyString(), any());
+    }
+
+    @Test
+    void testSucceededPaymentOfBookingExpiredMeanwhileIsRefunded() {
+        //given the booking expired after it was read, so the update kept its status
+        when(bookingService.findBookingByPaymentIntentId(PAYMENT_INTENT_ID)).thenReturn(Mono.just(booking("pending")));
+        when(bookingService.updateBooking(any(Booking.class))).thenReturn(Mono.just(booking("expired")));
+
+        //when
+        sut.handle(event("payment_intent.succeeded"), paymentIntent()).block();
+
+        //then
+        verify(stripeService).refundPaymentIntent(PAYMENT_INTENT_ID);
+        verify(deviceService, never()).openDevice(anyString(), any());
+    }
+
+    @Test
+    void testFailedPaymentOfExpiredBookingDoesNotReleaseDevice() {
+        //given
+        when(bookingService.findBookingByPaymentIntentId(PAYMENT_INTENT_ID)).thenReturn(Mono.just(booking("expired")));
+
+        //when
+        sut.handle(event("payment_intent.payment_failed"), paymentIntent()).block();
+
+        //then
+        verify(bookingService, never()).updateBooking(any(Booking.class));
+        verify(deviceService, never()).releaseDevice(anyString());
+    }
+
+    @Test
+    void testFailedPaymentOfBookingExpiredMeanwhileDoesNotReleaseDevice() {
+        //given the booking expired after it was read, so the update kept its status
+        when(bookingService.findBookingByPaymentIntentId(PAYMENT_INTENT_ID)).thenReturn(Mono.just(booking("pending")));
+        when(bookingService.updateBooking(any(Booking.class))).thenReturn(Mono.just(booking("expired")));
+
+        //when
+        sut.handle(event("payment_intent.payment_failed"), paymentIntent()).block();
+
+        //then
+        verify(deviceService, never()).releaseDevice(anyString());
+    }
+
+    private static Booking booking(String status) {
+        return new Booking(BOOKING_ID, PAYMENT_INTENT_ID, DEVICE_ID, "user", status, new Date(), null, null, 45);
+    }
+
+    private static Event event(String type) {
+        Event event = new Event();
+        event.setId("evt_1");
+        event.setType(type);
+        return event;
+    }
+
+    private static PaymentIntent paymentIntent() {
+        PaymentIntent paymentIntent = new PaymentIntent();
+        paymentIntent.setId(PAYMENT_INTENT_ID);
+        return paymentIntent;
+    }
+}
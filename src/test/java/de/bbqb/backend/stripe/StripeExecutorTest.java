@@ -0,0 +1,125 @@
+package de.bbqb.backend.stripe;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author Marius Degen
+ */
+public class StripeExecutorTest {
+
+    private static final Duration TIMEOUT = Duration.ofSeconds(5);
+    private static final long QUEUE_TIMEOUT_MILLIS = 100;
+
+    private MeterRegistry meterRegistry;
+    private StripeExecutor sut;
+
+    @BeforeEach
+    void setUp() {
+        meterRegistry = new SimpleMeterRegistry();
+        sut = new StripeExecutor(1, 1, QUEUE_TIMEOUT_MILLIS, meterRegistry);
+    }
+
+    @AfterEach
+    void tearDown() throws InterruptedException {
+        sut.shutdown();
+    }
+
+    @Test
+    void testCallRunsOnStripeThreadWithTimeoutAndIdempotencyKey() {
+        //when
+        String result = sut.execute("payment_intent.create", TIMEOUT, "key", options ->
+                Thread.currentThread().getName() + " " + options.getReadTimeout() + " " + options.getIdempotencyKey() + " " + options.getMaxNetworkRetries())
+                .block();
+
+        //then
+        assertEquals("stripe-1 5000 key 1", result);
+        assertEquals(1, calls("payment_intent.create", "success"));
+    }
+
+    @Test
+    void testSaturatedExecutorRejectsCalls() throws InterruptedException {
+        //given one running and one queued call
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        sut.execute("payment_method.list", TIMEOUT, options -> {
+            started.countDown();
+            return await(release);
+        }).subscribe();
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        sut.execute("payment_method.list", TIMEOUT, options -> true).subscribe();
+
+        //when
+        assertThrows(RejectedExecutionException.class,
+                () -> sut.execute("payment_method.list", TIMEOUT, options -> true).block());
+
+        //then
+        assertEquals(1, meterRegistry.get("bbqb.stripe.executor.rejected").counter().count());
+        assertEquals(1, calls("payment_method.list", "rejected"));
+        release.countDown();
+    }
+
+    @Test
+    void testCallWhichDidNotStartInTimeIsRejected() throws InterruptedException {
+        //given a running call which takes longer than the queue timeout
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        sut.execute("payment_method.list", TIMEOUT, options -> {
+            started.countDown();
+            return await(release);
+        }).subscribe();
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        AtomicBoolean ran = new AtomicBoolean(false);
+
+        //when
+        assertThrows(RejectedExecutionException.class,
+                () -> sut.execute("payment_intent.create", TIMEOUT, "key", options -> ran.getAndSet(true)).block());
+        release.countDown();
+
+        //then the abandoned call is not sent to Stripe once a thread is free
+        assertEquals(true, sut.execute("payment_method.list", TIMEOUT, options -> true).block());
+        assertFalse(ran.get());
+        assertEquals(1, calls("payment_intent.create", "rejected"));
+    }
+
+    @Test
+    void testRunningCallIsNotAbandonedAfterQueueTimeout() {
+        //when
+        String result = sut.execute("payment_intent.create", TIMEOUT, "key", options -> {
+            await(new CountDownLatch(1), 3 * QUEUE_TIMEOUT_MILLIS);
+            return "created";
+        }).block();
+
+        //then
+        assertEquals("created", result);
+        assertEquals(1, calls("payment_intent.create", "success"));
+    }
+
+    private static boolean await(CountDownLatch latch) {
+        return await(latch, 5000);
+    }
+
+    private static boolean await(CountDownLatch latch, long millis) {
+        try {
+            return latch.await(millis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private double calls(String operation, String outcome) {
+        return meterRegistry.get("bbqb.stripe.calls").tag("operation", operation).tag("outcome", outcome).timer().count();
+    }
+}
@@ -0,0 +1,106 @@
+package de.bbqb.backend.stripe;
+
+import com.sun.net.httpserver.HttpServer;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author Marius Degen
+ */
+public class StripeWebhookAllowlistTest {
+
+    private HttpServer server;
+    // Status and body of the next download
+    private volatile int status;
+    private volatile String ips;
+    private MeterRegistry meterRegistry;
+    private StripeWebhookAllowlist sut;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/ips_webhooks.txt", exchange -> {
+            byte[] body = ips.getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(status, body.length > 0 ? body.length : -1);
+            try (OutputStream outputStream = exchange.getResponseBody()) {
+                outputStream.write(body);
+            }
+        });
+        server.start();
+        meterRegistry = new SimpleMeterRegistry();
+        String url = "http://localhost:" + server.getAddress().getPort() + "/ips_webhooks.txt";
+        sut = new StripeWebhookAllowlist(url, new String[]{"10.0.0.0/8"}, 3600, meterRegistry);
+    }
+
+    @AfterEach
+    void tearDown() {
+        sut.stop();
+        server.stop(0);
+    }
+
+    @Test
+    void testDownloadedAndAdditionalRangesAreAllowed() {
+        //given
+        serve(200, "3.18.12.63\n\n2001:db8::/32\nno ip\n");
+
+        //when
+        sut.refresh();
+
+        //then
+        assertTrue(sut.isLoaded());
+        assertTrue(sut.isAllowed("3.18.12.63"));
+        assertTrue(sut.isAllowed("2001:db8::1"));
+        assertTrue(sut.isAllowed("10.1.2.3"));
+        assertFalse(sut.isAllowed("3.18.12.64"));
+        assertEquals(3, meterRegistry.get("bbqb.stripe.webhook.allowlist.size").gauge().value());
+    }
+
+    @Test
+    void testFailedRefreshKeepsTheLastDownloadedList() {
+        //given
+        serve(200, "3.18.12.63\n");
+        sut.refresh();
+
+        //when Stripe is unavailable and later answers with an empty list
+        serve(500, "");
+        sut.refresh();
+        boolean allowedAfterError = sut.isAllowed("3.18.12.63");
+        serve(200, "\n");
+        sut.refresh();
+
+        //then
+        assertTrue(allowedAfterError);
+        assertTrue(sut.isAllowed("3.18.12.63"));
+        assertEquals(2, meterRegistry.get("bbqb.stripe.webhook.allowlist.refresh.failed").counter().count());
+    }
+
+    @Test
+    void testNothingIsAllowedUntilTheFirstDownloadSucceeded() {
+        //given
+        serve(500, "");
+
+        //when
+        sut.refresh();
+
+        //then even the additional ranges are only allowed once the list was downloaded
+        assertFalse(sut.isLoaded());
+        assertFalse(sut.isAllowed("10.1.2.3"));
+        assertEquals(1, meterRegistry.get("bbqb.stripe.webhook.allowlist.refresh.failed").counter().count());
+    }
+
+    private void serve(int status, String ips) {
+        this.status = status;
+        this.ips = ips;
+    }
+}
@@ -0,0 +1,76 @@
+package de.bbqb.backend.telemetry;
+
+import de.bbqb.backend.concurrent.HashedTimingWheel;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of a heartbeat and of one wheel tick for fleets of 10k and 100k online devices
+ * which publish every 10 seconds with an offline period of 5 minutes.
+ * A tick only visits the timeouts due in it (1/300 of the devices), not every device.
+ * Run with the main method from the IDE or after {@code ./mvnw test-compile}.
+ *
+ * @author Marius Degen
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LivenessTrackerBenchmark {
+
+    private static final long TICK_MILLIS = 1000;
+    private static final long SILENCE_MILLIS = 300_000;
+
+    @Param({"10000", "100000"})
+    private int devices;
+
+    private long now;
+    private HashedTimingWheel wheel;
+    private LivenessTracker tracker;
+    private String[] deviceIds;
+    private int next;
+
+    @Setup
+    public void setup() {
+        now = 0;
+        wheel = new HashedTimingWheel("benchmark", TICK_MILLIS, (int) (SILENCE_MILLIS / TICK_MILLIS) + 1);
+        tracker = new LivenessTracker(wheel, SILENCE_MILLIS, () -> now);
+        wheel.expire(now);
+        deviceIds = new String[devices];
+        for (int i = 0; i < devices; i++) {
+            deviceIds[i] = "device-" + i;
+            // Spread the first heartbeats over the offline period so the timeouts fall into all buckets
+            tracker.heartbeat(deviceIds[i], now - (long) i * SILENCE_MILLIS / devices);
+        }
+        wheel.expire(now);
+    }
+
+    @Benchmark
+    public void heartbeat() {
+        tracker.heartbeat(deviceIds[next++ % devices], now++);
+    }
+
+    @Setup(Level.Invocation)
+    public void publish() {
+        // Every device publishes every 10 seconds, so the timeouts visited by the next tick are rescheduled
+        now += TICK_MILLIS;
+        for (int i = 0; i < devices / 10; i++) {
+            tracker.heartbeat(deviceIds[next++ % devices], now);
+        }
+    }
+
+    @Benchmark
+    public void tick() {
+        wheel.expire(now);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(LivenessTrackerBenchmark.class.getSimpleName()).build()).run();
+    }
+}
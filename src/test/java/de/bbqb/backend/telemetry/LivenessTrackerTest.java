@@ -0,0 +1,81 @@
+package de.bbqb.backend.telemetry;
+
+import de.bbqb.backend.concurrent.HashedTimingWheel;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author Marius Degen
+ */
+public class LivenessTrackerTest {
+
+    @Test
+    void testDeviceGoesOfflineAfterSilence() {
+        //given
+        AtomicLong clock = new AtomicLong(1_000_000);
+        HashedTimingWheel wheel = new HashedTimingWheel("test", 1000, 64);
+        LivenessTracker sut = new LivenessTracker(wheel, 60_000, clock::get);
+        wheel.expire(clock.get());
+
+        //when
+        sut.heartbeat("butler-1", clock.get());
+        sut.heartbeat("butler-2", clock.get() - 120_000); // last seen long ago
+        advance(wheel, clock, 30_000);
+        sut.heartbeat("butler-1", clock.get());
+        advance(wheel, clock, 45_000);
+
+        //then butler-1 was seen 45s ago, butler-2 never counted as online
+        assertTrue(sut.isOnline("butler-1"));
+        assertFalse(sut.isOnline("butler-2"));
+        assertFalse(sut.isOnline("unknown"));
+        assertEquals(1, sut.onlineCount());
+
+        //when
+        advance(wheel, clock, 20_000);
+
+        //then
+        assertFalse(sut.isOnline("butler-1"));
+        assertEquals(0, sut.onlineCount());
+        assertEquals(1, sut.offlineTransitions());
+
+        //when the device publishes again
+        sut.heartbeat("butler-1", clock.get());
+
+        //then
+        assertTrue(sut.isOnline("butler-1"));
+    }
+
+    @Test
+    void testWheelRunsTimeoutsLongerThanOneRotationAndSkipsCancelled() {
+        //given
+        HashedTimingWheel sut = new HashedTimingWheel("test", 10, 8);
+        AtomicLong fired = new AtomicLong();
+        sut.expire(0);
+        sut.schedule(fired::incrementAndGet, 500);
+        HashedTimingWheel.Timeout cancelled = sut.schedule(fired::incrementAndGet, 200);
+        cancelled.cancel();
+
+        //when
+        for (long now = 10; now < 500; now += 10) {
+            sut.expire(now);
+        }
+
+        //then
+        assertEquals(0, fired.get());
+
+        //when
+        sut.expire(500);
+
+        //then
+        assertEquals(1, fired.get());
+    }
+
+    private static void advance(HashedTimingWheel wheel, AtomicLong clock, long millis) {
+        for (long step = 0; step < millis; step += 1000) {
+            wheel.expire(clock.addAndGet(1000));
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package de.bbqb.backend.telemetry;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of appending samples to a full buffer and of downsampling one hour of samples
+ * taken every second into one minute buckets.
+ * Run with the main method from the IDE or after {@code ./mvnw test-compile}.
+ *
+ * @author Marius Degen
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TelemetryRingBufferBenchmark {
+
+    private static final int CAPACITY = 4096;
+
+    private TelemetryRingBuffer buffer;
+    private long next;
+
+    @Setup
+    public void setup() {
+        buffer = new TelemetryRingBuffer(CAPACITY);
+        for (next = 0; next < CAPACITY; next++) {
+            buffer.append(next * 1000, 180f + next % 20, 200f - next % 20);
+        }
+    }
+
+    @Benchmark
+    public boolean append() {
+        long timestamp = next++ * 1000;
+        return buffer.append(timestamp, 180f, 200f);
+    }
+
+    @Benchmark
+    public List<TelemetryRingBuffer.Bucket> downsampleHourByMinute() {
+        long to = buffer.latestTimestamp() + 1;
+        return buffer.downsample(to - 3_600_000, to, 60_000);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(TelemetryRingBufferBenchmark.class.getSimpleName()).build()).run();
+    }
+}
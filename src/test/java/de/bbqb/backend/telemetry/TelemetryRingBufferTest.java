@@ -0,0 +1,76 @@
+package de.bbqb.backend.telemetry;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author Marius Degen
+ */
+public class TelemetryRingBufferTest {
+
+    @Test
+    void testDownsampleAggregatesBuckets() {
+        //given
+        TelemetryRingBuffer sut = new TelemetryRingBuffer(16);
+        sut.append(1000, 10f, Float.NaN);
+        sut.append(1500, 20f, Float.NaN);
+        sut.append(3000, 30f, 50f);
+
+        //when
+        List<TelemetryRingBuffer.Bucket> result = sut.downsample(1000, 4000, 1000);
+
+        //then
+        assertEquals(2, result.size());
+        assertEquals(1000, result.get(0).getStart());
+        assertEquals(2, result.get(0).getCount());
+        assertEquals(10, result.get(0).getMinPlate1());
+        assertEquals(20, result.get(0).getMaxPlate1());
+        assertEquals(15, result.get(0).getAvgPlate1());
+        assertTrue(Double.isNaN(result.get(0).getAvgPlate2()));
+        assertEquals(3000, result.get(1).getStart());
+        assertEquals(50, result.get(1).getAvgPlate2());
+    }
+
+    @Test
+    void testDownsampleWithResolutionLongerThanTheRange() {
+        //given
+        TelemetryRingBuffer sut = new TelemetryRingBuffer(4);
+        sut.append(1000, 10f, 20f);
+
+        //when the rounded up bucket count would overflow when adding the resolution
+        List<TelemetryRingBuffer.Bucket> result = sut.downsample(0, 2000, Long.MAX_VALUE);
+
+        //then
+        assertEquals(1, result.size());
+        assertEquals(0, result.get(0).getStart());
+        assertThrows(IllegalArgumentException.class, () -> sut.downsample(Long.MIN_VALUE, Long.MAX_VALUE, 1000));
+    }
+
+    @Test
+    void testFullBufferOverwritesOldestAndKeepsLateSamplesOrdered() {
+        //given
+        TelemetryRingBuffer sut = new TelemetryRingBuffer(4);
+        for (int i = 1; i <= 6; i++) {
+            sut.append(i * 1000L, i, i);
+        }
+
+        //when
+        boolean late = sut.append(4500, 45f, 45f);
+        boolean tooOld = sut.append(500, 5f, 5f);
+        boolean duplicate = sut.append(6000, 60f, 60f);
+
+        //then
+        assertTrue(late);
+        assertFalse(tooOld);
+        assertFalse(duplicate);
+        assertEquals(4, sut.size());
+        assertEquals(6000, sut.latestTimestamp());
+        List<TelemetryRingBuffer.Bucket> result = sut.downsample(0, 10000, 500);
+        assertArrayEquals(new long[]{4000, 4500, 5000, 6000}, result.stream().mapToLong(TelemetryRingBuffer.Bucket::getStart).toArray());
+        assertEquals(45, result.get(1).getAvgPlate1());
+        assertEquals(6, result.get(3).getAvgPlate1());
+    }
+}